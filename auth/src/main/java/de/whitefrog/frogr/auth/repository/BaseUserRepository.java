@@ -28,11 +28,20 @@ public class BaseUserRepository<U extends BaseUser> extends BaseModelRepository<
   private static final Logger logger = LoggerFactory.getLogger(BaseUserRepository.class);
   
   private Role roles = new Role();
+  private Authenticator<U> authenticator;
   
   public Role getRoles() {
     return roles;
   }
 
+  /**
+   * The authenticator holding the access tokens of this repository's users, 
+   * set when the authenticator is created.
+   */
+  public void setAuthenticator(Authenticator<U> authenticator) {
+    this.authenticator = authenticator;
+  }
+
   public String generateHash(String password) {
     return DigestUtils.sha1Hex(password);
   }
@@ -55,7 +64,7 @@ public class BaseUserRepository<U extends BaseUser> extends BaseModelRepository<
         if(user.getAccessToken() == null) {
           user.setAccessToken(UUID.randomUUID().toString());
         }
-        Authenticator.updateLastApiAccess(user.getAccessToken());
+        if(authenticator != null) authenticator.updateLastApiAccess(user.getAccessToken());
         save(user);
         return user;
       } else {
@@ -67,7 +76,8 @@ public class BaseUserRepository<U extends BaseUser> extends BaseModelRepository<
   }
   
   public void logout(U user) {
-    Authenticator.removeToken(BaseUser.AccessToken);
+    if(user.getAccessToken() == null) fetch(user, BaseUser.AccessToken);
+    if(authenticator != null) authenticator.removeToken(user.getAccessToken());
     user.removeProperty(BaseUser.AccessToken);
     save(user);
   }
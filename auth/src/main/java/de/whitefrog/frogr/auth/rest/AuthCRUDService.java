@@ -11,7 +11,10 @@ import de.whitefrog.frogr.repository.Repository;
 import de.whitefrog.frogr.rest.Views;
 import de.whitefrog.frogr.rest.request.SearchParam;
 import de.whitefrog.frogr.rest.response.FrogrResponse;
+import de.whitefrog.frogr.rest.response.SearchStream;
 import de.whitefrog.frogr.rest.service.RestService;
+import de.whitefrog.frogr.service.Search;
+import de.whitefrog.frogr.service.SearchResult;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.validation.Validated;
 import org.neo4j.graphdb.Transaction;
@@ -20,6 +23,8 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.security.RolesAllowed;
 import javax.ws.rs.*;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.List;
 
@@ -97,16 +102,20 @@ abstract public class AuthCRUDService <R extends Repository<M>, M extends Model,
     FrogrResponse response = new FrogrResponse<>();
 
     try(Transaction ignored = service().beginTx()) {
-      SearchParameter paramsClone = params.clone();
-      if(params.limit() > 0) {
-        List<M> list = repository().search().params(params).list();
-        response.setData(list);
+      Search search = createSearch(user, params);
+      if(params.count()) {
+        // the page and the total are queried at once
+        SearchResult<M> result = search.listWithTotal();
+        response.setData(result.list());
+        response.setTotal(result.total());
+        if(result.isEstimated()) response.setEstimated(true);
+      } else if(params.limit() > 0) {
+        response.setData(search.list());
       }
+      if(search.isCapped()) response.setCapped(true);
+      response.setNext(search.nextCursor(response.getData()));
       timer.stop();
       response.setSuccess(true);
-      if(params.count()) {
-        response.setTotal(repository().search().params(paramsClone).count());
-      }
     }
 
     return response;
@@ -120,6 +129,42 @@ abstract public class AuthCRUDService <R extends Repository<M>, M extends Model,
     return search(user, params);
   }
 
+  /**
+   * Stream the search results instead of collecting them first, see {@link SearchStream}.
+   * Returns newline delimited JSON when requested with the {@link SearchStream#NDJSON} media type,
+   * the {@link FrogrResponse} envelope otherwise. Only available when {@link #isStreamable()} is enabled.
+   */
+  @GET
+  @Path("stream")
+  @RolesAllowed({Role.User})
+  @Produces({MediaType.APPLICATION_JSON, SearchStream.NDJSON})
+  public Response stream(@Auth U user, @SearchParam SearchParameter params, @HeaderParam(HttpHeaders.ACCEPT) String accept) {
+    if(!isStreamable()) throw new NotFoundException();
+    return SearchStream.response(service(), createSearch(user, params), mapper(), Views.Public.class, accept);
+  }
+
+  /**
+   * Creates the search used by the search and stream endpoints. Override to restrict the results 
+   * {@link #search(BaseUser, SearchParameter) search} and {@link #stream} return, instead of overriding the endpoints.
+   * @param user Authenticated user
+   * @param params The search parameters of the request
+   * @return The search to run
+   */
+  protected Search createSearch(U user, SearchParameter params) {
+    Search search = repository().search().params(params).project();
+    // repositories with a configured ttl serve repeated searches from the search cache
+    if(service().searchCache().isEnabled(repository().getType())) search.cached();
+    return search;
+  }
+
+  /**
+   * Enables the {@link #stream} endpoint, which is disabled by default, as it returns the whole result set
+   * of a search at once.
+   */
+  protected boolean isStreamable() {
+    return false;
+  }
+
   @DELETE
   @Path("{uuid: [a-zA-Z0-9]+}")
   @RolesAllowed({Role.User})
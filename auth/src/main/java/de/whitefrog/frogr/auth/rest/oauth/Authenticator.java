@@ -1,34 +1,67 @@
 package de.whitefrog.frogr.auth.rest.oauth;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import de.whitefrog.frogr.auth.model.Role;
 import de.whitefrog.frogr.auth.repository.BaseUserRepository;
 import de.whitefrog.frogr.auth.model.BaseUser;
+import de.whitefrog.frogr.exception.FrogrException;
+import de.whitefrog.frogr.model.Base;
+import de.whitefrog.frogr.persistence.FieldDescriptor;
+import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
-import java.util.UUID;
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Authenticates requests by access token. Tokens of logged in users are held in a bounded cache,
+ * which expires them {@link #ACCESS_TOKEN_EXPIRE_TIME_MIN} minutes after their last use. The user
+ * belonging to a token is loaded once and kept with the token, until the user node is changed
+ * by a committed transaction. So requests with a known token don't touch the database.
+ * Every request gets a deep copy of the cached user.
+ */
 public class Authenticator<U extends BaseUser> implements io.dropwizard.auth.Authenticator<String, U> {
   private static final boolean SimulateUnauthorized = false;
   public static final int ACCESS_TOKEN_EXPIRE_TIME_MIN = 30;
+  public static final long DefaultMaximumSize = 100000;
+  // tokens with a loaded user by user id, to drop the user when its node changes
+  private final Map<Long, Token> tokensByUser = new ConcurrentHashMap<>();
+  private final Cache<String, Token> tokens = Caffeine.newBuilder()
+    .maximumSize(DefaultMaximumSize)
+    .expireAfterAccess(ACCESS_TOKEN_EXPIRE_TIME_MIN, TimeUnit.MINUTES)
+    .removalListener((String accessToken, Token token, RemovalCause cause) -> {
+      if(token != null && token.user != null) tokensByUser.remove(token.user.getId(), token);
+    })
+    .build();
+  // incremented on commits changing nodes, users loaded meanwhile are not kept
+  private final AtomicLong generation = new AtomicLong();
   private BaseUserRepository<U> repository;
-  private static Map<String, Long> lastApiAccess = new HashMap<>(100000);
 
   public Authenticator(BaseUserRepository<U> repository) {
     this.repository = repository;
+    repository.setAuthenticator(this);
+    repository.service().graph().registerTransactionEventHandler(new UserChanges());
   }
-  
-  public static void updateLastApiAccess(String accessToken) {
-    lastApiAccess.put(accessToken, System.currentTimeMillis());
+
+  public void updateLastApiAccess(String accessToken) {
+    // a fresh login, the user is loaded again on the next request
+    tokens.put(accessToken, new Token());
   }
-  
-  public static void removeToken(String accessToken) {
-    lastApiAccess.remove(accessToken);
+
+  public void removeToken(String accessToken) {
+    if(accessToken != null) tokens.invalidate(accessToken);
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public Optional<U> authenticate(String accessToken) {
     if(SimulateUnauthorized) {
       return Optional.empty();
@@ -45,34 +78,133 @@ public class Authenticator<U extends BaseUser> implements io.dropwizard.auth.Aut
       return Optional.empty();
     }
 
-    // Get the access token from the database
+    // unknown or expired token, reading it updates the access time
+    Token token = tokens.getIfPresent(accessToken);
+    if(token == null) return Optional.empty();
+    U user = (U) token.user;
+    if(user == null) {
+      user = load(accessToken, token);
+      if(user == null) return Optional.empty();
+    }
+    // requests get their own copy, the cached user stays untouched
+    return Optional.of((U) copy(user, new IdentityHashMap<>()));
+  }
+
+  /**
+   * Get the user for an access token from the database and keep it with the token.
+   */
+  private U load(String accessToken, Token token) {
+    long before = generation.get();
+    U user;
     try(Transaction tx = repository.service().beginTx()) {
-      U user = repository.search()
+      user = repository.search()
         .filter(BaseUser.AccessToken, accessToken)
         .fields(BaseUser.Roles)
         .single();
-      Optional<U> userOptional;
-      if(user != null) {
-        userOptional = Optional.of(user);
-      } else {
-        return Optional.empty();
+      tx.success();
+    }
+    if(user == null) return null;
+    tokensByUser.put(user.getId(), token);
+    token.user = user;
+    // a change was committed while loading, the user could already be outdated
+    if(generation.get() != before) token.user = null;
+    return user;
+  }
+
+  /**
+   * Deep copy of a cached value. Models are copied with their fetched fields, collections, maps, 
+   * arrays and dates are copied too, other values are expected to be immutable.
+   */
+  @SuppressWarnings("unchecked")
+  private Object copy(Object value, Map<Object, Object> copies) {
+    if(value == null) return null;
+    Object copied = copies.get(value);
+    if(copied != null) return copied;
+    if(value instanceof Base) {
+      Base model = (Base) value;
+      Base copy = newInstance(model.getClass());
+      copies.put(value, copy);
+      copy.setId(model.getId());
+      for(FieldDescriptor<?> descriptor : repository.cache().fieldMap(model.getClass())) {
+        if(!model.getFetchedFields().contains(descriptor.getName())) continue;
+        descriptor.accessor().set(copy, copy(descriptor.accessor().get(model), copies));
+        copy.getFetchedFields().add(descriptor.getName());
+      }
+      return copy;
+    } else if(value instanceof Collection) {
+      Collection<Object> copy;
+      try {
+        copy = (Collection<Object>) value.getClass().newInstance();
+      } catch(ReflectiveOperationException e) {
+        // unmodifiable and fixed size collections
+        copy = value instanceof Set? new LinkedHashSet<>(): new ArrayList<>();
       }
+      copies.put(value, copy);
+      for(Object element : (Collection<?>) value) copy.add(copy(element, copies));
+      return copy;
+    } else if(value instanceof Map) {
+      Map<Object, Object> copy = new LinkedHashMap<>();
+      copies.put(value, copy);
+      for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        copy.put(entry.getKey(), copy(entry.getValue(), copies));
+      }
+      return copy;
+    } else if(value.getClass().isArray()) {
+      int length = Array.getLength(value);
+      Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+      copies.put(value, copy);
+      for(int i = 0; i < length; i++) Array.set(copy, i, copy(Array.get(value, i), copies));
+      return copy;
+    } else if(value instanceof Date) {
+      return ((Date) value).clone();
+    }
+    return value;
+  }
 
-      if(!lastApiAccess.containsKey(accessToken)) {
-        return Optional.empty();
-      } else {
-        // Check if the last access time is not too far in the past (the access token is expired)
-        long lastLogin = lastApiAccess.get(accessToken);
-        if(System.currentTimeMillis() - lastLogin > (ACCESS_TOKEN_EXPIRE_TIME_MIN * 60 * 1000)) {
-          return Optional.empty();
-        }
-        // Update the access time for the token
-        lastApiAccess.put(accessToken, System.currentTimeMillis());
+  private static Base newInstance(Class<? extends Base> clazz) {
+    try {
+      return clazz.newInstance();
+    } catch(ReflectiveOperationException e) {
+      throw new FrogrException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Number of tokens currently held.
+   */
+  public long size() {
+    tokens.cleanUp();
+    return tokens.estimatedSize();
+  }
+
+  private static class Token {
+    private volatile BaseUser user;
+  }
+
+  /**
+   * Drops the loaded users, when their nodes are changed.
+   */
+  private class UserChanges implements TransactionEventHandler<Object> {
+    @Override
+    public Object beforeCommit(TransactionData data) {
+      return null;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Object state) {
+      Set<Long> changed = new HashSet<>();
+      for(PropertyEntry<Node> entry : data.assignedNodeProperties()) changed.add(entry.entity().getId());
+      for(PropertyEntry<Node> entry : data.removedNodeProperties()) changed.add(entry.entity().getId());
+      for(Node node : data.deletedNodes()) changed.add(node.getId());
+      if(changed.isEmpty()) return;
+      generation.incrementAndGet();
+      for(Long id : changed) {
+        Token token = tokensByUser.remove(id);
+        if(token != null) token.user = null;
       }
-      
-      tx.success();
-      // Return the user
-      return userOptional;
     }
+
+    @Override
+    public void afterRollback(TransactionData data, Object state) {}
   }
 }
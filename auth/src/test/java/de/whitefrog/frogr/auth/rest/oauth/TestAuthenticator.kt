@@ -0,0 +1,114 @@
+package de.whitefrog.frogr.auth.rest.oauth
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.auth.model.Role
+import de.whitefrog.frogr.auth.test.model.User
+import de.whitefrog.frogr.auth.test.repository.UserRepository
+import de.whitefrog.frogr.test.TemporaryService
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+import java.util.*
+
+class TestAuthenticator {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var users: UserRepository
+    private lateinit var authenticator: Authenticator<User>
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      users = service.repository(User::class.java)
+      authenticator = Authenticator(users)
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  private fun login(name: String): User {
+    return service.beginTx().use { tx ->
+      val user = User()
+      user.login = name
+      user.password = "password"
+      user.tags = arrayOf("first", "second")
+      users.register(user)
+      val loggedIn = users.login(name, "password")
+      tx.success()
+      loggedIn
+    }
+  }
+
+  @Test
+  fun authenticate() {
+    val user = login("authCached")
+    val first = authenticator.authenticate(user.accessToken!!).get()
+    val second = authenticator.authenticate(user.accessToken!!).get()
+    assertThat(first.id).isEqualTo(user.id)
+    assertThat(first.role).isEqualTo(Role.User)
+    // every request gets its own instance
+    assertThat(second).isNotSameAs(first).isEqualTo(first)
+  }
+
+  @Test
+  fun deepCopy() {
+    val user = login("authCopy")
+    val first = authenticator.authenticate(user.accessToken!!).get()
+    first.tags!![0] = "changed"
+    val second = authenticator.authenticate(user.accessToken!!).get()
+    assertThat(second.tags).containsExactly("first", "second")
+  }
+
+  @Test
+  fun separateInstances() {
+    val user = login("authSeparate")
+    val other = Authenticator(users)
+    try {
+      // tokens are held per authenticator
+      assertThat(other.authenticate(user.accessToken!!).isPresent).isFalse()
+      assertThat(other.size()).isEqualTo(0)
+      assertThat(authenticator.authenticate(user.accessToken!!).isPresent).isTrue()
+    } finally {
+      users.setAuthenticator(authenticator)
+    }
+  }
+
+  @Test
+  fun unknownToken() {
+    assertThat(authenticator.authenticate(UUID.randomUUID().toString()).isPresent).isFalse()
+    assertThat(authenticator.authenticate("noUuid").isPresent).isFalse()
+  }
+
+  @Test
+  fun changedUser() {
+    val user = login("authChanged")
+    assertThat(authenticator.authenticate(user.accessToken!!).get().role).isEqualTo(Role.User)
+    service.beginTx().use { tx ->
+      val update = User()
+      update.id = user.id
+      update.role = Role.Admin
+      users.save(update)
+      tx.success()
+    }
+    assertThat(authenticator.authenticate(user.accessToken!!).get().role).isEqualTo(Role.Admin)
+  }
+
+  @Test
+  fun logout() {
+    val user = login("authLogout")
+    val token = user.accessToken!!
+    assertThat(authenticator.authenticate(token).isPresent).isTrue()
+    service.beginTx().use { tx ->
+      val logout = User()
+      logout.id = user.id
+      users.logout(logout)
+      tx.success()
+    }
+    assertThat(authenticator.authenticate(token).isPresent).isFalse()
+  }
+}
@@ -1,9 +1,12 @@
 package de.whitefrog.frogr.auth.test.model
 
 import de.whitefrog.frogr.auth.model.BaseUser
+import de.whitefrog.frogr.model.annotation.Fetch
 import org.hibernate.validator.constraints.Length
 
 class User : BaseUser() {
   @Length(max = 5)
   var field: String? = null
+  @Fetch
+  var tags: Array<String>? = null
 }
\ No newline at end of file
@@ -3,7 +3,10 @@ package de.whitefrog.frogr
 import com.fasterxml.jackson.annotation.JsonInclude
 import com.fasterxml.jackson.databind.DeserializationFeature
 import com.fasterxml.jackson.databind.MapperFeature
+import com.fasterxml.jackson.databind.ObjectMapper
+import de.whitefrog.frogr.admin.QueryStatsServlet
 import de.whitefrog.frogr.health.GraphHealthCheck
+import de.whitefrog.frogr.health.IndexReadinessCheck
 import de.whitefrog.frogr.rest.request.SearchParameterResolver
 import de.whitefrog.frogr.rest.request.ServiceInjector
 import de.whitefrog.frogr.rest.response.ExceptionMapper
@@ -32,6 +35,7 @@ abstract class Application<C : Configuration> : io.dropwizard.Application<C>() {
   }
 
   private val packages = ArrayList<String>()
+  private var readinessModels: Collection<String>? = null
   private var serviceInjector: ServiceInjector? = null
 
   fun service(): Service {
@@ -52,6 +56,9 @@ abstract class Application<C : Configuration> : io.dropwizard.Application<C>() {
 
   @Throws(Exception::class)
   override fun run(configuration: C, environment: Environment) {
+    // collect service metrics in the dropwizard registry
+    serviceInjector().service().setMetrics(environment.metrics())
+
     environment.jersey().register(ExceptionMapper::class.java)
     environment.jersey().register(SearchParameterResolver::class.java)
 
@@ -66,6 +73,12 @@ abstract class Application<C : Configuration> : io.dropwizard.Application<C>() {
     cors.addMappingForUrlPatterns(EnumSet.allOf(DispatcherType::class.java), true, "/*")
 
     environment.healthChecks().register("graph", GraphHealthCheck(service()))
+    // query statistics, see QueryStats
+    environment.admin().addServlet("queries", QueryStatsServlet(service(), environment.objectMapper))
+      .addMapping("/queries")
+    if (readinessModels != null) {
+      environment.healthChecks().register("indexes", IndexReadinessCheck(service(), readinessModels!!))
+    }
 
     environment.objectMapper.enable(MapperFeature.USE_ANNOTATIONS)
     environment.objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
@@ -75,6 +88,7 @@ abstract class Application<C : Configuration> : io.dropwizard.Application<C>() {
     environment.jersey().register(object : AbstractBinder() {
       override fun configure() {
         bindFactory(serviceInjector()).to(Service::class.java)
+        bind(environment.objectMapper).to(ObjectMapper::class.java)
       }
     })
 
@@ -106,6 +120,14 @@ abstract class Application<C : Configuration> : io.dropwizard.Application<C>() {
     }
   }
 
+  /**
+   * Report the application as unhealthy until the indexes of some models are online.
+   * @param models The model names whose indexes are required, all indexes when none are passed
+   */
+  fun awaitIndexes(vararg models: String) {
+    readinessModels = models.toList()
+  }
+
   fun registry(): List<String> {
     return packages
   }
@@ -1,23 +1,35 @@
 package de.whitefrog.frogr;
 
+import com.codahale.metrics.MetricRegistry;
+import de.whitefrog.frogr.cypher.QueryPlanCache;
+import de.whitefrog.frogr.cypher.QueryStats;
 import de.whitefrog.frogr.exception.FrogrException;
+import de.whitefrog.frogr.helper.ClassIndex;
+import de.whitefrog.frogr.jobs.FullTextBackfill;
 import de.whitefrog.frogr.model.Base;
 import de.whitefrog.frogr.model.Graph;
 import de.whitefrog.frogr.model.Model;
+import de.whitefrog.frogr.model.SearchParameter;
 import de.whitefrog.frogr.model.annotation.IndexType;
 import de.whitefrog.frogr.patch.Patcher;
 import de.whitefrog.frogr.persistence.AnnotationDescriptor;
+import de.whitefrog.frogr.persistence.EntityCache;
 import de.whitefrog.frogr.persistence.FieldDescriptor;
+import de.whitefrog.frogr.persistence.FullTextIndex;
+import de.whitefrog.frogr.persistence.IndexPopulation;
 import de.whitefrog.frogr.persistence.ModelCache;
 import de.whitefrog.frogr.persistence.Persistence;
+import de.whitefrog.frogr.persistence.RelationshipCounters;
 import de.whitefrog.frogr.repository.GraphRepository;
 import de.whitefrog.frogr.repository.ModelRepository;
 import de.whitefrog.frogr.repository.Repository;
 import de.whitefrog.frogr.repository.RepositoryFactory;
+import de.whitefrog.frogr.service.SearchCache;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.lang3.StringUtils;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
@@ -56,7 +68,16 @@ public class Service implements AutoCloseable {
   private State state = State.Started;
   private Persistence persistence;
   private ModelCache modelCache;
+  private ClassIndex classIndex;
   private String directory;
+  private MetricRegistry metrics = new MetricRegistry();
+  private QueryPlanCache queryPlanCache;
+  private final QueryStats queryStats = new QueryStats();
+  private EntityCache entityCache;
+  private SearchCache searchCache;
+  private IndexPopulation indexPopulation;
+  private FullTextIndex fullTextIndex;
+  private Set<Locale> fullTextLocales = Collections.singleton(SearchParameter.DefaultLocale);
 
   public Service() {
     Locale.setDefault(Locale.GERMAN);
@@ -72,18 +93,46 @@ public class Service implements AutoCloseable {
     return modelCache;
   }
 
+  /**
+   * Models, repositories and patches in the registered packages, see {@link ClassIndex}.
+   */
+  public ClassIndex classIndex() {
+    return classIndex;
+  }
+
   public void connect() {
     if(isConnected()) throw new FrogrException("already running");
     state = State.Connecting;
     graphDb = createGraphDatabase();
     
+    // find models, repositories and patches once, from the build time index if available
+    classIndex = ClassIndex.load(registry());
     // create the model cache
     modelCache = new ModelCache();
-    modelCache.scan(registry());
+    modelCache.scan(classIndex);
     
     persistence = new Persistence(this, modelCache);
+    // the counts written here are not part of the transaction data other handlers receive,
+    // so the caches invalidate the nodes of created and deleted relationships themselves
+    RelationshipCounters counters = new RelationshipCounters(graphDb, modelCache);
+    if(!counters.isEmpty()) graphDb.registerTransactionEventHandler(counters);
+    queryPlanCache = new QueryPlanCache();
+    queryPlanCache.registerMetrics(metrics);
+    queryStats.registerMetrics(metrics);
+    entityCache = new EntityCache(graphDb);
+    entityCache.registerMetrics(metrics);
+    graphDb.registerTransactionEventHandler(entityCache);
+    searchCache = new SearchCache();
+    searchCache.registerMetrics(metrics);
+    graphDb.registerTransactionEventHandler(searchCache);
+    indexPopulation = new IndexPopulation(graphDb);
+    indexPopulation.registerMetrics(metrics);
+    fullTextIndex = new FullTextIndex(graphDb, modelCache, SearchParameter.DefaultLocale, fullTextLocales);
+    if(!fullTextIndex.isEmpty()) graphDb.registerTransactionEventHandler(fullTextIndex);
     
     repositoryFactory = new RepositoryFactory(this);
+    // create all repositories now, so requests don't have to
+    repositoryFactory.warmUp();
     graphRepository = new GraphRepository(this);
 
     String version = getManifestVersion();
@@ -99,6 +148,8 @@ public class Service implements AutoCloseable {
     }
 
     initializeSchema();
+    // new indexes are populated in the background
+    indexPopulation.logPopulating();
     Patcher.patch(this);
 
     try(Transaction tx = beginTx()) {
@@ -139,8 +190,7 @@ public class Service implements AutoCloseable {
   }
   
   public boolean isConnected() {
-    return Arrays.asList(State.Connecting, State.Running, State.ShuttingDown)
-      .contains(state);  
+    return state == State.Connecting || state == State.Running || state == State.ShuttingDown;
   }
   
   public void setConfig(String configFile) {
@@ -167,6 +217,76 @@ public class Service implements AutoCloseable {
     return persistence;
   }
   
+  /**
+   * Cache for compiled queries, see {@link QueryPlanCache}.
+   */
+  public QueryPlanCache queryPlanCache() {
+    return queryPlanCache;
+  }
+
+  /**
+   * Statistics of the executed search queries, see {@link QueryStats}.
+   * Can be configured before the service is connected.
+   */
+  public QueryStats queryStats() {
+    return queryStats;
+  }
+
+  /**
+   * Cache for the node properties of models annotated with {@link de.whitefrog.frogr.model.annotation.Cached}.
+   */
+  public EntityCache entityCache() {
+    return entityCache;
+  }
+
+  /**
+   * Cache for the results of cached searches, see {@link SearchCache}.
+   */
+  public SearchCache searchCache() {
+    return searchCache;
+  }
+
+  /**
+   * Index for the fields annotated with {@link IndexType#FullText}, see {@link FullTextIndex}.
+   */
+  public FullTextIndex fullTextIndex() {
+    return fullTextIndex;
+  }
+
+  /**
+   * Set the locales whose languages get their own full-text index, has to be called before connecting.
+   * The default locale is always indexed.
+   */
+  public void setFullTextLocales(Locale... locales) {
+    this.fullTextLocales = new HashSet<>(Arrays.asList(locales));
+  }
+
+  /**
+   * State of the schema indexes, see {@link IndexPopulation}.
+   */
+  public IndexPopulation indexPopulation() {
+    return indexPopulation;
+  }
+
+  /**
+   * Registry containing the metrics collected by the service.
+   */
+  public MetricRegistry metrics() {
+    return metrics;
+  }
+
+  /**
+   * Use another metric registry, for example the one provided by dropwizard.
+   */
+  public void setMetrics(MetricRegistry metrics) {
+    this.metrics = metrics;
+    if(queryPlanCache != null) queryPlanCache.registerMetrics(metrics);
+    queryStats.registerMetrics(metrics);
+    if(entityCache != null) entityCache.registerMetrics(metrics);
+    if(searchCache != null) searchCache.registerMetrics(metrics);
+    if(indexPopulation != null) indexPopulation.registerMetrics(metrics);
+  }
+  
   public Set<String> registry() {
     return packageRegistry;
   }
@@ -242,6 +362,7 @@ public class Service implements AutoCloseable {
    */
   @SuppressWarnings("unchecked")
   private void initializeSchema() {
+    List<Runnable> backfills = new ArrayList<>();
     try(Transaction tx = beginTx()) {
       Schema schema = graph().schema();
       for(Class modelClass : cache().getAllModels()) {
@@ -260,8 +381,8 @@ public class Service implements AutoCloseable {
         for(FieldDescriptor descriptor : cache().fieldMap(modelClass)) {
           AnnotationDescriptor annotations = descriptor.annotations();
           ConstraintDefinition existingConstraint = null;
-          String indexName = descriptor.getName() + 
-            (annotations.indexed != null && annotations.indexed.type().equals(IndexType.LowerCase)? "_lower": "");
+          boolean lowerCase = annotations.indexed != null && annotations.indexed.type().equals(IndexType.LowerCase);
+          String indexName = descriptor.getName() + (lowerCase? "_lower": "");
           
           for(ConstraintDefinition constraint : constraints) {
             String property = Iterables.single(constraint.getPropertyKeys());
@@ -302,11 +423,34 @@ public class Service implements AutoCloseable {
             logger.debug("dropped index on field \"{}\" for model \"{}\"",
               descriptor.getName(), repository.getModelClass().getSimpleName());
           }
+
+          // nodes stored before the index, or not reached by an interrupted backfill, miss the shadow property
+          if(lowerCase) {
+            Label label = repository.label();
+            backfills.add(() -> indexPopulation.backfill(label, descriptor.getName()));
+          }
         }
       }
-//      schema.awaitIndexesOnline(Long.MAX_VALUE, TimeUnit.SECONDS);
       tx.success();
     }
+    backfills.forEach(Runnable::run);
+
+    if(!fullTextIndex.isEmpty()) {
+      List<String> labels = new ArrayList<>();
+      try(Transaction tx = beginTx()) {
+        fullTextIndex.create();
+        // index the nodes stored before the full-text fields, unless a previous backfill completed
+        for(String label : fullTextIndex.labels()) {
+          if(!fullTextIndex.isBackfilled(label)) labels.add(label);
+        }
+        tx.success();
+      }
+      for(String label : labels) {
+        indexPopulation.backfill(label + ".fulltext", new FullTextBackfill(graphDb, fullTextIndex, Label.label(label)));
+      }
+    }
+    // progress metrics for the created indexes
+    indexPopulation.registerMetrics(metrics);
   }
 
   public Validator validator() {
@@ -323,6 +467,7 @@ public class Service implements AutoCloseable {
 
   public void shutdown() {
     state = State.ShuttingDown;
+    if(indexPopulation != null) indexPopulation.shutdown();
     if(repositoryFactory() != null) repositoryFactory().cache().forEach(Repository::dispose);
     if(graphDb != null) graphDb.shutdown();
     state = State.Started;
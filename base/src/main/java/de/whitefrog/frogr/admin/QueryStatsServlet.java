@@ -0,0 +1,81 @@
+package de.whitefrog.frogr.admin;
+
+import com.codahale.metrics.Snapshot;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.whitefrog.frogr.Service;
+import de.whitefrog.frogr.cypher.QueryStats;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admin servlet listing the query shapes with the highest total execution time, see {@link QueryStats}.
+ * The number of shapes is set with the <code>top</code> parameter, 20 by default.
+ * Times are returned in milliseconds.
+ */
+public class QueryStatsServlet extends HttpServlet {
+  public static final int DefaultTop = 20;
+
+  private final transient Service service;
+  private final transient ObjectMapper mapper;
+
+  public QueryStatsServlet(Service service, ObjectMapper mapper) {
+    this.service = service;
+    this.mapper = mapper;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    int top = DefaultTop;
+    if(request.getParameter("top") != null) {
+      try {
+        top = Integer.parseInt(request.getParameter("top"));
+      } catch(NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "top has to be a number");
+        return;
+      }
+      if(top < 0) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "top must not be negative");
+        return;
+      }
+    }
+
+    List<Map<String, Object>> shapes = new ArrayList<>();
+    for(QueryStats.Shape shape : service.queryStats().top(top)) {
+      Snapshot latency = shape.latency();
+      Map<String, Object> entry = new LinkedHashMap<>();
+      entry.put("id", shape.id());
+      entry.put("query", shape.query());
+      entry.put("count", shape.count());
+      entry.put("totalTime", millis(shape.totalTime()));
+      entry.put("mean", millis(latency.getMean()));
+      entry.put("p95", millis(latency.get95thPercentile()));
+      entry.put("p99", millis(latency.get99thPercentile()));
+      entry.put("max", millis(latency.getMax()));
+      entry.put("totalEngineTime", millis(shape.totalEngineTime()));
+      entry.put("engineMean", millis(shape.engineLatency().getMean()));
+      entry.put("engineP95", millis(shape.engineLatency().get95thPercentile()));
+      entry.put("rows", shape.rows());
+      entry.put("meanRows", shape.rowDistribution().getMean());
+      entry.put("profiled", shape.profiled());
+      entry.put("dbHits", shape.dbHits());
+      shapes.add(entry);
+    }
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("application/json");
+    response.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+    mapper.writerWithDefaultPrettyPrinter().writeValue(response.getOutputStream(), shapes);
+  }
+
+  private static double millis(double nanos) {
+    return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
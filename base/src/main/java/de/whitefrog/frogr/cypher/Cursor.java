@@ -0,0 +1,110 @@
+package de.whitefrog.frogr.cypher;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.whitefrog.frogr.model.SearchParameter;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Position after the last result of an ordered search, used for keyset pagination.
+ * Contains the values of the ordered fields and the id of the last result, encoded as opaque string.
+ * The next page is queried with a seek predicate on the ordered fields instead of skipping
+ * the previous results, so deep pages are as fast as the first one.
+ */
+public class Cursor {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private final List<String> order;
+  private final List<Object> values;
+  private final long id;
+
+  private Cursor(List<String> order, List<Object> values, long id) {
+    this.order = order;
+    this.values = values;
+    this.id = id;
+  }
+
+  /**
+   * Create the cursor pointing after a result.
+   * @param entity Node or relationship of the last result
+   * @param orderBy The order of the search
+   * @return The cursor, missing values of ordered fields are stored as <code>null</code>
+   */
+  public static Cursor after(PropertyContainer entity, List<SearchParameter.OrderBy> orderBy) {
+    List<Object> values = new ArrayList<>(orderBy.size());
+    for(SearchParameter.OrderBy order : orderBy) values.add(entity.getProperty(order.field(), null));
+    long id = entity instanceof Node? ((Node) entity).getId(): ((Relationship) entity).getId();
+    return new Cursor(order(orderBy), values, id);
+  }
+
+  /**
+   * Decode a cursor and check that it was created for the same order.
+   * @param cursor The encoded cursor
+   * @param orderBy The order of the search
+   * @return The decoded cursor
+   * @throws IllegalArgumentException if the cursor is invalid or belongs to a different order
+   */
+  @SuppressWarnings("unchecked")
+  public static Cursor decode(String cursor, List<SearchParameter.OrderBy> orderBy) {
+    Map<String, Object> map;
+    try {
+      map = mapper.readValue(Base64.getUrlDecoder().decode(cursor), Map.class);
+    } catch(IOException | IllegalArgumentException e) {
+      throw new IllegalArgumentException("invalid cursor \"" + cursor + "\"");
+    }
+    List<String> order = (List<String>) map.get("o");
+    List<Object> values = (List<Object>) map.get("v");
+    if(order == null || values == null || !(map.get("i") instanceof Number) || order.size() != values.size()) {
+      throw new IllegalArgumentException("invalid cursor \"" + cursor + "\"");
+    }
+    if(!order.equals(order(orderBy))) {
+      throw new IllegalArgumentException("the cursor was created for the order " + order);
+    }
+    return new Cursor(order, values, ((Number) map.get("i")).longValue());
+  }
+
+  private static List<String> order(List<SearchParameter.OrderBy> orderBy) {
+    List<String> order = new ArrayList<>(orderBy.size());
+    for(SearchParameter.OrderBy entry : orderBy) order.add(entry.field() + " " + entry.dir().toUpperCase());
+    return order;
+  }
+
+  /**
+   * The encoded cursor.
+   */
+  public String encode() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("o", order);
+    map.put("v", values);
+    map.put("i", id);
+    try {
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(mapper.writeValueAsBytes(map));
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Value of an ordered field of the last result.
+   */
+  public Object value(int index) {
+    return values.get(index);
+  }
+
+  /**
+   * Id of the last result.
+   */
+  public long id() {
+    return id;
+  }
+
+  @Override
+  public String toString() {
+    return encode();
+  }
+}
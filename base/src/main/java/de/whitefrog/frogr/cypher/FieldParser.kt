@@ -5,14 +5,9 @@ import de.whitefrog.frogr.model.Base
 import de.whitefrog.frogr.model.annotation.IndexType
 import de.whitefrog.frogr.persistence.FieldDescriptor
 import de.whitefrog.frogr.repository.Repository
-import org.slf4j.Logger
-import org.slf4j.LoggerFactory
 import java.util.*
 
 class FieldParser(val repository: Repository<*>) {
-  companion object {
-    val logger: Logger = LoggerFactory.getLogger(FieldParser::class.java)
-  }
   fun parse(value: String): ArrayList<FieldDescriptor<*>> {
     val fields = value.split(".")
     val descriptors = ArrayList<FieldDescriptor<*>>()
@@ -37,13 +32,12 @@ class FieldParser(val repository: Repository<*>) {
     return descriptors
   }
   
+  /**
+   * Tests if the field at the end of a path is indexed in lower case.
+   * Unknown paths are not lower case.
+   */
   fun isLowerCase(value: String): Boolean {
-    return try {
-      val field = parse(value).last()
-      field.annotations().indexed?.type == IndexType.LowerCase
-    } catch(e: FrogrException) {
-      logger.warn(e.message, e)
-      false
-    }
+    val field = repository.cache().fieldDescriptor(repository.modelClass, value)
+    return field?.annotations()?.indexed?.type == IndexType.LowerCase
   }
-}
\ No newline at end of file
+}
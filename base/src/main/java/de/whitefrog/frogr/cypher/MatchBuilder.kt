@@ -51,4 +51,14 @@ class MatchBuilder {
   fun build(): String {
     return "($from$fromLabel)-[$relationship$relationshipType]-$direction($to$toLabel)"
   }
+
+  /**
+   * The labels and the relationship type used in the pattern.
+   */
+  fun names(): Set<String> {
+    return setOf(fromLabel, relationshipType, toLabel)
+      .filter { it.isNotEmpty() }
+      .map { it.substring(1) }
+      .toSet()
+  }
 }
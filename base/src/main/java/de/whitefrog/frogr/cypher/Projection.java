@@ -0,0 +1,230 @@
+package de.whitefrog.frogr.cypher;
+
+import de.whitefrog.frogr.model.Base;
+import de.whitefrog.frogr.model.FieldList;
+import de.whitefrog.frogr.model.Model;
+import de.whitefrog.frogr.model.QueryField;
+import de.whitefrog.frogr.model.annotation.Fetch;
+import de.whitefrog.frogr.model.annotation.RelationshipCount;
+import de.whitefrog.frogr.persistence.AnnotationDescriptor;
+import de.whitefrog.frogr.persistence.FieldDescriptor;
+import de.whitefrog.frogr.persistence.ModelCache;
+import org.apache.commons.lang.StringUtils;
+import org.neo4j.graphdb.Direction;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates a {@link FieldList} into a cypher map projection, including nested
+ * {@link de.whitefrog.frogr.model.annotation.RelatedTo} fields as pattern comprehensions
+ * and {@link RelationshipCount} fields as pattern sizes.
+ * That way all requested values are returned with the query result and don't
+ * have to be read per node afterwards.
+ *
+ * <p>Use {@link #create(ModelCache, Class, FieldList)} to get a projection, it returns <code>null</code>
+ * if the requested fields can't be projected, for example because they contain relationship models.</p>
+ */
+public class Projection {
+  /**
+   * Column name used for the projected map in query results.
+   */
+  public static final String Alias = "projection";
+  /**
+   * Map key containing the node id.
+   */
+  public static final String IdKey = "_id";
+  /**
+   * Map key containing the node type.
+   */
+  public static final String TypeKey = "_type";
+  // prevents endless recursion on cyclic @Fetch annotations
+  private static final int MaxDepth = 10;
+
+  private final Class<?> modelClass;
+  private final List<FieldDescriptor<?>> properties = new ArrayList<>();
+  private final List<FieldDescriptor<?>> counts = new ArrayList<>();
+  // labels the other node of a count is restricted to, by field name
+  private final Map<String, String> countLabels = new HashMap<>();
+  private final List<Related> related = new ArrayList<>();
+
+  private Projection(Class<?> modelClass) {
+    this.modelClass = modelClass;
+  }
+
+  /**
+   * Create a projection for a model class and the fields to fetch.
+   * Selects the same fields the persistence would fetch for that field list.
+   *
+   * @param cache The model cache
+   * @param modelClass The model class to project
+   * @param fields The fields to fetch
+   * @return The projection or <code>null</code>, if the fields can't be projected
+   */
+  public static Projection create(ModelCache cache, Class<?> modelClass, FieldList fields) {
+    return create(cache, modelClass, fields, 0);
+  }
+
+  private static Projection create(ModelCache cache, Class<?> modelClass, FieldList fields, int depth) {
+    if(depth > MaxDepth || !isConcreteModel(modelClass)) return null;
+    Projection projection = new Projection(modelClass);
+
+    for(FieldDescriptor<?> descriptor : cache.fieldMap(modelClass)) {
+      AnnotationDescriptor annotations = descriptor.annotations();
+      String name = descriptor.getName();
+
+      Fetch fetch = annotations.fetch;
+      boolean fetched = fetch != null && (fetch.group().equals("auto") || fields.containsField(fetch.group()));
+      if(!fetched) fetched = fields.containsField(Base.AllFields) || fields.containsField(name);
+      if(!fetched) continue;
+
+      if(annotations.relationshipCount != null && fields.containsField(name)) {
+        projection.counts.add(descriptor);
+        Class<?> otherModel = annotations.relationshipCount.otherModel();
+        if(!otherModel.equals(Model.class)) projection.countLabels.put(name, cache.getModelName(otherModel));
+      } else if(annotations.relatedTo != null && !annotations.notPersistent) {
+        if(fetch == null && !fields.containsField(name)) continue;
+        // relationship models are still fetched by the persistence
+        if(!descriptor.isModel() || descriptor.isRelationship()) return null;
+
+        QueryField queryField = fields.containsField(name)? fields.get(name): new QueryField(name);
+        Projection sub = create(cache, descriptor.baseClass(), queryField.subFields(), depth + 1);
+        if(sub == null) return null;
+        String restriction = annotations.relatedTo.restrictType()? cache.getModelName(descriptor.baseClass()): null;
+        projection.related.add(new Related(descriptor, queryField, sub, restriction));
+      } else {
+        projection.properties.add(descriptor);
+      }
+    }
+
+    return projection;
+  }
+
+  private static boolean isConcreteModel(Class<?> clazz) {
+    return Model.class.isAssignableFrom(clazz) &&
+      !clazz.isInterface() && !Modifier.isAbstract(clazz.getModifiers());
+  }
+
+  /**
+   * Build the map projection expression for a query identifier.
+   * @param identifier The identifier used in the query
+   * @return The cypher map projection
+   */
+  public String expression(String identifier) {
+    return expression(identifier, new int[] {0});
+  }
+
+  private String expression(String identifier, int[] counter) {
+    List<String> entries = new ArrayList<>(properties.size() + counts.size() + related.size() + 2);
+    for(FieldDescriptor<?> descriptor : properties) {
+      // not persistent fields are only marked as fetched
+      if(!descriptor.annotations().notPersistent) entries.add("." + descriptor.getName());
+    }
+    entries.add(IdKey + ": id(" + identifier + ")");
+    entries.add(TypeKey + ": " + identifier + "." + Model.Type);
+    for(FieldDescriptor<?> descriptor : counts) {
+      RelationshipCount count = descriptor.annotations().relationshipCount;
+      String other = countLabels.containsKey(descriptor.getName())? ":`" + countLabels.get(descriptor.getName()) + "`": "";
+      String size = "size(" + pattern(identifier, count.direction(), count.type(), other) + ")";
+      // maintained counts are read from the node, the pattern is only evaluated if the property is missing
+      if(count.maintained()) size = "coalesce(" + identifier + ".`" + descriptor.getName() + "`, " + size + ")";
+      entries.add(descriptor.getName() + ": " + size);
+    }
+    for(Related rel : related) {
+      String variable = "_p" + (++counter[0]);
+      StringBuilder comprehension = new StringBuilder("[")
+        .append(pattern(identifier, rel.direction(), rel.type(), variable));
+      if(rel.typeRestriction != null) {
+        comprehension.append(" where ").append(variable).append(".").append(Model.Type)
+          .append(" = '").append(rel.typeRestriction).append("'");
+      }
+      comprehension.append(" | ").append(rel.projection.expression(variable, counter)).append("]");
+
+      if(rel.descriptor.isCollection()) {
+        long skip = rel.queryField.skip();
+        comprehension.append("[").append(skip).append("..");
+        if(rel.queryField.limit() < Integer.MAX_VALUE) comprehension.append(skip + rel.queryField.limit());
+        comprehension.append("]");
+        entries.add(rel.descriptor.getName() + ": " + comprehension);
+      } else {
+        entries.add(rel.descriptor.getName() + ": head(" + comprehension + ")");
+      }
+    }
+
+    return identifier + " {" + StringUtils.join(entries, ", ") + "}";
+  }
+
+  private static String pattern(String from, Direction direction, String type, String to) {
+    String relationship = "[:`" + type + "`]";
+    switch(direction) {
+      case OUTGOING: return "(" + from + ")-" + relationship + "->(" + to + ")";
+      case INCOMING: return "(" + from + ")<-" + relationship + "-(" + to + ")";
+      default: return "(" + from + ")-" + relationship + "-(" + to + ")";
+    }
+  }
+
+  /**
+   * The projected model class.
+   */
+  public Class<?> modelClass() {
+    return modelClass;
+  }
+
+  /**
+   * Plain property fields included in the projection.
+   */
+  public List<FieldDescriptor<?>> properties() {
+    return Collections.unmodifiableList(properties);
+  }
+
+  /**
+   * Relationship count fields included in the projection.
+   */
+  public List<FieldDescriptor<?>> counts() {
+    return Collections.unmodifiableList(counts);
+  }
+
+  /**
+   * Related model fields included in the projection.
+   */
+  public List<Related> related() {
+    return Collections.unmodifiableList(related);
+  }
+
+  /**
+   * A related model field and the projection used for the related models.
+   */
+  public static class Related {
+    private final FieldDescriptor<?> descriptor;
+    private final QueryField queryField;
+    private final Projection projection;
+    private final String typeRestriction;
+
+    Related(FieldDescriptor<?> descriptor, QueryField queryField, Projection projection, String typeRestriction) {
+      this.descriptor = descriptor;
+      this.queryField = queryField;
+      this.projection = projection;
+      this.typeRestriction = typeRestriction;
+    }
+
+    public FieldDescriptor<?> descriptor() {
+      return descriptor;
+    }
+
+    public Projection projection() {
+      return projection;
+    }
+
+    private Direction direction() {
+      return descriptor.annotations().relatedTo.direction();
+    }
+
+    private String type() {
+      return descriptor.annotations().relatedTo.type();
+    }
+  }
+}
@@ -5,6 +5,14 @@ package de.whitefrog.frogr.cypher
  * Used in the QueryBuilder.
  */
 class Query(private var query: String?, private var params: Map<String, Any>?) {
+  companion object {
+    /**
+     * Name marking queries, which traverse relationships.
+     */
+    const val Related = "-"
+  }
+  
+  private var names: Set<String>? = null
 
   fun query(): String? {
     return query
@@ -21,4 +29,16 @@ class Query(private var query: String?, private var params: Map<String, Any>?) {
   fun params(params: Map<String, Any>) {
     this.params = params
   }
+
+  /**
+   * Labels and relationship types the query depends on, including [Related] when it traverses relationships.
+   * <code>null</code> for queries not created by the QueryBuilder.
+   */
+  fun names(): Set<String>? {
+    return names
+  }
+
+  fun names(names: Set<String>?) {
+    this.names = names
+  }
 }
@@ -7,6 +7,7 @@ import de.whitefrog.frogr.model.SearchParameter;
 import de.whitefrog.frogr.model.relationship.Relationship;
 import de.whitefrog.frogr.persistence.AnnotationDescriptor;
 import de.whitefrog.frogr.persistence.FieldDescriptor;
+import de.whitefrog.frogr.persistence.FullTextIndex;
 import de.whitefrog.frogr.persistence.Persistence;
 import de.whitefrog.frogr.repository.RelationshipRepository;
 import de.whitefrog.frogr.repository.Repository;
@@ -17,8 +18,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Field;
-import java.text.MessageFormat;
 import java.util.*;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -27,27 +29,30 @@ import java.util.stream.Collectors;
  */
 public class QueryBuilder {
   private static final Logger logger = LoggerFactory.getLogger(QueryBuilder.class);
+  /**
+   * Column containing the total count in queries built with {@link #buildWithTotal(SearchParameter, Projection)}.
+   */
+  public static final String TotalAlias = "total";
   
   private Repository repository;
-  private final Map<String, Object> queryParams = new HashMap<>();
+  private final Map<String, Function<QueryTemplate.Values, Object>> binders = new LinkedHashMap<>();
+  // labels and relationship types used in the query
+  private final Set<String> names = new HashSet<>();
   private SearchParameter params;
   private final String type;
-  private final Map<String, String> matches = new HashMap<>();
-  // list of indexed fields
-  private final List<String> queryFields = new ArrayList<>();
+  private final Map<String, MatchGroup> groups = new LinkedHashMap<>();
   private final Persistence persistence;
-  private final FieldParser fieldParser;
+  private final QueryPlanCache planCache;
+  private FieldParser fieldParser;
+  private Projection projection;
+  private boolean fullTextQuery;
+  private String fullTextField;
 
   public QueryBuilder(Repository repository) {
     this.repository = repository;
     this.persistence = repository.service().persistence();
+    this.planCache = repository.service().queryPlanCache();
     this.type = persistence.cache().getModelName(repository.getModelClass());
-    this.fieldParser = new FieldParser(repository);
-    persistence.cache().fieldMap(repository.getModelClass()).forEach(descriptor -> {
-      if(descriptor.annotations().indexed != null || descriptor.annotations().unique) {
-        queryFields.add(descriptor.field().getName());
-      }
-    });
   }
 
   public Repository repository() {
@@ -58,49 +63,25 @@ public class QueryBuilder {
     return repository().queryIdentifier();
   }
 
-  private StringBuilder match() {
-    matches.clear();
-    // add required matches for ordered fields when counted
-    for(SearchParameter.OrderBy order : params.orderBy()) {
-      if(!order.field().contains(".") && !matches.keySet().contains(order.field())) {
-        AnnotationDescriptor descriptor =
-          persistence.cache().fieldAnnotations(repository().getModelClass(), order.field());
-        if(descriptor.relationshipCount != null) {
-          MatchBuilder match = new MatchBuilder()
-            .relationship(order.field())
-            .relationshipType(descriptor.relationshipCount.type());
-          
-          if(descriptor.relationshipCount.direction().equals(Direction.OUTGOING) ||
-              descriptor.relationshipCount.direction().equals(Direction.BOTH)) {
-            match.from(id()).fromLabel(type);
-            if(!descriptor.relationshipCount.otherModel().equals(Model.class)) 
-              match.toLabel(persistence.cache().getModelName(descriptor.relationshipCount.otherModel()));
-          } else {
-            match.to(id()).toLabel(type);
-            if(!descriptor.relationshipCount.otherModel().equals(Model.class))
-              match.fromLabel(persistence.cache().getModelName(descriptor.relationshipCount.otherModel()));
-          }
-          if(descriptor.relationshipCount.direction().equals(Direction.BOTH)) {
-            match.undirected();
-          }
-          matches.put(order.field(), match.build());
-        }
-      }
-    }
-
+  /**
+   * Collects the patterns required by related filters and returns, grouped by the related field.
+   */
+  private void matchGroups() {
+    groups.clear();
     // add required matches for filters
     for(Filter filter : params.filters()) {
       String fieldName = filter.getProperty();
       if(fieldName.contains(".")) fieldName = fieldName.substring(0, fieldName.indexOf("."));
-//      if(matches.keySet().contains(getMatchName(filter.getProperty()))) continue;
-      if(matches.keySet().contains(fieldName)) continue;
-      
-      generateFilterMatch(filter, repository().getModelClass(), id(), fieldName);
+      if(groups.containsKey(fieldName)) continue;
+
+      MatchGroup group = new MatchGroup();
+      generateFilterMatch(filter, repository().getModelClass(), id(), fieldName, group);
+      if(!group.patterns.isEmpty()) groups.put(fieldName, group);
     }
     
     for(String returns: params.returns()) {
       String returnsKey = returns.contains(" ")? returns.substring(0, returns.indexOf(" ")): returns;
-      if(!matches.containsKey(returnsKey)) {
+      if(!groups.containsKey(returnsKey)) {
         AnnotationDescriptor descriptor =
           persistence.cache().fieldAnnotations(repository().getModelClass(), returnsKey);
         if(descriptor == null) continue;
@@ -133,24 +114,125 @@ public class QueryBuilder {
           if(descriptor.relatedTo.direction().equals(Direction.BOTH)) {
             match.undirected();
           }
-          matches.put(returnsKey, match.build());
+          MatchGroup group = new MatchGroup();
+          group.patterns.put(returnsKey, build(match));
+          groups.put(returnsKey, group);
         }
       }
     }
+
+    // variables used in returns or ordering have to stay in scope until the end
+    List<String> references = new ArrayList<>(params.returns());
+    for(SearchParameter.OrderBy order : params.orderBy()) references.add(order.field());
+    for(Map.Entry<String, MatchGroup> entry : groups.entrySet()) {
+      Pattern variable = Pattern.compile("\\b" + Pattern.quote(entry.getKey()) + "\\b");
+      for(String reference : references) {
+        if(variable.matcher(reference).find()) entry.getValue().kept = true;
+      }
+      if(entry.getValue().kept && params.returns().size() > 1 && params.returns().contains(entry.getKey())) {
+        FieldDescriptor descriptor = persistence.cache().fieldDescriptor(repository().getModelClass(), entry.getKey());
+        entry.getValue().collected = descriptor != null && descriptor.isCollection();
+      }
+    }
+  }
+
+  /**
+   * Builds the match and where part of the query. Without related filters or returns this is a single 
+   * match on the label. Otherwise every related field is expanded in its own stage, which ends with 
+   * <code>with distinct</code>. That way independent relationships don't multiply each others rows, 
+   * only the variables still needed later on are carried over and duplicates are removed as early as possible.
+   * Ordered relationship counts are computed per result afterwards.
+   */
+  private StringBuilder pipeline() {
+    matchGroups();
+    List<String> wheres = where();
+    List<String> carried = new ArrayList<>();
+    carried.add(id());
     
-    if(matches.isEmpty()) {
+    StringBuilder query = new StringBuilder();
+    names.add(type);
+    Iterator<Map.Entry<String, MatchGroup>> stages = groups.entrySet().iterator();
+    if(groups.isEmpty() || repository() instanceof RelationshipRepository) {
       if(repository() instanceof RelationshipRepository) {
-        return new StringBuilder("match ()-[" + id() + ":" + type + "]-() ");
+        query.append("match ()-[").append(id()).append(":").append(type).append("]-() ");
+        names.add(Query.Related);
+      } else {
+        query.append("match (").append(id()).append(":").append(type).append(") ");
+      }
+      query.append(where(wheres));
+    } else {
+      // the first related field is matched along with the label, so the planner can start at either side
+      Map.Entry<String, MatchGroup> first = stages.next();
+      wheres.addAll(first.getValue().wheres);
+      query.append("match ").append(StringUtils.join(first.getValue().patterns.values(), ", ")).append(" ")
+        .append(where(wheres));
+      endStage(query, first.getKey(), first.getValue(), carried);
+    }
+    while(stages.hasNext()) {
+      Map.Entry<String, MatchGroup> stage = stages.next();
+      query.append("match ").append(StringUtils.join(stage.getValue().patterns.values(), ", ")).append(" ")
+        .append(where(stage.getValue().wheres));
+      endStage(query, stage.getKey(), stage.getValue(), carried);
+    }
+
+    // relationship counts are computed per result instead of counting the rows of an additional match
+    List<String> counts = new LinkedList<>();
+    List<String> existing = new LinkedList<>();
+    for(SearchParameter.OrderBy order : params.orderBy()) {
+      if(order.field().contains(".")) continue;
+      AnnotationDescriptor descriptor =
+        persistence.cache().fieldAnnotations(repository().getModelClass(), order.field());
+      if(descriptor.relationshipCount == null) continue;
+      
+      MatchBuilder match = new MatchBuilder()
+        .relationshipType(descriptor.relationshipCount.type());
+      if(descriptor.relationshipCount.direction().equals(Direction.OUTGOING) ||
+          descriptor.relationshipCount.direction().equals(Direction.BOTH)) {
+        match.from(id());
+        if(!descriptor.relationshipCount.otherModel().equals(Model.class)) 
+          match.toLabel(persistence.cache().getModelName(descriptor.relationshipCount.otherModel()));
       } else {
-        return new StringBuilder("match (" + id() + ":" + type + ") ");
+        match.to(id());
+        if(!descriptor.relationshipCount.otherModel().equals(Model.class))
+          match.fromLabel(persistence.cache().getModelName(descriptor.relationshipCount.otherModel()));
+      }
+      if(descriptor.relationshipCount.direction().equals(Direction.BOTH)) {
+        match.undirected();
       }
+      counts.add("size(" + build(match) + ") as " + order.field() + "_c");
+      // like the former match, results without any of these relationships are excluded
+      existing.add(order.field() + "_c > 0");
+    }
+    if(!counts.isEmpty()) {
+      query.append("with ").append(StringUtils.join(carried, ", ")).append(", ")
+        .append(StringUtils.join(counts, ", ")).append(" ")
+        .append(where(existing));
+    }
+    
+    return query;
+  }
+
+  private void endStage(StringBuilder query, String variable, MatchGroup group, List<String> carried) {
+    if(group.collected) {
+      query.append("with ").append(StringUtils.join(carried, ", "))
+        .append(", collect(").append(variable).append(") as ").append(variable).append(" ");
+      carried.add(variable);
     } else {
-      return new StringBuilder("match ")
-        .append(StringUtils.join(matches.values(), ", ")).append(" ");
+      if(group.kept) carried.add(variable);
+      query.append("with distinct ").append(StringUtils.join(carried, ", ")).append(" ");
+    }
+  }
+
+  private static StringBuilder where(List<String> wheres) {
+    if(!wheres.isEmpty()) {
+      return new StringBuilder("where ")
+        .append(StringUtils.join(wheres, " AND ")).append(" ");
+    } else {
+      return new StringBuilder();
     }
   }
   
-  private void generateFilterMatch(Filter filter, Class<?> clazz, String id, String fieldName) {
+  private void generateFilterMatch(Filter filter, Class<?> clazz, String id, String fieldName, MatchGroup group) {
     MatchBuilder match = new MatchBuilder();
     
     FieldDescriptor descriptor = persistence.cache().fieldDescriptor(clazz, fieldName);
@@ -199,26 +281,41 @@ public class QueryBuilder {
       
       String sub = filter.getProperty().substring(fieldName.length() + filter.getProperty().indexOf(fieldName) + 1);
       if(sub.contains(".")) {
-        generateFilterMatch(filter, descriptor.baseClass(), fieldName, sub.substring(0, sub.indexOf(".")));
+        generateFilterMatch(filter, descriptor.baseClass(), fieldName, sub.substring(0, sub.indexOf(".")), group);
       }
-//      matches.put(getMatchName(filter.getProperty()), newMatch.toString());
-      matches.put(fieldName, match.build());
+      group.patterns.put(fieldName, build(match));
     }
   }
 
-  private StringBuilder where() {
+  /**
+   * Builds a relationship pattern and remembers its labels and relationship type.
+   */
+  private String build(MatchBuilder match) {
+    names.addAll(match.names());
+    names.add(Query.Related);
+    return match.build();
+  }
+
+  /**
+   * Builds the predicates of the query. Predicates on related fields are added to their {@link MatchGroup}.
+   * @return The predicates on the queried nodes or relationships
+   */
+  private List<String> where() {
     List<String> wheres = new LinkedList<>();
     if(params.isFiltered()) {
       int i = 0;
       for(Filter filter : params.filters()) {
+        final int index = i;
         String lookup = filter.getProperty();
+        String fieldName = lookup.contains(".")? lookup.substring(0, lookup.indexOf(".")): null;
+        List<String> predicates = groups.containsKey(fieldName)? groups.get(fieldName).wheres: wheres;
 
         boolean lowerCaseIndex;
         if(lookup.endsWith(".id")) {
           lookup = "id(" + lookup.substring(0, lookup.length() - 3) + ")";
           lowerCaseIndex = false;
         } else {
-          lowerCaseIndex = fieldParser.isLowerCase(lookup);
+          lowerCaseIndex = fieldParser().isLowerCase(lookup);
           if(lowerCaseIndex) {
             lookup += "_lower";
           }
@@ -226,27 +323,19 @@ public class QueryBuilder {
             lookup = id() + "." + lookup;
           }
         }
-        
+        final boolean lowerCase = lowerCaseIndex;
         
         String marker = filter.getProperty().replaceAll("\\.", "") + i;
-
-        Object value = filter.getValue();
-        if(value != null && value instanceof Date) {
-          value = ((Date) value).getTime();
-        }
-        // for fulltext searches we have to convert to lower case
-        if(value != null && value instanceof String && lowerCaseIndex) {
-          value = ((String) value).toLowerCase();
-        }
+        Function<QueryTemplate.Values, Object> value = v -> filterValue(v.filter(index).getValue(), lowerCase);
 
         if(filter instanceof Filter.Equals) {
-          if(value == null) {
-            wheres.add(lookup + " IS NULL");
+          if(filter.getValue() == null) {
+            predicates.add(lookup + " IS NULL");
           }
           else {
             String where = "(";
-            if(value instanceof Boolean) {
-              if(value == Boolean.TRUE) {
+            if(filter.getValue() instanceof Boolean) {
+              if(filter.getValue() == Boolean.TRUE) {
                 where+= lookup + " IS NOT NULL AND ";
               }
               else {
@@ -255,109 +344,200 @@ public class QueryBuilder {
             }
             where += lookup + " = {" + marker + "})";
 
-            wheres.add(where);
-            queryParams.put(marker, value);
+            predicates.add(where);
+            binders.put(marker, value);
           }
         }
         else if(filter instanceof Filter.StartsWith) {
-          wheres.add(lookup + " starts with {" + marker + "}");
-          queryParams.put(marker, value);
+          predicates.add(lookup + " starts with {" + marker + "}");
+          binders.put(marker, value);
         }
         else if(filter instanceof Filter.EndsWith) {
-          wheres.add(lookup + " ends with {" + marker + "}");
-          queryParams.put(marker, value);
+          predicates.add(lookup + " ends with {" + marker + "}");
+          binders.put(marker, value);
         }
         else if(filter instanceof Filter.Contains) {
-          wheres.add(lookup + " contains {" + marker + "}");
-          queryParams.put(marker, value);
+          predicates.add(lookup + " contains {" + marker + "}");
+          binders.put(marker, value);
         }
         else if(filter instanceof Filter.NotEquals) {
-          if(value == null) {
-            wheres.add(lookup + " IS NOT NULL");
+          if(filter.getValue() == null) {
+            predicates.add(lookup + " IS NOT NULL");
           }
           else {
             String where = "(" + lookup + " <> {" + marker + "}";
-            if(value instanceof Boolean) {
+            if(filter.getValue() instanceof Boolean) {
               where += "OR " + lookup + " IS " +
-                (value == Boolean.FALSE? "NOT": "") + " NULL";
+                (filter.getValue() == Boolean.FALSE? "NOT": "") + " NULL";
             }
-            wheres.add(where + ")");
-            queryParams.put(marker, value);
+            predicates.add(where + ")");
+            binders.put(marker, value);
           }
         }
         else if(filter instanceof Filter.GreaterThan) {
           String including = ((Filter.GreaterThan) filter).isIncluding()? "=": "";
-          wheres.add(lookup + " >" + including + " {" + marker + "}");
-          queryParams.put(marker, value);
+          predicates.add(lookup + " >" + including + " {" + marker + "}");
+          binders.put(marker, value);
         }
         else if(filter instanceof Filter.LessThan) {
           String including = ((Filter.LessThan) filter).isIncluding()? "=": "";
-          wheres.add(lookup + " <" + including + " {" + marker + "}");
-          queryParams.put(marker, value);
+          predicates.add(lookup + " <" + including + " {" + marker + "}");
+          binders.put(marker, value);
         }
         else if(filter instanceof Filter.Range) {
           String including = ((Filter.Range) filter).isIncluding()? "=": "";
-          Filter.Range range = (Filter.Range) filter;
-          wheres.add(lookup + " >" + including + " {" + marker + "_from}");
-          wheres.add(lookup + " <" + including + " {" + marker + "_to}");
-          queryParams.put(marker + "_from", range.getFrom());
-          queryParams.put(marker + "_to", range.getTo());
+          predicates.add(lookup + " >" + including + " {" + marker + "_from}");
+          predicates.add(lookup + " <" + including + " {" + marker + "_to}");
+          binders.put(marker + "_from", v -> ((Filter.Range) v.filter(index)).getFrom());
+          binders.put(marker + "_to", v -> ((Filter.Range) v.filter(index)).getTo());
         }
         i++;
       }
     }
 
+    fullTextQuery = false;
     if(params.query() != null) {
       if(params.query().contains(":")) {
         String[] split = params.query().split(":", 2);
         String field = split[0].trim();
         String query = split[1].trim();
-        if(fieldParser.isLowerCase(field)) field+= "_lower";
         if(query.isEmpty()) {
           throw new IllegalArgumentException("empty queries not allowed: \"" + params.query() + "\"");
         }
-        String comparator = getQueryComparator(query);
-        wheres.add(MessageFormat.format("{0}.{1} {2} '{'query'}'", id(), field, comparator));
-        queryParams.put("query", query.replaceAll("\\*", ""));
+        if(fullTextIndex().fields(repository().getModelClass()).contains(field)) {
+          fullText(field);
+          wheres.add("id(" + id() + ") IN {fulltext}");
+        } else {
+          if(fieldParser().isLowerCase(field)) field+= "_lower";
+          String comparator = getQueryComparator(query);
+          wheres.add(id() + "." + field + " " + comparator + " {query}");
+          binders.put("query", v -> StringUtils.remove(v.params().query().split(":", 2)[1].trim(), '*'));
+        }
       } else {
         if(params.query().isEmpty()) {
           throw new IllegalArgumentException("empty queries not allowed: \"" + params.query() + "\"");
         }
+        List<String> fullTextFields = fullTextIndex().fields(repository().getModelClass());
         String comparator = getQueryComparator(params.query());
         List<String> queries = new LinkedList<>();  
-        for(String queryField: queryFields) {
-          if(fieldParser.isLowerCase(queryField)) queryField+= "_lower";
-          queries.add(MessageFormat.format("{0}.{1} {2} '{'query'}'", id(), queryField, comparator));
+        for(String queryField: persistence.cache().indexedFields(repository().getModelClass())) {
+          if(fullTextFields.contains(queryField)) continue;
+          if(fieldParser().isLowerCase(queryField)) queryField+= "_lower";
+          queries.add(id() + "." + queryField + " " + comparator + " {query}");
+        }
+        if(!queries.isEmpty()) binders.put("query", v -> StringUtils.remove(v.params().query(), '*'));
+        // the other indexed fields still match as before, ranked after the full-text hits
+        if(!fullTextFields.isEmpty()) {
+          fullText(null);
+          queries.add("id(" + id() + ") IN {fulltext}");
         }
         wheres.add("(" + StringUtils.join(queries, " OR ") + ")");
-        queryParams.put("query", params.query().replaceAll("\\*", ""));
       }
     }
+    if(params.cursor() != null) {
+      wheres.add(seek());
+    }
+    // lists are passed as a single parameter, so the query stays the same for any number of ids
     if(!CollectionUtils.isEmpty(params.ids())) {
-      List<String> queries = new LinkedList<>();
-      int index = 1;
-      for(Long id: params.ids()) {
-        queries.add("id(" + id() + ") = {id_" + index + "}");
-        queryParams.put("id_" + (index++), id);
-      }
-      wheres.add("(" + StringUtils.join(queries, " OR ") + ")");
+      wheres.add("id(" + id() + ") IN {ids}");
+      binders.put("ids", v -> v.params().ids());
     }
     if(!CollectionUtils.isEmpty(params.uuids())) {
-      List<String> queries = new LinkedList<>();
-      int index = 1;
-      for(String uuid: params.uuids()) {
-        queries.add(id() + ".uuid = {uuid_" + index + "}");
-        queryParams.put("uuid_" + (index++), uuid);
+      wheres.add(id() + ".uuid IN {uuids}");
+      binders.put("uuids", v -> v.params().uuids());
+    }
+    
+    return wheres;
+  }
+
+  /**
+   * Seek predicate for a {@link Cursor}, selecting the results ordered after the cursor position.
+   * Null values are ordered after all other values, like cypher does, so fields that are not {@link de.whitefrog.frogr.model.annotation.Required required}
+   * also compare the cursor values against null. The first ordered field is bound separately, if it is required, 
+   * so an index on it can be used for a range seek.
+   */
+  private String seek() {
+    List<SearchParameter.OrderBy> order = params.orderBy();
+    if(order.isEmpty()) throw new IllegalArgumentException("cursors require an ordered search");
+    List<String> properties = new ArrayList<>(order.size());
+    List<Boolean> nullable = new ArrayList<>(order.size());
+    for(SearchParameter.OrderBy entry : order) {
+      AnnotationDescriptor annotations = entry.field().contains(".")? null:
+        persistence.cache().fieldAnnotations(repository().getModelClass(), entry.field());
+      if(annotations == null || annotations.relationshipCount != null) {
+        throw new IllegalArgumentException("cursors can't be used when ordering by " + entry.field());
       }
-      wheres.add("(" + StringUtils.join(queries, " OR ") + ")");
+      properties.add(id() + ".`" + entry.field() + "`");
+      nullable.add(!annotations.required);
     }
     
-    if(!wheres.isEmpty()) {
-      return new StringBuilder("where ")
-        .append(StringUtils.join(wheres, " AND ")).append(" ");
-    } else {
-      return new StringBuilder();
+    List<String> alternatives = new ArrayList<>(order.size() + 1);
+    List<String> equal = new ArrayList<>(order.size());
+    for(int i = 0; i < order.size(); i++) {
+      final int index = i;
+      String property = properties.get(i);
+      String value = "{cursor" + i + "}";
+      boolean descending = order.get(i).dir().equalsIgnoreCase(SearchParameter.SortOrder.DESC.name());
+      String after = property + (descending? " < ": " > ") + value;
+      String same = property + " = " + value;
+      if(nullable.get(i)) {
+        // nulls come last in ascending and first in descending order
+        after = "(" + after + (descending? 
+          " OR (" + value + " IS NULL AND " + property + " IS NOT NULL))":
+          " OR (" + value + " IS NOT NULL AND " + property + " IS NULL))");
+        same = "(" + same + " OR (" + value + " IS NULL AND " + property + " IS NULL))";
+      }
+      List<String> alternative = new ArrayList<>(equal);
+      alternative.add(after);
+      alternatives.add(StringUtils.join(alternative, " AND "));
+      equal.add(same);
+      binders.put("cursor" + i, v -> cursor(v).value(index));
     }
+    equal.add("id(" + id() + ") > {cursorId}");
+    alternatives.add(StringUtils.join(equal, " AND "));
+    binders.put("cursorId", v -> cursor(v).id());
+    
+    String seek = "(" + StringUtils.join(alternatives, " OR ") + ")";
+    if(nullable.get(0)) return seek;
+    String first = properties.get(0) + 
+      (order.get(0).dir().equalsIgnoreCase(SearchParameter.SortOrder.DESC.name())? " <= ": " >= ") + "{cursor0}";
+    return first + " AND " + seek;
+  }
+
+  private static Cursor cursor(QueryTemplate.Values values) {
+    return values.computed("cursor", params -> Cursor.decode(params.cursor(), params.orderBy()));
+  }
+
+  /**
+   * Bind the ids found in the full-text index, ordered by relevance.
+   * @param field The queried field, <code>null</code> for all full-text fields
+   */
+  private void fullText(String field) {
+    fullTextQuery = true;
+    fullTextField = field;
+    binders.put("fulltext", v -> fullTextIds(v, field));
+  }
+
+  private List<Long> fullTextIds(QueryTemplate.Values values, String field) {
+    return values.computed("fulltext", params -> {
+      String query = field == null? params.query(): params.query().split(":", 2)[1].trim();
+      return fullTextIndex().query(repository().getModelClass(), field, query, params.locale());
+    });
+  }
+
+  private FullTextIndex fullTextIndex() {
+    return repository().service().fullTextIndex();
+  }
+
+  private static Object filterValue(Object value, boolean lowerCase) {
+    if(value instanceof Date) {
+      value = ((Date) value).getTime();
+    }
+    // for fulltext searches we have to convert to lower case
+    if(value instanceof String && lowerCase) {
+      value = ((String) value).toLowerCase();
+    }
+    return value;
   }
 
   private String getQueryComparator(String query) {
@@ -379,7 +559,7 @@ public class QueryBuilder {
       List<String> orders = new LinkedList<>();
       for(SearchParameter.OrderBy order : params.orderBy()) {
         if(!order.field().contains(".") && persistence.cache().fieldAnnotations(repository().getModelClass(), order.field()).relationshipCount != null) {
-          orders.add("count(" + order.field() + ") " + order.dir());
+          orders.add(order.field() + "_c " + order.dir());
         }
         else if(order.field().contains(".")) {
           orders.add(order.field() + " " + order.dir());
@@ -388,7 +568,19 @@ public class QueryBuilder {
           orders.add(id() + "." + order.field() + " " + order.dir());
         }
       }
+      // results with equal values keep the same order, so cursors point to a unique position
+      if(CollectionUtils.isEmpty(params.returns())) orders.add("id(" + id() + ")");
       query.append(" order by ").append(StringUtils.join(orders, ", ")).append(" ");
+    } else if(fullTextQuery) {
+      // keep the relevance order of the full-text index
+      query.append(" order by {fulltextRank}[toString(id(").append(id()).append("))] ");
+      String field = fullTextField;
+      binders.put("fulltextRank", v -> {
+        List<Long> ids = fullTextIds(v, field);
+        Map<String, Integer> ranks = new HashMap<>(ids.size() * 2);
+        for(int i = 0; i < ids.size(); i++) ranks.put(ids.get(i).toString(), i);
+        return ranks;
+      });
     }
     
     return query;
@@ -398,7 +590,11 @@ public class QueryBuilder {
     List<String> ret = new LinkedList<>();
     
     if(CollectionUtils.isEmpty(params.returns())) {
-      ret.add(id());
+      if(projection != null) {
+        ret.add(projection.expression(id()) + " as " + Projection.Alias);
+      } else {
+        ret.add(id());
+      }
     } else {
       final List<String> returns = new ArrayList<>(params.returns());
 //      if(persistence.cache().fieldDescriptor(repository().getModelClass(), "to") == null) {
@@ -409,6 +605,8 @@ public class QueryBuilder {
 //      }
       List<String> parsed = returns.stream().map(r -> {
         if(r.contains(".")) return r.replace(".", "_");
+        // related lists are already collected in their stage
+        if(groups.containsKey(r)) return r;
         FieldDescriptor descriptor = persistence.cache().fieldDescriptor(repository().getModelClass(), r);
         if(!id().equals(r) && descriptor.isCollection() && returns.size() > 1) { 
           r = "collect(" + r + ") as " + r;
@@ -418,52 +616,173 @@ public class QueryBuilder {
       ret.add(StringUtils.join(parsed, ","));
     }
     
-    // to order by a relationship count we need to count it in return for cypher
-    for(SearchParameter.OrderBy order : params.orderBy()) {
-      if(!order.field().contains(".")) {
-        AnnotationDescriptor descriptor =
-          persistence.cache().fieldAnnotations(repository().getModelClass(), order.field());
-        if(descriptor.relationshipCount != null) {
-          ret.add("count(" + order.field() + ") as " + order.field() + "_c");
-        }
-      }
-    }
-    
     return new StringBuilder("return ").append(StringUtils.join(ret, ", ")).append(" ");
   }
   
   private StringBuilder paging() {
     StringBuilder query = new StringBuilder();
     
-    if(params.page() > 1) {
+    // cursors replace skipping
+    if(params.page() > 1 && params.cursor() == null) {
       query.append("skip {skip} ");
-      queryParams.put("skip", (params.page() - 1) * params.limit());
+      binders.put("skip", v -> (v.params().page() - 1) * v.params().limit());
     }
 
     if(params.limit() < Integer.MAX_VALUE) {
       query.append("limit {limit}");
-      queryParams.put("limit", params.limit());
+      binders.put("limit", v -> v.params().limit());
     }
     
     return query;
   }
 
   public Query build(SearchParameter params) {
-    this.params = params;
-    StringBuilder query = match()
-      .append(where())
-      .append(returns())
-      .append(orderBy())
-      .append(paging());
-
-    return new Query(query.toString(), queryParams);
+    return build(params, null);
+  }
+
+  /**
+   * Build a query returning a map projection of the requested fields instead of whole nodes.
+   * @param params The search parameters
+   * @param projection The projection to return, when <code>null</code> the nodes are returned
+   * @return The built query
+   */
+  public Query build(SearchParameter params, Projection projection) {
+    String expression = projection == null? null: projection.expression(id());
+    String shape = shape(params, "build", expression);
+    QueryTemplate template = planCache.get(shape);
+    if(template == null) {
+      this.params = params;
+      this.projection = projection;
+      binders.clear();
+      names.clear();
+      StringBuilder query = pipeline()
+        .append(returns())
+        .append(orderBy())
+        .append(paging());
+      template = new QueryTemplate(query.toString(), binders, names);
+      planCache.put(shape, template);
+    }
+
+    return template.bind(params);
+  }
+
+  /**
+   * Build a query returning one page of results along with the total count in a single pass.
+   * All matches are collected in order, counted and then sliced to the requested page.
+   * The total is returned in the <code>total</code> column of every row, an empty page returns 
+   * a single row without result. Can't be used with additional returns or ordering by relationship counts.
+   * @param params The search parameters
+   * @param projection The projection to return, when <code>null</code> the nodes are returned
+   * @return The built query
+   */
+  public Query buildWithTotal(SearchParameter params, Projection projection) {
+    String expression = projection == null? null: projection.expression(id());
+    String shape = shape(params, "total", expression);
+    QueryTemplate template = planCache.get(shape);
+    if(template == null) {
+      this.params = params;
+      this.projection = projection;
+      binders.clear();
+      names.clear();
+      StringBuilder query = pipeline()
+        .append("with ").append(id()).append(" ").append(orderBy())
+        .append(" with collect(").append(id()).append(") as _results ")
+        .append("with _results, _results[{skip}..");
+      binders.put("skip", v -> (long) (v.params().page() - 1) * v.params().limit());
+      if(params.limit() < Integer.MAX_VALUE) {
+        query.append("{end}");
+        binders.put("end", v -> (long) v.params().page() * v.params().limit());
+      }
+      query.append("] as _page ")
+        .append("unwind case size(_page) when 0 then [null] else _page end as ").append(id()).append(" ")
+        .append("return size(_results) as ").append(TotalAlias).append(", ");
+      if(projection != null) {
+        query.append("case when ").append(id()).append(" is null then null else ").append(expression)
+          .append(" end as ").append(Projection.Alias);
+      } else {
+        query.append(id());
+      }
+      template = new QueryTemplate(query.toString(), binders, names);
+      planCache.put(shape, template);
+    }
+
+    return template.bind(params);
   }
 
   public Query buildSimple(SearchParameter params) {
-    this.params = params;
-    StringBuilder query = match()
-      .append(where());
+    String shape = shape(params, "simple", null);
+    QueryTemplate template = planCache.get(shape);
+    if(template == null) {
+      this.params = params;
+      this.projection = null;
+      binders.clear();
+      names.clear();
+      StringBuilder query = pipeline();
+      template = new QueryTemplate(query.toString(), binders, names);
+      planCache.put(shape, template);
+    }
+
+    return template.bind(params);
+  }
+
+  /**
+   * Builds the key used for the query plan cache. Contains everything that changes the query text,
+   * but none of the values that are passed as query parameters.
+   */
+  private String shape(SearchParameter params, String kind, String projection) {
+    StringBuilder shape = new StringBuilder(kind).append('|')
+      .append(repository().getClass().getName()).append(':').append(repository().getType())
+      .append(':').append(id()).append('|');
+    for(Filter filter : params.filters()) {
+      Object value = filter.getValue();
+      shape.append(filter.getClass().getSimpleName()).append('(').append(filter.getProperty())
+        .append(value == null? ",null": value instanceof Boolean? "," + value: "");
+      if(filter instanceof Filter.GreaterThan) shape.append(((Filter.GreaterThan) filter).isIncluding()? ",=": "");
+      else if(filter instanceof Filter.LessThan) shape.append(((Filter.LessThan) filter).isIncluding()? ",=": "");
+      else if(filter instanceof Filter.Range) shape.append(((Filter.Range) filter).isIncluding()? ",=": "");
+      shape.append(')');
+    }
+    shape.append('|');
+    for(SearchParameter.OrderBy order : params.orderBy()) {
+      shape.append(order.field()).append(' ').append(order.dir()).append(',');
+    }
+    shape.append('|');
+    if(params.returns() != null) shape.append(StringUtils.join(params.returns(), ","));
+    shape.append('|');
+    String query = params.query();
+    if(query != null) {
+      if(query.contains(":")) {
+        String[] split = query.split(":", 2);
+        query = split[1].trim();
+        shape.append(split[0].trim()).append(':');
+      }
+      shape.append(query.isEmpty()? "empty": getQueryComparator(query));
+    }
+    shape.append('|')
+      .append(!CollectionUtils.isEmpty(params.ids())).append('|')
+      .append(!CollectionUtils.isEmpty(params.uuids())).append('|')
+      .append(params.page() > 1).append('|')
+      .append(params.cursor() != null).append('|')
+      .append(params.limit() < Integer.MAX_VALUE);
+    if(projection != null) shape.append('|').append(projection);
+    
+    return shape.toString();
+  }
+
+  private FieldParser fieldParser() {
+    if(fieldParser == null) fieldParser = new FieldParser(repository);
+    return fieldParser;
+  }
 
-    return new Query(query.toString(), queryParams);
+  /**
+   * The patterns and predicates of a related field, matched in their own stage of the query.
+   */
+  private static class MatchGroup {
+    private final Map<String, String> patterns = new LinkedHashMap<>();
+    private final List<String> wheres = new LinkedList<>();
+    // the variable is used in returns or ordering
+    private boolean kept;
+    // the variable is returned as a list along with other returns
+    private boolean collected;
   }
 }
@@ -0,0 +1,83 @@
+package de.whitefrog.frogr.cypher;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Bounded cache of compiled {@link QueryTemplate}s, keyed by the shape of the search parameters.
+ * Templates are evicted by Caffeine's size based policy when the maximum size is reached.
+ * Hits and misses are counted and can be exposed through a {@link MetricRegistry}.
+ */
+public class QueryPlanCache {
+  public static final int DefaultSize = 1000;
+
+  private final Cache<String, QueryTemplate> templates;
+  private final Counter hits = new Counter();
+  private final Counter misses = new Counter();
+
+  public QueryPlanCache() {
+    this(DefaultSize);
+  }
+
+  public QueryPlanCache(int maximumSize) {
+    this.templates = Caffeine.newBuilder()
+      .maximumSize(maximumSize)
+      .executor(Runnable::run)
+      .build();
+  }
+
+  /**
+   * Get the template for a query shape.
+   * @param shape The query shape
+   * @return The cached template or <code>null</code> if there's none yet
+   */
+  public QueryTemplate get(String shape) {
+    QueryTemplate template = templates.getIfPresent(shape);
+    if(template == null) misses.inc();
+    else hits.inc();
+    return template;
+  }
+
+  /**
+   * Add a template for a query shape.
+   * @param shape The query shape
+   * @param template The compiled template
+   */
+  public void put(String shape, QueryTemplate template) {
+    templates.put(shape, template);
+  }
+
+  /**
+   * Remove all cached templates.
+   */
+  public void clear() {
+    templates.invalidateAll();
+  }
+
+  public int size() {
+    return (int) templates.estimatedSize();
+  }
+
+  public long hits() {
+    return hits.getCount();
+  }
+
+  public long misses() {
+    return misses.getCount();
+  }
+
+  /**
+   * Register the cache metrics in a metric registry.
+   * @param registry The metric registry to use
+   */
+  public void registerMetrics(MetricRegistry registry) {
+    String prefix = MetricRegistry.name(QueryPlanCache.class);
+    if(registry.getNames().contains(prefix + ".hits")) return;
+    registry.register(prefix + ".hits", hits);
+    registry.register(prefix + ".misses", misses);
+    registry.register(prefix + ".size", (Gauge<Integer>) this::size);
+  }
+}
@@ -0,0 +1,490 @@
+package de.whitefrog.frogr.cypher;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.neo4j.graphdb.ExecutionPlanDescription;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Notification;
+import org.neo4j.graphdb.QueryExecutionType;
+import org.neo4j.graphdb.QueryStatistics;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects statistics about the executed queries, per query shape. Queries built by the {@link QueryBuilder}
+ * pass all values as parameters, so the query text identifies the shape of a search.
+ * For each shape the latency, the engine time, the number of returned rows and, when sampled with <code>PROFILE</code>,
+ * the database hits are recorded. The latency lasts until the result is consumed, so it includes the work of the caller
+ * between the rows, like mapping the results or writing them to a response. The engine time only counts the time
+ * spent in the database, while starting the query and reading its rows. The statistics are exposed through a {@link MetricRegistry}
+ * and can be listed with {@link #top(int)}.
+ *
+ * <p>Queries with an engine time above the {@link #setSlowQueryThreshold(long, TimeUnit) slow query threshold} are logged
+ * with their plan and redacted parameters to the <code>de.whitefrog.frogr.cypher.QueryStats.slow</code> logger.</p>
+ */
+public class QueryStats {
+  private static final Logger logger = LoggerFactory.getLogger(QueryStats.class);
+  private static final Logger slowLogger = LoggerFactory.getLogger(QueryStats.class.getName() + ".slow");
+  /**
+   * Maximum number of shapes tracked, all further shapes are counted as {@link #OtherShape}.
+   */
+  public static final int MaxShapes = 500;
+  public static final String OtherShape = "(other)";
+  public static final long DefaultSlowQueryThreshold = 1000;
+
+  private final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+  private final Set<String> ids = ConcurrentHashMap.newKeySet();
+  private final Counter slow = new Counter();
+  private volatile MetricRegistry registry;
+  private volatile long slowQueryThreshold = TimeUnit.MILLISECONDS.toNanos(DefaultSlowQueryThreshold);
+  private volatile int profileSampling = 0;
+
+  /**
+   * Log queries taking longer than a threshold.
+   * @param threshold The threshold, 0 disables the slow query log
+   * @param unit The unit of the threshold
+   */
+  public void setSlowQueryThreshold(long threshold, TimeUnit unit) {
+    this.slowQueryThreshold = unit.toNanos(threshold);
+  }
+
+  /**
+   * Run every n-th query of a shape with <code>PROFILE</code> to record its database hits.
+   * Profiling adds some overhead to the sampled queries.
+   * @param sampling Profile every n-th query, 0 disables profiling
+   */
+  public void setProfileSampling(int sampling) {
+    this.profileSampling = sampling;
+  }
+
+  /**
+   * Execute a query and record its statistics when the result is consumed or closed.
+   * @param graph The graph database
+   * @param query The query
+   * @param params The query parameters
+   * @return The result
+   */
+  public Result execute(GraphDatabaseService graph, String query, Map<String, Object> params) {
+    Shape shape = shape(query);
+    int sampling = profileSampling;
+    boolean profile = sampling > 0 && !query.startsWith("explain") && shape.executions.incrementAndGet() % sampling == 0;
+    long start = System.nanoTime();
+    Result result = graph.execute(profile? "profile " + query: query, params);
+    return new RecordedResult(result, shape, params, profile, start, System.nanoTime() - start);
+  }
+
+  private Shape shape(String query) {
+    Shape shape = shapes.get(query);
+    if(shape != null) return shape;
+    if(shapes.size() >= MaxShapes) query = OtherShape;
+    return shapes.computeIfAbsent(query, q -> {
+      Shape created = new Shape(q, id(q));
+      MetricRegistry registry = this.registry;
+      if(registry != null) created.register(registry);
+      return created;
+    });
+  }
+
+  /**
+   * Id of a new shape, the hash of its query with a suffix when another shape already uses it.
+   */
+  private String id(String query) {
+    String hash = String.format("%08x", query.hashCode());
+    String id = hash;
+    for(int i = 1; !ids.add(id); i++) id = hash + "-" + i;
+    return id;
+  }
+
+  /**
+   * The shapes with the highest total execution time.
+   * @param limit Maximum number of shapes to return
+   * @throws IllegalArgumentException if the limit is negative
+   */
+  public List<Shape> top(int limit) {
+    if(limit < 0) throw new IllegalArgumentException("limit must not be negative: " + limit);
+    List<Shape> list = new ArrayList<>(shapes.values());
+    list.sort(Comparator.comparingLong(Shape::totalTime).reversed());
+    return list.subList(0, Math.min(limit, list.size()));
+  }
+
+  /**
+   * Get the statistics of a query shape.
+   * @param query The query text
+   * @return The shape or <code>null</code>, if the query wasn't executed yet
+   */
+  public Shape get(String query) {
+    return shapes.get(query);
+  }
+
+  /**
+   * Number of queries logged as slow.
+   */
+  public long slowQueries() {
+    return slow.getCount();
+  }
+
+  /**
+   * Remove all recorded statistics.
+   */
+  public void reset() {
+    MetricRegistry registry = this.registry;
+    if(registry != null) {
+      for(Shape shape : shapes.values()) registry.removeMatching((name, metric) -> name.startsWith(shape.prefix()));
+    }
+    shapes.clear();
+    ids.clear();
+  }
+
+  /**
+   * Register the statistics in a metric registry.
+   * @param registry The metric registry to use
+   */
+  public void registerMetrics(MetricRegistry registry) {
+    this.registry = registry;
+    String prefix = MetricRegistry.name(QueryStats.class);
+    if(registry.getNames().contains(prefix + ".slow")) return;
+    registry.register(prefix + ".slow", slow);
+    registry.register(prefix + ".shapes", (Gauge<Integer>) shapes::size);
+    for(Shape shape : shapes.values()) shape.register(registry);
+  }
+
+  private void record(Shape shape, Result result, Map<String, Object> params, boolean profiled, 
+                      long nanos, long engine, long rows) {
+    shape.time.update(nanos, TimeUnit.NANOSECONDS);
+    shape.totalTime.add(nanos);
+    shape.engineTime.update(engine, TimeUnit.NANOSECONDS);
+    shape.totalEngineTime.add(engine);
+    shape.rows.update(rows);
+    shape.totalRows.add(rows);
+    boolean isSlow = slowQueryThreshold > 0 && engine >= slowQueryThreshold;
+    ExecutionPlanDescription plan = null;
+    if(profiled || isSlow) {
+      try {
+        plan = result.getExecutionPlanDescription();
+      } catch(RuntimeException e) {
+        logger.debug("no plan available for query: {}", shape.query, e);
+      }
+    }
+    if(profiled && plan != null) {
+      shape.dbHits.inc(dbHits(plan));
+      shape.profiled.increment();
+    }
+    if(isSlow) {
+      slow.inc();
+      if(slowLogger.isWarnEnabled()) {
+        StringBuilder description = new StringBuilder();
+        if(plan != null) describe(plan, description, 1);
+        slowLogger.warn("slow query ({} ms in the database, {} ms total, {} rows): {}\nParams: {}\nPlan:\n{}",
+          TimeUnit.NANOSECONDS.toMillis(engine), TimeUnit.NANOSECONDS.toMillis(nanos), rows, shape.query, 
+          redact(params), description);
+      }
+    }
+  }
+
+  private static long dbHits(ExecutionPlanDescription plan) {
+    long hits = plan.hasProfilerStatistics()? plan.getProfilerStatistics().getDbHits(): 0;
+    for(ExecutionPlanDescription child : plan.getChildren()) hits += dbHits(child);
+    return hits;
+  }
+
+  private static void describe(ExecutionPlanDescription plan, StringBuilder out, int depth) {
+    for(int i = 0; i < depth; i++) out.append("  ");
+    out.append(plan.getName());
+    Object estimated = plan.getArguments().get("EstimatedRows");
+    if(estimated instanceof Number) out.append(" estimated rows: ").append(Math.round(((Number) estimated).doubleValue()));
+    if(plan.hasProfilerStatistics()) {
+      out.append(", rows: ").append(plan.getProfilerStatistics().getRows())
+        .append(", db hits: ").append(plan.getProfilerStatistics().getDbHits());
+    }
+    out.append(' ').append(plan.getIdentifiers()).append('\n');
+    for(ExecutionPlanDescription child : plan.getChildren()) describe(child, out, depth + 1);
+  }
+
+  /**
+   * Replaces parameter values that could contain user data by their type.
+   * Numbers and booleans are kept, they are mostly paging values.
+   */
+  static Map<String, Object> redact(Map<String, Object> params) {
+    Map<String, Object> redacted = new TreeMap<>();
+    if(params == null) return redacted;
+    for(Map.Entry<String, Object> entry : params.entrySet()) {
+      Object value = entry.getValue();
+      if(value == null || value instanceof Number || value instanceof Boolean) {
+        redacted.put(entry.getKey(), value);
+      } else if(value instanceof Collection) {
+        redacted.put(entry.getKey(), "<" + value.getClass().getSimpleName() + "[" + ((Collection) value).size() + "]>");
+      } else if(value instanceof Map) {
+        redacted.put(entry.getKey(), "<" + value.getClass().getSimpleName() + "[" + ((Map) value).size() + "]>");
+      } else {
+        redacted.put(entry.getKey(), "<" + value.getClass().getSimpleName() + ">");
+      }
+    }
+    return redacted;
+  }
+
+  /**
+   * Statistics of one query shape.
+   */
+  public static class Shape {
+    private final String query;
+    private final String id;
+    private final Timer time = new Timer();
+    private final Timer engineTime = new Timer();
+    private final Histogram rows = new Histogram(new ExponentiallyDecayingReservoir());
+    private final Counter dbHits = new Counter();
+    private final LongAdder totalTime = new LongAdder();
+    private final LongAdder totalEngineTime = new LongAdder();
+    private final LongAdder totalRows = new LongAdder();
+    private final LongAdder profiled = new LongAdder();
+    private final AtomicLong executions = new AtomicLong();
+
+    Shape(String query, String id) {
+      this.query = query;
+      this.id = id;
+    }
+
+    private String prefix() {
+      return MetricRegistry.name(QueryStats.class, id);
+    }
+
+    private void register(MetricRegistry registry) {
+      String prefix = prefix();
+      if(registry.getNames().contains(prefix + ".time")) return;
+      registry.register(prefix + ".time", time);
+      registry.register(prefix + ".engineTime", engineTime);
+      registry.register(prefix + ".rows", rows);
+      registry.register(prefix + ".dbHits", dbHits);
+    }
+
+    /**
+     * The query text.
+     */
+    public String query() {
+      return query;
+    }
+
+    /**
+     * Id of the shape, used in the metric names.
+     */
+    public String id() {
+      return id;
+    }
+
+    /**
+     * Number of executions.
+     */
+    public long count() {
+      return time.getCount();
+    }
+
+    /**
+     * Total execution time in nanoseconds.
+     */
+    public long totalTime() {
+      return totalTime.sum();
+    }
+
+    /**
+     * Latency distribution in nanoseconds.
+     */
+    public Snapshot latency() {
+      return time.getSnapshot();
+    }
+
+    /**
+     * Total time spent in the database in nanoseconds.
+     */
+    public long totalEngineTime() {
+      return totalEngineTime.sum();
+    }
+
+    /**
+     * Distribution of the time spent in the database in nanoseconds.
+     */
+    public Snapshot engineLatency() {
+      return engineTime.getSnapshot();
+    }
+
+    /**
+     * Total number of returned rows.
+     */
+    public long rows() {
+      return totalRows.sum();
+    }
+
+    /**
+     * Distribution of the returned rows per execution.
+     */
+    public Snapshot rowDistribution() {
+      return rows.getSnapshot();
+    }
+
+    /**
+     * Number of executions run with <code>PROFILE</code>.
+     */
+    public long profiled() {
+      return profiled.sum();
+    }
+
+    /**
+     * Database hits of all profiled executions.
+     */
+    public long dbHits() {
+      return dbHits.getCount();
+    }
+  }
+
+  /**
+   * Delegates to the query result and records the statistics once it is consumed or closed.
+   */
+  private class RecordedResult implements Result {
+    private final Result result;
+    private final Shape shape;
+    private final Map<String, Object> params;
+    private final boolean profiled;
+    private final long start;
+    // nanoseconds spent inside the database, not counting the time between reading the rows
+    private long engine;
+    private long rows = 0;
+    private boolean recorded = false;
+
+    RecordedResult(Result result, Shape shape, Map<String, Object> params, boolean profiled, long start, long engine) {
+      this.result = result;
+      this.shape = shape;
+      this.params = params;
+      this.profiled = profiled;
+      this.start = start;
+      this.engine = engine;
+    }
+
+    private void finish() {
+      if(recorded) return;
+      recorded = true;
+      record(shape, result, params, profiled, System.nanoTime() - start, engine, rows);
+    }
+
+    @Override
+    public QueryExecutionType getQueryExecutionType() {
+      return result.getQueryExecutionType();
+    }
+
+    @Override
+    public List<String> columns() {
+      return result.columns();
+    }
+
+    @Override
+    public <T> ResourceIterator<T> columnAs(String name) {
+      return new ResourceIterator<T>() {
+        @Override
+        public boolean hasNext() {
+          return RecordedResult.this.hasNext();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+          return (T) RecordedResult.this.next().get(name);
+        }
+
+        @Override
+        public void close() {
+          RecordedResult.this.close();
+        }
+      };
+    }
+
+    @Override
+    public boolean hasNext() {
+      long started = System.nanoTime();
+      boolean hasNext = result.hasNext();
+      engine += System.nanoTime() - started;
+      if(!hasNext) finish();
+      return hasNext;
+    }
+
+    @Override
+    public Map<String, Object> next() {
+      long started = System.nanoTime();
+      Map<String, Object> row = result.next();
+      engine += System.nanoTime() - started;
+      rows++;
+      return row;
+    }
+
+    @Override
+    public void close() {
+      finish();
+      result.close();
+    }
+
+    @Override
+    public QueryStatistics getQueryStatistics() {
+      return result.getQueryStatistics();
+    }
+
+    @Override
+    public ExecutionPlanDescription getExecutionPlanDescription() {
+      return result.getExecutionPlanDescription();
+    }
+
+    @Override
+    public String resultAsString() {
+      long started = System.nanoTime();
+      String string = result.resultAsString();
+      engine += System.nanoTime() - started;
+      finish();
+      return string;
+    }
+
+    @Override
+    public void writeAsStringTo(PrintWriter writer) {
+      long started = System.nanoTime();
+      result.writeAsStringTo(writer);
+      engine += System.nanoTime() - started;
+      finish();
+    }
+
+    @Override
+    public void remove() {
+      result.remove();
+    }
+
+    @Override
+    public Iterable<Notification> getNotifications() {
+      return result.getNotifications();
+    }
+
+    @Override
+    public <VisitationException extends Exception> void accept(ResultVisitor<VisitationException> visitor)
+      throws VisitationException {
+      long started = System.nanoTime();
+      long[] visiting = new long[1];
+      result.accept(row -> {
+        rows++;
+        long visit = System.nanoTime();
+        try {
+          return visitor.visit(row);
+        } finally {
+          visiting[0] += System.nanoTime() - visit;
+        }
+      });
+      engine += System.nanoTime() - started - visiting[0];
+      finish();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package de.whitefrog.frogr.cypher;
+
+import de.whitefrog.frogr.model.Filter;
+import de.whitefrog.frogr.model.SearchParameter;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A compiled query for a specific shape of {@link SearchParameter}s.
+ * Contains the final query string and a binder for each query parameter, which
+ * extracts the parameter value from the search parameters the template gets bound to.
+ */
+public class QueryTemplate {
+  private final String query;
+  private final Map<String, Function<Values, Object>> binders;
+  private final Set<String> names;
+
+  QueryTemplate(String query, Map<String, Function<Values, Object>> binders, Set<String> names) {
+    this.query = query;
+    this.binders = Collections.unmodifiableMap(new LinkedHashMap<>(binders));
+    this.names = Collections.unmodifiableSet(new HashSet<>(names));
+  }
+
+  /**
+   * The query string of this template.
+   */
+  public String query() {
+    return query;
+  }
+
+  /**
+   * Bind the values of the passed search parameters to a new query.
+   * @param params Search parameters with the same shape the template was built for
+   * @return Query containing the template query string, the bound parameters and the used labels
+   */
+  public Query bind(SearchParameter params) {
+    Values values = new Values(params);
+    Map<String, Object> queryParams = new HashMap<>(binders.size());
+    binders.forEach((name, binder) -> queryParams.put(name, binder.apply(values)));
+    Query bound = new Query(query, queryParams);
+    bound.names(names);
+    return bound;
+  }
+
+  /**
+   * Indexed access to the search parameter values used by the binders.
+   */
+  static class Values {
+    private final SearchParameter params;
+    private List<Filter> filters;
+    private Map<String, Object> computed;
+
+    Values(SearchParameter params) {
+      this.params = params;
+    }
+
+    SearchParameter params() {
+      return params;
+    }
+
+    Filter filter(int index) {
+      if(filters == null) filters = new ArrayList<>(params.filters());
+      return filters.get(index);
+    }
+
+    /**
+     * A value computed once per binding, for values used by more than one binder.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T computed(String key, Function<SearchParameter, T> compute) {
+      if(computed == null) computed = new HashMap<>();
+      return (T) computed.computeIfAbsent(key, k -> compute.apply(params));
+    }
+  }
+}
@@ -3,10 +3,22 @@ package de.whitefrog.frogr.health
 import com.codahale.metrics.health.HealthCheck
 import de.whitefrog.frogr.Service
 
+/**
+ * Checks the graph connection and reports the indexes, which are still populating or failed.
+ */
 class GraphHealthCheck(private val service: Service) : HealthCheck() {
   public override fun check(): HealthCheck.Result {
-    return if (service.graph() == null) {
-      HealthCheck.Result.unhealthy("The service is not connected to a graph")
+    if (service.graph() == null) {
+      return HealthCheck.Result.unhealthy("The service is not connected to a graph")
+    }
+    val indexes = service.indexPopulation()?.status() ?: emptyList()
+    val failed = indexes.filter { it.isFailed }
+    if (failed.isNotEmpty()) {
+      return HealthCheck.Result.unhealthy("Failed indexes: " + failed.joinToString { "$it: ${it.failure()}" })
+    }
+    val populating = indexes.filter { !it.isOnline }
+    return if (populating.isNotEmpty()) {
+      HealthCheck.Result.healthy("Populating indexes: " + populating.joinToString())
     } else HealthCheck.Result.healthy()
   }
 }
@@ -0,0 +1,20 @@
+package de.whitefrog.frogr.health
+
+import com.codahale.metrics.health.HealthCheck
+import de.whitefrog.frogr.Service
+
+/**
+ * Unhealthy until the indexes of some models are online and backfilled, so load balancers polling the
+ * health checks keep the application out of rotation meanwhile.
+ * @param models The model names whose indexes are required, all indexes are required when empty
+ */
+class IndexReadinessCheck(private val service: Service, private val models: Collection<String>) : HealthCheck() {
+  public override fun check(): HealthCheck.Result {
+    val indexes = service.indexPopulation()?.status()
+      ?: return HealthCheck.Result.unhealthy("The service is not connected to a graph")
+    val pending = indexes.filter { !it.isOnline && (models.isEmpty() || models.contains(it.label())) }
+    return if (pending.isNotEmpty()) {
+      HealthCheck.Result.unhealthy("Waiting for indexes: " + pending.joinToString())
+    } else HealthCheck.Result.healthy()
+  }
+}
@@ -0,0 +1,304 @@
+package de.whitefrog.frogr.helper;
+
+import de.whitefrog.frogr.model.Base;
+import de.whitefrog.frogr.patch.Patch;
+import de.whitefrog.frogr.repository.Repository;
+import org.reflections.Reflections;
+import org.reflections.scanners.SubTypesScanner;
+import org.reflections.util.ClasspathHelper;
+import org.reflections.util.ConfigurationBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Models, repositories and patches found in the registered packages.
+ *
+ * <p>The classes are read from index files at {@link #Location}, which are written at build time by running
+ * this class after compilation. The frogr-base build indexes the framework packages, applications add their own
+ * packages the same way, for example with the maven-antrun-plugin in the process-classes phase:</p>
+ * <pre>
+ * &lt;java classname="de.whitefrog.frogr.helper.ClassIndex" classpathref="maven.compile.classpath" failonerror="true"&gt;
+ *   &lt;arg value="${project.build.outputDirectory}"/&gt;
+ *   &lt;arg value="my.models.package"/&gt;
+ * &lt;/java&gt;
+ * </pre>
+ * <p>Every index file contains a fingerprint of the class files in its packages. When a registered package isn't 
+ * covered by an index on the classpath, the class files changed since the index was written or an indexed class 
+ * can't be loaded, the packages are scanned once using reflections instead.</p>
+ */
+public class ClassIndex {
+  private static final Logger logger = LoggerFactory.getLogger(ClassIndex.class);
+  public static final String Location = "META-INF/frogr/index";
+
+  private static final String Package = "package";
+  private static final String Model = "model";
+  private static final String Repository = "repository";
+  private static final String Patch = "patch";
+  private static final String Fingerprint = "fingerprint";
+
+  private final Set<Class<? extends Base>> models;
+  private final Set<Class<? extends Repository>> repositories;
+  private final Set<Class<? extends Patch>> patches;
+  private final boolean indexed;
+
+  private ClassIndex(Set<Class<? extends Base>> models, Set<Class<? extends Repository>> repositories,
+                     Set<Class<? extends Patch>> patches, boolean indexed) {
+    this.models = Collections.unmodifiableSet(models);
+    this.repositories = Collections.unmodifiableSet(repositories);
+    this.patches = Collections.unmodifiableSet(patches);
+    this.indexed = indexed;
+  }
+
+  /**
+   * Load the classes for a set of packages, from the index files if possible.
+   * @param packages The registered packages
+   * @return The found classes
+   */
+  public static ClassIndex load(Collection<String> packages) {
+    ClassIndex index = read(packages, Thread.currentThread().getContextClassLoader());
+    if(index != null) {
+      logger.debug("loaded {} models from class index", index.models.size());
+      return index;
+    }
+    return scan(packages);
+  }
+
+  /**
+   * Scan the classpath for the classes in a set of packages.
+   * @param packages The packages to scan
+   * @return The found classes
+   */
+  public static ClassIndex scan(Collection<String> packages) {
+    ConfigurationBuilder configurationBuilder = new ConfigurationBuilder()
+      .setScanners(new SubTypesScanner());
+    packages.forEach(pkg -> configurationBuilder.addUrls(ClasspathHelper.forPackage(pkg)));
+    Reflections reflections = new Reflections(configurationBuilder);
+
+    Set<Class<? extends Repository>> repositories = new HashSet<>();
+    for(Class<? extends Repository> clazz : reflections.getSubTypesOf(Repository.class)) {
+      if(isInstantiable(clazz)) repositories.add(clazz);
+    }
+    Set<Class<? extends Patch>> patches = new HashSet<>();
+    for(Class<? extends Patch> clazz : reflections.getSubTypesOf(Patch.class)) {
+      if(isInstantiable(clazz)) patches.add(clazz);
+    }
+    return new ClassIndex(new HashSet<>(reflections.getSubTypesOf(Base.class)), repositories, patches, false);
+  }
+
+  private static boolean isInstantiable(Class<?> clazz) {
+    return !Modifier.isAbstract(clazz.getModifiers()) && !Modifier.isInterface(clazz.getModifiers());
+  }
+
+  /**
+   * Read the index files of a class loader.
+   * @param packages The registered packages
+   * @param classLoader Class loader used to find the index files and load the classes
+   * @return The indexed classes or <code>null</code>, if a package isn't indexed or the index is outdated
+   */
+  static ClassIndex read(Collection<String> packages, ClassLoader classLoader) {
+    Set<String> covered = new HashSet<>();
+    Map<String, Set<String>> entries = new HashMap<>();
+    try {
+      Enumeration<URL> resources = classLoader.getResources(Location);
+      while(resources.hasMoreElements()) {
+        URL url = resources.nextElement();
+        Map<String, Set<String>> file = readFile(url);
+        Set<String> filePackages = file.getOrDefault(Package, Collections.emptySet());
+        // ignore indexes of libraries whose packages aren't used
+        if(Collections.disjoint(filePackages, packages)) continue;
+        if(!file.getOrDefault(Fingerprint, Collections.emptySet()).contains(fingerprint(filePackages, classLoader))) {
+          logger.info("class index {} is outdated", url);
+          return null;
+        }
+        covered.addAll(filePackages);
+        file.forEach((kind, names) -> entries.computeIfAbsent(kind, k -> new HashSet<>()).addAll(names));
+      }
+    } catch(IOException e) {
+      logger.warn("could not read class index: {}", e.getMessage());
+      return null;
+    }
+    if(!covered.containsAll(packages)) return null;
+
+    try {
+      return new ClassIndex(load(entries.get(Model), Base.class, classLoader),
+        load(entries.get(Repository), Repository.class, classLoader),
+        load(entries.get(Patch), Patch.class, classLoader), true);
+    } catch(ClassNotFoundException | ClassCastException e) {
+      logger.warn("class index is outdated: {}", e.getMessage());
+      return null;
+    }
+  }
+
+  private static Map<String, Set<String>> readFile(URL url) throws IOException {
+    Map<String, Set<String>> entries = new HashMap<>();
+    try(BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while((line = reader.readLine()) != null) {
+        line = line.trim();
+        if(line.isEmpty() || line.startsWith("#")) continue;
+        int separator = line.indexOf(' ');
+        if(separator < 0) continue;
+        entries.computeIfAbsent(line.substring(0, separator), k -> new HashSet<>())
+          .add(line.substring(separator + 1).trim());
+      }
+    }
+    return entries;
+  }
+
+  private static <T> Set<Class<? extends T>> load(Set<String> names, Class<T> type, ClassLoader classLoader)
+    throws ClassNotFoundException {
+    Set<Class<? extends T>> classes = new HashSet<>();
+    if(names == null) return classes;
+    for(String name : names) classes.add(Class.forName(name, false, classLoader).asSubclass(type));
+    return classes;
+  }
+
+  /**
+   * Write the index file for a set of packages.
+   * @param directory Class output directory, the file is written to {@link #Location} inside
+   * @param packages The packages covered by the index
+   */
+  public void write(File directory, Collection<String> packages) throws IOException {
+    File file = new File(directory, Location);
+    if(!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+      throw new IOException("could not create " + file.getParent());
+    }
+    try(Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      writer.write("# generated by " + ClassIndex.class.getName() + "\n");
+      for(String pkg : new TreeSet<>(packages)) writer.write(Package + " " + pkg + "\n");
+      writer.write(Fingerprint + " " + fingerprint(packages, Thread.currentThread().getContextClassLoader()) + "\n");
+      write(writer, Model, models);
+      write(writer, Repository, repositories);
+      write(writer, Patch, patches);
+    }
+  }
+
+  private static void write(Writer writer, String kind, Set<? extends Class<?>> classes) throws IOException {
+    SortedSet<String> names = new TreeSet<>();
+    classes.forEach(clazz -> names.add(clazz.getName()));
+    for(String name : names) writer.write(kind + " " + name + "\n");
+  }
+
+  /**
+   * Hash over the names and sizes of the class files in a set of packages and their sub packages.
+   * Changes when classes are added, removed or recompiled with a different size, but not when the 
+   * classes are only moved from a directory to a jar.
+   * @param packages The packages
+   * @param classLoader Class loader used to find the class files
+   * @return The hash as hex string
+   */
+  static String fingerprint(Collection<String> packages, ClassLoader classLoader) throws IOException {
+    SortedSet<String> entries = new TreeSet<>();
+    for(String pkg : packages) {
+      String path = pkg.replace('.', '/') + "/";
+      Enumeration<URL> roots = classLoader.getResources(path);
+      while(roots.hasMoreElements()) {
+        URL root = roots.nextElement();
+        if(root.getProtocol().equals("file")) {
+          Path directory = toPath(root);
+          try(Stream<Path> files = Files.walk(directory)) {
+            for(Iterator<Path> iterator = files.iterator(); iterator.hasNext(); ) {
+              Path file = iterator.next();
+              if(!file.toString().endsWith(".class")) continue;
+              String name = path + directory.relativize(file).toString().replace(File.separatorChar, '/');
+              entries.add(name + " " + Files.size(file));
+            }
+          }
+        } else {
+          URLConnection connection = root.openConnection();
+          if(!(connection instanceof JarURLConnection)) continue;
+          connection.setUseCaches(false);
+          try(JarFile jar = ((JarURLConnection) connection).getJarFile()) {
+            for(Enumeration<JarEntry> jarEntries = jar.entries(); jarEntries.hasMoreElements(); ) {
+              JarEntry entry = jarEntries.nextElement();
+              if(entry.getName().startsWith(path) && entry.getName().endsWith(".class")) {
+                entries.add(entry.getName() + " " + entry.getSize());
+              }
+            }
+          }
+        }
+      }
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      for(String entry : entries) digest.update((entry + "\n").getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for(byte b : digest.digest()) hex.append(String.format("%02x", b));
+      return hex.toString();
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Path toPath(URL url) throws IOException {
+    try {
+      return Paths.get(url.toURI());
+    } catch(URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * All classes implementing {@link Base}.
+   */
+  public Set<Class<? extends Base>> models() {
+    return models;
+  }
+
+  /**
+   * All instantiable {@link Repository} classes.
+   */
+  public Set<Class<? extends Repository>> repositories() {
+    return repositories;
+  }
+
+  /**
+   * All instantiable {@link Patch} classes.
+   */
+  public Set<Class<? extends Patch>> patches() {
+    return patches;
+  }
+
+  /**
+   * Tests if the classes were read from index files instead of scanning.
+   */
+  public boolean isIndexed() {
+    return indexed;
+  }
+
+  /**
+   * Writes the index for the compiled classes.
+   * Arguments: the class output directory, followed by the packages to index.
+   * The framework packages registered by every service are always included.
+   */
+  public static void main(String[] args) throws IOException {
+    if(args.length < 1) {
+      System.err.println("usage: ClassIndex <output directory> [packages...]");
+      System.exit(1);
+    }
+    Set<String> packages = new TreeSet<>(Arrays.asList(args).subList(1, args.length));
+    packages.add("de.whitefrog.frogr.model");
+    packages.add("de.whitefrog.frogr.repository");
+    ClassIndex index = scan(packages);
+    index.write(new File(args[0]), packages);
+    logger.info("indexed {} models, {} repositories and {} patches",
+      index.models.size(), index.repositories.size(), index.patches.size());
+  }
+}
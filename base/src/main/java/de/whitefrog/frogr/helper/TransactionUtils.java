@@ -0,0 +1,25 @@
+package de.whitefrog.frogr.helper;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.txstate.TxStateHolder;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * Abstract helper class for inspecting the transaction bound to the current thread.
+ */
+public abstract class TransactionUtils {
+  /**
+   * Tests if the transaction of the current thread contains uncommitted changes.
+   * Caches holding committed state must not be read or populated in that case.
+   * @param graph The graph database
+   * @return true if there are uncommitted changes or no transaction at all
+   */
+  public static boolean hasUncommittedChanges(GraphDatabaseService graph) {
+    KernelTransaction transaction = ((GraphDatabaseAPI) graph).getDependencyResolver()
+      .resolveDependency(ThreadToStatementContextBridge.class).getKernelTransactionBoundToThisThread(false);
+    return transaction == null ||
+      (transaction instanceof TxStateHolder && ((TxStateHolder) transaction).hasTxStateWithChanges());
+  }
+}
@@ -0,0 +1,19 @@
+package de.whitefrog.frogr.jobs;
+
+/**
+ * A background task writing index data for nodes stored before the index existed.
+ * Has to stop between batches when {@link #stop()} was called or the executing thread is interrupted,
+ * and pick up the remaining nodes when it is run again.
+ */
+public interface Backfill extends Runnable {
+  /**
+   * Progress in percent, 0 until the nodes to update are known.
+   */
+  float progress();
+
+  /**
+   * Stop after the current batch. Preferred over interrupting the thread, which closes the store files
+   * when it happens during a write.
+   */
+  void stop();
+}
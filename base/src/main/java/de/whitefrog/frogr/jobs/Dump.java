@@ -0,0 +1,119 @@
+package de.whitefrog.frogr.jobs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * File layout shared by {@link Export} and {@link Import}.
+ * Each model type and relationship type is stored in its own file, named after the type.
+ * Files contain one json object per line (.ndjson) or comma separated values with a header line (.csv)
+ * and can be gzip compressed (.gz).
+ * Model records contain the original node id as {@value #Id}, relationship records reference
+ * these ids in {@value #From} and {@value #To}.
+ */
+final class Dump {
+  static final String Ndjson = ".ndjson";
+  static final String Csv = ".csv";
+  static final String Gzip = ".gz";
+  /**
+   * Key containing the node id used when the record was written.
+   */
+  static final String Id = "_id";
+  /**
+   * Key containing the id of the start node of a relationship.
+   */
+  static final String From = "_from";
+  /**
+   * Key containing the id of the end node of a relationship.
+   */
+  static final String To = "_to";
+
+  private Dump() {}
+
+  static boolean isDumpFile(File file) {
+    String name = stripGzip(file.getName());
+    return file.isFile() && (name.endsWith(Ndjson) || name.endsWith(Csv));
+  }
+
+  static boolean isCsv(File file) {
+    return stripGzip(file.getName()).endsWith(Csv);
+  }
+
+  /**
+   * The model or relationship type stored in a file.
+   */
+  static String typeName(File file) {
+    String name = stripGzip(file.getName());
+    return name.substring(0, name.lastIndexOf('.'));
+  }
+
+  static BufferedReader reader(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    if(file.getName().endsWith(Gzip)) in = new GZIPInputStream(in, 1 << 16);
+    return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+  }
+
+  /**
+   * Read the next csv record, which can span multiple lines when quoted values contain line breaks.
+   */
+  static String readCsvRecord(BufferedReader reader) throws IOException {
+    String line = reader.readLine();
+    if(line == null) return null;
+    StringBuilder record = null;
+    while(countQuotes(record == null? line: record) % 2 != 0) {
+      String next = reader.readLine();
+      if(next == null) break;
+      if(record == null) record = new StringBuilder(line);
+      record.append('\n').append(next);
+    }
+    return record == null? line: record.toString();
+  }
+
+  /**
+   * Split a csv record into its values. Quoted values may contain commas and escaped ("") quotes.
+   */
+  static String[] parseCsv(String record) {
+    List<String> values = new ArrayList<>();
+    StringBuilder value = new StringBuilder();
+    boolean quoted = false;
+    for(int i = 0; i < record.length(); i++) {
+      char c = record.charAt(i);
+      if(quoted) {
+        if(c == '"') {
+          if(i + 1 < record.length() && record.charAt(i + 1) == '"') {
+            value.append('"');
+            i++;
+          } else {
+            quoted = false;
+          }
+        } else {
+          value.append(c);
+        }
+      } else if(c == '"') {
+        quoted = true;
+      } else if(c == ',') {
+        values.add(value.toString());
+        value.setLength(0);
+      } else {
+        value.append(c);
+      }
+    }
+    values.add(value.toString());
+    return values.toArray(new String[values.size()]);
+  }
+
+  private static int countQuotes(CharSequence value) {
+    int count = 0;
+    for(int i = 0; i < value.length(); i++) {
+      if(value.charAt(i) == '"') count++;
+    }
+    return count;
+  }
+
+  private static String stripGzip(String name) {
+    return name.endsWith(Gzip)? name.substring(0, name.length() - Gzip.length()): name;
+  }
+}
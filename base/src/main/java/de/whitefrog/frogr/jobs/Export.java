@@ -1,43 +1,244 @@
 package de.whitefrog.frogr.jobs;
 
+import com.codahale.metrics.Meter;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import de.whitefrog.frogr.Service;
-import de.whitefrog.frogr.model.relationship.FRelationship;
-import org.neo4j.graphdb.Transaction;
+import de.whitefrog.frogr.model.Model;
+import de.whitefrog.frogr.model.annotation.IndexType;
+import de.whitefrog.frogr.persistence.AnnotationDescriptor;
+import de.whitefrog.frogr.persistence.FieldDescriptor;
+import de.whitefrog.frogr.persistence.ModelCache;
+import org.neo4j.graphdb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 /**
- * Export a databdase to dump file.
+ * Export a database to dump files readable by {@link Import}, see {@link Dump} for the format.
+ * Nodes are written to one file per model type and relationships to one file per relationship type.
+ * The nodes are read label by label in fixed-size transaction batches, each along with its outgoing relationships,
+ * and written as a stream, so memory use stays the same regardless of the database size. Nodes which are not instances of a registered
+ * model are skipped, as well as the relationships connected to them.
  */
 public class Export {
+  private static final Logger logger = LoggerFactory.getLogger(Export.class);
   static final String path = "src/main/resources/test-data";
+  public static final int DefaultBatchSize = 10000;
+  private static final int ProgressInterval = 100000;
+
+  private final Service service;
+  private final ModelCache cache;
+  private final Meter nodes;
+  private final Meter relationships;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Map<String, Set<String>> shadows = new HashMap<>();
+  private int batchSize = DefaultBatchSize;
+  private boolean gzip = false;
+  private long nodeCount = 0;
+  private long relationshipCount = 0;
+
+  /**
+   * @param service A connected service
+   */
+  public Export(Service service) {
+    this.service = service;
+    this.cache = service.cache();
+    this.nodes = service.metrics().meter("Export.nodes");
+    this.relationships = service.metrics().meter("Export.relationships");
+  }
+
+  /**
+   * Usage: Export [output directory] [model packages...]
+   */
   public static void main(String[] args) throws Exception {
+    File output = new File(args.length > 0? args[0]: path);
     try(Service service = new Service()) {
+      for(int i = 1; i < args.length; i++) service.register(args[i]);
       service.connect();
-      ObjectMapper mapper = new ObjectMapper();
-
-      try(Transaction tx = service.beginTx()) {
-        File output = new File(path + "/models.json");
-//        ExecutionResultIterator<Model> iterator = new ExecutionResultIterator<>(service,
-//          service.graph().execute("match (e) return e"), "e");
-//        List<Model> models = Iterators.asList(Iterables.get(iterator));
-//        mapper.writerWithDefaultPrettyPrinter().writeValue(output, models);
-
-        output = new File(path + "/relationships.json");
-        List<FRelationship> relationships = new ArrayList<>();
-//        for(Base model : models) {
-//          Node node = Persistence.getRelationship(model);
-//          for(Relationship relationship : node.getRelationships(Direction.OUTGOING)) {
-//            relationships.add(new DefaultRelationship(service).getRelationship(
-//              model.clone(Arrays.asList(Base.IdProperty, Base.Uuid)), relationship,
-//              Arrays.asList(Base.IdProperty, Base.Uuid)));
-//          }
-//        }
-        mapper.writerWithDefaultPrettyPrinter().writeValue(output, relationships);
+      new Export(service).run(output);
+    }
+  }
+
+  /**
+   * Number of nodes read per transaction.
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Compress the written files using gzip.
+   */
+  public void setGzip(boolean gzip) {
+    this.gzip = gzip;
+  }
+
+  public long getNodeCount() {
+    return nodeCount;
+  }
+
+  public long getRelationshipCount() {
+    return relationshipCount;
+  }
+
+  /**
+   * Export all models and relationships into a directory.
+   * @param output Directory the dump files are written to, created if it does not exist
+   */
+  public void run(File output) throws IOException {
+    if(!output.isDirectory() && !output.mkdirs()) throw new IOException("could not create " + output.getAbsolutePath());
+    long start = System.currentTimeMillis();
+    nodeCount = 0;
+    relationshipCount = 0;
+    try(Writers nodeWriters = new Writers(output); Writers relationshipWriters = new Writers(output)) {
+      for(String type : types()) {
+        Label label = Label.label(type);
+        long last = -1;
+        boolean more = true;
+        while(more) {
+          try(Transaction tx = service.beginTx(); ResourceIterator<Node> found = service.graph().findNodes(label)) {
+            // the label scan returns the nodes in id order, so the next batch continues after the last id
+            int read = 0;
+            while(read < batchSize && found.hasNext()) {
+              Node node = found.next();
+              if(node.getId() <= last) continue;
+              last = node.getId();
+              read++;
+              // nodes carrying the labels of other models are exported with their own type
+              if(type.equals(typeOf(node))) exportNode(nodeWriters.get(type), relationshipWriters, node, type);
+            }
+            more = found.hasNext();
+            tx.success();
+          }
+        }
       }
     }
+    logger.info("exported {} nodes and {} relationships in {}s", nodeCount, relationshipCount,
+      (System.currentTimeMillis() - start) / 1000);
+  }
+
+  private void exportNode(JsonGenerator generator, Writers relationshipWriters, Node node, String type)
+    throws IOException {
+    generator.writeStartObject();
+    generator.writeNumberField(Dump.Id, node.getId());
+    writeProperties(generator, node, shadowProperties(type));
+    generator.writeEndObject();
+    generator.writeRaw('\n');
+    nodes.mark();
+    if(++nodeCount % ProgressInterval == 0) progress("nodes", nodeCount, nodes);
+
+    for(Relationship relationship : node.getRelationships(Direction.OUTGOING)) {
+      if(typeOf(relationship.getEndNode()) == null) continue;
+      exportRelationship(relationshipWriters.get(relationship.getType().name()), relationship);
+      relationships.mark();
+      if(++relationshipCount % ProgressInterval == 0) progress("relationships", relationshipCount, relationships);
+    }
+  }
+
+  private void exportRelationship(JsonGenerator generator, Relationship relationship) throws IOException {
+    generator.writeStartObject();
+    generator.writeNumberField(Dump.From, relationship.getStartNodeId());
+    generator.writeNumberField(Dump.To, relationship.getEndNodeId());
+    writeProperties(generator, relationship, shadowProperties(relationship.getType().name()));
+    generator.writeEndObject();
+    generator.writeRaw('\n');
+  }
+
+  /**
+   * The labels in use, which belong to a registered model.
+   */
+  private List<String> types() {
+    List<String> types = new ArrayList<>();
+    try(Transaction tx = service.beginTx()) {
+      for(Label label : service.graph().getAllLabelsInUse()) {
+        Class<?> clazz = cache.getModel(label.name());
+        if(clazz != null && Model.class.isAssignableFrom(clazz)) types.add(label.name());
+      }
+      tx.success();
+    }
+    return types;
+  }
+
+  /**
+   * Write all properties except the type, which is implied by the file name,
+   * and the shadow properties, which are recreated on import.
+   */
+  private void writeProperties(JsonGenerator generator, PropertyContainer container, Set<String> shadows)
+    throws IOException {
+    for(Map.Entry<String, Object> property : container.getAllProperties().entrySet()) {
+      String key = property.getKey();
+      if(key.equals(Model.Type) || shadows.contains(key)) continue;
+      generator.writeObjectField(key, property.getValue());
+    }
+  }
+
+  /**
+   * The lower case copies of fields with a {@link IndexType#LowerCase} index of a model type.
+   */
+  private Set<String> shadowProperties(String type) {
+    return shadows.computeIfAbsent(type, t -> {
+      Class<?> clazz = cache.getModel(t);
+      if(clazz == null) return Collections.emptySet();
+      Set<String> names = new HashSet<>();
+      for(FieldDescriptor<?> descriptor : cache.fieldMap(clazz)) {
+        AnnotationDescriptor annotations = descriptor.annotations();
+        if(annotations.indexed != null && annotations.indexed.type() == IndexType.LowerCase) {
+          names.add(descriptor.getName() + "_lower");
+        }
+      }
+      return names;
+    });
+  }
+
+  /**
+   * The registered model type of a node, taken from its type property or its labels.
+   */
+  private String typeOf(Node node) {
+    Object type = node.getProperty(Model.Type, null);
+    if(type instanceof String && cache.getModel((String) type) != null) return (String) type;
+    for(Label label : node.getLabels()) {
+      Class<?> clazz = cache.getModel(label.name());
+      if(clazz != null && Model.class.isAssignableFrom(clazz)) return label.name();
+    }
+    return null;
+  }
+
+  private void progress(String what, long count, Meter meter) {
+    logger.info("{} {} exported ({}/s)", count, what, Math.round(meter.getMeanRate()));
+  }
+
+  /**
+   * One generator per type, opened on first use.
+   */
+  private class Writers implements Closeable {
+    private final File output;
+    private final Map<String, JsonGenerator> generators = new HashMap<>();
+
+    Writers(File output) {
+      this.output = output;
+    }
+
+    JsonGenerator get(String type) throws IOException {
+      JsonGenerator generator = generators.get(type);
+      if(generator == null) {
+        File file = new File(output, type + Dump.Ndjson + (gzip? Dump.Gzip: ""));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        if(gzip) out = new GZIPOutputStream(out, 1 << 16);
+        generator = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        generator.setRootValueSeparator(null);
+        generators.put(type, generator);
+      }
+      return generator;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for(JsonGenerator generator : generators.values()) generator.close();
+    }
   }
 }
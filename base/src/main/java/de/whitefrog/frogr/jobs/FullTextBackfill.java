@@ -0,0 +1,96 @@
+package de.whitefrog.frogr.jobs;
+
+import de.whitefrog.frogr.persistence.FullTextIndex;
+import org.neo4j.graphdb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds the existing nodes of a label to the {@link FullTextIndex}, when its full-text fields were not
+ * {@link FullTextIndex#isBackfilled(String) backfilled} yet. The nodes are read in id order and indexed in
+ * fixed-size transaction batches, each batch continuing after the last id of the previous one.
+ * The label is marked as backfilled when all nodes are done.
+ * Stops between batches when it is stopped or the executing thread is interrupted, the next run starts over then.
+ */
+public class FullTextBackfill implements Backfill {
+  private static final Logger logger = LoggerFactory.getLogger(FullTextBackfill.class);
+  public static final int DefaultBatchSize = 10000;
+
+  private final GraphDatabaseService graphDb;
+  private final FullTextIndex index;
+  private final Label label;
+  private int batchSize = DefaultBatchSize;
+  private long indexed = 0;
+  private volatile int total = -1;
+  private volatile int done = 0;
+  private volatile boolean stopped = false;
+
+  public FullTextBackfill(GraphDatabaseService graphDb, FullTextIndex index, Label label) {
+    this.graphDb = graphDb;
+    this.index = index;
+    this.label = label;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Number of nodes indexed so far.
+   */
+  public long indexed() {
+    return indexed;
+  }
+
+  @Override
+  public float progress() {
+    if(total < 0) return 0;
+    return total == 0? 100: Math.min(100, done * 100f / total);
+  }
+
+  @Override
+  public void stop() {
+    stopped = true;
+  }
+
+  @Override
+  public void run() {
+    if(isStopped()) return;
+    total = LowerCaseBackfill.count(graphDb, label);
+    long last = -1;
+    boolean more = true;
+    while(more) {
+      if(isStopped()) {
+        logger.info("full-text backfill of {} stopped after {} nodes", label.name(), indexed);
+        return;
+      }
+      int batch = 0;
+      try(Transaction tx = graphDb.beginTx(); ResourceIterator<Node> nodes = graphDb.findNodes(label)) {
+        while(batch < batchSize && nodes.hasNext()) {
+          Node node = nodes.next();
+          if(node.getId() <= last) continue;
+          last = node.getId();
+          batch++;
+          index.index(node);
+          indexed++;
+        }
+        more = nodes.hasNext();
+        tx.success();
+      }
+      done += batch;
+    }
+    try(Transaction tx = graphDb.beginTx()) {
+      index.setBackfilled(label.name());
+      tx.success();
+    }
+    if(indexed > 0) logger.info("added {} nodes of {} to the full-text index", indexed, label.name());
+  }
+
+  private boolean isStopped() {
+    return stopped || Thread.currentThread().isInterrupted();
+  }
+}
@@ -2,41 +2,395 @@ package de.whitefrog.frogr.jobs;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import de.whitefrog.frogr.Service;
-import de.whitefrog.frogr.model.relationship.FRelationship;
-import org.neo4j.graphdb.Transaction;
+import de.whitefrog.frogr.exception.FrogrException;
+import de.whitefrog.frogr.model.FBase;
+import de.whitefrog.frogr.model.Model;
+import de.whitefrog.frogr.model.annotation.IndexType;
+import de.whitefrog.frogr.model.relationship.Relationship;
+import de.whitefrog.frogr.persistence.AnnotationDescriptor;
+import de.whitefrog.frogr.persistence.FieldDescriptor;
+import de.whitefrog.frogr.persistence.ModelCache;
+import de.whitefrog.frogr.persistence.Persistence;
+import de.whitefrog.frogr.repository.BaseModelRepository;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongLongMap;
+import org.neo4j.graphdb.ConstraintViolationException;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedReader;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
- * Import a dumped database.
+ * Offline bulk import of dump files written by {@link Export} or created by hand, see {@link Dump} for the format.
+ * Writes directly to the store files using the neo4j {@link BatchInserter}, so the database must not be running.
+ * Records are read as a stream and parsed in chunks on multiple threads, then mapped to node properties
+ * the same way the persistence would store the model fields, including enums, dates, uuids and lower case indexes.
+ * Model files are imported first, relationship files afterwards. The indexes and unique constraints
+ * of the registered models are created at the end and populated when the inserter shuts down.
  */
 public class Import {
+  private static final Logger logger = LoggerFactory.getLogger(Import.class);
+  public static final int DefaultChunkSize = 5000;
+  private static final int ProgressInterval = 100000;
+
+  private final File storeDir;
+  private final ModelCache cache;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int chunkSize = DefaultChunkSize;
+  private long nodeCount = 0;
+  private long relationshipCount = 0;
+
+  /**
+   * @param storeDir The graph directory to import into
+   * @param packages Packages containing the models
+   */
+  public Import(File storeDir, Collection<String> packages) {
+    this.storeDir = storeDir;
+    this.cache = new ModelCache();
+    cache.scan(packages);
+  }
+
+  /**
+   * Usage: Import [input directory] [graph directory] [model packages...]
+   */
   public static void main(String[] args) throws Exception {
-    try(Service service = new Service()) {
-      service.connect();
-      ObjectMapper mapper = new ObjectMapper();
-
-      try(Transaction tx = service.beginTx()) {
-        File file = new File(Export.path + "/models.json");
-//        ExecutionResultIterator<Model> iterator = new ExecutionResultIterator<>(service,
-//          service.graph().execute("match (e) return e"), "e");
-//        List<Model> models = Iterators.asList(Iterables.get(iterator));
-//        mapper.writerWithDefaultPrettyPrinter().writeValue(file, models);
-
-        file = new File(Export.path + "/relationships.json");
-        List<FRelationship> relationships = new ArrayList<>();
-//        for(Base model : models) {
-//          Node node = Persistence.getRelationship(model);
-//          for(Relationship relationship : node.getRelationships(Direction.OUTGOING)) {
-//            relationships.add(new DefaultRelationship(service).getRelationship(
-//              model.clone(Arrays.asList(Base.IdProperty, Base.Uuid)), relationship,
-//              Arrays.asList(Base.IdProperty, Base.Uuid)));
-//          }
-//        }
-        mapper.writerWithDefaultPrettyPrinter().writeValue(file, relationships);
+    File input = new File(args.length > 0? args[0]: Export.path);
+    File storeDir = new File(args.length > 1? args[1]: "graph.db");
+    Service service = new Service();
+    for(int i = 2; i < args.length; i++) service.register(args[i]);
+
+    new Import(storeDir, service.registry()).run(input);
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  public long getNodeCount() {
+    return nodeCount;
+  }
+
+  public long getRelationshipCount() {
+    return relationshipCount;
+  }
+
+  /**
+   * Import all dump files found in a directory.
+   * @param input Directory containing the dump files
+   */
+  public void run(File input) throws IOException {
+    File[] files = input.listFiles(Dump::isDumpFile);
+    if(files == null || files.length == 0) throw new FrogrException("no files to import found in " + input.getAbsolutePath());
+    Arrays.sort(files);
+
+    List<File> modelFiles = new ArrayList<>();
+    List<File> relationshipFiles = new ArrayList<>();
+    for(File file : files) {
+      Class<?> clazz = cache.getModel(Dump.typeName(file));
+      if(clazz != null && Model.class.isAssignableFrom(clazz)) modelFiles.add(file);
+      else relationshipFiles.add(file);
+    }
+
+    long start = System.currentTimeMillis();
+    BatchInserter inserter = BatchInserters.inserter(storeDir);
+    try(PrimitiveLongLongMap ids = Primitive.offHeapLongLongMap()) {
+      for(File file : modelFiles) importModels(inserter, file, ids);
+      for(File file : relationshipFiles) importRelationships(inserter, file, ids);
+      createSchema(inserter);
+    } finally {
+      logger.info("populating indexes");
+      inserter.shutdown();
+    }
+    logger.info("imported {} nodes and {} relationships in {}s", nodeCount, relationshipCount,
+      (System.currentTimeMillis() - start) / 1000);
+  }
+
+  private void importModels(BatchInserter inserter, File file, PrimitiveLongLongMap ids) throws IOException {
+    String type = Dump.typeName(file);
+    Class<?> modelClass = cache.getModel(type);
+    Mapping mapping = new Mapping(modelClass, type);
+    Label[] labels = labels(modelClass, type);
+
+    long count = process(file, mapping, record -> {
+      long id = inserter.createNode(record.properties, labels);
+      if(record.id != -1) ids.put(record.id, id);
+    });
+    nodeCount += count;
+  }
+
+  private void importRelationships(BatchInserter inserter, File file, PrimitiveLongLongMap ids) throws IOException {
+    String type = Dump.typeName(file);
+    Class<?> relationshipClass = cache.getModel(type);
+    Mapping mapping = new Mapping(relationshipClass != null && Relationship.class.isAssignableFrom(relationshipClass)?
+      relationshipClass: null, null);
+    RelationshipType relationshipType = RelationshipType.withName(type);
+
+    long count = process(file, mapping, record -> {
+      long from = ids.get(record.from);
+      long to = ids.get(record.to);
+      if(from == -1 || to == -1) {
+        throw new FrogrException(type + ": relationship references unknown node " +
+          (from == -1? record.from: record.to));
       }
+      inserter.createRelationship(from, to, relationshipType, record.properties);
+    });
+    relationshipCount += count;
+  }
+
+  private Label[] labels(Class<?> modelClass, String type) {
+    Set<Label> labels = new LinkedHashSet<>();
+    labels.add(Label.label(type));
+    for(String name : BaseModelRepository.getModelInterfaces(modelClass)) labels.add(Label.label(name));
+    return labels.toArray(new Label[labels.size()]);
+  }
+
+  /**
+   * Create the indexes and constraints {@link Service} would create on startup for all registered models.
+   */
+  private void createSchema(BatchInserter inserter) {
+    for(Class<?> modelClass : cache.getAllModels()) {
+      if(!Model.class.isAssignableFrom(modelClass) || Modifier.isAbstract(modelClass.getModifiers())) continue;
+      Label label = Label.label(cache.getModelName(modelClass));
+
+      for(FieldDescriptor<?> descriptor : cache.fieldMap(modelClass)) {
+        AnnotationDescriptor annotations = descriptor.annotations();
+        if(annotations.indexed == null && !annotations.unique) continue;
+        String indexName = descriptor.getName() + (isLowerCase(annotations)? "_lower": "");
+        try {
+          if(annotations.unique) {
+            inserter.createDeferredConstraint(label).assertPropertyIsUnique(indexName).create();
+          } else {
+            inserter.createDeferredSchemaIndex(label).on(indexName).create();
+          }
+          logger.debug("created index on field \"{}\" for model \"{}\"", descriptor.getName(), label.name());
+        } catch(ConstraintViolationException e) {
+          // already exists in the target database
+          logger.debug(e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Streams the records of a file through the parser threads and passes the mapped records
+   * to the writer in file order. Only the writer touches the inserter, which is not thread safe.
+   */
+  private long process(File file, Mapping mapping, Consumer<Record> writer) throws IOException {
+    boolean csv = Dump.isCsv(file);
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    BlockingQueue<Future<List<Record>>> queue = new ArrayBlockingQueue<>(threads * 2);
+    Future<List<Record>> end = CompletableFuture.completedFuture(Collections.emptyList());
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    long count = 0;
+    long start = System.currentTimeMillis();
+
+    try(BufferedReader reader = Dump.reader(file)) {
+      String headerLine = csv? Dump.readCsvRecord(reader): null;
+      String[] header = headerLine != null? Dump.parseCsv(headerLine): null;
+      Thread producer = new Thread(() -> {
+        try {
+          List<String> chunk = new ArrayList<>(chunkSize);
+          String line;
+          while((line = csv? Dump.readCsvRecord(reader): reader.readLine()) != null) {
+            if(line.trim().isEmpty()) continue;
+            chunk.add(line);
+            if(chunk.size() == chunkSize) {
+              queue.put(workers.submit(parser(chunk, header, mapping)));
+              chunk = new ArrayList<>(chunkSize);
+            }
+          }
+          if(!chunk.isEmpty()) queue.put(workers.submit(parser(chunk, header, mapping)));
+        } catch(IOException | RuntimeException e) {
+          failure.set(e);
+        } catch(InterruptedException e) {
+          // only interrupted when the writer stopped, which doesn't wait for the end marker
+          Thread.currentThread().interrupt();
+          return;
+        }
+        // always delivered, the writer blocks until it arrives
+        try {
+          queue.put(end);
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }, "import-reader");
+      producer.setDaemon(true);
+      producer.start();
+
+      try {
+        for(Future<List<Record>> future = queue.take(); future != end; future = queue.take()) {
+          for(Record record : future.get()) {
+            writer.accept(record);
+            if(++count % ProgressInterval == 0) {
+              logger.info("{}: {} records imported ({}/s)", file.getName(), count,
+                count * 1000 / Math.max(1, System.currentTimeMillis() - start));
+            }
+          }
+        }
+      } catch(ExecutionException e) {
+        throw new FrogrException("failed to import " + file.getName() + ": " + e.getCause().getMessage(), e.getCause());
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new FrogrException("import of " + file.getName() + " interrupted", e);
+      } finally {
+        producer.interrupt();
+        workers.shutdownNow();
+      }
+    }
+    Exception e = failure.get();
+    if(e instanceof IOException) throw (IOException) e;
+    if(e != null) throw new FrogrException("failed to read " + file.getName() + ": " + e.getMessage(), e);
+
+    logger.info("{}: {} records imported", file.getName(), count);
+    return count;
+  }
+
+  private Callable<List<Record>> parser(List<String> lines, String[] header, Mapping mapping) {
+    return () -> {
+      List<Record> records = new ArrayList<>(lines.size());
+      for(String line : lines) {
+        Map<String, Object> values;
+        if(header != null) {
+          String[] split = Dump.parseCsv(line);
+          values = new HashMap<>(header.length);
+          for(int i = 0; i < header.length && i < split.length; i++) {
+            if(!split[i].isEmpty()) values.put(header[i], split[i]);
+          }
+        } else {
+          values = mapper.readValue(line, Map.class);
+        }
+        records.add(mapping.map(values));
+      }
+      return records;
+    };
+  }
+
+  private static boolean isLowerCase(AnnotationDescriptor annotations) {
+    return annotations.indexed != null && annotations.indexed.type() == IndexType.LowerCase;
+  }
+
+  private static long toLong(Object value) {
+    if(value == null) return -1;
+    return value instanceof Number? ((Number) value).longValue(): Long.parseLong(value.toString().trim());
+  }
+
+  /**
+   * A mapped record, ready to be written.
+   */
+  private static class Record {
+    private long id = -1;
+    private long from = -1;
+    private long to = -1;
+    private Map<String, Object> properties;
+  }
+
+  /**
+   * Maps raw record values to the properties stored for a model or relationship class.
+   * Relationship types without a model class are imported with their raw values.
+   */
+  private class Mapping {
+    private final Class<?> clazz;
+    private final String type;
+    private final Map<String, FieldDescriptor<?>> fields = new HashMap<>();
+    private final List<FieldDescriptor<?>> uuids = new ArrayList<>();
+    private final Set<String> unknown = ConcurrentHashMap.newKeySet();
+
+    Mapping(Class<?> clazz, String type) {
+      this.clazz = clazz;
+      this.type = type;
+      if(clazz == null) return;
+      for(FieldDescriptor<?> descriptor : cache.fieldMap(clazz)) {
+        AnnotationDescriptor annotations = descriptor.annotations();
+        if(annotations.notPersistent || annotations.relatedTo != null || annotations.relationshipCount != null ||
+          descriptor.isCollection() || descriptor.isModel()) continue;
+        fields.put(descriptor.getName(), descriptor);
+        if(annotations.uuid) uuids.add(descriptor);
+      }
+    }
+
+    Record map(Map<String, Object> values) {
+      Record record = new Record();
+      Map<String, Object> properties = new HashMap<>(values.size() + 4);
+      for(Map.Entry<String, Object> entry : values.entrySet()) {
+        String key = entry.getKey();
+        Object value = entry.getValue();
+        if(key.equals(Dump.Id)) record.id = toLong(value);
+        else if(key.equals(Dump.From)) record.from = toLong(value);
+        else if(key.equals(Dump.To)) record.to = toLong(value);
+        else if(value != null) put(properties, key, value);
+      }
+      for(FieldDescriptor<?> descriptor : uuids) {
+        properties.putIfAbsent(descriptor.getName(), Persistence.generateUuid());
+      }
+      if(type != null) properties.put(Model.Type, type);
+      if(clazz != null && FBase.class.isAssignableFrom(clazz)) {
+        properties.putIfAbsent(FBase.Created, System.currentTimeMillis());
+      }
+      record.properties = properties;
+      return record;
+    }
+
+    private void put(Map<String, Object> properties, String key, Object value) {
+      if(clazz == null) {
+        Object raw = raw(value);
+        if(raw != null) properties.put(key, raw);
+        return;
+      }
+      FieldDescriptor<?> descriptor = fields.get(key);
+      if(descriptor == null) {
+        if(!key.equals(Model.Type) && unknown.add(key)) {
+          logger.warn("{}: field \"{}\" is unknown and will be skipped", clazz.getSimpleName(), key);
+        }
+        return;
+      }
+      Object converted = convert(descriptor.field().getType(), value);
+      properties.put(key, converted);
+      if(converted instanceof String && isLowerCase(descriptor.annotations())) {
+        properties.put(key + "_lower", ((String) converted).toLowerCase());
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object convert(Class<?> type, Object value) {
+      if(type.isEnum()) {
+        return Enum.valueOf((Class<Enum>) type, value.toString()).name();
+      } else if(Date.class.isAssignableFrom(type)) {
+        if(value instanceof Number) return ((Number) value).longValue();
+        String string = value.toString().trim();
+        return string.matches("-?\\d+")? Long.parseLong(string):
+          DatatypeConverter.parseDateTime(string).getTimeInMillis();
+      } else {
+        return mapper.convertValue(value, type);
+      }
+    }
+
+    /**
+     * Values of relationship types without model class, lists are stored as arrays.
+     */
+    private Object raw(Object value) {
+      if(!(value instanceof List)) return value instanceof Map? null: value;
+      List<?> list = (List<?>) value;
+      if(list.stream().allMatch(v -> v instanceof Long || v instanceof Integer)) return mapper.convertValue(list, long[].class);
+      if(list.stream().allMatch(v -> v instanceof Number)) return mapper.convertValue(list, double[].class);
+      return mapper.convertValue(list, String[].class);
     }
   }
 }
@@ -0,0 +1,109 @@
+package de.whitefrog.frogr.jobs;
+
+import de.whitefrog.frogr.model.annotation.IndexType;
+import org.neo4j.graphdb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the missing <code>_lower</code> shadow properties of a field, which got an index of type
+ * {@link IndexType#LowerCase} after nodes were already stored. The nodes of the label are read in id order and
+ * updated in fixed-size transaction batches, each batch continuing after the last id of the previous one, so concurrent
+ * writes are only blocked for a single batch. Stops between batches when it is stopped or the executing thread is
+ * interrupted, the nodes still missing the property are found again on the next run.
+ */
+public class LowerCaseBackfill implements Backfill {
+  private static final Logger logger = LoggerFactory.getLogger(LowerCaseBackfill.class);
+  public static final int DefaultBatchSize = 10000;
+
+  private final GraphDatabaseService graphDb;
+  private final Label label;
+  private final String field;
+  private final String lowerField;
+  private int batchSize = DefaultBatchSize;
+  private long updated = 0;
+  private volatile int total = -1;
+  private volatile int done = 0;
+  private volatile boolean stopped = false;
+
+  public LowerCaseBackfill(GraphDatabaseService graphDb, Label label, String field) {
+    this.graphDb = graphDb;
+    this.label = label;
+    this.field = field;
+    this.lowerField = field + "_lower";
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Number of nodes updated so far.
+   */
+  public long updated() {
+    return updated;
+  }
+
+  @Override
+  public float progress() {
+    if(total < 0) return 0;
+    return total == 0? 100: Math.min(100, done * 100f / total);
+  }
+
+  @Override
+  public void stop() {
+    stopped = true;
+  }
+
+  @Override
+  public void run() {
+    if(isStopped()) return;
+    total = count(graphDb, label);
+    long last = -1;
+    boolean more = true;
+    while(more) {
+      if(isStopped()) {
+        logger.info("backfill of {}.{} stopped after {} nodes", label.name(), lowerField, updated);
+        return;
+      }
+      int batch = 0;
+      try(Transaction tx = graphDb.beginTx(); ResourceIterator<Node> nodes = graphDb.findNodes(label)) {
+        while(batch < batchSize && nodes.hasNext()) {
+          Node node = nodes.next();
+          if(node.getId() <= last) continue;
+          last = node.getId();
+          batch++;
+          Object value = node.getProperty(field, null);
+          if(value instanceof String && !node.hasProperty(lowerField)) {
+            node.setProperty(lowerField, ((String) value).toLowerCase());
+            updated++;
+          }
+        }
+        more = nodes.hasNext();
+        tx.success();
+      }
+      done += batch;
+    }
+    if(updated > 0) logger.info("backfilled {} on {} nodes of {}", lowerField, updated, label.name());
+  }
+
+  private boolean isStopped() {
+    return stopped || Thread.currentThread().isInterrupted();
+  }
+
+  /**
+   * Number of nodes of a label, read from the count store.
+   */
+  static int count(GraphDatabaseService graphDb, Label label) {
+    try(Transaction tx = graphDb.beginTx();
+        Result result = graphDb.execute("match (n:`" + label.name() + "`) return count(n) as count")) {
+      int count = ((Number) result.next().get("count")).intValue();
+      tx.success();
+      return count;
+    }
+  }
+}
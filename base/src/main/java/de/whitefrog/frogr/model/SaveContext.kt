@@ -1,11 +1,12 @@
 package de.whitefrog.frogr.model
 
-import de.whitefrog.frogr.exception.FrogrException
 import de.whitefrog.frogr.exception.PersistException
 import de.whitefrog.frogr.persistence.FieldDescriptor
 import de.whitefrog.frogr.repository.Repository
+import org.neo4j.graphdb.Node
 import org.neo4j.graphdb.PropertyContainer
-import java.lang.reflect.Field
+import org.neo4j.graphdb.RelationshipType
+import java.util.*
 
 /**
  * Context for entity/relationship save operations.
@@ -21,7 +22,7 @@ class SaveContext<T : Base>(
    */
   private val model: T) {
   /**
-   * The original fetched from database.
+   * The original fetched from database, created on first access.
    */
   private var original: T? = null
   /**
@@ -33,30 +34,38 @@ class SaveContext<T : Base>(
    * changed compared to the original.
    */
   private var changedFields: List<FieldDescriptor<*>>? = null
+  /**
+   * Names of the changed fields, for fast lookups.
+   */
+  private var changedNames: Set<String>? = null
   /**
    * Reference to the model's field map.
    */
   private val fieldMap: List<FieldDescriptor<*>>
+  /**
+   * Indicates that the model already exists in database.
+   */
+  private val persisted: Boolean
 
   init {
-    if (model.id > -1) {
-      original = repository.createModel(node())
-    } else if (model is FBase && model.uuid != null) {
+    if (model.id == -1L && model is FBase && model.uuid != null) {
       original = repository.findByUuid(model.uuid)
       model.id = original!!.id
     }
+    persisted = model.id > -1
     fieldMap = repository.cache().fieldMap(model.javaClass)
   }
 
   /**
    * Get a full list of changed fields.
+   * Values are compared to the properties and relationships stored in database,
+   * so no copy of the model has to be fetched.
    * @return list of changed fields
    */
   fun changedFields(): List<FieldDescriptor<*>> {
     if (changedFields == null) {
-      if (original() != null) repository.fetch(original(), Base.AllFields)
-      changedFields = fieldMap
-        .filter { f -> fieldChanged(f.field()) }
+      changedFields = fieldMap.filter { f -> fieldChanged(f) }
+      changedNames = changedFields!!.map { it.name }.toHashSet()
     }
     return changedFields!!
   }
@@ -67,31 +76,63 @@ class SaveContext<T : Base>(
    * @return <code>true</code> if the field has changed, otherwise <code>false</code>
    */
   fun fieldChanged(fieldName: String): Boolean {
-    return changedFields().stream().anyMatch { f -> f.name == fieldName }
+    changedFields()
+    return changedNames!!.contains(fieldName)
   }
 
-  private fun fieldChanged(field: Field): Boolean {
-    val annotation = repository.cache().fieldAnnotations(repository().modelClass, field.name)
-    try {
-      if (!field.isAccessible) field.isAccessible = true
-      val value = field.get(model)
-      if (value != null && !annotation!!.nullRemove) {
-        if (original() == null) {
-          return true
-        } else {
-          if (annotation.relatedTo != null && annotation.lazy) return true
-          if (annotation.relatedTo != null) repository().fetch(original(), FieldList.parseFields(field.name + "(max)"))
-          val originalValue = field.get(original())
-          return value != originalValue
-        }
-      } else if (annotation!!.nullRemove) {
-        return true
-      }
-    } catch (e: IllegalAccessException) {
-      throw FrogrException(e.message, e)
+  private fun fieldChanged(descriptor: FieldDescriptor<*>): Boolean {
+    val annotation = descriptor.annotations()
+    // counts are calculated from the relationships and never stored
+    if (annotation.notPersistent || annotation.relationshipCount != null) return false
+    val value = descriptor.accessor().get(model)
+    if (!persisted) return value != null || annotation.nullRemove
+    if (value == null) {
+      // null values only matter when the property has to be removed
+      return annotation.nullRemove && node<PropertyContainer>().hasProperty(descriptor.name)
     }
 
-    return false
+    return if (annotation.relatedTo != null) {
+      // lazy collections only add relationships, so only new entries count
+      if (annotation.lazy) (value as? Collection<*>)?.isNotEmpty() ?: true
+      else relatedChanged(descriptor, value)
+    } else {
+      propertyChanged(descriptor.name, value)
+    }
+  }
+
+  /**
+   * Compares a property value with the value stored in the node, using the same conversions as the persistence.
+   */
+  private fun propertyChanged(name: String, value: Any): Boolean {
+    val stored = node<PropertyContainer>().getProperty(name, null) ?: return true
+    return when (value) {
+      is Enum<*> -> value.name != stored
+      is Date -> value.time != stored
+      else -> !Objects.deepEquals(value, stored)
+    }
+  }
+
+  /**
+   * Compares the ids of related models with the relationships stored for the node.
+   */
+  private fun relatedChanged(descriptor: FieldDescriptor<*>, value: Any): Boolean {
+    val node = node<PropertyContainer>() as? Node ?: return true
+    val relatedTo = descriptor.annotations().relatedTo!!
+    val values = if (value is Collection<*>) value else listOf(value)
+    val ids = HashSet<Long>(values.size)
+    for (related in values) {
+      // not yet persisted models always require a save
+      if (related !is Base || related.id == -1L) return true
+      ids.add(related.id)
+    }
+    val typeRestriction = if (relatedTo.restrictType) repository.cache().getModelName(descriptor.baseClass()) else null
+    val existing = HashSet<Long>(ids.size)
+    for (relationship in node.getRelationships(RelationshipType.withName(relatedTo.type), relatedTo.direction)) {
+      val other = relationship.getOtherNode(node)
+      if (typeRestriction != null && typeRestriction != other.getProperty(Model.Type, null)) continue
+      existing.add(if (descriptor.isModel) other.id else relationship.id)
+    }
+    return ids != existing
   }
 
   /**
@@ -125,12 +166,7 @@ class SaveContext<T : Base>(
   @Suppress("UNCHECKED_CAST")
   fun <N : PropertyContainer> node(): N {
     if (node == null) {
-      node = if (original() != null) {
-        if (model is Model)
-          repository.graph().getNodeById(original()!!.id)
-        else
-          repository.graph().getRelationshipById(original()!!.id)
-      } else if (model().id > -1) {
+      node = if (model().id > -1) {
         if (model is Model)
           repository.graph().getNodeById(model().id)
         else
@@ -147,6 +183,7 @@ class SaveContext<T : Base>(
    * @return the original model used as reference in this context
    */
   fun original(): T? {
+    if (original == null && persisted) original = repository.createModel(node())
     return original
   }
 
@@ -3,10 +3,6 @@ package de.whitefrog.frogr.patch;
 import com.github.zafarkhaja.semver.Version;
 import de.whitefrog.frogr.Service;
 import org.neo4j.graphdb.Transaction;
-import org.reflections.Reflections;
-import org.reflections.scanners.SubTypesScanner;
-import org.reflections.util.ClasspathHelper;
-import org.reflections.util.ConfigurationBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,15 +19,9 @@ public class Patcher {
 
   private static TreeMap<Version, List<Patch>> getPatches(Service service) {
     int count = 0;
-    ConfigurationBuilder configurationBuilder = new ConfigurationBuilder()
-      .setScanners(new SubTypesScanner());
-    service.registry()
-      .forEach(pkg -> configurationBuilder.addUrls(ClasspathHelper.forPackage(pkg)));
-    Reflections reflections = new Reflections(configurationBuilder);
-    Set<Class<? extends Patch>> patchClasses = reflections.getSubTypesOf(Patch.class);
     TreeMap<Version, List<Patch>> patches = new TreeMap<>();
 
-    for(Class<? extends Patch> patchClass : patchClasses) {
+    for(Class<? extends Patch> patchClass : service.classIndex().patches()) {
       try {
         Constructor<? extends Patch> constructor = patchClass.getConstructor(Service.class);
         Patch patch = constructor.newInstance(service);
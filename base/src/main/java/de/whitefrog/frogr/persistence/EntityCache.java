@@ -0,0 +1,181 @@
+package de.whitefrog.frogr.persistence;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import de.whitefrog.frogr.helper.TransactionUtils;
+import de.whitefrog.frogr.model.annotation.Cached;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Second level cache for the properties of nodes belonging to models annotated with {@link Cached}, keyed by node id.
+ * The cache is bounded by the number of cached properties and evicts using caffeine's W-TinyLFU policy.
+ * Entries are invalidated when a transaction changing the node or its relationships is committed.
+ * Changed relationships count as node change, because properties like maintained relationship counts
+ * are written in other transaction handlers and are not part of the committed data. Transactions containing
+ * uncommitted changes always read from the graph, so the cache only ever contains committed state.
+ * Hit ratios are collected per label and can be exposed through a {@link MetricRegistry}.
+ */
+public class EntityCache implements TransactionEventHandler<Set<Long>> {
+  public static final long DefaultMaximumWeight = 1000000;
+
+  private final Cache<Long, Map<String, Object>> cache;
+  private final GraphDatabaseService graph;
+  private final Map<Class<?>, Boolean> cachedModels = new ConcurrentHashMap<>();
+  private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+  // incremented on every commit changing nodes, used to detect invalidations during a read
+  private final AtomicLong generation = new AtomicLong();
+  private volatile MetricRegistry registry;
+
+  public EntityCache(GraphDatabaseService graph) {
+    this(graph, DefaultMaximumWeight);
+  }
+
+  /**
+   * @param graph The graph database, the cache has to be registered as transaction event handler there
+   * @param maximumWeight Maximum number of properties held in the cache
+   */
+  public EntityCache(GraphDatabaseService graph, long maximumWeight) {
+    this.cache = Caffeine.newBuilder()
+      .maximumWeight(maximumWeight)
+      .weigher((Long id, Map<String, Object> properties) -> properties.size() + 1)
+      .build();
+    this.graph = graph;
+  }
+
+  /**
+   * Tests if the nodes of a model class should be cached.
+   */
+  public boolean isCached(Class<?> modelClass) {
+    return cachedModels.computeIfAbsent(modelClass, clazz -> clazz.isAnnotationPresent(Cached.class));
+  }
+
+  /**
+   * Get the properties of a node, from the cache if possible.
+   * @param node The node to get the properties for
+   * @param label Label the statistics are collected for
+   * @return Read-only snapshot of the node properties or <code>null</code> when the current transaction
+   * contains changes and the graph has to be read directly
+   */
+  public Map<String, Object> properties(Node node, String label) {
+    if(TransactionUtils.hasUncommittedChanges(graph)) return null;
+    Stats labelStats = stats(label);
+    Map<String, Object> properties = cache.getIfPresent(node.getId());
+    if(properties != null) {
+      labelStats.hits.inc();
+      return properties;
+    }
+    labelStats.misses.inc();
+
+    long before = generation.get();
+    properties = Collections.unmodifiableMap(node.getAllProperties());
+    cache.put(node.getId(), properties);
+    // a commit happened while reading, the snapshot could already be outdated
+    if(generation.get() != before) cache.invalidate(node.getId());
+    return properties;
+  }
+
+  public void invalidate(long id) {
+    cache.invalidate(id);
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public long size() {
+    return cache.estimatedSize();
+  }
+
+  public long hits(String label) {
+    return stats(label).hits.getCount();
+  }
+
+  public long misses(String label) {
+    return stats(label).misses.getCount();
+  }
+
+  private Stats stats(String label) {
+    return stats.computeIfAbsent(label, l -> {
+      Stats labelStats = new Stats();
+      if(registry != null) labelStats.register(registry, l);
+      return labelStats;
+    });
+  }
+
+  /**
+   * Collects the start and end nodes of created and deleted relationships, while deleted relationships can still be read.
+   */
+  @Override
+  public Set<Long> beforeCommit(TransactionData data) throws Exception {
+    Set<Long> related = new HashSet<>();
+    for(Relationship relationship : data.createdRelationships()) {
+      related.add(relationship.getStartNodeId());
+      related.add(relationship.getEndNodeId());
+    }
+    for(Relationship relationship : data.deletedRelationships()) {
+      related.add(relationship.getStartNodeId());
+      related.add(relationship.getEndNodeId());
+    }
+    return related;
+  }
+
+  @Override
+  public void afterCommit(TransactionData data, Set<Long> related) {
+    if(!data.deletedNodes().iterator().hasNext() && !data.assignedNodeProperties().iterator().hasNext() &&
+      !data.removedNodeProperties().iterator().hasNext() && (related == null || related.isEmpty())) return;
+    generation.incrementAndGet();
+    if(related != null) related.forEach(cache::invalidate);
+    for(Node node : data.deletedNodes()) cache.invalidate(node.getId());
+    for(PropertyEntry<Node> entry : data.assignedNodeProperties()) cache.invalidate(entry.entity().getId());
+    for(PropertyEntry<Node> entry : data.removedNodeProperties()) cache.invalidate(entry.entity().getId());
+  }
+
+  @Override
+  public void afterRollback(TransactionData data, Set<Long> related) {}
+
+  /**
+   * Register the cache metrics in a metric registry.
+   * Hit ratios are registered for every label as soon as it is used.
+   * @param registry The metric registry to use
+   */
+  public void registerMetrics(MetricRegistry registry) {
+    this.registry = registry;
+    String prefix = MetricRegistry.name(EntityCache.class);
+    if(!registry.getNames().contains(prefix + ".size")) {
+      registry.register(prefix + ".size", (Gauge<Long>) this::size);
+    }
+    stats.forEach((label, labelStats) -> labelStats.register(registry, label));
+  }
+
+  private static class Stats {
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+
+    void register(MetricRegistry registry, String label) {
+      String name = MetricRegistry.name(EntityCache.class, label, "hitRatio");
+      if(registry.getNames().contains(name)) return;
+      registry.register(name, new RatioGauge() {
+        @Override
+        protected Ratio getRatio() {
+          return Ratio.of(hits.getCount(), hits.getCount() + misses.getCount());
+        }
+      });
+    }
+  }
+}
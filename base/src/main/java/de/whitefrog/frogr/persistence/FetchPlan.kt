@@ -0,0 +1,123 @@
+package de.whitefrog.frogr.persistence
+
+import de.whitefrog.frogr.model.Base
+import de.whitefrog.frogr.model.FieldList
+import de.whitefrog.frogr.model.Model
+import de.whitefrog.frogr.model.QueryField
+import de.whitefrog.frogr.model.relationship.Relationship
+import org.neo4j.graphdb.RelationshipType
+import java.util.*
+
+/**
+ * Compiled form of a fetch for a model class and {@link FieldList}.
+ * Contains the fields to fetch in declaration order, with everything that doesn't depend on the model
+ * instance already decided, so fetching a model is a single loop over the entries.
+ * Plans are immutable and shared between threads, see {@link #key} for the cache key.
+ */
+class FetchPlan private constructor(
+  /** Model name, used as label for the entity cache */
+  val label: String?,
+  /** Plain properties can be read from the entity cache */
+  val cached: Boolean,
+  val entries: List<Entry>) {
+
+  enum class Kind { Property, EnumProperty, DateProperty, Count, Related, End }
+
+  class Entry internal constructor(val descriptor: FieldDescriptor<*>, val kind: Kind,
+                                   /** Query field for related models and relationship ends */
+                                   val queryField: QueryField?,
+                                   /** Skip the field when already fetched on the model */
+                                   val skipIfFetched: Boolean,
+                                   /** Label the other node of a count is restricted to */
+                                   val countLabel: String?) {
+    val name: String = descriptor.name
+    /** Related models, which can be resolved for multiple models at once */
+    val batchable = kind == Kind.Related && descriptor.isModel
+    val subFields: FieldList = queryField?.subFields() ?: FieldList()
+    val countType: RelationshipType? = descriptor.annotations().relationshipCount?.let {
+      RelationshipType.withName(it.type)
+    }
+
+    /**
+     * Decides if the field has to be fetched for a model.
+     */
+    fun shouldFetch(model: Base, refetch: Boolean): Boolean {
+      return refetch || !skipIfFetched || !model.fetchedFields.contains(name)
+    }
+  }
+
+  companion object {
+    /**
+     * Cache key for a model class and field list, including limits and sub fields.
+     */
+    @JvmStatic
+    fun key(clazz: Class<*>, fields: FieldList): String {
+      val key = StringBuilder(clazz.name).append(':')
+      appendKey(key, fields)
+      return key.toString()
+    }
+
+    private fun appendKey(key: StringBuilder, fields: FieldList) {
+      // the order of the fields doesn't matter for the plan
+      val sorted = if (fields.size > 1) fields.sortedBy { it.field } else fields
+      for (field in sorted) {
+        key.append(field.field).append('(').append(field.skip()).append(';').append(field.limit()).append(')')
+        if (!field.subFields().isEmpty()) {
+          key.append('{')
+          appendKey(key, field.subFields())
+          key.append('}')
+        }
+        key.append(',')
+      }
+    }
+
+    /**
+     * Compile the plan for a model class.
+     * @param cache The model cache
+     * @param clazz The model class
+     * @param fields Fields to fetch, copied so later changes don't affect the plan
+     * @param cached Plain properties can be read from the entity cache
+     */
+    @JvmStatic
+    fun compile(cache: ModelCache, clazz: Class<*>, fields: FieldList, cached: Boolean): FetchPlan {
+      val isModel = Model::class.java.isAssignableFrom(clazz)
+      val isRelationship = Relationship::class.java.isAssignableFrom(clazz)
+      val entries = ArrayList<Entry>()
+      // iterate over fields to ensure fields with @Fetch annotation and 'allFields' will be fetched
+      for (descriptor in cache.fieldMap(clazz)) {
+        val annotations = descriptor.annotations()
+        // don't fetch the 'id' field and fields annotated with @NotPersistent
+        if (descriptor.name == Base.Id && annotations.notPersistent) continue
+        val fetch = annotations.fetch
+        val wanted = (fetch != null && (fetch.group == "auto" || fields.containsField(fetch.group))) ||
+          fields.containsField(Base.AllFields) || fields.containsField(descriptor.name)
+        if (!wanted) continue
+
+        val queryField = fields[descriptor.name]?.let { copy(it) }
+        // @RelatedTo fields are only fetched when annotated with @Fetch or explicitly requested
+        if (isModel && annotations.relatedTo != null && fetch == null && queryField == null) continue
+        val kind = when {
+          isRelationship && (descriptor.name == "from" || descriptor.name == "to") -> Kind.End
+          !isRelationship && annotations.relationshipCount != null && queryField != null -> Kind.Count
+          isModel && annotations.relatedTo != null -> Kind.Related
+          Enum::class.java.isAssignableFrom(descriptor.field().type) -> Kind.EnumProperty
+          Date::class.java.isAssignableFrom(descriptor.field().type) -> Kind.DateProperty
+          else -> Kind.Property
+        }
+        val otherModel = annotations.relationshipCount?.otherModel
+        val countLabel = if (otherModel == null || otherModel == Model::class) null else cache.getModelName(otherModel.java)
+        entries.add(Entry(descriptor, kind, queryField ?: if (kind == Kind.Related) QueryField(descriptor.name) else null,
+          queryField != null && queryField.subFields().isEmpty(), countLabel))
+      }
+      return FetchPlan(cache.getModelName(clazz), cached, Collections.unmodifiableList(entries))
+    }
+
+    private fun copy(field: QueryField): QueryField {
+      val copy = QueryField(field.field)
+      copy.skip(field.skip())
+      copy.limit(field.limit())
+      for (subField in field.subFields()) copy.subFields().add(copy(subField))
+      return copy
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package de.whitefrog.frogr.persistence;
+
+import de.whitefrog.frogr.exception.FrogrException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Fast read and write access to a single model field.
+ * The method handles are resolved once when the model is scanned, so reading or writing
+ * a value does not need any reflective lookup or access check later on.
+ * Fields declared as primitive long, int or boolean get additional handles which
+ * read and write the raw value without boxing.
+ */
+public final class FieldAccessor {
+  private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+  private static final MethodType getterType = MethodType.methodType(Object.class, Object.class);
+  private static final MethodType setterType = MethodType.methodType(void.class, Object.class, Object.class);
+
+  private final Field field;
+  private final MethodHandle getter;
+  private final MethodHandle setter;
+  private final MethodHandle primitiveGetter;
+  private final MethodHandle primitiveSetter;
+
+  FieldAccessor(Field field) {
+    this.field = field;
+    if(!field.isAccessible()) field.setAccessible(true);
+    try {
+      MethodHandle rawGetter = lookup.unreflectGetter(field);
+      this.getter = rawGetter.asType(getterType);
+      // final fields can't be written through method handles
+      MethodHandle rawSetter = Modifier.isFinal(field.getModifiers())? null: lookup.unreflectSetter(field);
+      this.setter = rawSetter == null? null: rawSetter.asType(setterType);
+
+      Class<?> type = field.getType();
+      if(type == long.class || type == int.class || type == boolean.class) {
+        this.primitiveGetter = rawGetter.asType(MethodType.methodType(type, Object.class));
+        this.primitiveSetter = rawSetter == null? null:
+          rawSetter.asType(MethodType.methodType(void.class, Object.class, type));
+      } else {
+        this.primitiveGetter = null;
+        this.primitiveSetter = null;
+      }
+    } catch(IllegalAccessException e) {
+      throw new FrogrException("could not create accessor for field " + field.getName(), e);
+    }
+  }
+
+  /**
+   * Get the reflected field this accessor was created for.
+   * @return the reflected field
+   */
+  public Field field() {
+    return field;
+  }
+
+  /**
+   * Indicates that the field is declared with a primitive long, int or boolean type.
+   * @return true if primitive accessors are available
+   */
+  public boolean isPrimitive() {
+    return primitiveGetter != null;
+  }
+
+  /**
+   * Read the field value from a model.
+   * @param model the model to read from
+   * @return the current field value, primitives are boxed
+   */
+  public Object get(Object model) {
+    try {
+      return getter.invokeExact(model);
+    } catch(Throwable e) {
+      throw propagate(e);
+    }
+  }
+
+  /**
+   * Write a value to the field of a model.
+   * @param model the model to write to
+   * @param value the new value, will be unboxed for primitive fields
+   */
+  public void set(Object model, Object value) {
+    if(value == null && field.getType().isPrimitive()) {
+      throw new IllegalArgumentException("can't set primitive field " + field.getName() + " to null");
+    }
+    if(setter == null) {
+      setReflective(model, value);
+      return;
+    }
+    try {
+      setter.invokeExact(model, value);
+    } catch(Throwable e) {
+      throw propagate(e);
+    }
+  }
+
+  /**
+   * Read a primitive long field without boxing.
+   * @param model the model to read from
+   * @return the field value
+   */
+  public long getLong(Object model) {
+    if(field.getType() != long.class) return ((Number) get(model)).longValue();
+    try {
+      return (long) primitiveGetter.invokeExact(model);
+    } catch(Throwable e) {
+      throw propagate(e);
+    }
+  }
+
+  /**
+   * Write a primitive long field without boxing.
+   * Falls back to the generic setter for boxed fields.
+   * @param model the model to write to
+   * @param value the new value
+   */
+  public void setLong(Object model, long value) {
+    if(field.getType() != long.class || primitiveSetter == null) {
+      set(model, value);
+      return;
+    }
+    try {
+      primitiveSetter.invokeExact(model, value);
+    } catch(Throwable e) {
+      throw propagate(e);
+    }
+  }
+
+  /**
+   * Read a primitive int field without boxing.
+   * @param model the model to read from
+   * @return the field value
+   */
+  public int getInt(Object model) {
+    if(field.getType() != int.class) return ((Number) get(model)).intValue();
+    try {
+      return (int) primitiveGetter.invokeExact(model);
+    } catch(Throwable e) {
+      throw propagate(e);
+    }
+  }
+
+  /**
+   * Write a primitive int field without boxing.
+   * Falls back to the generic setter for boxed fields.
+   * @param model the model to write to
+   * @param value the new value
+   */
+  public void setInt(Object model, int value) {
+    if(field.getType() != int.class || primitiveSetter == null) {
+      set(model, value);
+      return;
+    }
+    try {
+      primitiveSetter.invokeExact(model, value);
+    } catch(Throwable e) {
+      throw propagate(e);
+    }
+  }
+
+  /**
+   * Read a primitive boolean field without boxing.
+   * @param model the model to read from
+   * @return the field value
+   */
+  public boolean getBoolean(Object model) {
+    if(field.getType() != boolean.class) return (Boolean) get(model);
+    try {
+      return (boolean) primitiveGetter.invokeExact(model);
+    } catch(Throwable e) {
+      throw propagate(e);
+    }
+  }
+
+  /**
+   * Write a primitive boolean field without boxing.
+   * Falls back to the generic setter for boxed fields.
+   * @param model the model to write to
+   * @param value the new value
+   */
+  public void setBoolean(Object model, boolean value) {
+    if(field.getType() != boolean.class || primitiveSetter == null) {
+      set(model, value);
+      return;
+    }
+    try {
+      primitiveSetter.invokeExact(model, value);
+    } catch(Throwable e) {
+      throw propagate(e);
+    }
+  }
+
+  private void setReflective(Object model, Object value) {
+    try {
+      field.set(model, value);
+    } catch(IllegalAccessException e) {
+      throw new FrogrException("could not set field " + field.getName() + " on " + model, e);
+    }
+  }
+
+  private RuntimeException propagate(Throwable e) {
+    if(e instanceof ClassCastException) return new IllegalArgumentException(e.getMessage(), e);
+    if(e instanceof RuntimeException) return (RuntimeException) e;
+    if(e instanceof Error) throw (Error) e;
+    return new FrogrException("could not access field " + field.getName(), e);
+  }
+
+  @Override
+  public String toString() {
+    return "FieldAccessor: \"" + field.getName() + "\"";
+  }
+}
@@ -16,6 +16,7 @@ import java.lang.reflect.ParameterizedType
 @Suppress("UNCHECKED_CAST")
 class FieldDescriptor<T : Base> internal constructor(clazz: Class<out Base>, private val field: Field) {
   private val annotations: AnnotationDescriptor
+  private val accessor: FieldAccessor
   private var baseClass: Class<T>
   private var baseClassName: String
   private val f = field
@@ -41,6 +42,7 @@ class FieldDescriptor<T : Base> internal constructor(clazz: Class<out Base>, pri
 
   init {
     field.isAccessible = true
+    this.accessor = FieldAccessor(field)
     this.isCollection = Collection::class.java.isAssignableFrom(field.type)
 
     val descriptor = AnnotationDescriptor()
@@ -54,6 +56,9 @@ class FieldDescriptor<T : Base> internal constructor(clazz: Class<out Base>, pri
     descriptor.uuid = field.isAnnotationPresent(Uuid::class.java)
     descriptor.lazy = field.isAnnotationPresent(Lazy::class.java)
     descriptor.relationshipCount = field.getAnnotation(RelationshipCount::class.java)
+    // counts are computed, or maintained by the relationship counters, and never written from the model,
+    // as documented on RelationshipCount, whether maintained or not
+    if (descriptor.relationshipCount != null) descriptor.notPersistent = true
 
     this.annotations = descriptor
 
@@ -106,6 +111,14 @@ class FieldDescriptor<T : Base> internal constructor(clazz: Class<out Base>, pri
     return field
   }
 
+  /**
+   * Get the accessor used to read and write the field value on models.
+   * @return the field accessor
+   */
+  fun accessor(): FieldAccessor {
+    return accessor
+  }
+
   override fun toString(): String {
     return "Field: \"" + name + "\""
   }
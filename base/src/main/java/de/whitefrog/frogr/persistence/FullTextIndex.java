@@ -0,0 +1,276 @@
+package de.whitefrog.frogr.persistence;
+
+import de.whitefrog.frogr.model.Model;
+import de.whitefrog.frogr.model.annotation.IndexType;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.index.lucene.QueryContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Lucene backed full-text index for the fields annotated with {@link IndexType#FullText}.
+ * There is one explicit node index per configured language, which analyzes the values with the Lucene analyzer
+ * for that language, so queries match stemmed words. Queries use the index for the language of the search locale,
+ * or the one of the default locale when that language isn't indexed.
+ * Registered as transaction event handler, the indexes are updated with the changed properties right
+ * before a transaction commits.
+ */
+public class FullTextIndex implements TransactionEventHandler<Object> {
+  private static final Logger logger = LoggerFactory.getLogger(FullTextIndex.class);
+  public static final String Prefix = "fulltext_";
+  /**
+   * Maximum number of ids returned by a query.
+   */
+  public static final int MaxHits = 10000;
+  // index configuration key prefix for the fields of a label that were completely backfilled
+  private static final String Backfilled = "frogr.backfilled.";
+  private static final String DefaultAnalyzer = "org.apache.lucene.analysis.standard.StandardAnalyzer";
+  private static final Map<String, String> Analyzers = new HashMap<>();
+  static {
+    Analyzers.put("de", "org.apache.lucene.analysis.de.GermanAnalyzer");
+    Analyzers.put("en", "org.apache.lucene.analysis.en.EnglishAnalyzer");
+    Analyzers.put("es", "org.apache.lucene.analysis.es.SpanishAnalyzer");
+    Analyzers.put("fr", "org.apache.lucene.analysis.fr.FrenchAnalyzer");
+    Analyzers.put("it", "org.apache.lucene.analysis.it.ItalianAnalyzer");
+    Analyzers.put("nl", "org.apache.lucene.analysis.nl.DutchAnalyzer");
+    Analyzers.put("pt", "org.apache.lucene.analysis.pt.PortugueseAnalyzer");
+    Analyzers.put("ru", "org.apache.lucene.analysis.ru.RussianAnalyzer");
+    Analyzers.put("sv", "org.apache.lucene.analysis.sv.SwedishAnalyzer");
+  }
+
+  private final GraphDatabaseService graph;
+  private final String defaultLanguage;
+  // analyzers by language, used to build the queries the same way the values are indexed
+  private final Map<String, Analyzer> analyzers = new LinkedHashMap<>();
+  // full-text fields by label
+  private final Map<String, Set<String>> fieldsByLabel = new HashMap<>();
+  private final Map<Class<?>, List<String>> fieldsByModel = new HashMap<>();
+
+  /**
+   * @param graph The graph database, the index has to be registered as transaction event handler there
+   * @param cache The model cache
+   * @param defaultLocale Locale used for queries in a language which isn't indexed
+   * @param locales Locales whose languages get their own index
+   */
+  public FullTextIndex(GraphDatabaseService graph, ModelCache cache, Locale defaultLocale, Collection<Locale> locales) {
+    this.graph = graph;
+    this.defaultLanguage = defaultLocale.getLanguage();
+    analyzers.put(defaultLanguage, analyzer(defaultLanguage));
+    for(Locale locale : locales) analyzers.computeIfAbsent(locale.getLanguage(), FullTextIndex::analyzer);
+    for(Class<?> modelClass : cache.getAllModels()) {
+      if(!Model.class.isAssignableFrom(modelClass)) continue;
+      List<String> fields = new ArrayList<>();
+      for(FieldDescriptor<?> descriptor : cache.fieldMap(modelClass)) {
+        AnnotationDescriptor annotations = descriptor.annotations();
+        if(annotations.indexed != null && annotations.indexed.type() == IndexType.FullText) {
+          fields.add(descriptor.getName());
+        }
+      }
+      if(fields.isEmpty()) continue;
+      fieldsByModel.put(modelClass, Collections.unmodifiableList(fields));
+      String label = cache.getModelName(modelClass);
+      if(label != null) fieldsByLabel.computeIfAbsent(label, l -> new HashSet<>()).addAll(fields);
+    }
+  }
+
+  private static Analyzer analyzer(String language) {
+    String className = Analyzers.getOrDefault(language, DefaultAnalyzer);
+    try {
+      return (Analyzer) Class.forName(className).newInstance();
+    } catch(ReflectiveOperationException e) {
+      throw new IllegalStateException("analyzer " + className + " not available", e);
+    }
+  }
+
+  /**
+   * Tests if any full-text fields are defined.
+   */
+  public boolean isEmpty() {
+    return fieldsByLabel.isEmpty();
+  }
+
+  /**
+   * The full-text fields of a model class.
+   */
+  public List<String> fields(Class<?> modelClass) {
+    return fieldsByModel.getOrDefault(modelClass, Collections.emptyList());
+  }
+
+  /**
+   * Labels of the models having full-text fields.
+   */
+  public Set<String> labels() {
+    return fieldsByLabel.keySet();
+  }
+
+  /**
+   * Create the missing explicit indexes, requires a transaction.
+   * @return <code>true</code> if an index was created, the existing nodes have to be indexed then
+   */
+  public boolean create() {
+    boolean created = false;
+    for(String language : analyzers.keySet()) {
+      if(!graph.index().existsForNodes(Prefix + language)) created = true;
+      index(language);
+    }
+    return created;
+  }
+
+  /**
+   * Tests if all existing nodes of a label were added to the indexes with the current full-text fields.
+   * Requires a transaction.
+   */
+  public boolean isBackfilled(String label) {
+    String fields = backfillKey(label);
+    for(String language : analyzers.keySet()) {
+      if(!fields.equals(graph.index().getConfiguration(index(language)).get(Backfilled + label))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Mark all nodes of a label as indexed with the current full-text fields, stored in the index configuration
+   * so it survives restarts. Requires a transaction.
+   */
+  public void setBackfilled(String label) {
+    for(String language : analyzers.keySet()) {
+      graph.index().setConfiguration(index(language), Backfilled + label, backfillKey(label));
+    }
+  }
+
+  private String backfillKey(String label) {
+    List<String> fields = new ArrayList<>(fieldsByLabel.getOrDefault(label, Collections.emptySet()));
+    Collections.sort(fields);
+    return String.join(",", fields);
+  }
+
+  private Index<Node> index(String language) {
+    Map<String, String> config = new HashMap<>();
+    config.put(IndexManager.PROVIDER, "lucene");
+    config.put("type", "fulltext");
+    config.put("analyzer", analyzers.get(language).getClass().getName());
+    return graph.index().forNodes(Prefix + language, config);
+  }
+
+  /**
+   * Add the full-text fields of a node to all indexes, replacing the indexed values. Requires a transaction.
+   */
+  public void index(Node node) {
+    Set<String> fields = fields(node);
+    if(fields.isEmpty()) return;
+    for(String language : analyzers.keySet()) {
+      Index<Node> index = index(language);
+      for(String field : fields) {
+        index.remove(node, field);
+        Object value = node.getProperty(field, null);
+        if(value instanceof String) index.add(node, field, value);
+      }
+    }
+  }
+
+  private Set<String> fields(Node node) {
+    Set<String> fields = null;
+    for(Label label : node.getLabels()) {
+      Set<String> labelFields = fieldsByLabel.get(label.name());
+      if(labelFields == null) continue;
+      if(fields == null) fields = new HashSet<>();
+      fields.addAll(labelFields);
+    }
+    return fields == null? Collections.emptySet(): fields;
+  }
+
+  /**
+   * Query the full-text fields of a model. All words of the query have to match one of the fields,
+   * a trailing <code>*</code> matches the last word as prefix. Requires a transaction.
+   * @param modelClass The model class to search
+   * @param field Field to search, <code>null</code> to search all full-text fields of the model
+   * @param query The query text
+   * @param locale Locale of the query text
+   * @return Node ids, ordered by relevance
+   */
+  public List<Long> query(Class<?> modelClass, String field, String query, Locale locale) {
+    String language = analyzers.containsKey(locale.getLanguage())? locale.getLanguage(): defaultLanguage;
+    List<String> fields = field != null? Collections.singletonList(field): fields(modelClass);
+    List<String> words = analyze(analyzers.get(language), fields.isEmpty()? "": fields.get(0), query);
+    if(words.isEmpty() || fields.isEmpty()) return Collections.emptyList();
+    boolean prefix = query.trim().endsWith("*");
+
+    BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    for(int i = 0; i < words.size(); i++) {
+      BooleanQuery.Builder word = new BooleanQuery.Builder();
+      for(String queryField : fields) {
+        Term term = new Term(queryField, words.get(i));
+        word.add(prefix && i == words.size() - 1? new PrefixQuery(term): new TermQuery(term),
+          BooleanClause.Occur.SHOULD);
+      }
+      builder.add(word.build(), BooleanClause.Occur.MUST);
+    }
+
+    List<Long> ids = new ArrayList<>();
+    try(IndexHits<Node> hits = index(language).query(new QueryContext(builder.build()).sortByScore().top(MaxHits))) {
+      for(Node node : hits) {
+        ids.add(node.getId());
+        if(ids.size() == MaxHits) break;
+      }
+    }
+    return ids;
+  }
+
+  private static List<String> analyze(Analyzer analyzer, String field, String text) {
+    List<String> words = new ArrayList<>();
+    try(TokenStream stream = analyzer.tokenStream(field, text.replace("*", " "))) {
+      CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+      stream.reset();
+      while(stream.incrementToken()) words.add(term.toString());
+      stream.end();
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return words;
+  }
+
+  @Override
+  public Object beforeCommit(TransactionData data) {
+    if(isEmpty()) return null;
+    Set<Node> changed = new HashSet<>();
+    for(PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+      if(!data.isDeleted(entry.entity()) && fields(entry.entity()).contains(entry.key())) changed.add(entry.entity());
+    }
+    for(PropertyEntry<Node> entry : data.removedNodeProperties()) {
+      if(!data.isDeleted(entry.entity()) && fields(entry.entity()).contains(entry.key())) changed.add(entry.entity());
+    }
+    if(!changed.isEmpty()) logger.debug("updating full-text index for {} nodes", changed.size());
+    for(Node node : changed) index(node);
+    // deleted nodes still report their labels as removed
+    Set<Node> deleted = new HashSet<>();
+    for(LabelEntry entry : data.removedLabels()) {
+      if(fieldsByLabel.containsKey(entry.label().name()) && data.isDeleted(entry.node())) deleted.add(entry.node());
+    }
+    for(Node node : deleted) {
+      for(String language : analyzers.keySet()) index(language).remove(node);
+    }
+    return null;
+  }
+
+  @Override
+  public void afterCommit(TransactionData data, Object state) {}
+
+  @Override
+  public void afterRollback(TransactionData data, Object state) {}
+}
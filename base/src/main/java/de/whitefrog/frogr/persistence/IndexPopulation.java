@@ -0,0 +1,273 @@
+package de.whitefrog.frogr.persistence;
+
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import de.whitefrog.frogr.jobs.Backfill;
+import de.whitefrog.frogr.jobs.LowerCaseBackfill;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
+import org.neo4j.helpers.collection.Iterables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tracks the population of the schema indexes. Neo4j populates new indexes in the background, until then
+ * queries on the indexed properties fall back to label scans. The state and progress of each index can be read
+ * through {@link #status()}, for health checks and metrics.
+ * Missing <code>_lower</code> shadow properties and full-text entries are written by backfills running on
+ * a single background thread, an index counts as populating until its backfill is done. Backfills are scheduled
+ * on every start, so the ones interrupted by a shutdown are continued.
+ */
+public class IndexPopulation {
+  private static final Logger logger = LoggerFactory.getLogger(IndexPopulation.class);
+
+  private final GraphDatabaseService graphDb;
+  // running or queued backfills by "Label.property" of their index
+  private final Map<String, Backfill> backfills = new ConcurrentHashMap<>();
+  private volatile ExecutorService executor;
+  private volatile MetricRegistry registry;
+  // status of all indexes, read once per metrics scrape instead of once per gauge
+  private final CachedGauge<Map<String, Status>> snapshot = new CachedGauge<Map<String, Status>>(1, TimeUnit.SECONDS) {
+    @Override
+    protected Map<String, Status> loadValue() {
+      Map<String, Status> statuses = new LinkedHashMap<>();
+      for(Status status : status()) statuses.put(status.label() + "." + status.property(), status);
+      return statuses;
+    }
+  };
+
+  public IndexPopulation(GraphDatabaseService graphDb) {
+    this.graphDb = graphDb;
+  }
+
+  /**
+   * State of a single index.
+   */
+  public static class Status {
+    private final String label;
+    private final String property;
+    private final Schema.IndexState state;
+    private final float progress;
+    private final String failure;
+
+    Status(String label, String property, Schema.IndexState state, float progress, String failure) {
+      this.label = label;
+      this.property = property;
+      this.state = state;
+      this.progress = progress;
+      this.failure = failure;
+    }
+
+    public String label() {
+      return label;
+    }
+
+    public String property() {
+      return property;
+    }
+
+    public Schema.IndexState state() {
+      return state;
+    }
+
+    /**
+     * Population progress in percent.
+     */
+    public float progress() {
+      return progress;
+    }
+
+    /**
+     * The failure message, if the population failed.
+     */
+    public String failure() {
+      return failure;
+    }
+
+    public boolean isOnline() {
+      return state == Schema.IndexState.ONLINE;
+    }
+
+    public boolean isFailed() {
+      return state == Schema.IndexState.FAILED;
+    }
+
+    @Override
+    public String toString() {
+      return label + "." + property + " " + state + (isOnline()? "": String.format(" %.0f%%", progress));
+    }
+  }
+
+  /**
+   * Read the state of all indexes. Indexes with a pending backfill are reported as populating.
+   */
+  public List<Status> status() {
+    List<Status> result = new ArrayList<>();
+    try(Transaction tx = graphDb.beginTx()) {
+      Schema schema = graphDb.schema();
+      for(IndexDefinition index : schema.getIndexes()) {
+        String label = index.getLabel().name();
+        String property = Iterables.single(index.getPropertyKeys());
+        Schema.IndexState state = schema.getIndexState(index);
+        float progress = schema.getIndexPopulationProgress(index).getCompletedPercentage();
+        String failure = state == Schema.IndexState.FAILED? schema.getIndexFailure(index): null;
+        Backfill backfill = backfills.get(label + "." + property);
+        if(state == Schema.IndexState.ONLINE && backfill != null) {
+          state = Schema.IndexState.POPULATING;
+          progress = backfill.progress();
+        }
+        result.add(new Status(label, property, state, progress, failure));
+      }
+      tx.success();
+    }
+    // backfills of indexes which aren't schema indexes
+    Set<String> reported = new HashSet<>();
+    result.forEach(status -> reported.add(status.label() + "." + status.property()));
+    for(Map.Entry<String, Backfill> entry : backfills.entrySet()) {
+      String key = entry.getKey();
+      int separator = key.indexOf('.');
+      if(separator < 0 || reported.contains(key)) continue;
+      result.add(new Status(key.substring(0, separator), key.substring(separator + 1),
+        Schema.IndexState.POPULATING, entry.getValue().progress(), null));
+    }
+    return result;
+  }
+
+  /**
+   * Tests if the indexes for some labels are online and backfilled.
+   * @param labels The labels to check, all indexes are checked when empty
+   */
+  public boolean isOnline(Collection<String> labels) {
+    for(Status status : status()) {
+      if(!status.isOnline() && (labels.isEmpty() || labels.contains(status.label()))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Wait until all indexes are online and backfilled.
+   * @return <code>false</code> if the timeout elapsed before
+   */
+  public boolean awaitOnline(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while(!isOnline(Collections.emptySet())) {
+      if(System.nanoTime() > deadline) return false;
+      Thread.sleep(50);
+    }
+    return true;
+  }
+
+  /**
+   * Write the missing <code>_lower</code> shadow properties of a field in the background.
+   * @param label The label of the nodes to update
+   * @param field The field name, without suffix
+   */
+  public void backfill(Label label, String field) {
+    backfill(label.name() + "." + field + "_lower", new LowerCaseBackfill(graphDb, label, field));
+  }
+
+  /**
+   * Run a backfill in the background, the index it belongs to counts as populating until it is done.
+   * @param key Label and property of the index, separated by a dot
+   * @param task The backfill to run
+   */
+  public void backfill(String key, Backfill task) {
+    if(backfills.putIfAbsent(key, task) != null) return;
+    if(registry != null) registerIndexMetrics(registry, key);
+    executor().execute(() -> {
+      try {
+        task.run();
+      } catch(RuntimeException e) {
+        logger.error("backfill of {} failed: {}", key, e.getMessage(), e);
+      } finally {
+        backfills.remove(key);
+      }
+    });
+  }
+
+  /**
+   * Number of running or queued backfills.
+   */
+  public int pendingBackfills() {
+    return backfills.size();
+  }
+
+  /**
+   * Log a warning for each index not online yet.
+   */
+  public void logPopulating() {
+    for(Status status : status()) {
+      if(status.isFailed()) {
+        logger.error("index {} failed: {}", status, status.failure());
+      } else if(!status.isOnline()) {
+        logger.warn("index {}, queries on {} use label scans until it is online", status, status.property());
+      }
+    }
+  }
+
+  private synchronized ExecutorService executor() {
+    if(executor == null) {
+      executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "frogr-index-population");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return executor;
+  }
+
+  /**
+   * Register the index metrics in a metric registry.
+   * @param registry The metric registry to use
+   */
+  public void registerMetrics(MetricRegistry registry) {
+    this.registry = registry;
+    String prefix = MetricRegistry.name(IndexPopulation.class);
+    if(!registry.getNames().contains(prefix + ".populating")) {
+      registry.register(prefix + ".populating",
+        (Gauge<Long>) () -> snapshot.getValue().values().stream()
+          .filter(status -> !status.isOnline() && !status.isFailed()).count());
+      registry.register(prefix + ".failed",
+        (Gauge<Long>) () -> snapshot.getValue().values().stream().filter(Status::isFailed).count());
+      registry.register(prefix + ".backfills", (Gauge<Integer>) this::pendingBackfills);
+    }
+    for(Status status : status()) registerIndexMetrics(registry, status.label() + "." + status.property());
+  }
+
+  /**
+   * Progress in percent of a single index, including its backfill. 
+   * Indexes created later are registered with their backfill, or by registering the metrics again.
+   */
+  private void registerIndexMetrics(MetricRegistry registry, String key) {
+    String name = MetricRegistry.name(IndexPopulation.class, key, "progress");
+    if(registry.getNames().contains(name)) return;
+    registry.register(name, (Gauge<Float>) () -> {
+      Status status = snapshot.getValue().get(key);
+      if(status == null) return null;
+      return status.isOnline()? 100f: status.progress();
+    });
+  }
+
+  /**
+   * Stop the running backfills after their current batch and wait for them.
+   * The thread isn't interrupted, as that would close the store files during a write.
+   */
+  public synchronized void shutdown() {
+    if(executor == null) return;
+    backfills.values().forEach(Backfill::stop);
+    executor.shutdown();
+    try {
+      if(!executor.awaitTermination(30, TimeUnit.SECONDS)) logger.warn("index backfill did not stop in time");
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    executor = null;
+  }
+}
@@ -3,18 +3,16 @@ package de.whitefrog.frogr.persistence
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.module.mrbean.MrBeanModule
 import de.whitefrog.frogr.exception.FrogrException
+import de.whitefrog.frogr.helper.ClassIndex
 import de.whitefrog.frogr.model.Base
 import de.whitefrog.frogr.model.relationship.Relationship
 import org.apache.commons.lang3.reflect.FieldUtils
-import org.reflections.Reflections
-import org.reflections.scanners.SubTypesScanner
-import org.reflections.util.ClasspathHelper
-import org.reflections.util.ConfigurationBuilder
 import org.slf4j.LoggerFactory
 import java.io.IOException
 import java.lang.reflect.Field
 import java.lang.reflect.Modifier
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * Model cache to reduce reflection usage for models to a minimum.
@@ -26,29 +24,28 @@ import java.util.*
 class ModelCache {
   companion object {
     private val logger = LoggerFactory.getLogger(ModelCache::class.java)
+    /**
+     * Maximum number of resolved field paths cached per model class.
+     */
+    const val MaxPaths = 1000
   }
-  private val cache = HashMap<Class<*>, List<FieldDescriptor<*>>>()
-  private val modelCache = HashMap<String, Class<*>>()
   private val ignoreFields = Arrays.asList(
     "id", "initialId", "checkedFields", "fetchedFields")
-  private lateinit var reflections: Reflections
+  @Volatile
+  private var index = Index()
 
   /**
    * Get all registered models as {@link Collection}.
    * @return all registered models as collection.
    */
   val allModels: Collection<Class<*>>
-    get() = modelCache.values
-
-  private fun containsField(descriptors: List<FieldDescriptor<*>>, fieldName: String): Boolean {
-    return descriptors.stream().anyMatch { descriptor -> descriptor.field().name == fieldName }
-  }
+    get() = index.models.values
 
   /**
    * Tests if a model with a certain name is registered.
    */
   fun containsModel(name: String): Boolean {
-    return modelCache.containsKey(name)
+    return index.models.containsKey(name)
   }
 
   /**
@@ -77,19 +74,26 @@ class ModelCache {
    * Scan for models and parse them.
    */
   fun scan(packages: Collection<String>) {
-    modelCache.clear()
-    val configurationBuilder = ConfigurationBuilder()
-      .setScanners(SubTypesScanner())
-    packages
-      .forEach { pkg -> configurationBuilder.addUrls(ClasspathHelper.forPackage(pkg)) }
-    reflections = Reflections(configurationBuilder)
-    val mapper = ObjectMapper()
-    // com.fasterxml.jackson.module.mrbean.MrBeanModule:
-    mapper.registerModule(MrBeanModule())
-
-    for (clazz in reflections.getSubTypesOf(Base::class.java)) {
+    scan(ClassIndex.load(packages))
+  }
+
+  /**
+   * Parse the models of a class index.
+   */
+  fun scan(classIndex: ClassIndex) {
+    // only needed to materialize interface models
+    val mapper by lazy {
+      // com.fasterxml.jackson.module.mrbean.MrBeanModule:
+      ObjectMapper().registerModule(MrBeanModule())
+    }
+
+    val models = HashMap<String, Class<*>>()
+    val descriptors = HashMap<Class<*>, List<FieldDescriptor<*>>>()
+    val descriptorsByName = HashMap<Class<*>, Map<String, FieldDescriptor<*>>>()
+    val indexedFields = HashMap<Class<*>, List<String>>()
+    for (clazz in classIndex.models()) {
       //      if(clazz.isInterface()) continue;
-      modelCache[clazz.simpleName] = clazz
+      models[clazz.simpleName] = clazz
 
       val fields: List<Field>
       if (clazz.isInterface) {
@@ -102,23 +106,34 @@ class ModelCache {
       } else {
         fields = FieldUtils.getAllFieldsList(clazz)
       }
-      val descriptors = ArrayList<FieldDescriptor<*>>()
+      // fields of subclasses come first and hide the ones of superclasses with the same name
+      val byName = LinkedHashMap<String, FieldDescriptor<*>>()
       for(field in fields) {
         if(ignoreFields.contains(field.name)) continue
         if(Modifier.isStatic(field.modifiers)) continue
-        if(containsField(descriptors, field.name)) continue
-        descriptors.add(FieldDescriptor<Base>(clazz, field))
+        if(byName.containsKey(field.name)) continue
+        byName[field.name] = FieldDescriptor<Base>(clazz, field)
       }
 
-      cache[clazz] = descriptors
+      descriptors[clazz] = Collections.unmodifiableList(ArrayList(byName.values))
+      descriptorsByName[clazz] = Collections.unmodifiableMap(byName)
+      indexedFields[clazz] = Collections.unmodifiableList(byName.values
+        .filter { descriptor -> descriptor.annotations().indexed != null || descriptor.annotations().unique }
+        .map { descriptor -> descriptor.field().name })
     }
 
+    val modelNames = HashMap<Class<*>, String>()
+    models.forEach { name, clazz -> modelNames[clazz] = name }
+    index = Index(Collections.unmodifiableMap(models), Collections.unmodifiableMap(modelNames),
+      Collections.unmodifiableMap(descriptors), Collections.unmodifiableMap(descriptorsByName),
+      Collections.unmodifiableMap(indexedFields))
+
     validateAnnotations()
   }
 
   private fun validateAnnotations() {
-    for (modelClass in cache.keys) {
-      for (descriptor in cache[modelClass]!!) {
+    for ((modelClass, descriptors) in index.descriptors) {
+      for (descriptor in descriptors) {
         val annotations = descriptor.annotations()
         
         // check annotations for validity
@@ -155,7 +170,7 @@ class ModelCache {
   }
 
   fun subTypesOf(baseClass: Class<*>): List<Class<*>> {
-    return ArrayList(reflections.getSubTypesOf(baseClass))
+    return index.descriptors.keys.filter { it != baseClass && baseClass.isAssignableFrom(it) }
   }
 
   fun fieldAnnotations(clazz: Class<*>, fieldName: String): AnnotationDescriptor? {
@@ -167,24 +182,69 @@ class ModelCache {
     return fieldDescriptor(field.declaringClass, field.name)
   }
 
+  /**
+   * Get the descriptor for a field, which can be a path through related models like "likes.field".
+   * Paths are resolved once and cached afterwards.
+   * @return The descriptor for the last field in the path, <code>null</code> if the path doesn't exist
+   */
   fun fieldDescriptor(clazz: Class<*>, fieldName: String): FieldDescriptor<*>? {
-    val firstField = if (fieldName.contains(".")) fieldName.substring(0, fieldName.indexOf(".")) else fieldName
-    val descriptor: FieldDescriptor<*>? = fieldMap(clazz).firstOrNull { firstField == it.field().name }
-    return if (descriptor != null && firstField.length < fieldName.length) {
-      fieldDescriptor(descriptor.baseClass(),
-        fieldName.substring(fieldName.indexOf(".") + 1, fieldName.length))
-    } else descriptor
+    val current = index
+    if (!fieldName.contains(".")) return fieldsByName(current, clazz)[fieldName]
+    // plain get first, computeIfAbsent locks the bin even when the key is present
+    val paths = current.paths[clazz] ?: current.paths.computeIfAbsent(clazz) { ConcurrentHashMap() }
+    paths[fieldName]?.let { return it }
+    // paths come from request parameters, so unknown ones are not cached and the number of entries is bounded
+    val descriptor = resolve(current, clazz, fieldName) ?: return null
+    if (paths.size < MaxPaths) paths[fieldName] = descriptor
+    return descriptor
+  }
+
+  private fun resolve(index: Index, clazz: Class<*>, path: String): FieldDescriptor<*>? {
+    var descriptor: FieldDescriptor<*>? = null
+    var current = clazz
+    for (name in path.split(".")) {
+      if (descriptor != null) {
+        current = descriptor.baseClass()
+        if (!index.descriptorsByName.containsKey(current)) return null
+      }
+      descriptor = fieldsByName(index, current)[name] ?: return null
+    }
+    return descriptor
+  }
+
+  private fun fieldsByName(index: Index, clazz: Class<*>): Map<String, FieldDescriptor<*>> {
+    return index.descriptorsByName[clazz]!!
   }
 
   fun fieldMap(clazz: Class<*>): List<FieldDescriptor<*>> {
-    return cache[clazz]!!
+    return index.descriptors[clazz]!!
+  }
+
+  /**
+   * Names of all indexed or unique fields of a model class, used for generic queries.
+   */
+  fun indexedFields(clazz: Class<*>): List<String> {
+    return index.indexedFields[clazz]!!
   }
 
   fun getModel(name: String): Class<*>? {
-    return modelCache[name]
+    return index.models[name]
   }
 
   fun getModelName(modelClass: Class<*>): String? {
-    return modelCache.keys.firstOrNull { modelClass == modelCache[it] }
+    return index.modelNames[modelClass]
+  }
+
+  /**
+   * Lookup tables built on each scan. They are never modified afterwards, so they can be read
+   * by all threads without locking, only the resolved paths are added on demand.
+   */
+  private class Index(
+    val models: Map<String, Class<*>> = emptyMap(),
+    val modelNames: Map<Class<*>, String> = emptyMap(),
+    val descriptors: Map<Class<*>, List<FieldDescriptor<*>>> = emptyMap(),
+    val descriptorsByName: Map<Class<*>, Map<String, FieldDescriptor<*>>> = emptyMap(),
+    val indexedFields: Map<Class<*>, List<String>> = emptyMap()) {
+    val paths = ConcurrentHashMap<Class<*>, ConcurrentHashMap<String, FieldDescriptor<*>>>()
   }
 }
@@ -1,18 +1,18 @@
 package de.whitefrog.frogr.persistence
 
 import com.fasterxml.uuid.Generators
+import com.github.benmanes.caffeine.cache.Caffeine
 import de.whitefrog.frogr.Service
 import de.whitefrog.frogr.exception.*
 import de.whitefrog.frogr.helper.KotlinHelper
-import de.whitefrog.frogr.helper.ReflectionUtil
 import de.whitefrog.frogr.model.*
 import de.whitefrog.frogr.model.annotation.IndexType
 import de.whitefrog.frogr.exception.FrogrException
 import de.whitefrog.frogr.repository.ModelRepository
+import de.whitefrog.frogr.repository.Repository
 import org.apache.commons.lang.Validate
 import org.apache.commons.lang.reflect.ConstructorUtils
 import org.neo4j.graphdb.*
-import org.neo4j.helpers.collection.Iterables
 import org.slf4j.LoggerFactory
 import java.util.*
 import de.whitefrog.frogr.model.relationship.Relationship as FRelationship
@@ -26,10 +26,25 @@ import de.whitefrog.frogr.model.relationship.Relationship as FRelationship
 class Persistence(private val service: Service, private val cache: ModelCache) {
   companion object {
     private val logger = LoggerFactory.getLogger(Persistence::class.java)
+    private val uuidGenerator = Generators.timeBasedGenerator()
+    /** Maximum number of cached fetch plans */
+    const val FetchPlanCacheSize = 10000L
+
+    /**
+     * Generate a fresh uuid.
+     *
+     * @return Generated uuid.
+     */
+    @JvmStatic
+    fun generateUuid(): String {
+      val uuid = uuidGenerator.generate()
+      return java.lang.Long.toHexString(uuid.mostSignificantBits) + java.lang.Long.toHexString(uuid.leastSignificantBits)
+    }
   }
   
   private val relationships = Relationships(service, this)
-  private val uuidGenerator = Generators.timeBasedGenerator()
+  // compiled fetch plans by model class and field list
+  private val plans = Caffeine.newBuilder().maximumSize(FetchPlanCacheSize).build<String, FetchPlan>()
 
   fun cache(): ModelCache {
     return cache
@@ -103,13 +118,14 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
   @Suppress("UNCHECKED_CAST")
   internal fun <T : Base> saveField(context: SaveContext<T>, descriptor: FieldDescriptor<*>, created: Boolean) {
     val field = descriptor.field()
+    val accessor = descriptor.accessor()
     val annotations = descriptor.annotations()
     val model = context.model()
     val node = context.node<PropertyContainer>()
 
     var value: Any? = null
     try {
-      value = field.get(model)
+      value = accessor.get(model)
       
       // when the annotation @Required is present, a value is expected
       if (created && annotations.required && (value == null || value is String && value.isEmpty())) {
@@ -120,9 +136,9 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
 
       if (!annotations.notPersistent) {
         // Generate an uuid when the value is actually null
-        if (created && annotations.uuid && field.get(model) == null) {
+        if (created && annotations.uuid && value == null) {
           val uuid = generateUuid()
-          field.set(model, uuid)
+          accessor.set(model, uuid)
           value = uuid
           valueChanged = true
         }
@@ -134,13 +150,15 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
           } else if (value !is Collection<*> && value !is Model) {
             // store enum names
             if (value.javaClass.isEnum) {
-              if (!node.hasProperty(field.name) || (value as Enum<*>).name != node.getProperty(field.name)) {
+              if (valueChanged) {
                 node.setProperty(field.name, (value as Enum<*>).name)
                 logger.info("{}: set enum value \"{}\" to \"{}\"", model, field.name, value.name)
               }
             } else if (value is Date) {
-              node.setProperty(field.name, value.time)
-              logger.info("{}: set date value \"{}\" to \"{}\"", model, field.name, value.time)
+              if (valueChanged) {
+                node.setProperty(field.name, value.time)
+                logger.info("{}: set date value \"{}\" to \"{}\"", model, field.name, value.time)
+              }
             } else if (valueChanged) {
               node.setProperty(field.name, value)
               logger.info("{}: set value \"{}\" to \"{}\"", model, field.name, value)
@@ -151,7 +169,7 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
             }// store all other values
             // store dates as timestamp
           }// Handle other values
-        } else if (valueChanged && annotations.nullRemove) {
+        } else if (valueChanged && annotations.nullRemove && node.hasProperty(field.name)) {
           logger.info("{}: removed value \"{}\"", model, field.name)
           node.removeProperty(field.name)
           if (annotations.indexed?.type == IndexType.LowerCase) {
@@ -160,8 +178,6 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
         }// if the new value is null and @NullRemove is set on the field,
         // we need to remove the property from the node and the index
       }
-    } catch (e: ReflectiveOperationException) {
-      logger.error("Could not get property on {}: {}", model, e.message, e)
     } catch (e: ConstraintViolationException) {
       throw DuplicateEntryException("A " + model.javaClass.simpleName.toLowerCase() + " with the " +
         field.name + " \"" + value + "\" already exists", model, field)
@@ -179,9 +195,26 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
    * @throws PersistException Is thrown if a field can not be converted
    */
   @Throws(PersistException::class)
-  @Suppress("UNCHECKED_CAST")
   @JvmOverloads
   operator fun <T : Base> get(node: PropertyContainer, _fields: FieldList = FieldList(), _clazz: Class<T>? = null): T {
+    return get(node, _fields, _clazz, true)
+  }
+
+  /**
+   * Get a model instance from a neo4j node.
+   * When fetchRelated is false, @RelatedTo model fields are left out and can be resolved
+   * for a whole set of models at once using {@link #fetchRelated}.
+   *
+   * @param node Node to create the model from
+   * @param _fields Fields to fetch
+   * @param _clazz Model class, resolved by the nodes type when null
+   * @param fetchRelated Fetch related model fields
+   * @return The created model
+   * @throws PersistException Is thrown if a field can not be converted
+   */
+  @Throws(PersistException::class)
+  @Suppress("UNCHECKED_CAST")
+  fun <T : Base> get(node: PropertyContainer, _fields: FieldList, _clazz: Class<T>?, fetchRelated: Boolean): T {
     var fields = _fields
     Validate.notNull(node, "node can't be null")
     try {
@@ -202,7 +235,8 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
         fields.remove(QueryField("from"))
         fields.remove(QueryField("to"))
       }
-      service.repository(clazz).fetch(model, fields)
+      if (fetchRelated) service.repository(clazz).fetch(model, fields)
+      else fetch(model, fields, false, false)
       return model
     } catch (e: IllegalStateException) {
       throw e
@@ -228,16 +262,6 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
     return cache().getModel(className)
   }
 
-  /**
-   * Generate a fresh uuid.
-   *
-   * @return Generated uuid.
-   */
-  private fun generateUuid(): String {
-    val uuid = uuidGenerator.generate()
-    return java.lang.Long.toHexString(uuid.mostSignificantBits) + java.lang.Long.toHexString(uuid.leastSignificantBits)
-  }
-
   /**
    * Removes a property inside the graph and on the model.
    *
@@ -252,14 +276,7 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
     if (descriptor.annotations().indexed?.type == IndexType.LowerCase) {
       node.removeProperty(property + "_lower")
     }
-    try {
-      val field = ReflectionUtil.getSuperField(model.javaClass, property)
-      if (!field.isAccessible) field.isAccessible = true
-      field.set(model, null)
-    } catch (e: ReflectiveOperationException) {
-      throw FieldNotFoundException(property, model)
-    }
-
+    descriptor.accessor().set(model, null)
   }
 
   /**
@@ -314,6 +331,10 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
    * @param refetch Fetch even if the field was already fetched before
    */
   fun <T : Base> fetch(model: T, fields: FieldList, refetch: Boolean) {
+    fetch(model, fields, refetch, true)
+  }
+
+  private fun <T : Base> fetch(model: T, fields: FieldList, refetch: Boolean, fetchRelated: Boolean) {
     Validate.notNull(model, "model cannot be null")
     if (!model.isPersisted) throw FrogrException("the model $model is not persisted yet")
     val node: PropertyContainer
@@ -326,26 +347,14 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
         getNode(model as Model)
       }
 
-      // iterate over fields to ensure fields with @Fetch annotation and 'allFields' will be fetched
-      for (descriptor in cache.fieldMap(model.javaClass)) {
-        // don't fetch the 'id' field and fields annotated with @NotPersistent
-        if (descriptor.name == Base.Id && descriptor.annotations().notPersistent) continue
-
-        // always fetch when field is 'type' or 'uuid', or when allFields is set 
-        // or the field list contains the current field
-        var fetch = descriptor.annotations().fetch != null && (descriptor.annotations().fetch.group == "auto" ||
-          fields.containsField(descriptor.annotations().fetch.group))
-        if(!fetch) fetch = fields.containsField(Base.AllFields) || fields.containsField(descriptor.name)
-
-        if (fetch) {
-          // still fetch if refetch is true or field is not in fetchedFields 
-          // or fields does not contiain field or sub-fields is not empty 
-          if (!refetch && model.fetchedFields.contains(descriptor.name) &&
-            fields.containsField(descriptor.name) && fields[descriptor.name]!!.subFields().isEmpty())
-            continue
-
-          fetchField(node, model, descriptor, fields)
-        }
+      val plan = plan(model.javaClass, fields)
+      // plain properties of cached models are read from the entity cache
+      val properties = if (plan.cached && node is Node) service.entityCache().properties(node, plan.label) else null
+
+      for (entry in plan.entries) {
+        // related models are resolved later for the whole result set
+        if (!fetchRelated && entry.batchable) continue
+        if (entry.shouldFetch(model, refetch)) fetchField(node, properties, model, entry)
       }
     } catch (e: ReflectiveOperationException) {
       logger.error("could not load relations for {}: {}", model, e.message, e)
@@ -353,61 +362,179 @@ class Persistence(private val service: Service, private val cache: ModelCache) {
 
   }
 
-  @Throws(ReflectiveOperationException::class)
-  @Suppress("UNCHECKED_CAST")
-  private fun <T : Base> fetchField(node: PropertyContainer, model: T, descriptor: FieldDescriptor<*>,
-                                                             fields: FieldList) {
-    val annotations = descriptor.annotations()
-    val field = descriptor.field()
-    field.isAccessible = true
+  /**
+   * Get the compiled fetch plan for a model class and field list.
+   * The plan is kept with the field list, so fetching all results of a search resolves it only once.
+   * Other field lists with the same fields share the plan through the plan cache.
+   */
+  internal fun plan(clazz: Class<*>, fields: FieldList): FetchPlan {
+    return fields.derived(clazz) { current ->
+      plans.get(FetchPlan.key(clazz, current)) {
+        FetchPlan.compile(cache, clazz, current, service.entityCache().isCached(clazz))
+      }!!
+    }
+  }
+
+  /**
+   * Create a model through the createModel hook of a repository, without its related model fields.
+   * These are left for {@link #fetchRelated}, which resolves them for a whole set of models.
+   *
+   * @param repository Repository to create the model with
+   * @param node Node to create the model from
+   * @param fields Fields to fetch, including the related model fields left out
+   * @return The created model
+   */
+  fun <T : Base> createModel(repository: Repository<T>, node: PropertyContainer, fields: FieldList): T {
+    return repository.createModel(node, withoutRelated(getClass(node)!!, fields))
+  }
+
+  /**
+   * The fields of a field list without the related model fields, which are fetched by {@link #fetchRelated}.
+   * Kept with the field list, so the same list is passed to the repository for all models of a class.
+   */
+  private fun withoutRelated(clazz: Class<*>, fields: FieldList): FieldList {
+    val plan = plan(clazz, fields)
+    return fields.derived(WithoutRelated(clazz)) { current ->
+      val related = plan.entries.filter { it.batchable }.mapTo(HashSet()) { it.name }
+      if (related.isEmpty()) current else current.filterTo(FieldList()) { !related.contains(it.field) }
+    }
+  }
 
-    if (node is Relationship) {
-      val relModel = model as FRelationship<*, *>
-      if (field.name == "from" && fields.containsField("from") && !fields["from"]!!.subFields().isEmpty()) {
-        service.repository(relModel.from.javaClass).fetch(relModel.from, fields["from"]!!.subFields())
+  private data class WithoutRelated(val clazz: Class<*>)
+
+  /**
+   * Fetch the related model fields for a whole set of models, usually a page of search results
+   * created with {@link #createModel}. Every requested field is resolved for all models of a level before
+   * the next level: the relationships are read per model, but each related node is created only once
+   * through its repository, even when it is related to several models, and the sub fields are then
+   * fetched for all related models of that level together, instead of resolving everything row by row.
+   *
+   * @param models The models to fetch the related fields for
+   * @param fields List of fields to fetch as FieldList
+   */
+  fun <T : Base> fetchRelated(models: Collection<T>, fields: FieldList) {
+    if (models.isEmpty()) return
+    for ((clazz, group) in models.filterIsInstance<Model>().groupBy { it.javaClass }) {
+      for (entry in plan(clazz, fields).entries) {
+        if (!entry.batchable) continue
+        // @Fetch annotated fields, that were not requested, could be fetched by a createModel hook already
+        val requested = fields.containsField(entry.name)
+        val pending = group.filter { entry.shouldFetch(it, false) && (requested || !it.fetchedFields.contains(entry.name)) }
+        if (pending.isEmpty()) continue
+        fetchRelatedField(pending, entry.descriptor, entry.queryField!!, entry.subFields)
       }
-      if (field.name == "to" && fields.containsField("to") && !fields["to"]!!.subFields().isEmpty()) {
-        service.repository(relModel.to.javaClass).fetch(relModel.to, fields["to"]!!.subFields())
+    }
+  }
+
+  @Suppress("UNCHECKED_CAST")
+  private fun fetchRelatedField(models: List<Model>, descriptor: FieldDescriptor<*>, 
+                                queryField: QueryField, subFields: FieldList) {
+    val accessor = descriptor.accessor()
+    val relatedNodes = LinkedHashMap<Model, List<Node>>(models.size)
+    for (model in models) {
+      val node = getNode(model)
+      relatedNodes[model] = if (descriptor.isCollection) {
+        relationships.getRelatedNodes(node, descriptor, queryField)
+      } else {
+        listOfNotNull(relationships.getRelatedNode(node, descriptor.annotations().relatedTo!!))
       }
     }
 
-    // fetch relationship count only
-    if (node is Node && annotations.relationshipCount != null && fields.containsField(field.name)) {
-      val count = annotations.relationshipCount!!
-      field.set(model, Iterables.count(node.getRelationships(count.direction, RelationshipType.withName(count.type))))
-    } else if (model is Model && annotations.relatedTo != null) {
-      if (annotations.fetch == null && !fields.containsField(field.name)) return
-      val subFields = if (fields.containsField(field.name)) fields[field.name]!!.subFields() else FieldList()
-      val fieldDescriptor = if (fields.containsField(field.name)) fields[field.name]!! else QueryField(field.name)
-      // ignore relationships when only AllFields is set
+    // create each related node once and fetch the next level for all of them together
+    val related = HashMap<Long, Model>()
+    for (nodes in relatedNodes.values) {
+      for (other in nodes) {
+        if (related.containsKey(other.id)) continue
+        val repository = service.repository<ModelRepository<Model>>(other.getProperty(Model.Type) as String)
+        related[other.id] = createModel(repository, other, subFields)
+      }
+    }
+    fetchRelated(related.values, subFields)
+
+    for ((model, nodes) in relatedNodes) {
       if (descriptor.isCollection) {
-        val related: Collection<*> = if (descriptor.isModel) {
-          relationships.getRelatedModels<Model>(model as Model, descriptor, fieldDescriptor, subFields)
-        } else {
-          relationships.getRelationships<FRelationship<Model, Model>>(model as Model, descriptor, fieldDescriptor, subFields)
-        }
-        field.set(model, if (Set::class.java.isAssignableFrom(field.type)) related else ArrayList(related))
+        val set = nodes.mapTo(LinkedHashSet<Model>(nodes.size)) { related[it.id]!! }
+        accessor.set(model, if (Set::class.java.isAssignableFrom(descriptor.field().type)) set else ArrayList(set))
       } else {
-        val related: Base? = if (descriptor.isModel) {
-          relationships.getRelatedModel(model as Model, annotations.relatedTo!!, subFields)
+        accessor.set(model, if (nodes.isEmpty()) null else related[nodes[0].id])
+      }
+      model.fetchedFields.add(descriptor.name)
+    }
+  }
+
+  @Throws(ReflectiveOperationException::class)
+  @Suppress("UNCHECKED_CAST")
+  private fun <T : Base> fetchField(node: PropertyContainer, properties: Map<String, Any>?, model: T, 
+                                    entry: FetchPlan.Entry) {
+    val descriptor = entry.descriptor
+    val accessor = descriptor.accessor()
+
+    when (entry.kind) {
+      FetchPlan.Kind.End -> {
+        val relModel = model as FRelationship<*, *>
+        val end = if (entry.name == "from") relModel.from else relModel.to
+        if (!entry.subFields.isEmpty()) service.repository(end.javaClass).fetch(end, entry.subFields)
+      }
+      // fetch relationship count only
+      FetchPlan.Kind.Count -> {
+        accessor.setLong(model, relationshipCount(node as Node, properties, entry))
+      }
+      // fetch related nodes
+      FetchPlan.Kind.Related -> {
+        if (descriptor.isCollection) {
+          val related: Collection<*> = if (descriptor.isModel) {
+            relationships.getRelatedModels<Model>(model as Model, descriptor, entry.queryField!!, entry.subFields)
+          } else {
+            relationships.getRelationships<FRelationship<Model, Model>>(model as Model, descriptor, entry.queryField!!, entry.subFields)
+          }
+          accessor.set(model, if (Set::class.java.isAssignableFrom(descriptor.field().type)) related else ArrayList(related))
         } else {
-          relationships.getRelationship(model as Model, descriptor, subFields)
+          val related: Base? = if (descriptor.isModel) {
+            relationships.getRelatedModel(model as Model, descriptor.annotations().relatedTo!!, entry.subFields)
+          } else {
+            relationships.getRelationship(model as Model, descriptor, entry.subFields)
+          }
+          accessor.set(model, related)
         }
-        field.set(model, related)
       }
-    } 
-    else if (node.hasProperty(field.name)) {
-      when {
-        Enum::class.java.isAssignableFrom(field.type) -> 
-          field.set(model, KotlinHelper.getEnumValue(field.type as Class<Enum<*>>, node.getProperty(field.name) as String))
-        Date::class.java.isAssignableFrom(field.type) -> 
-          field.set(model, Date(node.getProperty(field.name) as Long))
-        else -> 
-          field.set(model, node.getProperty(field.name))
+      // fetch normal field values
+      else -> {
+        val value = if (properties != null) properties[entry.name] else node.getProperty(entry.name, null)
+        when {
+          value == null -> {}
+          entry.kind == FetchPlan.Kind.EnumProperty ->
+            accessor.set(model, KotlinHelper.getEnumValue(descriptor.field().type as Class<Enum<*>>, value as String))
+          entry.kind == FetchPlan.Kind.DateProperty ->
+            accessor.set(model, Date(value as Long))
+          // arrays of cached snapshots are shared, don't hand them out
+          value.javaClass.isArray && properties != null ->
+            accessor.set(model, copyArray(value))
+          else ->
+            accessor.set(model, value)
+        }
       }
-    }// fetch normal field values
-    // fetch related nodes
-    model.fetchedFields.add(field.name)
+    }
+    model.fetchedFields.add(entry.name)
+  }
+
+  /**
+   * Get the value for a @RelationshipCount field. Maintained counts are read from the node property,
+   * others are taken from the node degree or counted when restricted to another model.
+   */
+  private fun relationshipCount(node: Node, properties: Map<String, Any>?, entry: FetchPlan.Entry): Long {
+    val count = entry.descriptor.annotations().relationshipCount!!
+    if (count.maintained) {
+      val value = if (properties != null) properties[entry.name] else node.getProperty(entry.name, null)
+      if (value is Number) return value.toLong()
+    }
+    return RelationshipCounters.count(node, entry.countType, count.direction, entry.countLabel)
+  }
+
+  private fun copyArray(array: Any): Any {
+    val length = java.lang.reflect.Array.getLength(array)
+    val copy = java.lang.reflect.Array.newInstance(array.javaClass.componentType, length)
+    System.arraycopy(array, 0, copy, 0, length)
+    return copy
   }
 
   /**
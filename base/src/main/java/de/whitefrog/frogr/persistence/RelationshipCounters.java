@@ -0,0 +1,149 @@
+package de.whitefrog.frogr.persistence;
+
+import de.whitefrog.frogr.model.Model;
+import de.whitefrog.frogr.model.annotation.RelationshipCount;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+
+/**
+ * Keeps the node properties of {@link RelationshipCount#maintained() maintained} relationship counts up to date.
+ * Registered as transaction event handler, the counts are adjusted by the created and deleted relationships
+ * right before a transaction commits, so the changes are part of the same transaction.
+ * Nodes which don't have the property yet get the full count computed once.
+ */
+public class RelationshipCounters implements TransactionEventHandler<Object> {
+  private final GraphDatabaseService graph;
+  private final ModelCache cache;
+  // maintained counters by relationship type
+  private final Map<String, List<Counter>> counters = new HashMap<>();
+
+  public RelationshipCounters(GraphDatabaseService graph, ModelCache cache) {
+    this.graph = graph;
+    this.cache = cache;
+    Set<String> registered = new HashSet<>();
+    for(Class<?> modelClass : cache.getAllModels()) {
+      if(!Model.class.isAssignableFrom(modelClass)) continue;
+      for(FieldDescriptor<?> descriptor : cache.fieldMap(modelClass)) {
+        RelationshipCount count = descriptor.annotations().relationshipCount;
+        if(count == null || !count.maintained()) continue;
+        // inherited fields are registered once for the declaring class
+        Class<?> declaringClass = descriptor.field().getDeclaringClass();
+        if(!registered.add(declaringClass.getName() + "." + descriptor.getName())) continue;
+        String otherLabel = count.otherModel().equals(Model.class)? null: cache.getModelName(count.otherModel());
+        counters.computeIfAbsent(count.type(), type -> new ArrayList<>())
+          .add(new Counter(declaringClass, descriptor.getName(), RelationshipType.withName(count.type()),
+            count.direction(), otherLabel));
+      }
+    }
+  }
+
+  /**
+   * Count the relationships of a node, using the node degree when the other node doesn't matter.
+   * @param node The node to count the relationships for
+   * @param type The relationship type
+   * @param direction The relationship direction
+   * @param otherLabel Label the other node has to have, <code>null</code> to count all relationships
+   * @return The relationship count
+   */
+  public static long count(Node node, RelationshipType type, Direction direction, String otherLabel) {
+    if(otherLabel == null) return node.getDegree(type, direction);
+    Label label = Label.label(otherLabel);
+    long count = 0;
+    for(Relationship relationship : node.getRelationships(direction, type)) {
+      if(relationship.getOtherNode(node).hasLabel(label)) count++;
+    }
+    return count;
+  }
+
+  /**
+   * Tests if any maintained counters are defined.
+   */
+  public boolean isEmpty() {
+    return counters.isEmpty();
+  }
+
+  @Override
+  public Object beforeCommit(TransactionData data) {
+    if(counters.isEmpty()) return null;
+    Map<Long, Set<String>> deletedNodes = new HashMap<>();
+    for(Node node : data.deletedNodes()) deletedNodes.put(node.getId(), new HashSet<>());
+    for(LabelEntry entry : data.removedLabels()) {
+      Set<String> labels = deletedNodes.get(entry.node().getId());
+      if(labels != null) labels.add(entry.label().name());
+    }
+
+    Map<Long, Map<Counter, Long>> deltas = new HashMap<>();
+    for(Relationship relationship : data.createdRelationships()) collect(relationship, 1, deletedNodes, deltas);
+    for(Relationship relationship : data.deletedRelationships()) collect(relationship, -1, deletedNodes, deltas);
+
+    for(Map.Entry<Long, Map<Counter, Long>> entry : deltas.entrySet()) {
+      Node node = graph.getNodeById(entry.getKey());
+      for(Map.Entry<Counter, Long> delta : entry.getValue().entrySet()) {
+        Counter counter = delta.getKey();
+        Object current = node.getProperty(counter.property, null);
+        // the relationships already reflect this transaction
+        long count = current instanceof Number? ((Number) current).longValue() + delta.getValue():
+          count(node, counter.type, counter.direction, counter.otherLabel);
+        node.setProperty(counter.property, count);
+      }
+    }
+    return null;
+  }
+
+  private void collect(Relationship relationship, long delta, Map<Long, Set<String>> deletedNodes,
+                       Map<Long, Map<Counter, Long>> deltas) {
+    List<Counter> typeCounters = counters.get(relationship.getType().name());
+    if(typeCounters == null) return;
+    long start = relationship.getStartNodeId();
+    long end = relationship.getEndNodeId();
+    for(Counter counter : typeCounters) {
+      if(counter.direction != Direction.INCOMING) {
+        collect(counter, start, end, delta, deletedNodes, deltas);
+      }
+      if(counter.direction == Direction.INCOMING || (counter.direction == Direction.BOTH && start != end)) {
+        collect(counter, end, start, delta, deletedNodes, deltas);
+      }
+    }
+  }
+
+  private void collect(Counter counter, long nodeId, long otherId, long delta, Map<Long, Set<String>> deletedNodes,
+                       Map<Long, Map<Counter, Long>> deltas) {
+    if(deletedNodes.containsKey(nodeId)) return;
+    Object type = graph.getNodeById(nodeId).getProperty(Model.Type, null);
+    Class<?> modelClass = type instanceof String? cache.getModel((String) type): null;
+    if(modelClass == null || !counter.modelClass.isAssignableFrom(modelClass)) return;
+    if(counter.otherLabel != null) {
+      Set<String> deletedLabels = deletedNodes.get(otherId);
+      boolean matches = deletedLabels != null? deletedLabels.contains(counter.otherLabel):
+        graph.getNodeById(otherId).hasLabel(Label.label(counter.otherLabel));
+      if(!matches) return;
+    }
+    deltas.computeIfAbsent(nodeId, id -> new HashMap<>()).merge(counter, delta, Long::sum);
+  }
+
+  @Override
+  public void afterCommit(TransactionData data, Object state) {}
+
+  @Override
+  public void afterRollback(TransactionData data, Object state) {}
+
+  private static class Counter {
+    private final Class<?> modelClass;
+    private final String property;
+    private final RelationshipType type;
+    private final Direction direction;
+    private final String otherLabel;
+
+    Counter(Class<?> modelClass, String property, RelationshipType type, Direction direction, String otherLabel) {
+      this.modelClass = modelClass;
+      this.property = property;
+      this.type = type;
+      this.direction = direction;
+      this.otherLabel = otherLabel;
+    }
+  }
+}
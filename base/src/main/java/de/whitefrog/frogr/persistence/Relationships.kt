@@ -5,10 +5,10 @@ import de.whitefrog.frogr.exception.*
 import de.whitefrog.frogr.model.*
 import de.whitefrog.frogr.model.annotation.RelatedTo
 import de.whitefrog.frogr.exception.FrogrException
-import de.whitefrog.frogr.repository.DefaultRelationshipRepository
 import de.whitefrog.frogr.repository.ModelRepository
 import de.whitefrog.frogr.repository.RelationshipRepository
 import org.apache.commons.lang.Validate
+import org.neo4j.collection.primitive.Primitive
 import org.neo4j.graphdb.*
 import org.slf4j.LoggerFactory
 import java.util.*
@@ -27,38 +27,37 @@ class Relationships internal constructor(private val service: Service, private v
    * Adds a relationship to a existing node. Tests for multiple relationships and a persisted foreign node.
    */
   private fun <T : Model> addRelationship(model: T, node: Node, annotation: RelatedTo, _foreignModel: Model) {
-    var foreignModel = _foreignModel
-    if (foreignModel.id == -1L) {
-      if (foreignModel is FBase && foreignModel.uuid != null) {
-        foreignModel = service.repository(foreignModel.javaClass).findByUuid(foreignModel.uuid) as Model
-      } else {
-        throw RelatedNotPersistedException(
-          "the related field $foreignModel is not yet persisted")
-      }
-    }
+    val foreignModel = persisted(_foreignModel)
     val foreignNode = persistence.getNode(foreignModel)
     val relationshipType = RelationshipType.withName(annotation.type)
     if (!annotation.multiple && hasRelationshipTo(node, foreignNode, relationshipType, annotation.direction)) {
       // the relationship already exists, no more work to do
       return
     }
-    var repository: RelationshipRepository<FRelationship<Model, Model>>
-    try {
-      repository = service.repository(relationshipType.name())
-    } catch (e: RepositoryNotFoundException) {
-      // if no repository is found in the RepositoryFactory, create a new one here
-      // TODO: this should be handled inside of RepositoryFactory but then it would  
-      // TODO: create a DefaultRealtionshipRepository for each unknown type name passed 
-      // TODO: and i haven't found a solution yet
-      repository = DefaultRelationshipRepository(relationshipType.name())
-      try {
-        service.repositoryFactory().setRepositoryService(repository)
-        service.repositoryFactory().register(relationshipType.name(), repository)
-      } catch (ex: ReflectiveOperationException) {
-        throw RepositoryInstantiationException(ex.cause!!)
-      }
+    createRelationship(model, annotation, foreignModel)
+  }
 
+  /**
+   * Returns the model itself when it has an id, otherwise tries to find it by uuid.
+   */
+  private fun persisted(model: Model): Model {
+    if (model.id > -1) return model
+    if (model is FBase && model.uuid != null) {
+      return service.repository(model.javaClass).findByUuid(model.uuid) as Model? ?:
+        throw RelatedNotPersistedException("the related field $model could not be found")
     }
+    throw RelatedNotPersistedException("the related field $model is not yet persisted")
+  }
+
+  /**
+   * Creates a new relationship between two persisted models through the relationship repository.
+   */
+  private fun createRelationship(model: Model, annotation: RelatedTo, foreignModel: Model) {
+    val relationshipType = RelationshipType.withName(annotation.type)
+    // falls back to a default repository for relationship types without a model
+    @Suppress("UNCHECKED_CAST")
+    val repository = service.repositoryFactory().relationshipRepository(relationshipType.name())
+      as RelationshipRepository<FRelationship<Model, Model>>
 
     val relationship: FRelationship<Model, Model>
 
@@ -79,9 +78,16 @@ class Relationships internal constructor(private val service: Service, private v
     return if (relationship == null) null else persistence[relationship]
   }
 
+  /**
+   * Get the relationship between two nodes. The adjacency list of the node with the lower degree
+   * for the relationship type and direction is scanned, which matters for nodes with many relationships.
+   */
   fun getRelationshipBetween(node: Node, other: Node, type: RelationshipType, dir: Direction): Relationship? {
-    val relationships = node.getRelationships(dir, type)
-    return relationships.firstOrNull { it.getOtherNode(node) == other }
+    val (start, end, direction) =
+      if (node.getDegree(type, dir) <= other.getDegree(type, dir.reverse())) Triple(node, other, dir)
+      else Triple(other, node, dir.reverse())
+    val relationships = start.getRelationships(direction, type)
+    return relationships.firstOrNull { it.getOtherNodeId(start.id) == end.id }
   }
 
   /**
@@ -93,24 +99,30 @@ class Relationships internal constructor(private val service: Service, private v
    */
   internal fun getRelatedModel(model: Model, annotation: RelatedTo, fields: FieldList): Model? {
     Validate.notNull(model)
+    val other = getRelatedNode(persistence.getNode(model), annotation) ?: return null
+    val type = other.getProperty(Model.Type) as String
+    val repository = service.repository<ModelRepository<Model>>(type)
+    return repository.createModel(other, fields)
+  }
+
+  /**
+   * Get the single node related to a node.
+   * @param node Node that contains the relationship
+   * @param annotation RelatedTo annotation
+   * @return The related node or null when none exists
+   */
+  internal fun getRelatedNode(node: Node, annotation: RelatedTo): Node? {
     Validate.notNull(annotation.type)
 
     try {
-      val relationship = persistence.getNode(model).getSingleRelationship(
+      val relationship = node.getSingleRelationship(
         RelationshipType.withName(annotation.type), annotation.direction)
-      if (relationship != null) {
-        val node = persistence.getNode(model)
-        val other = relationship.getOtherNode(node)
-        val type = other.getProperty(Model.Type) as String
-        val repository = service.repository<ModelRepository<Model>>(type)
-        return repository.createModel(other, fields)
-      }
+      if (relationship != null) return relationship.getOtherNode(node)
     } catch (e: NotFoundException) {
       if (e.message!!.startsWith("More than")) {
         logger.error(e.message)
         logger.error("Relationships are:")
-        persistence.getNode(model).getRelationships(
-          RelationshipType.withName(annotation.type), annotation.direction)
+        node.getRelationships(RelationshipType.withName(annotation.type), annotation.direction)
           .forEach { rel -> logger.error(rel.toString()) }
         throw e
       }
@@ -121,37 +133,47 @@ class Relationships internal constructor(private val service: Service, private v
 
   internal fun <M : Model> getRelatedModels(model: Model, descriptor: FieldDescriptor<*>,
                                                                      queryField: QueryField, fields: FieldList): Set<M> {
-    val annotation = descriptor.annotations().relatedTo!!
     Validate.notNull(model)
+    val models = LinkedHashSet<M>()
+    for (other in getRelatedNodes(persistence.getNode(model), descriptor, queryField)) {
+      val type = other.getProperty(Model.Type) as String
+      val repository = service.repository<ModelRepository<M>>(type)
+      models.add(repository.createModel(other, fields))
+    }
+    return models
+  }
+
+  /**
+   * Get the nodes related to a node through a model field, respecting the
+   * paging and type restriction settings. Nodes of other types are left out before the page is taken.
+   * @param node Node that contains the relationships
+   * @param descriptor Descriptor for the relationship field
+   * @param queryField QueryField used for paging
+   * @return List of related nodes
+   */
+  internal fun getRelatedNodes(node: Node, descriptor: FieldDescriptor<*>, queryField: QueryField): List<Node> {
+    val annotation = descriptor.annotations().relatedTo!!
     Validate.notNull(annotation.type)
 
-    val iterator = persistence.getNode(model).getRelationships(
+    val iterator = node.getRelationships(
       annotation.direction, RelationshipType.withName(annotation.type)).iterator() as ResourceIterator<Relationship>
 
-    val models = HashSet<M>()
-    val node = persistence.getNode(model)
-    var count: Long = 0
+    val nodes = ArrayList<Node>()
+    val restriction = if (annotation.restrictType) persistence.cache().getModelName(descriptor.baseClass()) else null
+    var skipped: Long = 0
 
-    while (iterator.hasNext()) {
-      if (count < queryField.skip()) {
-        iterator.next()
-        count++
+    // like the projection, the type restriction is applied before paging
+    while (iterator.hasNext() && nodes.size < queryField.limit()) {
+      val other = iterator.next().getOtherNode(node)
+      if (restriction != null && other.getProperty(Model.Type) != restriction) continue
+      if (skipped < queryField.skip()) {
+        skipped++
         continue
       }
-      if (count++ == (queryField.skip() + queryField.limit()).toLong()) break
-
-      val relationship = iterator.next()
-      val other = relationship.getOtherNode(node)
-      val type = other.getProperty(Model.Type) as String
-      if (annotation.restrictType && type != persistence.cache().getModelName(descriptor.baseClass())) {
-        count--
-        continue
-      }
-      val repository = service.repository<ModelRepository<M>>(type)
-      models.add(repository.createModel(other, fields))
+      nodes.add(other)
     }
     iterator.close()
-    return models
+    return nodes
   }
 
   /**
@@ -241,8 +263,7 @@ class Relationships internal constructor(private val service: Service, private v
    * @return true if a relationship exists, otherwise false.
    */
   fun hasRelationshipTo(node: Node, other: Node, type: RelationshipType, direction: Direction): Boolean {
-    val relationships = node.getRelationships(direction, type)
-    return relationships.any { it.getOtherNode(node) == other }
+    return getRelationshipBetween(node, other, type, direction) != null
   }
 
   /**
@@ -319,14 +340,13 @@ class Relationships internal constructor(private val service: Service, private v
   /**
    * Used only from persistence class with the models save context and field descriptor.
    */
-  @Throws(IllegalAccessException::class)
   @Suppress("UNCHECKED_CAST")
   internal fun <T : Model> saveField(context: SaveContext<T>, descriptor: FieldDescriptor<*>) {
     val annotations = descriptor.annotations()
     val model = context.model()
     val node = context.node<Node>()
     val relatedTo = annotations.relatedTo!!
-    val value = descriptor.field().get(model)
+    val value = descriptor.accessor().get(model)
     // Handle single relationships
     if (!descriptor.isCollection) {
       val existing = node.getSingleRelationship(
@@ -340,31 +360,71 @@ class Relationships internal constructor(private val service: Service, private v
         val relModel = value as FRelationship<*, *>
         save(model, relModel, relatedTo)
       }
+    } else if (descriptor.isModel) {
+      saveModels(model, node, relatedTo, !annotations.lazy, value as Collection<Model>)
     } else {
-      val collection = value as Collection<*>
-      // check if relationship is obsolete and delete if neccessary
-      if (!annotations.lazy) {
+      saveRelationships(model, node, relatedTo, !annotations.lazy, value as Collection<FRelationship<*, *>>)
+    }
+  }
+
+  /**
+   * Diffs a collection of related models against the existing relationships in a single pass
+   * over the relationships, comparing node ids only. Relationships to models no longer contained
+   * are deleted when [removeObsolete] is set, relationships to new models are created.
+   */
+  private fun saveModels(model: Model, node: Node, relatedTo: RelatedTo, removeObsolete: Boolean,
+                         collection: Collection<Model>) {
+    val targets = ArrayList<Model>(collection.size)
+    Primitive.longSet(collection.size).use { targetIds ->
+      for (foreignModel in collection) {
+        val persisted = persisted(foreignModel)
+        targets.add(persisted)
+        targetIds.add(persisted.id)
+      }
+
+      Primitive.longSet().use { existing ->
         val relationshipType = RelationshipType.withName(relatedTo.type)
         for (relationship in node.getRelationships(relatedTo.direction, relationshipType)) {
-          val other = persistence.get<Base>(relationship.getOtherNode(node))
-          if (!collection.contains(other)) {
+          val otherId = relationship.getOtherNodeId(node.id)
+          if (removeObsolete && !targetIds.contains(otherId)) {
             relationship.delete()
-            logger.info("{}: relationship to {} removed", model, other)
+            logger.info("{}: relationship to node {} removed", model, otherId)
+          } else {
+            existing.add(otherId)
           }
         }
-      }
-      // Handle collection of models
-      // add the relationship if the foreign model is persisted
-      if (descriptor.isModel) {
-        for (foreignModel in value as Collection<Model>) {
-          addRelationship(model, node, relatedTo, foreignModel)
+
+        for (foreignModel in targets) {
+          // add() is false when the relationship already exists or was just created
+          if (relatedTo.multiple || existing.add(foreignModel.id)) {
+            createRelationship(model, relatedTo, foreignModel)
+          }
         }
-      } else {
-        for (relModel in value as Collection<FRelationship<*, *>>) {
-          save(model, relModel, relatedTo)
+      }
+    }
+  }
+
+  /**
+   * Deletes the existing relationships whose ids are not part of a collection of relationship models
+   * when [removeObsolete] is set, then saves all relationship models in the collection.
+   */
+  private fun saveRelationships(model: Model, node: Node, relatedTo: RelatedTo, removeObsolete: Boolean,
+                                collection: Collection<FRelationship<*, *>>) {
+    if (removeObsolete) {
+      Primitive.longSet(collection.size).use { targetIds ->
+        collection.filter { it.isPersisted }.forEach { targetIds.add(it.id) }
+        val relationshipType = RelationshipType.withName(relatedTo.type)
+        for (relationship in node.getRelationships(relatedTo.direction, relationshipType)) {
+          if (!targetIds.contains(relationship.id)) {
+            relationship.delete()
+            logger.info("{}: relationship {} removed", model, relationship.id)
+          }
         }
-      }// Handle collections of relationship models
-    }// Handle collections
+      }
+    }
+    for (relModel in collection) {
+      save(model, relModel, relatedTo)
+    }
   }
 
   /**
@@ -376,14 +436,9 @@ class Relationships internal constructor(private val service: Service, private v
   fun removeProperty(model: FRelationship<*, *>, property: String) {
     val node = getRelationship(model)
     node.removeProperty(property)
-    try {
-      val field = model.javaClass.getDeclaredField(property)
-      if (!field.isAccessible) field.isAccessible = true
-      field.set(model, null)
-    } catch (e: ReflectiveOperationException) {
-      throw FrogrException("field $property could not be found on $model", e)
-    }
-
+    val descriptor = persistence.cache().fieldDescriptor(model.javaClass, property) ?: 
+      throw FrogrException("field $property could not be found on $model")
+    descriptor.accessor().set(model, null)
   }
 
   /**
@@ -397,15 +452,7 @@ class Relationships internal constructor(private val service: Service, private v
   }
 
   fun <T : Model> delete(model: T, type: RelationshipType, direction: Direction, _foreignModel: Model) {
-    var foreignModel = _foreignModel
-    if(foreignModel.id == -1L) {
-      if(foreignModel is FBase && foreignModel.uuid != null) {
-        foreignModel = service.repository(foreignModel.javaClass).findByUuid(foreignModel.uuid) as Model
-      } else {
-        throw RelatedNotPersistedException(
-          "the related field $foreignModel is not yet persisted")
-      }
-    }
+    val foreignModel = persisted(_foreignModel)
     val node = persistence.getNode(model)
     val foreignNode = persistence.getNode(foreignModel)
     for (relationship in node.getRelationships(type, direction)) {
@@ -60,7 +60,13 @@ public abstract class BaseModelRepository<T extends Model> extends BaseRepositor
     return node.hasLabel(label());
   }
 
-  private Set<String> getModelInterfaces(Class<?> clazz) {
+  /**
+   * Get the names of all model interfaces and non-abstract parent classes of a model class.
+   * These are added as additional labels to the model nodes.
+   * @param clazz The model class
+   * @return Names of the additional labels
+   */
+  public static Set<String> getModelInterfaces(Class<?> clazz) {
     Set<String> output = new HashSet<>();
     Class<?>[] interfaces = clazz.getInterfaces();
     for(Class<?> i: interfaces) {
@@ -14,15 +14,14 @@ import de.whitefrog.frogr.service.Search;
 import org.apache.commons.collections.CollectionUtils;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.ResourceIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.validation.ConstraintViolation;
 import java.lang.reflect.Field;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 /**
  * Base repository for relationship and entities.
@@ -120,6 +119,54 @@ public abstract class BaseRepository<T extends Base> implements Repository<T> {
     return search().filter(FBase.Uuid, uuid).fields(fields).single();
   }
 
+  @Override
+  public Map<Long, T> findAll(Collection<Long> ids, String... fields) {
+    return findAll(ids, FieldList.parseFields(fields));
+  }
+
+  @Override
+  public Map<Long, T> findAll(Collection<Long> ids, FieldList fields) {
+    Map<Long, T> found = new HashMap<>(ids.size());
+    if(!ids.isEmpty()) {
+      List<T> results = search().ids(ids).fields(fields).limit(Integer.MAX_VALUE).list();
+      for(T model : results) found.put(model.getId(), model);
+    }
+    Map<Long, T> ordered = new LinkedHashMap<>(found.size());
+    for(Long id : ids) {
+      T model = found.get(id);
+      if(model != null) ordered.put(id, model);
+    }
+    return ordered;
+  }
+
+  @Override
+  public Map<String, T> findAllByUuid(Collection<String> uuids, String... fields) {
+    return findAllByUuid(uuids, FieldList.parseFields(fields));
+  }
+
+  @Override
+  public Map<String, T> findAllByUuid(Collection<String> uuids, FieldList fields) {
+    Map<String, T> found = new HashMap<>(uuids.size());
+    if(!uuids.isEmpty()) {
+      // a single index seek, the fields are resolved by createModel
+      String id = queryIdentifier();
+      String match = this instanceof ModelRepository?
+        "(" + id + ":" + getType() + ")": "()-[" + id + ":" + getType() + "]->()";
+      String query = "match " + match + " where " + id + "." + FBase.Uuid + " in {uuids} return " + id;
+      try(ResourceIterator<PropertyContainer> results = graph()
+          .execute(query, Collections.singletonMap("uuids", new ArrayList<>(uuids))).columnAs(id)) {
+        results.forEachRemaining(container ->
+          found.put((String) container.getProperty(FBase.Uuid), createModel(container, fields)));
+      }
+    }
+    Map<String, T> ordered = new LinkedHashMap<>(found.size());
+    for(String uuid : uuids) {
+      T model = found.get(uuid);
+      if(model != null) ordered.put(uuid, model);
+    }
+    return ordered;
+  }
+
   @Override
   public GraphDatabaseService graph() {
     return service().graph();
@@ -237,13 +284,9 @@ public abstract class BaseRepository<T extends Base> implements Repository<T> {
       AnnotationDescriptor annotations = cache().fieldAnnotations(context.model().getClass(), f.getName());
       // check if required fields are set
       if(!context.model().isPersisted() && annotations.required) {
-        try {
-          Object value = f.field().get(context.model());
-          if(value == null || (value instanceof String && ((String) value).isEmpty())) {
-            throw new MissingRequiredException(context.model(), f.field());
-          }
-        } catch(IllegalAccessException e) {
-          logger.error(e.getMessage(), e);
+        Object value = f.accessor().get(context.model());
+        if(value == null || (value instanceof String && ((String) value).isEmpty())) {
+          throw new MissingRequiredException(context.model(), f.field());
         }
       }
       Set<ConstraintViolation<T>> violations = service().validator().validateProperty(context.model(), f.getName());
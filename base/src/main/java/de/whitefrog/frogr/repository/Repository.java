@@ -13,7 +13,9 @@ import de.whitefrog.frogr.service.Search;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.PropertyContainer;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A Repository acts as a link between the models and the database. 
@@ -102,6 +104,38 @@ public interface Repository<T extends Base> {
    */
   T findByUuid(String uuid, String... fields);
 
+  /**
+   * Find multiple entities by ID with a single query.
+   * @param ids The ids of the entities to look for
+   * @param fields Fields to fetch, not required
+   * @return The found entities mapped by id, in the order of the passed ids. Missing ids are left out.
+   */
+  Map<Long, T> findAll(Collection<Long> ids, String... fields);
+
+  /**
+   * Find multiple entities by ID with a single query.
+   * @param ids The ids of the entities to look for
+   * @param fields Fields to fetch as FieldList
+   * @return The found entities mapped by id, in the order of the passed ids. Missing ids are left out.
+   */
+  Map<Long, T> findAll(Collection<Long> ids, FieldList fields);
+
+  /**
+   * Find multiple entities by UUID with a single query.
+   * @param uuids The uuids of the entities to look for
+   * @param fields Fields to fetch, not required
+   * @return The found entities mapped by uuid, in the order of the passed uuids. Missing uuids are left out.
+   */
+  Map<String, T> findAllByUuid(Collection<String> uuids, String... fields);
+
+  /**
+   * Find multiple entities by UUID with a single query.
+   * @param uuids The uuids of the entities to look for
+   * @param fields Fields to fetch as FieldList
+   * @return The found entities mapped by uuid, in the order of the passed uuids. Missing uuids are left out.
+   */
+  Map<String, T> findAllByUuid(Collection<String> uuids, FieldList fields);
+
   /**
    * Get the type name for the model class.
    * @return The type name for the used model class
@@ -5,32 +5,28 @@ import de.whitefrog.frogr.exception.RepositoryInstantiationException;
 import de.whitefrog.frogr.exception.RepositoryNotFoundException;
 import de.whitefrog.frogr.model.Model;
 import de.whitefrog.frogr.model.relationship.Relationship;
-import org.reflections.Reflections;
-import org.reflections.scanners.SubTypesScanner;
-import org.reflections.util.ClasspathHelper;
-import org.reflections.util.ConfigurationBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Factory to build {@link Repository repository} instances.
- * Uses a static and a local cache to prevent from double allocations.
+ * Repositories for all known models are created when the service connects, so lookups are a single read
+ * from a concurrent map. Repositories which are still missing are created once, even if requested by
+ * multiple threads at the same time.
  * Works in a multi-threaded environment with different {@link Service services} running at the same time.
  */
 public class RepositoryFactory {
   
   private static final Logger logger = LoggerFactory.getLogger(RepositoryFactory.class);
   /**
-   * Static {@link Repository repository} {@link Class class} cache.
+   * {@link Repository Repository} {@link Class classes} by simple name, never modified after construction.
    */
-  private final Map<String, Class> repositoryCache = new HashMap<>();
+  private final Map<String, Class> repositoryCache;
 
   /**
    * Local {@link Service service}.
@@ -39,22 +35,46 @@ public class RepositoryFactory {
   /**
    * Local {@link Repository repository} cache.
    */
-  private final Map<String, Repository> cache = new HashMap<>(100);
+  private final Map<String, Repository> cache = new ConcurrentHashMap<>(100);
+  /**
+   * Repositories by model class, to skip the name lookup.
+   */
+  private final Map<Class, Repository> classCache = new ConcurrentHashMap<>(100);
   
   public RepositoryFactory(Service service) {
     this.service = service;
-    if(repositoryCache.isEmpty()) {
-      ConfigurationBuilder configurationBuilder = new ConfigurationBuilder()
-        .setScanners(new SubTypesScanner());
-      service.registry()
-        .forEach(pkg -> configurationBuilder.addUrls(ClasspathHelper.forPackage(pkg)));
-      Reflections reflections = new Reflections(configurationBuilder);
-      for(Class clazz : reflections.getSubTypesOf(Repository.class)) {
-        if (!Modifier.isAbstract(clazz.getModifiers()) && !Modifier.isInterface(clazz.getModifiers())) {
-          repositoryCache.put(clazz.getSimpleName(), clazz);
-        }
+    Map<String, Class> repositoryClasses = new HashMap<>();
+    for(Class clazz : service.classIndex().repositories()) {
+      repositoryClasses.put(clazz.getSimpleName(), clazz);
+    }
+    this.repositoryCache = Collections.unmodifiableMap(repositoryClasses);
+  }
+
+  /**
+   * Create the repositories for all known models and repository classes.
+   * Repositories which can't be created are skipped and fail when requested.
+   */
+  public void warmUp() {
+    Set<String> names = new TreeSet<>();
+    for(Class<?> modelClass : service.cache().getAllModels()) {
+      String name = service.cache().getModelName(modelClass);
+      if(name != null) names.add(name);
+    }
+    for(String repositoryName : repositoryCache.keySet()) {
+      if(repositoryName.endsWith("Repository")) {
+        names.add(repositoryName.substring(0, repositoryName.length() - "Repository".length()));
+      }
+    }
+    int count = 0;
+    for(String name : names) {
+      try {
+        get(name);
+        count++;
+      } catch(RuntimeException e) {
+        logger.debug("could not create repository for {}: {}", name, e.getMessage());
       }
     }
+    logger.debug("created {} repositories", count);
   }
 
   /**
@@ -77,9 +97,17 @@ public class RepositoryFactory {
    * Get the {@link Repository repository} for a specific {@link Model model} {@link Class class}.
    * @param modelClass Model class used to lookup the repository
    * @return Repository used for the passed model class
+   * @throws RepositoryNotFoundException if the class isn't a registered model
    */
   public Repository get(Class modelClass) {
-    return get(service.cache().getModelName(modelClass));
+    Repository repository = classCache.get(modelClass);
+    if(repository == null) {
+      String name = service.cache().getModelName(modelClass);
+      if(name == null) throw new RepositoryNotFoundException(modelClass.getSimpleName());
+      repository = get(name);
+      classCache.putIfAbsent(modelClass, repository);
+    }
+    return repository;
   }
 
 
@@ -89,13 +117,44 @@ public class RepositoryFactory {
    * @return Repository used for the passed model name
    */
   public Repository get(String name) {
-    Repository repository;
+    Repository repository = cache.get(name);
+    return repository != null? repository: create(name);
+  }
 
-    try {
-      if(cache.containsKey(name)) {
-        repository = cache.get(name);
+  /**
+   * Get the repository for a relationship type. When there's no model for the type,
+   * a {@link DefaultRelationshipRepository} is created and registered.
+   * @param type The relationship type
+   * @return Repository used for the relationship type
+   */
+  public Repository relationshipRepository(String type) {
+    Repository repository = cache.get(type);
+    if(repository != null) return repository;
+    synchronized(this) {
+      try {
+        return get(type);
+      } catch(RepositoryNotFoundException e) {
+        repository = new DefaultRelationshipRepository(type);
+        try {
+          setRepositoryService(repository);
+        } catch(ReflectiveOperationException ex) {
+          throw new RepositoryInstantiationException(ex);
+        }
+        cache.put(type, repository);
+        return repository;
       }
-      else if(!repositoryCache.containsKey(name + "Repository")) {
+    }
+  }
+
+  /**
+   * Creates a missing repository. Reentrant, so repositories can request others during initialization.
+   */
+  private synchronized Repository create(String name) {
+    Repository repository = cache.get(name);
+    if(repository != null) return repository;
+
+    try {
+      if(!repositoryCache.containsKey(name + "Repository")) {
         logger.debug("No repository found for {}, creating a default one", name);
         Class modelClass = service.cache().getModel(name);
         if(modelClass == null) {
@@ -111,7 +170,6 @@ public class RepositoryFactory {
           repository = ctor.newInstance(name);
         }
         setRepositoryService(repository);
-        cache.put(name, repository);
       }
       else {
         Class c = repositoryCache.get(name + "Repository");
@@ -123,7 +181,9 @@ public class RepositoryFactory {
         setRepositoryService(repository);
         logger.debug("registering " + repository.getClass().getSimpleName() + " for " + name);
       }
-      cache.put(name, repository);
+      // a repository initialized meanwhile, by a recursive call, wins
+      Repository existing = cache.putIfAbsent(name, repository);
+      if(existing != null) repository = existing;
     } catch(ReflectiveOperationException e) {
       throw new RepositoryInstantiationException(e);
     }
@@ -146,6 +206,6 @@ public class RepositoryFactory {
    */
   public void register(String name, Repository repository) {
     cache.put(name, repository);
+    classCache.values().removeIf(cached -> cached != repository && cached.getType().equals(name));
   }
 }
-
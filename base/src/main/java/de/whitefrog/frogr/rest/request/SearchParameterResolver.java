@@ -139,6 +139,7 @@ public class SearchParameterResolver extends AbstractValueFactoryProvider {
         break;
       case "count":
         params.count(true);
+        if(value.equalsIgnoreCase("estimate")) params.estimate(true);
         break;
       case "start":
         params.start(Integer.parseInt(value));
@@ -149,6 +150,9 @@ public class SearchParameterResolver extends AbstractValueFactoryProvider {
       case "page":
         params.page(Integer.parseInt(value));
         break;
+      case "cursor":
+        params.cursor(value);
+        break;
       case "locale":
         params.locale(new Locale(value));
         break;
@@ -12,9 +12,12 @@ import java.util.List;
 public class FrogrResponse<T> implements Serializable {
   private boolean success;
   private Long total;
+  private Boolean estimated;
+  private Boolean capped;
   private String message;
   private Integer errorCode;
   private Integer pages;
+  private String next;
   private List<T> data = new ArrayList<>();
   
   public static <T> FrogrResponse<T> build(List<T> data) {
@@ -48,6 +51,29 @@ public class FrogrResponse<T> implements Serializable {
     this.total = total;
   }
 
+  /**
+   * True, if the total is an estimate instead of an exact count.
+   */
+  public Boolean getEstimated() {
+    return estimated;
+  }
+
+  public void setEstimated(Boolean estimated) {
+    this.estimated = estimated;
+  }
+
+  /**
+   * True, if a full-text query had more matches than the full-text index returns, 
+   * so the results and the total are limited to the most relevant ones.
+   */
+  public Boolean getCapped() {
+    return capped;
+  }
+
+  public void setCapped(Boolean capped) {
+    this.capped = capped;
+  }
+
   public String getMessage() {
     return message;
   }
@@ -72,6 +98,17 @@ public class FrogrResponse<T> implements Serializable {
     this.pages = pages;
   }
 
+  /**
+   * Cursor to request the next page of an ordered search, <code>null</code> on the last page.
+   */
+  public String getNext() {
+    return next;
+  }
+
+  public void setNext(String next) {
+    this.next = next;
+  }
+
   public List<T> getData() {
     return data;
   }
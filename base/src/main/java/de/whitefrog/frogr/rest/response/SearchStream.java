@@ -0,0 +1,129 @@
+package de.whitefrog.frogr.rest.response;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import de.whitefrog.frogr.Service;
+import de.whitefrog.frogr.model.Base;
+import de.whitefrog.frogr.model.SearchParameter;
+import de.whitefrog.frogr.service.Search;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Writes the results of a search to the response while they are read from the database, instead of
+ * collecting them in a {@link FrogrResponse} first. That way large result sets don't have to fit into memory
+ * and the first results are sent right away. The search runs in its own read transaction,
+ * which is open as long as the response is written.
+ *
+ * <p>Supports two formats: the {@link FrogrResponse} envelope with the results in <code>data</code>,
+ * or {@link #NDJSON newline delimited JSON} with one result per line and no envelope.</p>
+ */
+public class SearchStream implements StreamingOutput {
+  private static final Logger logger = LoggerFactory.getLogger(SearchStream.class);
+  /**
+   * Media type of newline delimited JSON.
+   */
+  public static final String NDJSON = "application/x-ndjson";
+  public static final MediaType NDJSON_TYPE = MediaType.valueOf(NDJSON);
+  // results written between two flushes of the response
+  private static final int FlushInterval = 100;
+
+  private final Service service;
+  private final Search search;
+  private final ObjectWriter writer;
+  private final boolean ndjson;
+
+  /**
+   * @param service The service, used to open the transaction
+   * @param search The search to stream the results of
+   * @param mapper The object mapper used for responses
+   * @param view The json view to serialize the results with
+   * @param ndjson Write newline delimited JSON instead of the {@link FrogrResponse} envelope
+   */
+  public SearchStream(Service service, Search search, ObjectMapper mapper, Class<?> view, boolean ndjson) {
+    this.service = service;
+    this.search = search;
+    this.writer = mapper.writerWithView(view).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    this.ndjson = ndjson;
+  }
+
+  /**
+   * Builds the response of a stream endpoint, newline delimited JSON when requested with the 
+   * {@link #NDJSON} media type in the accept header, the {@link FrogrResponse} envelope otherwise.
+   * @param service The service, used to open the transaction
+   * @param search The search to stream the results of
+   * @param mapper The object mapper used for responses
+   * @param view The json view to serialize the results with
+   * @param accept The accept header of the request
+   * @return The streaming response
+   */
+  public static Response response(Service service, Search search, ObjectMapper mapper, Class<?> view, String accept) {
+    boolean ndjson = accept != null && accept.contains(NDJSON);
+    SearchStream stream = new SearchStream(service, search, mapper, view, ndjson);
+    return Response.ok(stream, stream.mediaType()).build();
+  }
+
+  /**
+   * The media type of the response.
+   */
+  public MediaType mediaType() {
+    return ndjson? NDJSON_TYPE: MediaType.APPLICATION_JSON_TYPE;
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException {
+    SearchParameter params = search.params();
+    JsonGenerator generator = writer.getFactory().createGenerator(output);
+    // a failed response must not end with valid json
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+    generator.setRootValueSeparator(null);
+
+    try(Transaction ignored = service.beginTx()) {
+      if(!ndjson) {
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("data");
+      }
+      Base last = null;
+      int count = 0;
+      if(params.limit() > 0) {
+        try(Stream<Base> stream = search.stream()) {
+          Iterator<Base> results = stream.iterator();
+          while(results.hasNext()) {
+            last = results.next();
+            writer.writeValue(generator, last);
+            if(ndjson) generator.writeRaw('\n');
+            if(++count % FlushInterval == 0) generator.flush();
+          }
+        }
+      }
+      if(!ndjson) {
+        generator.writeEndArray();
+        String next = search.nextCursor(last, count);
+        if(next != null) generator.writeStringField("next", next);
+        if(params.count()) {
+          generator.writeNumberField("total", params.estimate()? search.estimatedCount(): search.count());
+          if(params.estimate()) generator.writeBooleanField("estimated", true);
+        }
+        if(search.isCapped()) generator.writeBooleanField("capped", true);
+        generator.writeBooleanField("success", true);
+        generator.writeEndObject();
+      }
+    } catch(IOException | RuntimeException e) {
+      logger.error("failed to stream search results", e);
+      throw e;
+    } finally {
+      generator.close();
+    }
+  }
+}
@@ -29,6 +29,7 @@ public class WrappingWriterInterceptor implements ContainerResponseFilter, Conta
   public void filter(ContainerRequestContext containerRequest, ContainerResponseContext containerResponse) {
     final Object entity = containerResponse.getEntity();
 
+    // streamed responses like the SearchStream write their own envelope, if any
     if(entity instanceof String || entity instanceof File || entity instanceof StreamingOutput) {
       containerResponse.getHeaders().add("Cache-Control", "no-cache");
       return;
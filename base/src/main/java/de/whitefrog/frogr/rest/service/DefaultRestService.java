@@ -1,6 +1,7 @@
 package de.whitefrog.frogr.rest.service;
 
 import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import de.whitefrog.frogr.Service;
 import de.whitefrog.frogr.helper.ReflectionUtil;
 import de.whitefrog.frogr.model.Base;
@@ -24,11 +25,20 @@ public abstract class DefaultRestService<M extends Base> {
 
   @Inject
   private Service service;
+  @Inject
+  private ObjectMapper mapper;
 
   public Service service() {
     return service;
   }
 
+  /**
+   * The object mapper used to write responses.
+   */
+  public ObjectMapper mapper() {
+    return mapper;
+  }
+
   @SuppressWarnings("unchecked")
   public Repository<M> repository() {
     if(repository == null) {
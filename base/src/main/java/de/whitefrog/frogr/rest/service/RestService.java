@@ -1,6 +1,7 @@
 package de.whitefrog.frogr.rest.service;
 
 import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import de.whitefrog.frogr.Service;
 import de.whitefrog.frogr.helper.ReflectionUtil;
 import de.whitefrog.frogr.model.Model;
@@ -27,11 +28,20 @@ public abstract class RestService<Repo extends Repository<M>, M extends Model> {
 
   @Inject
   private Service service;
+  @Inject
+  private ObjectMapper mapper;
 
   public Service service() {
     return service;
   }
 
+  /**
+   * The object mapper used to write responses.
+   */
+  public ObjectMapper mapper() {
+    return mapper;
+  }
+
   @SuppressWarnings("unchecked")
   public Repo repository() {
     if(repository == null) {
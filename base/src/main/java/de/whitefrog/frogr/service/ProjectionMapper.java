@@ -0,0 +1,163 @@
+package de.whitefrog.frogr.service;
+
+import de.whitefrog.frogr.cypher.Projection;
+import de.whitefrog.frogr.exception.PersistException;
+import de.whitefrog.frogr.helper.KotlinHelper;
+import de.whitefrog.frogr.model.Base;
+import de.whitefrog.frogr.persistence.FieldAccessor;
+import de.whitefrog.frogr.persistence.FieldDescriptor;
+import de.whitefrog.frogr.persistence.ModelCache;
+
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Maps rows returned by a query built with a {@link Projection} to models.
+ * All converters and accessors are resolved once when the mapper is created,
+ * every row is then filled directly from the projected map without touching the nodes again.
+ */
+class ProjectionMapper<T extends Base> implements Function<Map<String, Object>, T> {
+  private final ModelCache cache;
+  private final Step root;
+
+  ProjectionMapper(ModelCache cache, Projection projection) {
+    this.cache = cache;
+    this.root = new Step(projection);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T apply(Map<String, Object> result) {
+    return (T) root.map((Map<String, Object>) result.get(Projection.Alias));
+  }
+
+  /**
+   * Compiled mapping for one level of the projection.
+   */
+  private class Step {
+    private final Class<?> modelClass;
+    private final List<Property> properties = new ArrayList<>();
+    private final List<FieldDescriptor<?>> counts;
+    private final List<RelatedField> related = new ArrayList<>();
+
+    Step(Projection projection) {
+      this.modelClass = projection.modelClass();
+      for(FieldDescriptor<?> descriptor : projection.properties()) {
+        properties.add(new Property(descriptor));
+      }
+      this.counts = projection.counts();
+      for(Projection.Related rel : projection.related()) {
+        related.add(new RelatedField(rel));
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    Base map(Map<String, Object> values) {
+      Base model = instantiate((String) values.get(Projection.TypeKey));
+      model.setId((Long) values.get(Projection.IdKey));
+
+      for(Property property : properties) {
+        Object value = values.get(property.name);
+        if(value != null) property.accessor.set(model, property.convert(value));
+        model.getFetchedFields().add(property.name);
+      }
+      for(FieldDescriptor<?> count : counts) {
+        Object value = values.get(count.getName());
+        if(value != null) count.accessor().setLong(model, ((Number) value).longValue());
+        model.getFetchedFields().add(count.getName());
+      }
+      for(RelatedField rel : related) {
+        Object value = values.get(rel.name);
+        if(rel.collection) {
+          List<Map<String, Object>> maps = value == null? Collections.emptyList(): (List<Map<String, Object>>) value;
+          // kept in relationship order
+          Set<Base> models = new LinkedHashSet<>(maps.size());
+          for(Map<String, Object> map : maps) models.add(rel.step.map(map));
+          rel.accessor.set(model, rel.set? models: new ArrayList<>(models));
+        } else {
+          rel.accessor.set(model, value == null? null: rel.step.map((Map<String, Object>) value));
+        }
+        model.getFetchedFields().add(rel.name);
+      }
+      return model;
+    }
+
+    private Base instantiate(String type) {
+      Class<?> clazz = modelClass;
+      if(type != null) {
+        Class<?> typeClass = cache.getModel(type);
+        if(typeClass != null && modelClass.isAssignableFrom(typeClass)) clazz = typeClass;
+      }
+      try {
+        return (Base) clazz.newInstance();
+      } catch(ReflectiveOperationException e) {
+        throw new PersistException(e);
+      }
+    }
+  }
+
+  /**
+   * Plain property with the conversion required from cypher values to the field type.
+   */
+  private static class Property {
+    private final String name;
+    private final FieldAccessor accessor;
+    private final Function<Object, Object> converter;
+
+    Property(FieldDescriptor<?> descriptor) {
+      this.name = descriptor.getName();
+      this.accessor = descriptor.accessor();
+      this.converter = converter(descriptor.field().getType());
+    }
+
+    Object convert(Object value) {
+      return converter == null? value: converter.apply(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> converter(Class<?> type) {
+      if(type.isEnum()) return value -> KotlinHelper.getEnumValue((Class<Enum>) type, (String) value);
+      if(Date.class.isAssignableFrom(type)) return value -> new Date(((Number) value).longValue());
+      // cypher returns all integral numbers as long and floating point numbers as double
+      if(type == Integer.class || type == int.class) return value -> ((Number) value).intValue();
+      if(type == Short.class || type == short.class) return value -> ((Number) value).shortValue();
+      if(type == Byte.class || type == byte.class) return value -> ((Number) value).byteValue();
+      if(type == Float.class || type == float.class) return value -> ((Number) value).floatValue();
+      if(type.isArray()) {
+        Class<?> component = type.getComponentType();
+        Function<Object, Object> element = converter(component);
+        return value -> {
+          if(!(value instanceof List)) return value;
+          List<?> list = (List<?>) value;
+          Object array = Array.newInstance(component, list.size());
+          for(int i = 0; i < list.size(); i++) {
+            Array.set(array, i, element == null? list.get(i): element.apply(list.get(i)));
+          }
+          return array;
+        };
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Related model field with the compiled step used for the related models.
+   */
+  private class RelatedField {
+    private final String name;
+    private final FieldAccessor accessor;
+    private final boolean collection;
+    private final boolean set;
+    private final Step step;
+
+    RelatedField(Projection.Related related) {
+      FieldDescriptor<?> descriptor = related.descriptor();
+      this.name = descriptor.getName();
+      this.accessor = descriptor.accessor();
+      this.collection = descriptor.isCollection();
+      this.set = Set.class.isAssignableFrom(descriptor.field().getType());
+      this.step = new Step(related.projection());
+    }
+  }
+}
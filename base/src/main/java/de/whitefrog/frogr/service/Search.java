@@ -1,11 +1,19 @@
 package de.whitefrog.frogr.service;
 
 import de.whitefrog.frogr.Service;
+import de.whitefrog.frogr.cypher.Cursor;
+import de.whitefrog.frogr.cypher.Projection;
 import de.whitefrog.frogr.cypher.Query;
-import de.whitefrog.frogr.exception.FrogrException;
+import de.whitefrog.frogr.cypher.QueryBuilder;
 import de.whitefrog.frogr.helper.TimeUtils;
+import de.whitefrog.frogr.helper.TransactionUtils;
 import de.whitefrog.frogr.model.*;
+import de.whitefrog.frogr.persistence.AnnotationDescriptor;
 import de.whitefrog.frogr.persistence.FieldDescriptor;
+import de.whitefrog.frogr.persistence.FullTextIndex;
+import de.whitefrog.frogr.repository.BaseModelRepository;
+import de.whitefrog.frogr.repository.ModelRepository;
+import de.whitefrog.frogr.repository.RelationshipRepository;
 import de.whitefrog.frogr.repository.Repository;
 import org.apache.commons.collections.CollectionUtils;
 import org.neo4j.graphdb.PropertyContainer;
@@ -13,8 +21,9 @@ import org.neo4j.graphdb.Result;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.text.MessageFormat;
+import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -35,10 +44,16 @@ import java.util.stream.Stream;
  */
 public class Search {
   private static final Logger logger = LoggerFactory.getLogger(Search.class);
+  // repository classes by whether they override createModel
+  private static final Map<Class<?>, Boolean> createHooks = new ConcurrentHashMap<>();
   private final Service service;
   private final Repository<? extends Base> repository;
   private SearchParameter params;
   private boolean debugQuery = false;
+  private boolean batched = false;
+  private boolean project = false;
+  private boolean cached = false;
+  private boolean capped = false;
   
   public Search(Repository<? extends Base> repository) {
     this.repository = repository;
@@ -61,15 +76,41 @@ public class Search {
    * @return The result count
    */
   public long count(String id) {
-    Query query = repository.queryBuilder().buildSimple(params);
+    // the total of a cursor search counts all results, not just the ones after the cursor
+    SearchParameter countParams = params.cursor() != null? params.clone().cursor(null): params;
+    Query query = repository.queryBuilder().buildSimple(countParams);
     query.query(query.query() + " return count(" + id + ") as c");
+    checkCapped(query);
+
+    SearchCache cache = searchCache();
+    Object cachedCount = cache != null? cache.get(query): null;
+    if(cachedCount != null) return (long) cachedCount;
+    long generation = cache != null? cache.generation(): 0;
 
     Result result = execute(query);
     long count = (long) result.columnAs("c").next();
     result.close();
+    if(cache != null) cache.put(query, repository.getType(), count, generation);
     return count;
   }
 
+  /**
+   * Estimate the number of results, without running the search. Uses the row estimate of the query planner, 
+   * which is based on the label counts and index selectivity of the database and doesn't depend on the amount of data.
+   * Filters the planner can't use an index for are estimated with a fixed selectivity, so the value can 
+   * differ a lot from the real {@link #count() count}.
+   * @return The estimated result count
+   */
+  public long estimatedCount() {
+    SearchParameter countParams = params.cursor() != null? params.clone().cursor(null): params;
+    Query query = repository.queryBuilder().buildSimple(countParams);
+    query.query("explain " + query.query() + " return " + repository.queryIdentifier());
+    Result result = execute(query);
+    Object rows = result.getExecutionPlanDescription().getArguments().get("EstimatedRows");
+    result.close();
+    return rows instanceof Number? Math.round(((Number) rows).doubleValue()): 0;
+  }
+
   /**
    * Adds all found field values.
    * @param field The field to sum up
@@ -91,7 +132,7 @@ public class Search {
    */
   @SuppressWarnings("unchecked")
   public <T extends Base> Stream<T> stream() {
-    return (Stream<T>) search(params);
+    return (Stream<T>) search(params, false);
   }
 
   /**
@@ -101,12 +142,110 @@ public class Search {
    */
   @SuppressWarnings("unchecked")
   public <T extends Base> List<T> list() {
-    Stream<T> stream = (Stream<T>) search(params);
+    if(isUuidLookup()) {
+      List<T> found = uuidLookup();
+      return found.subList(0, Math.min(found.size(), params.limit()));
+    }
+    SearchCache cache = searchCache();
+    if(cache != null && CollectionUtils.isEmpty(params.returns())) return cachedList(cache);
+    return searchList();
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T extends Base> List<T> searchList() {
+    Stream<T> stream = (Stream<T>) search(params, true);
     List<T> list = stream.collect(Collectors.toList());
     stream.close();
+    fetchRelated(list);
     return list;
   }
 
+  /**
+   * Get a page of results along with the total count of all results, as {@link #list()} and {@link #count()} would return.
+   * The matches are counted and paged in a single query instead of running the search twice.
+   * Falls back to separate queries for searches that can't be paged that way, like searches with additional returns
+   * or using the search cache. When an {@link #estimate() estimated} total is requested, 
+   * only the page is searched and the total is {@link #estimatedCount() estimated}.
+   * @return The page of results and the total count
+   * @throws ClassCastException when the {@link SearchParameter#returns} value was not matching the class to return
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Base> SearchResult<T> listWithTotal() {
+    if(isUuidLookup()) {
+      // the total of a plain uuid lookup is known without a count query
+      List<T> found = uuidLookup();
+      return new SearchResult<>(found.subList(0, Math.min(found.size(), params.limit())), found.size(), false, false);
+    }
+    if(params.estimate()) {
+      List<T> list = params.limit() > 0? list(): new ArrayList<>();
+      return new SearchResult<>(list, estimatedCount(), true, capped);
+    }
+    if(searchCache() != null || !isSinglePass()) {
+      List<T> list = params.limit() > 0? list(): new ArrayList<>();
+      long total = count();
+      return new SearchResult<>(list, total, false, capped);
+    }
+
+    Projection projection = projection(params);
+    Function<Map<String, Object>, T> mapper;
+    String column;
+    if(projection != null) {
+      batched = false;
+      mapper = new ProjectionMapper<>(service.cache(), projection);
+      column = Projection.Alias;
+    } else {
+      batched = repository instanceof ModelRepository;
+      mapper = new ResultMapper<>((Repository<T>) repository, params, batched);
+      column = repository.queryIdentifier();
+    }
+    
+    Query query = repository.queryBuilder().buildWithTotal(params, projection);
+    Result result = execute(query);
+    List<T> list = new ArrayList<>();
+    long total = 0;
+    while(result.hasNext()) {
+      Map<String, Object> row = result.next();
+      total = (long) row.get(QueryBuilder.TotalAlias);
+      // an empty page returns a single row containing only the total
+      Object value = row.get(column);
+      if(value != null) list.add(mapper.apply(Collections.singletonMap(column, value)));
+    }
+    result.close();
+    fetchRelated(list);
+    return new SearchResult<>(list, total, false, capped);
+  }
+
+  /**
+   * Plain {@link SearchParameter#isUuidLookup() uuid lookups} use a single index seek 
+   * and return the results in the order of the requested uuids.
+   * Projected and cached searches keep the full search path.
+   */
+  private boolean isUuidLookup() {
+    return !project && !cached && params.isUuidLookup();
+  }
+
+  /**
+   * Resolves a plain uuid lookup through {@link Repository#findAllByUuid(Collection, FieldList)}.
+   */
+  @SuppressWarnings("unchecked")
+  private <T extends Base> List<T> uuidLookup() {
+    return new ArrayList<>((Collection<T>) repository.findAllByUuid(params.uuids(), params.fieldList()).values());
+  }
+
+  /**
+   * Tests if the results and the total can be queried at once, 
+   * which requires the order to be known before the results are returned.
+   */
+  private boolean isSinglePass() {
+    if(CollectionUtils.isNotEmpty(params.returns()) || params.cursor() != null) return false;
+    for(SearchParameter.OrderBy order : params.orderBy()) {
+      if(order.field().contains(".")) return false;
+      AnnotationDescriptor annotations = service.cache().fieldAnnotations(repository.getModelClass(), order.field());
+      if(annotations != null && annotations.relationshipCount != null) return false;
+    }
+    return true;
+  }
+
   /**
    * Get a {@link Set set} of results.
    * @return A {@link Set set} of results
@@ -114,9 +253,10 @@ public class Search {
    */
   @SuppressWarnings("unchecked")
   public <T extends Base> Set<T> set() {
-    Stream<T> stream = (Stream<T>) search(params);
+    Stream<T> stream = (Stream<T>) search(params, true);
     Set<T> set = stream.collect(Collectors.toSet());
     stream.close();
+    fetchRelated(set);
     return set;
   }
 
@@ -127,9 +267,10 @@ public class Search {
    */
   @SuppressWarnings("unchecked")
   public <T extends Base> T single() {
-    Stream<T> result = (Stream<T>) search(params.limit(1));
+    Stream<T> result = (Stream<T>) search(params.limit(1), true);
     Optional<T> optional = result.findFirst();
     result.close();
+    optional.ifPresent(model -> fetchRelated(Collections.singletonList(model)));
     return optional.orElse(null);
   }
 
@@ -173,51 +314,196 @@ public class Search {
     else throw new UnsupportedOperationException(o.getClass().getSimpleName() + " cannot be cast to Integer");
   }
   
-  private Stream<? extends Base> search(SearchParameter params) {
+  /**
+   * Get the results from the search cache, or search and store the ids of the results there.
+   */
+  @SuppressWarnings("unchecked")
+  private <T extends Base> List<T> cachedList(SearchCache cache) {
+    Query query = repository.queryBuilder().build(params);
+    long[] ids = (long[]) cache.get(query);
+    if(ids == null) {
+      long generation = cache.generation();
+      List<T> list = searchList();
+      cache.put(query, repository.getType(), list.stream().mapToLong(Base::getId).toArray(), generation);
+      return list;
+    }
+
+    ResultMapper<T> mapper = new ResultMapper<>((Repository<T>) repository, params, true);
+    List<T> list = new ArrayList<>(ids.length);
+    for(long id : ids) {
+      list.add(mapper.apply(Collections.singletonMap(repository.queryIdentifier(), service.graph().getNodeById(id))));
+    }
+    batched = true;
+    fetchRelated(list);
+    return list;
+  }
+
+  /**
+   * The search cache, if this search should be cached and the cache can be used in the current transaction.
+   */
+  private SearchCache searchCache() {
+    if(!cached || !(repository instanceof ModelRepository) ||
+      TransactionUtils.hasUncommittedChanges(service.graph())) return null;
+    return service.searchCache();
+  }
+
+  /**
+   * Fetch the related model fields for all results at once, when they were left out
+   * by a batched {@link ResultMapper}.
+   */
+  private void fetchRelated(Collection<? extends Base> results) {
+    if(batched && !results.isEmpty()) service.persistence().fetchRelated(results, params.fieldList());
+  }
+  
+  private Stream<? extends Base> search(SearchParameter params, boolean batch) {
+    Projection projection = projection(params);
+    if(projection != null) {
+      batched = false;
+      Query query = repository.queryBuilder().build(params, projection);
+      Result result = execute(query);
+      return result.stream().map(new ProjectionMapper<Base>(service.cache(), projection)).onClose(result::close);
+    }
+    
     Stream<? extends Base> stream;
     Query query = repository.queryBuilder().build(params);
     Result result = execute(query);
+    // additional return columns are set on the models directly and shouldn't be refetched
+    boolean multipleReturns = CollectionUtils.isNotEmpty(params.returns()) && params.returns().size() > 1;
 
     if(CollectionUtils.isEmpty(params.returns()) ||
       (params.returns().size() == 1 && params.returns().contains(repository.queryIdentifier()))) {
-      stream = result.stream().map(new ResultMapper<>(repository, params));
+      batched = batch && repository instanceof ModelRepository;
+      stream = result.stream().map(new ResultMapper<>(repository, params, batched));
     } else if(params.returns().size() == 1 && !params.returns().contains(repository.queryIdentifier())) {
       FieldDescriptor descriptor = service.cache().fieldDescriptor(repository.getModelClass(),
         params.returns().get(0));
       Repository<? extends Base> otherRepository = service.repository(descriptor.baseClassName());
-      stream = result.stream().map(new ResultMapper<>(otherRepository, params));
+      batched = batch && otherRepository instanceof ModelRepository;
+      stream = result.stream().map(new ResultMapper<>(otherRepository, params, batched));
     } else { // params.returns().size() > 0, first return should be identifier
-      stream = result.stream().map(new ResultMapper<>(repository, params));
+      batched = batch && !multipleReturns && repository instanceof ModelRepository;
+      stream = result.stream().map(new ResultMapper<>(repository, params, batched));
     }
 
     return stream.onClose(result::close);
   }
   
+  /**
+   * True, if a full-text query of this search found more than {@link FullTextIndex#MaxHits} matches.
+   * Only the most relevant ones are used then, so the results and counts are incomplete.
+   * Set once the search was executed.
+   */
+  public boolean isCapped() {
+    return capped;
+  }
+
+  private void checkCapped(Query query) {
+    Object ids = query.params() != null? query.params().get("fulltext"): null;
+    if(ids instanceof Collection && ((Collection<?>) ids).size() >= FullTextIndex.MaxHits) capped = true;
+  }
+
   private Result execute(Query query) {
+    checkCapped(query);
     long start = 0;
     if(logger.isDebugEnabled() || debugQuery) {
       start = System.nanoTime();
     }
     try {
-      return repository.service().graph().execute(query.query(), query.params());
+      return service.queryStats().execute(service.graph(), query.query(), query.params());
     } catch(IllegalStateException e) {
       logger.error("On query: " + query.query(), e);
       throw e;
     } finally {
-      if(logger.isDebugEnabled()) {
-        logger.debug("\n{}\nQuery: {}\nQueryParams: {}\nTime: {}", params, query.query(), query.params(),
-          TimeUtils.formatInterval(System.nanoTime() - start, TimeUnit.NANOSECONDS));
-      } else if(debugQuery) {
-        System.out.println(MessageFormat.format("{0}\nQuery: {1}\nQueryParams: {2}\nTime: {3}", 
-          params, query.query(), query.params(),
-          TimeUtils.formatInterval(System.nanoTime() - start, TimeUnit.NANOSECONDS)));
+      if(logger.isDebugEnabled() || debugQuery) {
+        // searches marked with debug() are logged with info level
+        String format = "\n{}\nQuery: {}\nQueryParams: {}\nTime: {}";
+        String time = TimeUtils.formatInterval(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if(debugQuery) logger.info(format, params, query.query(), query.params(), time);
+        else logger.debug(format, params, query.query(), query.params(), time);
       }
     }
   }
 
 
   /**
-   * Print queries and parameters to stdout.
+   * Get the projection to use for a search, or <code>null</code> if the nodes should be returned.
+   */
+  private Projection projection(SearchParameter params) {
+    if(!project || CollectionUtils.isNotEmpty(params.returns()) || !(repository instanceof ModelRepository)) {
+      return null;
+    }
+    // ordering by relationship counts requires an aggregation in the return clause
+    for(SearchParameter.OrderBy order : params.orderBy()) {
+      if(order.field().contains(".")) continue;
+      AnnotationDescriptor annotations = service.cache().fieldAnnotations(repository.getModelClass(), order.field());
+      if(annotations != null && annotations.relationshipCount != null) return null;
+    }
+    Projection projection = Projection.create(service.cache(), repository.getModelClass(), params.fieldList());
+    return projection == null || hasCreateHook(projection)? null: projection;
+  }
+
+  /**
+   * Tests if one of the projected models is created by a repository overriding 
+   * {@link Repository#createModel(PropertyContainer, FieldList)}, which the projection would bypass.
+   */
+  private boolean hasCreateHook(Projection projection) {
+    List<Class<?>> classes = new ArrayList<>(service.cache().subTypesOf(projection.modelClass()));
+    classes.add(projection.modelClass());
+    for(Class<?> clazz : classes) {
+      if(clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers()) || !Model.class.isAssignableFrom(clazz)) continue;
+      @SuppressWarnings("unchecked")
+      Repository<?> modelRepository = service.repository((Class<Model>) clazz);
+      if(createHooks.computeIfAbsent(modelRepository.getClass(), Search::overridesCreateModel)) return true;
+    }
+    for(Projection.Related related : projection.related()) {
+      if(hasCreateHook(related.projection())) return true;
+    }
+    return false;
+  }
+
+  private static boolean overridesCreateModel(Class<?> repositoryClass) {
+    try {
+      return repositoryClass.getMethod("createModel", PropertyContainer.class, FieldList.class)
+        .getDeclaringClass() != BaseModelRepository.class;
+    } catch(NoSuchMethodException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Return the requested fields as cypher map projection, so the models are filled directly 
+   * from the query result without reading their nodes again. Falls back to the default behaviour
+   * when the fields can't be projected, for example for relationship models or additional returns, and when a 
+   * projected model's repository overrides {@link Repository#createModel(PropertyContainer, FieldList)}.
+   */
+  public Search project() {
+    project = true;
+    return this;
+  }
+
+  /**
+   * Serve {@link #list()} and {@link #count()} from the {@link SearchCache} when possible.
+   * Only the ids of the results are cached, the models are created from their nodes on every call.
+   * Transactions with uncommitted changes don't use the cache. Results are only stored for repository types
+   * with a time to live set by {@link SearchCache#setTtl}.
+   */
+  public Search cached() {
+    cached = true;
+    return this;
+  }
+
+  /**
+   * Estimate the total returned by {@link #listWithTotal()} instead of counting all results.
+   * @see #estimatedCount()
+   */
+  public Search estimate() {
+    params.estimate(true);
+    return this;
+  }
+
+  /**
+   * Log queries and parameters of this search with info level. The time logged is the time until the query
+   * started returning results, the whole execution is recorded in the {@link Service#queryStats() query statistics}.
    */
   public Search debug() {
     debugQuery = true;
@@ -280,6 +566,13 @@ public class Search {
     return this;
   }
 
+  /**
+   * The underlying {@link SearchParameter} object.
+   */
+  public SearchParameter params() {
+    return params;
+  }
+
   /**
    * {@link Locale} to use for queries.
    * @param locale {@link Locale} to use
@@ -311,6 +604,40 @@ public class Search {
     return this;
   }
 
+  /**
+   * Continue an {@link #orderBy(String) ordered} search after the last result of a previous page,
+   * see {@link #nextCursor(List)}. Used instead of {@link #page(int) pages}, so deep pages are as fast as the first one.
+   * @param cursor The cursor returned for the previous page
+   */
+  public Search cursor(String cursor) {
+    params.cursor(cursor);
+    return this;
+  }
+
+  /**
+   * Get the cursor pointing after the last result of a page returned by this search.
+   * @param results The results of the page
+   * @return The cursor for the next page or <code>null</code>, if the search isn't ordered or the page is not full
+   */
+  public String nextCursor(List<? extends Base> results) {
+    return results.isEmpty()? null: nextCursor(results.get(results.size() - 1), results.size());
+  }
+
+  /**
+   * Get the cursor pointing after the last result of a page returned by this search, 
+   * when the results weren't collected in a list.
+   * @param last The last result of the page
+   * @param count The number of results in the page
+   * @return The cursor for the next page or <code>null</code>, see {@link #nextCursor(List)}
+   */
+  public String nextCursor(Base last, int count) {
+    if(!params.isOrdered() || last == null || count < params.limit()) return null;
+    PropertyContainer entity = repository instanceof RelationshipRepository?
+      service.graph().getRelationshipById(last.getId()): service.graph().getNodeById(last.getId());
+    Cursor cursor = Cursor.after(entity, params.orderBy());
+    return cursor != null? cursor.encode(): null;
+  }
+
   /**
    * Filter results by ids.
    * @param ids Ids to include in results
@@ -398,10 +725,20 @@ public class Search {
   static class ResultMapper<T extends Base> implements Function<Map<String, Object>, T> {
     private final SearchParameter params;
     private final Repository<T> repository;
+    private final boolean batched;
     
     ResultMapper(Repository<T> repository, SearchParameter params) {
+      this(repository, params, false);
+    }
+    
+    /**
+     * @param batched When true, related model fields are not fetched per row 
+     *                but later for all results using {@link de.whitefrog.frogr.persistence.Persistence#fetchRelated}
+     */
+    ResultMapper(Repository<T> repository, SearchParameter params, boolean batched) {
       this.repository = repository;
       this.params = params;
+      this.batched = batched;
     }
     @Override
     @SuppressWarnings("unchecked")
@@ -411,7 +748,9 @@ public class Search {
       
       if(identifier.contains(".")) identifier = identifier.replace(".", "_");
       PropertyContainer node = (PropertyContainer) result.get(identifier);
-      T model = repository.createModel(node, params.fieldList());
+      T model = batched? 
+        repository.persistence().createModel(repository, node, params.fieldList()):
+        repository.createModel(node, params.fieldList());
   
       // when some fields are fetched in query result already they will be added to the model
       if(result.size() > 1) {
@@ -431,11 +770,7 @@ public class Search {
           }
           FieldDescriptor field = repository.cache().fieldDescriptor(model.getClass(), resultEntry.getKey());
 
-          try {
-            field.field().set(model, value);
-          } catch(IllegalAccessException e) {
-            throw new FrogrException(e);
-          }
+          field.accessor().set(model, value);
         }
       }
       
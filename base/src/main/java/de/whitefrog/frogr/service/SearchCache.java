@@ -0,0 +1,282 @@
+package de.whitefrog.frogr.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import de.whitefrog.frogr.cypher.Query;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cache for the results of searches marked as {@link Search#cached() cached}, keyed by the generated query
+ * and its parameters. Stores the ids of the found nodes and result counts, not the models themselves.
+ * An entry is removed when a transaction is committed, which changes nodes with a label or relationships
+ * with a type used in its query, or when its time to live is exceeded. Entries are indexed by these labels
+ * and types, so a commit only touches the affected entries. Results are only cached for repository types
+ * with a time to live set. The number of entries is bounded and results with more than {@link #DefaultMaxResults}
+ * ids are not cached at all.
+ */
+public class SearchCache implements TransactionEventHandler<Set<String>> {
+  public static final int DefaultSize = 10000;
+  public static final int DefaultMaxResults = 1000;
+  public static final long DefaultTtl = TimeUnit.MINUTES.toMillis(1);
+  // labels and relationship types in a query, like "(e:Person)" or "-[:Likes]-"
+  private static final Pattern namePattern = Pattern.compile(":\\s*`?(\\w+)");
+  // marks that every entry has to be removed
+  private static final String All = "*";
+  // queries traversing relationships can depend on properties of nodes without a label in the query
+  private static final String Related = Query.Related;
+
+  private final Cache<String, Entry> cache;
+  // keys of the cached entries by the labels and relationship types in their queries
+  private final Map<String, Set<String>> keys = new ConcurrentHashMap<>();
+  private final int maxResults;
+  private final Map<String, Long> ttls = new ConcurrentHashMap<>();
+  private final AtomicLong generation = new AtomicLong();
+  private final Counter hits = new Counter();
+  private final Counter misses = new Counter();
+
+  public SearchCache() {
+    this(DefaultSize, DefaultMaxResults);
+  }
+
+  /**
+   * @param maximumSize Maximum number of cached results
+   * @param maxResults Maximum number of ids in a cached result
+   */
+  public SearchCache(int maximumSize, int maxResults) {
+    this.cache = Caffeine.newBuilder()
+      .maximumSize(maximumSize)
+      .executor(Runnable::run)
+      .<String, Entry>removalListener((key, entry, cause) -> {
+        // a replacing entry is indexed under the same names already
+        if(cause != RemovalCause.REPLACED && key != null && entry != null) unindex(key, entry.names);
+      })
+      .build();
+    this.maxResults = maxResults;
+  }
+
+  /**
+   * Set the time to live for results of a repository type.
+   * Searches on the CRUD services of that type are cached from then on.
+   * @param type The repository type
+   * @param ttl Time to live, 0 disables caching for searches on the CRUD services
+   * @param unit Time unit for the ttl
+   */
+  public void setTtl(String type, long ttl, TimeUnit unit) {
+    ttls.put(type, unit.toMillis(ttl));
+  }
+
+  /**
+   * Time to live in milliseconds for results of a repository type, 0 if no time to live was set.
+   */
+  public long ttl(String type) {
+    return ttls.getOrDefault(type, 0L);
+  }
+
+  /**
+   * Tests if a time to live was set for a repository type.
+   */
+  public boolean isEnabled(String type) {
+    Long ttl = ttls.get(type);
+    return ttl != null && ttl > 0;
+  }
+
+  /**
+   * Current generation, which has to be passed to {@link #put} when the query was executed.
+   */
+  public long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Get the cached result for a query.
+   * @param query The query
+   * @return The cached ids as long array or count as long, <code>null</code> if there's no valid entry
+   */
+  public Object get(Query query) {
+    String key = key(query);
+    Entry entry = cache.getIfPresent(key);
+    if(entry != null && entry.expires < System.currentTimeMillis()) {
+      cache.invalidate(key);
+      entry = null;
+    }
+    if(entry == null) {
+      misses.inc();
+      return null;
+    }
+    hits.inc();
+    return entry.value;
+  }
+
+  /**
+   * Store the result of a query.
+   * @param query The executed query
+   * @param type Repository type, used for the time to live. Nothing is stored if it isn't {@link #isEnabled(String) enabled}
+   * @param value Found ids as long array or count as long
+   * @param generation The {@link #generation()} before the query was executed, the result won't be stored
+   *                   if a relevant transaction was committed in between
+   */
+  public void put(Query query, String type, Object value, long generation) {
+    if(!isEnabled(type) || (value instanceof long[] && ((long[]) value).length > maxResults)) return;
+    if(this.generation.get() != generation) return;
+    String key = key(query);
+    Set<String> names = query.names() != null? query.names(): names(query.query());
+    for(String name : names) {
+      keys.compute(name, (n, indexed) -> {
+        if(indexed == null) indexed = ConcurrentHashMap.newKeySet();
+        indexed.add(key);
+        return indexed;
+      });
+    }
+    cache.put(key, new Entry(value, names, System.currentTimeMillis() + ttl(type)));
+    // a commit happened meanwhile, which the entry could have missed
+    if(this.generation.get() != generation) cache.invalidate(key);
+  }
+
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  public long size() {
+    return cache.estimatedSize();
+  }
+
+  public long hits() {
+    return hits.getCount();
+  }
+
+  public long misses() {
+    return misses.getCount();
+  }
+
+  private static String key(Query query) {
+    return query.query() + "\n" + (query.params() == null? "": new TreeMap<>(query.params()));
+  }
+
+  private void unindex(String key, Set<String> names) {
+    for(String name : names) {
+      keys.computeIfPresent(name, (n, indexed) -> {
+        indexed.remove(key);
+        return indexed.isEmpty()? null: indexed;
+      });
+    }
+  }
+
+  /**
+   * Labels and relationship types of queries not created by the QueryBuilder.
+   */
+  private static Set<String> names(String query) {
+    Set<String> names = new HashSet<>();
+    Matcher matcher = namePattern.matcher(query);
+    while(matcher.find()) names.add(matcher.group(1));
+    if(query.contains("]-")) names.add(Related);
+    return names;
+  }
+
+  /**
+   * Collects the labels and relationship types touched by the transaction,
+   * while deleted entities can still be read.
+   */
+  @Override
+  public Set<String> beforeCommit(TransactionData data) {
+    Set<String> touched = new HashSet<>();
+    try {
+      for(Node node : data.createdNodes()) node.getLabels().forEach(label -> touched.add(label.name()));
+      for(LabelEntry entry : data.assignedLabels()) touched.add(entry.label().name());
+      for(LabelEntry entry : data.removedLabels()) touched.add(entry.label().name());
+      for(PropertyEntry<Node> entry : data.assignedNodeProperties()) addLabels(touched, entry.entity());
+      Set<Long> deleted = new HashSet<>();
+      data.deletedNodes().forEach(node -> deleted.add(node.getId()));
+      for(PropertyEntry<Node> entry : data.removedNodeProperties()) {
+        // labels of deleted nodes are part of the removed labels
+        if(!deleted.contains(entry.entity().getId())) addLabels(touched, entry.entity());
+      }
+      // maintained relationship counts change the nodes without being part of the transaction data
+      for(Relationship relationship : data.createdRelationships()) addRelationship(touched, relationship, deleted);
+      for(Relationship relationship : data.deletedRelationships()) addRelationship(touched, relationship, deleted);
+      for(PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+        touched.add(entry.entity().getType().name());
+      }
+      for(PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+        touched.add(entry.entity().getType().name());
+      }
+      if(data.assignedNodeProperties().iterator().hasNext() || data.removedNodeProperties().iterator().hasNext() ||
+        !deleted.isEmpty()) {
+        touched.add(Related);
+      }
+    } catch(RuntimeException e) {
+      // entity not readable anymore
+      touched.add(All);
+    }
+    return touched;
+  }
+
+  private static void addRelationship(Set<String> touched, Relationship relationship, Set<Long> deleted) {
+    touched.add(relationship.getType().name());
+    for(Node node : relationship.getNodes()) {
+      if(!deleted.contains(node.getId())) addLabels(touched, node);
+    }
+  }
+
+  private static void addLabels(Set<String> touched, Node node) {
+    for(Label label : node.getLabels()) touched.add(label.name());
+  }
+
+  @Override
+  public void afterCommit(TransactionData data, Set<String> touched) {
+    if(touched == null || touched.isEmpty()) return;
+    generation.incrementAndGet();
+    if(touched.contains(All)) {
+      cache.invalidateAll();
+    } else {
+      // entries stored meanwhile are removed by put, as the generation changed already
+      for(String name : touched) {
+        Set<String> indexed = keys.get(name);
+        if(indexed != null) cache.invalidateAll(new ArrayList<>(indexed));
+      }
+    }
+  }
+
+  @Override
+  public void afterRollback(TransactionData data, Set<String> touched) {}
+
+  /**
+   * Register the cache metrics in a metric registry.
+   * @param registry The metric registry to use
+   */
+  public void registerMetrics(MetricRegistry registry) {
+    String prefix = MetricRegistry.name(SearchCache.class);
+    if(registry.getNames().contains(prefix + ".hits")) return;
+    registry.register(prefix + ".hits", hits);
+    registry.register(prefix + ".misses", misses);
+    registry.register(prefix + ".size", (Gauge<Long>) this::size);
+  }
+
+  private static class Entry {
+    private final Object value;
+    private final Set<String> names;
+    private final long expires;
+
+    Entry(Object value, Set<String> names, long expires) {
+      this.value = value;
+      this.names = names;
+      this.expires = expires;
+    }
+  }
+}
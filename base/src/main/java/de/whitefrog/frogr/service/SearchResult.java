@@ -0,0 +1,50 @@
+package de.whitefrog.frogr.service;
+
+import de.whitefrog.frogr.model.Base;
+
+import java.util.List;
+
+/**
+ * A page of search results along with the total count of all results, returned by {@link Search#listWithTotal()}.
+ */
+public class SearchResult<T extends Base> {
+  private final List<T> list;
+  private final long total;
+  private final boolean estimated;
+  private final boolean capped;
+
+  SearchResult(List<T> list, long total, boolean estimated, boolean capped) {
+    this.list = list;
+    this.total = total;
+    this.estimated = estimated;
+    this.capped = capped;
+  }
+
+  /**
+   * The results of the requested page.
+   */
+  public List<T> list() {
+    return list;
+  }
+
+  /**
+   * The total count of all results.
+   */
+  public long total() {
+    return total;
+  }
+
+  /**
+   * True, if the total is an {@link Search#estimatedCount() estimate}.
+   */
+  public boolean isEstimated() {
+    return estimated;
+  }
+
+  /**
+   * True, if the total is limited by the maximum number of full-text hits, see {@link Search#isCapped()}.
+   */
+  public boolean isCapped() {
+    return capped;
+  }
+}
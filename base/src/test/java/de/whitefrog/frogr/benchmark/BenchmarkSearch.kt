@@ -1,5 +1,6 @@
 package de.whitefrog.frogr.benchmark
 
+import de.whitefrog.frogr.model.Filter
 import de.whitefrog.frogr.test.BaseBenchmark
 import de.whitefrog.frogr.test.Benchmark
 import de.whitefrog.frogr.test.TemporaryService
@@ -184,4 +185,34 @@ class BenchmarkSearch : BaseBenchmark() {
       }
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  @Benchmark(expectation = 100, count = searchCount, timeUnit = TimeUnit.MICROSECONDS)
+  fun searchByTwoRelationships() {
+    service.beginTx().use {
+      val persons = service.repository(Person::class.java)
+      val search = { rand: Long ->
+        persons.search().filter("field", "person$rand")
+          .filter(Filter.GreaterThan("likes.number", 0L))
+          .filter(Filter.StartsWith("wears.name", "clothing"))
+          .list<Person>()
+      }
+
+      // warmup
+      for(i in (0..2000)) {
+        search(Math.floor(Math.random() * initPersons).toLong())
+      }
+
+      service.queryStats().reset()
+      task().start = System.nanoTime()
+
+      var results = 0L
+      for(i in (0..searchCount)) {
+        results += search(Math.floor(Math.random() * initPersons).toLong()).size
+      }
+      // each person likes two persons and wears two clothes, 
+      // matched in a single pattern that would be four rows per result
+      println("results: $results, rows read: ${service.queryStats().top(1)[0].rows()}")
+    }
+  }
+}
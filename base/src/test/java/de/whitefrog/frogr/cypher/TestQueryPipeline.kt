@@ -0,0 +1,103 @@
+package de.whitefrog.frogr.cypher
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.model.SearchParameter
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Clothing
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+
+class TestQueryPipeline {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var persons: PersonRepository
+    private val list = ArrayList<Person>()
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      persons = service.repository(Person::class.java)
+      val clothes = service.repository(Clothing::class.java)
+      service.beginTx().use { tx ->
+        for(i in 0 until 5) {
+          val person = Person("pipe$i", i.toLong())
+          persons.save(person)
+          list.add(person)
+        }
+        // person 0 likes three persons and wears three clothes, person 1 one of each
+        list[0].likes.addAll(list.subList(1, 4))
+        for(i in 0 until 3) list[0].wears.add(Clothing("pipeshirt$i"))
+        list[1].likes.add(list[2])
+        list[1].wears.add(Clothing("pipeshirt3"))
+        list[4].wears.add(Clothing("pipeshirt4"))
+        for(person in list) {
+          clothes.save(*person.wears.toTypedArray())
+          persons.save(person)
+        }
+        tx.success()
+      }
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  private fun search() = persons.search()
+    .filter(Filter.StartsWith("field", "pipe"))
+    .filter(Filter.GreaterThan("likes.number", 0L))
+    .filter(Filter.StartsWith("wears.name", "pipeshirt"))
+
+  @Test
+  fun independentRelationships() {
+    service.beginTx().use {
+      service.queryStats().reset()
+      val results = search().orderBy("number").list<Person>()
+      assertThat(results).containsExactly(list[0], list[1])
+      assertThat(search().count()).isEqualTo(2)
+      // the relationships aren't multiplied, so only the results are read
+      val shape = service.queryStats().top(2).first { !it.query().contains("count(") }
+      assertThat(shape.rows()).isEqualTo(2)
+      assertThat(shape.query()).contains("with distinct person")
+    }
+  }
+
+  @Test
+  fun singleLabelUnchanged() {
+    val query = persons.queryBuilder().build(SearchParameter().filter(Filter.Equals("field", "pipe0")))
+    assertThat(query.query()).startsWith("match (person:Person) where ").doesNotContain("with")
+  }
+
+  @Test
+  fun orderByRelationshipCount() {
+    service.beginTx().use {
+      val search = { persons.search().filter(Filter.StartsWith("field", "pipe"))
+        .orderBy("likesCount", SearchParameter.SortOrder.DESC) }
+      // persons without likes are not part of the results
+      assertThat(search().list<Person>()).containsExactly(list[0], list[1])
+      assertThat(search().count()).isEqualTo(2)
+    }
+  }
+
+  @Test
+  fun returnRelatedWithFilter() {
+    service.beginTx().use {
+      val results = persons.search()
+        .filter(Filter.StartsWith("wears.name", "pipeshirt"))
+        .filter(Filter.StartsWith("field", "pipe"))
+        .returns("person", "likes")
+        .orderBy("number")
+        .list<Person>()
+      assertThat(results).containsExactly(list[0], list[1])
+      assertThat(results[0].likes).containsExactlyInAnyOrder(list[1], list[2], list[3])
+      assertThat(results[1].likes).containsExactly(list[2])
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package de.whitefrog.frogr.cypher
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.model.SearchParameter
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.Before
+import org.junit.BeforeClass
+import org.junit.Test
+import java.util.*
+
+class TestQueryPlanCache {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var persons: PersonRepository
+
+    @BeforeClass
+    @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      persons = service.repository(Person::class.java)
+    }
+
+    @AfterClass
+    @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  @Before
+  fun clear() {
+    service.queryPlanCache().clear()
+  }
+
+  @Test
+  fun sameShapeBindsValues() {
+    val cache = service.queryPlanCache()
+    val hits = cache.hits()
+    val misses = cache.misses()
+
+    val first = persons.queryBuilder().build(SearchParameter()
+      .filter(Filter.Equals("field", "first")).limit(5))
+    val second = persons.queryBuilder().build(SearchParameter()
+      .filter(Filter.Equals("field", "second")).limit(20).page(3))
+    val third = persons.queryBuilder().build(SearchParameter()
+      .filter(Filter.Equals("field", "third")).limit(20).page(2))
+
+    assertThat(cache.misses() - misses).isEqualTo(2)
+    assertThat(cache.hits() - hits).isEqualTo(1)
+    assertThat(second.query()).isEqualTo(third.query())
+    assertThat(first.params()).containsValues("first", 5)
+    assertThat(third.params()).containsEntry("skip", 20).containsEntry("limit", 20).containsValue("third")
+  }
+
+  @Test
+  fun differentShapes() {
+    val builder = persons.queryBuilder()
+    val equals = builder.build(SearchParameter().filter(Filter.Equals("field", "test")))
+    val isNull = builder.build(SearchParameter().filter(Filter.Equals("field", null)))
+    val ids = builder.build(SearchParameter().ids(1L, 2L))
+    val otherIds = builder.build(SearchParameter().ids(3L, 4L, 5L))
+
+    assertThat(equals.query()).isNotEqualTo(isNull.query())
+    assertThat(isNull.params()).containsOnlyKeys("limit")
+    assertThat(ids.query()).isEqualTo(otherIds.query())
+    assertThat(otherIds.params()).containsEntry("ids", Arrays.asList(3L, 4L, 5L))
+    assertThat(service.queryPlanCache().size()).isEqualTo(3)
+  }
+
+  @Test
+  fun convertsValues() {
+    val date = Date()
+    val query = persons.queryBuilder().build(SearchParameter()
+      .filter(Filter.GreaterThan("dateField", date))
+      .query("Test*"))
+    assertThat(query.params()).containsValues(date.time, "Test")
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun emptyQuery() {
+    persons.queryBuilder().build(SearchParameter().query("field:"))
+  }
+
+  @Test
+  fun boundedSize() {
+    val cache = QueryPlanCache(2)
+    for(shape in listOf("a", "b", "c", "d")) cache.put(shape, QueryTemplate(shape, emptyMap(), emptySet()))
+    assertThat(cache.size()).isEqualTo(2)
+    val cached = listOf("a", "b", "c", "d").mapNotNull { cache.get(it) }
+    assertThat(cached).hasSize(2)
+    assertThat(cache.hits()).isEqualTo(2)
+    assertThat(cache.misses()).isEqualTo(2)
+  }
+}
@@ -0,0 +1,135 @@
+package de.whitefrog.frogr.cypher
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.Before
+import org.junit.BeforeClass
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class TestQueryStats {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var persons: PersonRepository
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      persons = service.repository(Person::class.java)
+      service.beginTx().use { tx ->
+        for(i in 0 until 10) persons.save(Person("stats$i", i.toLong()))
+        tx.success()
+      }
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  @Before
+  fun reset() {
+    service.queryStats().reset()
+    service.queryStats().setProfileSampling(0)
+    service.queryStats().setSlowQueryThreshold(QueryStats.DefaultSlowQueryThreshold, TimeUnit.MILLISECONDS)
+  }
+
+  private fun search(value: String) = persons.search().filter(Filter.StartsWith("field", value))
+
+  @Test
+  fun recordsShapes() {
+    service.beginTx().use {
+      search("stats").list<Person>()
+      search("stats1").list<Person>()
+      search("none").list<Person>()
+      search("stats").count()
+    }
+    val top = service.queryStats().top(10)
+    // the values are parameters, so all list queries share a shape
+    assertThat(top).hasSize(2)
+    val list = top.first { !it.query().contains("count(") }
+    assertThat(list.count()).isEqualTo(3)
+    assertThat(list.rows()).isEqualTo(11)
+    assertThat(list.totalTime()).isGreaterThan(0)
+    assertThat(list.profiled()).isEqualTo(0)
+    assertThat(service.queryStats().top(1)).hasSize(1)
+    assertThat(service.metrics().names).contains("de.whitefrog.frogr.cypher.QueryStats.${list.id()}.time")
+  }
+
+  @Test
+  fun profileSampling() {
+    service.queryStats().setProfileSampling(2)
+    service.beginTx().use {
+      for(i in 0 until 4) search("stats").list<Person>()
+    }
+    val shape = service.queryStats().top(1)[0]
+    assertThat(shape.count()).isEqualTo(4)
+    assertThat(shape.profiled()).isEqualTo(2)
+    assertThat(shape.dbHits()).isGreaterThan(0)
+    assertThat(shape.rows()).isEqualTo(40)
+  }
+
+  @Test
+  fun slowQueries() {
+    val slow = service.queryStats().slowQueries()
+    service.queryStats().setSlowQueryThreshold(1, TimeUnit.NANOSECONDS)
+    service.beginTx().use { search("stats").list<Person>() }
+    assertThat(service.queryStats().slowQueries()).isEqualTo(slow + 1)
+  }
+
+  @Test
+  fun engineTime() {
+    // plan the query first, planning counts as engine time
+    service.beginTx().use { service.graph().execute("match (n:Person) return n").close() }
+    service.queryStats().setSlowQueryThreshold(50, TimeUnit.MILLISECONDS)
+    val slow = service.queryStats().slowQueries()
+    service.beginTx().use {
+      val result = service.queryStats().execute(service.graph(), "match (n:Person) return n", emptyMap())
+      while(result.hasNext()) {
+        result.next()
+        // work done by the caller between the rows is not part of the engine time
+        Thread.sleep(10)
+      }
+    }
+    val shape = service.queryStats().get("match (n:Person) return n")
+    assertThat(shape.totalTime()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100))
+    assertThat(shape.totalEngineTime()).isLessThan(shape.totalTime()).isGreaterThan(0)
+    assertThat(service.queryStats().slowQueries()).isEqualTo(slow)
+  }
+
+  @Test
+  fun collidingIds() {
+    // "Aa" and "BB" share their hash code
+    assertThat("return 'Aa' as v".hashCode()).isEqualTo("return 'BB' as v".hashCode())
+    service.beginTx().use {
+      service.queryStats().execute(service.graph(), "return 'Aa' as v", emptyMap()).close()
+      service.queryStats().execute(service.graph(), "return 'BB' as v", emptyMap()).close()
+    }
+    val first = service.queryStats().get("return 'Aa' as v")
+    val second = service.queryStats().get("return 'BB' as v")
+    assertThat(first.id()).isNotEqualTo(second.id())
+    assertThat(service.metrics().names)
+      .contains("de.whitefrog.frogr.cypher.QueryStats.${first.id()}.time", "de.whitefrog.frogr.cypher.QueryStats.${second.id()}.time")
+    assertThat(second.count()).isEqualTo(1)
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun negativeTop() {
+    service.queryStats().top(-1)
+  }
+
+  @Test
+  fun redact() {
+    val redacted = QueryStats.redact(mapOf("field" to "secret", "limit" to 10, "ids" to listOf(1, 2)))
+    assertThat(redacted).containsEntry("limit", 10)
+    assertThat(redacted["field"]).isEqualTo("<String>")
+    assertThat(redacted["ids"].toString()).doesNotContain("1, 2")
+  }
+}
@@ -6,6 +6,7 @@ import org.assertj.core.api.Assertions.assertThat
 import org.junit.AfterClass
 import org.junit.BeforeClass
 import org.junit.Test
+import java.util.concurrent.TimeUnit
 
 class TestGraphHealthCheck {
   companion object {
@@ -29,4 +30,13 @@ class TestGraphHealthCheck {
     val result = checker.check()
     assertThat(result.isHealthy).isTrue()
   }
+
+  @Test
+  fun indexReadiness() {
+    assertThat(service.indexPopulation().awaitOnline(30, TimeUnit.SECONDS)).isTrue()
+    assertThat(IndexReadinessCheck(service, listOf("Person")).check().isHealthy).isTrue()
+    assertThat(IndexReadinessCheck(service, emptyList()).check().isHealthy).isTrue()
+    assertThat(service.indexPopulation().status().map { it.label() + "." + it.property() })
+      .contains("Person.field", "Person.lowerCaseIndex_lower")
+  }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package de.whitefrog.frogr.helper
+
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.patch.TestPatch
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.net.URLClassLoader
+
+class TestClassIndex {
+  companion object {
+    private val packages = listOf("de.whitefrog.frogr")
+  }
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private fun classLoader(directory: File): ClassLoader {
+    return URLClassLoader(arrayOf(directory.toURI().toURL()), javaClass.classLoader)
+  }
+
+  @Test
+  fun scan() {
+    val index = ClassIndex.scan(packages)
+    assertThat(index.isIndexed).isFalse()
+    assertThat(index.models()).contains(Person::class.java)
+    assertThat(index.repositories()).contains(PersonRepository::class.java)
+    assertThat(index.patches()).contains(TestPatch::class.java)
+  }
+
+  @Test
+  fun writeAndRead() {
+    val scanned = ClassIndex.scan(packages)
+    scanned.write(folder.root, packages)
+    assertThat(File(folder.root, ClassIndex.Location)).exists()
+
+    val index = ClassIndex.read(packages, classLoader(folder.root))!!
+    assertThat(index.isIndexed).isTrue()
+    assertThat(index.models()).isEqualTo(scanned.models())
+    assertThat(index.repositories()).isEqualTo(scanned.repositories())
+    assertThat(index.patches()).isEqualTo(scanned.patches())
+  }
+
+  @Test
+  fun uncoveredPackage() {
+    ClassIndex.scan(packages).write(folder.root, packages)
+    assertThat(ClassIndex.read(packages + "de.whitefrog.other", classLoader(folder.root))).isNull()
+    assertThat(ClassIndex.read(packages, javaClass.classLoader)).isNull()
+  }
+
+  @Test
+  fun outdatedIndex() {
+    val file = File(folder.root, ClassIndex.Location)
+    file.parentFile.mkdirs()
+    file.writeText("package de.whitefrog.frogr\nmodel de.whitefrog.frogr.test.model.Removed\n")
+    assertThat(ClassIndex.read(packages, classLoader(folder.root))).isNull()
+  }
+
+  @Test
+  fun staleIndex() {
+    ClassIndex.scan(packages).write(folder.root, packages)
+    assertThat(ClassIndex.read(packages, classLoader(folder.root))).isNotNull()
+    // a class added after the index was written
+    val added = File(folder.root, "de/whitefrog/frogr/test/model/Added.class")
+    added.parentFile.mkdirs()
+    added.writeBytes(ByteArray(16))
+    assertThat(ClassIndex.read(packages, classLoader(folder.root))).isNull()
+  }
+}
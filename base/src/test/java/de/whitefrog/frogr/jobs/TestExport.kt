@@ -0,0 +1,144 @@
+package de.whitefrog.frogr.jobs
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Clothing
+import de.whitefrog.frogr.test.model.Likes
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.graphdb.factory.GraphDatabaseFactory
+import java.io.File
+import java.util.*
+
+class TestExport {
+  @Rule @JvmField
+  val folder = TemporaryFolder()
+
+  @Test
+  fun roundTrip() {
+    val output = folder.newFolder("dump")
+    val date = Date(1514887200000L)
+    val source = TemporaryService()
+    source.connect()
+    try {
+      val persons = source.repository(Person::class.java) as PersonRepository
+      source.beginTx().use { tx ->
+        val shirt = Clothing("shirt")
+        source.repository(Clothing::class.java).save(shirt)
+        val first = Person("first")
+        first.age = Person.Age.Old
+        first.dateField = date
+        first.lowerCaseIndex = "UPPER"
+        first.wears.add(shirt)
+        val second = Person("second")
+        persons.save(first, second)
+        source.repository(Likes::class.java).save(Likes(first, second, "much"))
+        val deleted = Person("deleted")
+        persons.save(deleted)
+        persons.remove(deleted)
+        tx.success()
+      }
+
+      val export = Export(source)
+      export.setBatchSize(2)
+      export.setGzip(true)
+      export.run(output)
+      // the graph node holding the version is exported too
+      assertThat(export.nodeCount).isEqualTo(4)
+      assertThat(export.relationshipCount).isEqualTo(2)
+      assertThat(output.list()).contains("Graph.ndjson.gz", "Person.ndjson.gz", "Clothing.ndjson.gz", "Likes.ndjson.gz", "Wears.ndjson.gz")
+      assertThat(source.metrics().meter("Export.nodes").count).isEqualTo(4)
+    } finally {
+      source.shutdown()
+    }
+
+    val storeDir = folder.newFolder("graph.db")
+    val import = Import(storeDir, listOf("de.whitefrog.frogr"))
+    import.run(output)
+    assertThat(import.nodeCount).isEqualTo(4)
+    assertThat(import.relationshipCount).isEqualTo(2)
+
+    val target = object : Service() {
+      override fun createGraphDatabase(): GraphDatabaseService {
+        return GraphDatabaseFactory().newEmbeddedDatabase(storeDir)
+      }
+    }
+    target.register("de.whitefrog.frogr")
+    target.connect()
+    try {
+      val persons = target.repository(Person::class.java) as PersonRepository
+      target.beginTx().use {
+        val first = persons.search()
+          .filter(Filter.Equals("lowerCaseIndex", "upper"))
+          .fields("field", "age", "dateField", "likes.field", "likesRelationships.field", "wears.name")
+          .single<Person>()
+        assertThat(first.field).isEqualTo("first")
+        assertThat(first.age).isEqualTo(Person.Age.Old)
+        assertThat(first.dateField).isEqualTo(date)
+        assertThat(first.likes.map { it.field }).containsExactly("second")
+        assertThat(first.likesRelationships.map { it.field }).containsExactly("much")
+        assertThat(first.wears.map { it.name }).containsExactly("shirt")
+      }
+    } finally {
+      target.shutdown()
+    }
+  }
+
+  @Test
+  fun shadowProperties() {
+    val output = folder.newFolder("shadow")
+    val service = TemporaryService()
+    service.connect()
+    try {
+      service.beginTx().use { tx ->
+        val person = Person("shadow")
+        person.lowerCaseIndex = "UPPER"
+        service.repository(Person::class.java).save(person)
+        // only the copies of lower case indexed fields are left out
+        service.graph().getNodeById(person.id).setProperty("field_lower", "kept")
+        tx.success()
+      }
+      Export(service).run(output)
+      val dump = File(output, "Person.ndjson").readText()
+      assertThat(dump).contains("\"lowerCaseIndex\":\"UPPER\"", "\"field_lower\":\"kept\"")
+      assertThat(dump).doesNotContain("lowerCaseIndex_lower")
+    } finally {
+      service.shutdown()
+    }
+  }
+
+  @Test
+  fun batches() {
+    val output = folder.newFolder("batches")
+    val service = TemporaryService()
+    service.connect()
+    try {
+      val ids = HashSet<Long>()
+      service.beginTx().use { tx ->
+        for(i in 0 until 7) {
+          val person = Person("batch$i")
+          service.repository(Person::class.java).save(person)
+          ids.add(person.id)
+        }
+        tx.success()
+      }
+      val export = Export(service)
+      export.setBatchSize(3)
+      export.run(output)
+      val exported = File(output, "Person.ndjson").readLines()
+        .map { ObjectMapper().readTree(it).get(Dump.Id).asLong() }
+      // every node is exported once, although the label is read in three transactions
+      assertThat(exported).doesNotHaveDuplicates()
+      assertThat(exported).containsExactlyInAnyOrderElementsOf(ids)
+    } finally {
+      service.shutdown()
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package de.whitefrog.frogr.jobs
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.test.model.Article
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.graphdb.Label
+import org.neo4j.graphdb.factory.GraphDatabaseFactory
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+class TestFullTextBackfill {
+  @Rule @JvmField
+  val folder = TemporaryFolder()
+
+  private fun connect(storeDir: File): Service {
+    val service = object : Service() {
+      override fun createGraphDatabase(): GraphDatabaseService {
+        return GraphDatabaseFactory().newEmbeddedDatabase(storeDir)
+      }
+    }
+    service.register("de.whitefrog.frogr")
+    service.connect()
+    return service
+  }
+
+  /**
+   * Nodes stored without the full-text index, optionally dropping the backfilled marker 
+   * as left behind by an interrupted backfill.
+   */
+  private fun createNodes(storeDir: File, title: String, unmark: Boolean) {
+    val graphDb = GraphDatabaseFactory().newEmbeddedDatabase(storeDir)
+    try {
+      graphDb.beginTx().use { tx ->
+        for(i in 0 until 5) {
+          val node = graphDb.createNode(Label.label("Article"))
+          node.setProperty("title", "$title $i")
+        }
+        if(unmark) {
+          for(name in graphDb.index().nodeIndexNames()) {
+            graphDb.index().removeConfiguration(graphDb.index().forNodes(name), "frogr.backfilled.Article")
+          }
+        }
+        tx.success()
+      }
+    } finally {
+      graphDb.shutdown()
+    }
+  }
+
+  private fun count(service: Service, query: String): Long {
+    return service.beginTx().use { service.repository(Article::class.java).search().query(query).count() }
+  }
+
+  @Test
+  fun backfillAndResume() {
+    val storeDir = folder.newFolder("graph")
+    createNodes(storeDir, "Leuchtturm", false)
+    var service = connect(storeDir)
+    try {
+      assertThat(service.indexPopulation().awaitOnline(30, TimeUnit.SECONDS)).isTrue()
+      assertThat(count(service, "leuchtturm")).isEqualTo(5)
+      service.beginTx().use { assertThat(service.fullTextIndex().isBackfilled("Article")).isTrue() }
+    } finally {
+      service.shutdown()
+    }
+
+    // completed backfills are not repeated, so these stay missing
+    createNodes(storeDir, "Segelboot", false)
+    service = connect(storeDir)
+    try {
+      assertThat(service.indexPopulation().awaitOnline(30, TimeUnit.SECONDS)).isTrue()
+      assertThat(count(service, "segelboot")).isEqualTo(0)
+    } finally {
+      service.shutdown()
+    }
+
+    // an unfinished backfill runs again
+    createNodes(storeDir, "Dampfer", true)
+    service = connect(storeDir)
+    try {
+      assertThat(service.indexPopulation().awaitOnline(30, TimeUnit.SECONDS)).isTrue()
+      assertThat(count(service, "dampfer")).isEqualTo(5)
+      assertThat(count(service, "segelboot")).isEqualTo(5)
+      assertThat(service.metrics().names).contains(
+        "de.whitefrog.frogr.persistence.IndexPopulation.Article.fulltext.progress")
+    } finally {
+      service.shutdown()
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package de.whitefrog.frogr.jobs
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.test.model.Clothing
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.graphdb.Label
+import org.neo4j.graphdb.factory.GraphDatabaseFactory
+import java.io.File
+import java.io.IOException
+import java.io.OutputStreamWriter
+import java.util.zip.GZIPOutputStream
+
+class TestImport {
+  @Rule @JvmField
+  val folder = TemporaryFolder()
+
+  private fun connect(storeDir: File): Service {
+    val service = object : Service() {
+      override fun createGraphDatabase(): GraphDatabaseService {
+        return GraphDatabaseFactory().newEmbeddedDatabase(storeDir)
+      }
+    }
+    service.register("de.whitefrog.frogr")
+    service.connect()
+    return service
+  }
+
+  @Test
+  fun importDump() {
+    val input = folder.newFolder("input")
+    File(input, "Person.ndjson").writeText(
+      """{"_id": 1, "field": "first", "age": "Old", "dateField": "2018-01-02T10:00:00Z", "lowerCaseIndex": "UPPER"}
+        |{"_id": 2, "field": "second", "number": 5, "uuid": "fixeduuid", "unknownField": true}
+        |
+        |{"_id": 3, "field": "third"}
+        |""".trimMargin())
+    GZIPOutputStream(File(input, "Clothing.csv.gz").outputStream()).use { out ->
+      OutputStreamWriter(out).use { it.write("_id,name\n10,\"shirt, blue\"\n11,\"pants \"\"long\"\"\"\n") }
+    }
+    File(input, "Likes.ndjson").writeText("""{"_from": 1, "_to": 2}
+      |{"_from": 2, "_to": 3}""".trimMargin())
+    File(input, "Wears.csv").writeText("_from,_to,since\n1,10,2017\n1,11,2018\n")
+
+    val storeDir = folder.newFolder("graph.db")
+    val import = Import(storeDir, listOf("de.whitefrog.frogr"))
+    import.setThreads(2)
+    import.setChunkSize(1)
+    import.run(input)
+    assertThat(import.nodeCount).isEqualTo(5)
+    assertThat(import.relationshipCount).isEqualTo(4)
+
+    val service = connect(storeDir)
+    try {
+      val persons = service.repository(Person::class.java) as PersonRepository
+      service.beginTx().use {
+        val first = persons.search()
+          .filter(Filter.Equals("field", "first"))
+          .fields("age", "dateField", "lowerCaseIndex", "uuid", "likes.field", "wears.name")
+          .single<Person>()
+        assertThat(first.age).isEqualTo(Person.Age.Old)
+        assertThat(first.dateField!!.time).isEqualTo(1514887200000L)
+        assertThat(first.uuid).isNotEmpty()
+        assertThat(first.likes.map { it.field }).containsExactly("second")
+        assertThat(first.wears.map { it.name }).containsOnly("shirt, blue", "pants \"long\"")
+
+        // lower case shadow property and index
+        assertThat(persons.search().filter(Filter.Equals("lowerCaseIndex", "upper")).count()).isEqualTo(1)
+        assertThat(persons.findByUuid("fixeduuid", "number").number).isEqualTo(5L)
+        assertThat(service.repository(Clothing::class.java).search().count()).isEqualTo(2)
+        assertThat(service.graph().schema().getIndexes(Label.label("Person")).map { it.propertyKeys.single() })
+          .contains("field", "lowerCaseIndex_lower", "uuid")
+      }
+    } finally {
+      service.shutdown()
+    }
+  }
+
+  @Test(timeout = 60000)
+  fun truncatedFile() {
+    val input = folder.newFolder("input")
+    val file = File(input, "Person.ndjson.gz")
+    GZIPOutputStream(file.outputStream()).use { out ->
+      OutputStreamWriter(out).use { writer ->
+        for(i in 0 until 20000) writer.write("{\"_id\": $i, \"field\": \"person$i with some text to fill the file\"}\n")
+      }
+    }
+    // cut off the end, so reading fails while the queue is full
+    val bytes = file.readBytes()
+    file.writeBytes(bytes.copyOf(bytes.size / 2))
+
+    val import = Import(folder.newFolder("graph.db"), listOf("de.whitefrog.frogr"))
+    import.setThreads(1)
+    import.setChunkSize(1)
+    assertThatThrownBy { import.run(input) }.isInstanceOf(IOException::class.java)
+  }
+}
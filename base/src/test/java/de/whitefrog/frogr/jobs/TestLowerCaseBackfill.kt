@@ -0,0 +1,129 @@
+package de.whitefrog.frogr.jobs
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.graphdb.Label
+import org.neo4j.graphdb.factory.GraphDatabaseFactory
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+class TestLowerCaseBackfill {
+  @Rule @JvmField
+  val folder = TemporaryFolder()
+
+  private fun connect(storeDir: File): Service {
+    val service = object : Service() {
+      override fun createGraphDatabase(): GraphDatabaseService {
+        return GraphDatabaseFactory().newEmbeddedDatabase(storeDir)
+      }
+    }
+    service.register("de.whitefrog.frogr")
+    service.connect()
+    return service
+  }
+
+  /**
+   * Nodes stored before the field got a lower case index.
+   */
+  private fun createNodes(storeDir: File, count: Int) {
+    val graphDb = GraphDatabaseFactory().newEmbeddedDatabase(storeDir)
+    try {
+      graphDb.beginTx().use { tx ->
+        for (i in 0 until count) {
+          val node = graphDb.createNode(Label.label("Person"))
+          node.setProperty("lowerCaseIndex", "Value$i")
+        }
+        graphDb.createNode(Label.label("Person")).setProperty("lowerCaseIndex", 5L)
+        tx.success()
+      }
+    } finally {
+      graphDb.shutdown()
+    }
+  }
+
+  @Test
+  fun backfill() {
+    val storeDir = folder.newFolder("graph")
+    createNodes(storeDir, 25)
+    val graphDb = GraphDatabaseFactory().newEmbeddedDatabase(storeDir)
+    try {
+      val backfill = LowerCaseBackfill(graphDb, Label.label("Person"), "lowerCaseIndex")
+      backfill.batchSize = 10
+      backfill.run()
+      assertThat(backfill.updated()).isEqualTo(25)
+      assertThat(backfill.progress()).isEqualTo(100f)
+      graphDb.beginTx().use { tx ->
+        val node = graphDb.findNode(Label.label("Person"), "lowerCaseIndex_lower", "value7")
+        assertThat(node?.getProperty("lowerCaseIndex")).isEqualTo("Value7")
+        tx.success()
+      }
+      // nothing left to do
+      val again = LowerCaseBackfill(graphDb, Label.label("Person"), "lowerCaseIndex")
+      again.run()
+      assertThat(again.updated()).isEqualTo(0)
+      // a backfill stopped while queued doesn't read any nodes
+      val stopped = LowerCaseBackfill(graphDb, Label.label("Person"), "lowerCaseIndex")
+      stopped.stop()
+      stopped.run()
+      assertThat(stopped.progress()).isEqualTo(0f)
+    } finally {
+      graphDb.shutdown()
+    }
+  }
+
+  @Test
+  fun backfillOnConnect() {
+    val storeDir = folder.newFolder("graph")
+    createNodes(storeDir, 10)
+    val service = connect(storeDir)
+    try {
+      assertThat(service.indexPopulation().awaitOnline(30, TimeUnit.SECONDS)).isTrue()
+      assertThat(service.indexPopulation().pendingBackfills()).isEqualTo(0)
+      val persons = service.repository(Person::class.java) as PersonRepository
+      service.beginTx().use {
+        assertThat(persons.search().filter(Filter.Equals("lowerCaseIndex", "VALUE3")).count()).isEqualTo(1)
+      }
+    } finally {
+      service.shutdown()
+    }
+  }
+
+  @Test
+  fun resumedOnConnect() {
+    val storeDir = folder.newFolder("graph")
+    connect(storeDir).shutdown()
+    createNodes(storeDir, 10)
+    // a previous backfill stopped before these nodes
+    var service = connect(storeDir)
+    service.shutdown()
+    val graphDb = GraphDatabaseFactory().newEmbeddedDatabase(storeDir)
+    try {
+      graphDb.beginTx().use { tx ->
+        graphDb.findNodes(Label.label("Person")).forEach { it.removeProperty("lowerCaseIndex_lower") }
+        tx.success()
+      }
+    } finally {
+      graphDb.shutdown()
+    }
+
+    service = connect(storeDir)
+    try {
+      assertThat(service.indexPopulation().awaitOnline(30, TimeUnit.SECONDS)).isTrue()
+      assertThat(service.metrics().names)
+        .contains("de.whitefrog.frogr.persistence.IndexPopulation.Person.lowerCaseIndex_lower.progress")
+      val persons = service.repository(Person::class.java) as PersonRepository
+      service.beginTx().use {
+        assertThat(persons.search().filter(Filter.Equals("lowerCaseIndex", "VALUE3")).count()).isEqualTo(1)
+      }
+    } finally {
+      service.shutdown()
+    }
+  }
+}
@@ -40,6 +40,16 @@ class TestFieldList {
     assertThat(fields["friends"]!!.subFields()).hasSize(2)
     assertEquals(33, fields["friends"]!!.limit())
   }
+  @Test
+  fun keyedByName() {
+    val fields = FieldList.parseFields("name,age")
+    assertThat(fields.add(QueryField("name"))).isFalse()
+    assertThat(fields).hasSize(2)
+    assertThat(fields.getOrEmpty("unknown").field).isEqualTo("unknown")
+    assertThat(fields.remove(QueryField("name"))).isTrue()
+    assertThat(fields.containsField("name")).isFalse()
+    assertThat(FieldList(fields)).containsExactly(QueryField("age"))
+  }
   @Test(expected = FrogrException::class)
   fun wrongSubfieldFormat() {
     val list = mutableListOf("name", "marriedWith.[to.name,from.{name,age},years(100)]", "children.[age,name]", "children.[children]")
@@ -0,0 +1,109 @@
+package de.whitefrog.frogr.model
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Clothing
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+import java.util.*
+
+class TestSaveContext {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var persons: PersonRepository
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      persons = service.repository(Person::class.java)
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  private fun copy(person: Person): Person {
+    val copy = Person(person.field)
+    copy.id = person.id
+    return copy
+  }
+
+  @Test
+  fun unchangedProperties() {
+    service.beginTx().use {
+      val person = Person("unchanged")
+      person.age = Person.Age.Mature
+      person.dateField = Date()
+      person.lowerCaseIndex = "Lower"
+      persons.save(person)
+
+      val copy = copy(person)
+      copy.age = Person.Age.Mature
+      copy.dateField = Date(person.dateField!!.time)
+      copy.lowerCaseIndex = "Lower"
+      val context = SaveContext(persons, copy)
+      assertThat(context.changedFields()).isEmpty()
+      assertThat(context.fieldChanged("field")).isFalse()
+    }
+  }
+
+  @Test
+  fun changedProperties() {
+    service.beginTx().use {
+      val person = Person("changed")
+      person.age = Person.Age.Mature
+      persons.save(person)
+
+      val copy = copy(person)
+      copy.field = "other"
+      copy.age = Person.Age.Old
+      copy.dateField = Date()
+      val context = SaveContext(persons, copy)
+      assertThat(context.changedFields().map { it.name }).containsOnly("field", "age", "dateField")
+
+      persons.save(copy)
+      val found = persons.find(person.id, "field", "age")
+      assertThat(found.field).isEqualTo("other")
+      assertThat(found.age).isEqualTo(Person.Age.Old)
+    }
+  }
+
+  @Test
+  fun relatedModels() {
+    service.beginTx().use {
+      val clothings = service.repository(Clothing::class.java)
+      val shirt = Clothing("shirt")
+      val pants = Clothing("pants")
+      clothings.save(shirt, pants)
+      val person = Person("related")
+      person.wears.add(shirt)
+      persons.save(person)
+
+      val same = copy(person)
+      same.wears.add(shirt)
+      assertThat(SaveContext(persons, same).fieldChanged("wears")).isFalse()
+
+      val other = copy(person)
+      other.wears.addAll(Arrays.asList(shirt, pants))
+      assertThat(SaveContext(persons, other).fieldChanged("wears")).isTrue()
+    }
+  }
+
+  @Test
+  fun lazyOriginal() {
+    service.beginTx().use {
+      val person = Person("original")
+      persons.save(person)
+      val context = SaveContext(persons, copy(person))
+      assertThat(context.original()).isEqualTo(person)
+      assertThat(SaveContext(persons, Person()).original()).isNull()
+    }
+  }
+}
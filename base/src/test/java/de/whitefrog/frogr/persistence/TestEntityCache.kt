@@ -0,0 +1,115 @@
+package de.whitefrog.frogr.persistence
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.repository.Repository
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Clothing
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+
+class TestEntityCache {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var clothings: Repository<Clothing>
+    private lateinit var persons: PersonRepository
+    private lateinit var cache: EntityCache
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      clothings = service.repository(Clothing::class.java)
+      persons = service.repository(Person::class.java)
+      cache = service.entityCache()
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  private fun create(name: String): Clothing {
+    val clothing = Clothing(name)
+    service.beginTx().use { tx ->
+      clothings.save(clothing)
+      tx.success()
+    }
+    return clothing
+  }
+
+  private fun name(id: Long): String? {
+    return service.beginTx().use { clothings.find(id, "name").name }
+  }
+
+  @Test
+  fun hitAfterMiss() {
+    val clothing = create("hat")
+    val hits = cache.hits("Clothing")
+    val misses = cache.misses("Clothing")
+    assertThat(name(clothing.id)).isEqualTo("hat")
+    assertThat(name(clothing.id)).isEqualTo("hat")
+    assertThat(cache.misses("Clothing") - misses).isEqualTo(1)
+    assertThat(cache.hits("Clothing") - hits).isEqualTo(1)
+  }
+
+  @Test
+  fun invalidatedOnCommit() {
+    val clothing = create("shoe")
+    assertThat(name(clothing.id)).isEqualTo("shoe")
+    service.beginTx().use { tx ->
+      val update = Clothing("boot")
+      update.id = clothing.id
+      clothings.save(update)
+      tx.success()
+    }
+    assertThat(name(clothing.id)).isEqualTo("boot")
+  }
+
+  @Test
+  fun rollbackKeepsEntry() {
+    val clothing = create("scarf")
+    assertThat(name(clothing.id)).isEqualTo("scarf")
+    service.beginTx().use {
+      val update = Clothing("gloves")
+      update.id = clothing.id
+      clothings.save(update)
+      it.failure()
+    }
+    val hits = cache.hits("Clothing")
+    assertThat(name(clothing.id)).isEqualTo("scarf")
+    assertThat(cache.hits("Clothing") - hits).isEqualTo(1)
+  }
+
+  @Test
+  fun uncommittedChangesBypassCache() {
+    val clothing = create("coat")
+    assertThat(name(clothing.id)).isEqualTo("coat")
+    service.beginTx().use {
+      val update = Clothing("jacket")
+      update.id = clothing.id
+      clothings.save(update)
+      val hits = cache.hits("Clothing")
+      val misses = cache.misses("Clothing")
+      assertThat(clothings.find(clothing.id, "name").name).isEqualTo("jacket")
+      assertThat(cache.hits("Clothing")).isEqualTo(hits)
+      assertThat(cache.misses("Clothing")).isEqualTo(misses)
+    }
+    assertThat(name(clothing.id)).isEqualTo("coat")
+  }
+
+  @Test
+  fun onlyAnnotatedModels() {
+    assertThat(cache.isCached(Clothing::class.java)).isTrue()
+    assertThat(cache.isCached(Person::class.java)).isFalse()
+    create("belt")
+    name(create("tie").id)
+    assertThat(service.metrics().names)
+      .contains("de.whitefrog.frogr.persistence.EntityCache.Clothing.hitRatio")
+      .doesNotContain("de.whitefrog.frogr.persistence.EntityCache.Person.hitRatio")
+  }
+}
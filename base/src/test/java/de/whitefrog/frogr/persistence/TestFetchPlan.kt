@@ -0,0 +1,105 @@
+package de.whitefrog.frogr.persistence
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.model.FieldList
+import de.whitefrog.frogr.model.QueryField
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Likes
+import de.whitefrog.frogr.test.model.Person
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+
+class TestFetchPlan {
+  companion object {
+    private lateinit var service: Service
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  private fun compile(clazz: Class<*>, fields: String): FetchPlan {
+    return FetchPlan.compile(service.cache(), clazz, FieldList.parseFields(fields), false)
+  }
+
+  @Test
+  fun key() {
+    val key = FetchPlan.key(Person::class.java, FieldList.parseFields("field,likes.{field,number}"))
+    assertThat(FetchPlan.key(Person::class.java, FieldList.parseFields("likes.{number,field},field"))).isEqualTo(key)
+    assertThat(FetchPlan.key(Person::class.java, FieldList.parseFields("field,likes(5).{field,number}"))).isNotEqualTo(key)
+    assertThat(FetchPlan.key(Person::class.java, FieldList.parseFields("field,likes.field"))).isNotEqualTo(key)
+    assertThat(FetchPlan.key(Likes::class.java, FieldList.parseFields("field,likes.{field,number}"))).isNotEqualTo(key)
+  }
+
+  @Test
+  fun entries() {
+    val plan = compile(Person::class.java, "field,age,likes(5).field,likesCount,wears")
+    val kinds = plan.entries.associate { it.name to it.kind }
+    assertThat(kinds["field"]).isEqualTo(FetchPlan.Kind.Property)
+    assertThat(kinds["age"]).isEqualTo(FetchPlan.Kind.EnumProperty)
+    assertThat(kinds["likes"]).isEqualTo(FetchPlan.Kind.Related)
+    assertThat(kinds["likesCount"]).isEqualTo(FetchPlan.Kind.Count)
+    // @Fetch annotated fields are always part of the plan
+    assertThat(kinds).containsKey("autoFetch").doesNotContainKey("number")
+
+    val likes = plan.entries.first { it.name == "likes" }
+    assertThat(likes.batchable).isTrue()
+    assertThat(likes.queryField!!.limit()).isEqualTo(5)
+    assertThat(likes.subFields.containsField("field")).isTrue()
+    assertThat(likes.skipIfFetched).isFalse()
+    assertThat(plan.entries.first { it.name == "field" }.skipIfFetched).isTrue()
+  }
+
+  @Test
+  fun allFieldsWithoutRelations() {
+    val plan = compile(Person::class.java, "all")
+    val names = plan.entries.map { it.name }
+    assertThat(names).contains("field", "number", "dateField")
+    assertThat(names).doesNotContain("likes", "wears")
+    // counts are only computed when requested explicitly
+    assertThat(plan.entries.none { it.kind == FetchPlan.Kind.Count }).isTrue()
+    assertThat(plan.entries.first { it.name == "dateField" }.kind).isEqualTo(FetchPlan.Kind.DateProperty)
+  }
+
+  @Test
+  fun relationshipEnds() {
+    val plan = compile(Likes::class.java, "from.field,to")
+    assertThat(plan.entries.filter { it.kind == FetchPlan.Kind.End }.map { it.name }).containsOnly("from", "to")
+    assertThat(plan.entries.first { it.name == "from" }.subFields.containsField("field")).isTrue()
+  }
+
+  @Test
+  fun independentOfFieldList() {
+    val fields = FieldList.parseFields("likes.field")
+    val plan = FetchPlan.compile(service.cache(), Person::class.java, fields, false)
+    fields["likes"]!!.subFields().addAll(FieldList.parseFields("number"))
+    assertThat(plan.entries.first { it.name == "likes" }.subFields).hasSize(1)
+  }
+
+  @Test
+  fun resolvedWithFieldList() {
+    val persistence = service.persistence()
+    val fields = FieldList.parseFields("field,likes.field")
+    val plan = persistence.plan(Person::class.java, fields)
+    assertThat(persistence.plan(Person::class.java, fields)).isSameAs(plan)
+    assertThat(persistence.plan(Likes::class.java, fields)).isNotSameAs(plan)
+    // changes of the list or its sub fields resolve the plan again
+    fields["likes"]!!.limit(5)
+    val limited = persistence.plan(Person::class.java, fields)
+    assertThat(limited.entries.first { it.name == "likes" }.queryField!!.limit()).isEqualTo(5)
+    fields["likes"]!!.subFields().add(QueryField("number"))
+    val sub = persistence.plan(Person::class.java, fields)
+    assertThat(sub.entries.first { it.name == "likes" }.subFields.containsField("number")).isTrue()
+    fields.add(QueryField("age"))
+    assertThat(persistence.plan(Person::class.java, fields).entries.map { it.name }).contains("age")
+  }
+}
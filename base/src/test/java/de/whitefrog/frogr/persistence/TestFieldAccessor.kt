@@ -0,0 +1,84 @@
+package de.whitefrog.frogr.persistence
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Person
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+
+class TestFieldAccessor {
+  companion object {
+    private lateinit var service: Service
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  class Primitives {
+    var longValue: Long = 0
+    var intValue: Int = 0
+    var boolValue: Boolean = false
+  }
+
+  @Test
+  fun getAndSet() {
+    val accessor = service.cache().fieldDescriptor(Person::class.java, "field")!!.accessor()
+    val person = Person("test")
+    assertThat(accessor.get(person)).isEqualTo("test")
+    accessor.set(person, "changed")
+    assertThat(person.field).isEqualTo("changed")
+    accessor.set(person, null)
+    assertThat(person.field).isNull()
+  }
+
+  @Test
+  fun boxedLong() {
+    val accessor = service.cache().fieldDescriptor(Person::class.java, "likesCount")!!.accessor()
+    val person = Person()
+    assertThat(accessor.isPrimitive).isFalse()
+    accessor.setLong(person, 5)
+    assertThat(person.likesCount).isEqualTo(5)
+    assertThat(accessor.getLong(person)).isEqualTo(5)
+  }
+
+  @Test
+  fun primitives() {
+    val model = Primitives()
+    val longAccessor = FieldAccessor(Primitives::class.java.getDeclaredField("longValue"))
+    val intAccessor = FieldAccessor(Primitives::class.java.getDeclaredField("intValue"))
+    val boolAccessor = FieldAccessor(Primitives::class.java.getDeclaredField("boolValue"))
+    assertThat(longAccessor.isPrimitive).isTrue()
+
+    longAccessor.setLong(model, 42)
+    intAccessor.setInt(model, 7)
+    boolAccessor.setBoolean(model, true)
+    assertThat(model.longValue).isEqualTo(42)
+    assertThat(longAccessor.getLong(model)).isEqualTo(42)
+    assertThat(intAccessor.getInt(model)).isEqualTo(7)
+    assertThat(boolAccessor.getBoolean(model)).isTrue()
+    // generic access unboxes and boxes transparently
+    longAccessor.set(model, 43L)
+    assertThat(longAccessor.get(model)).isEqualTo(43L)
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun primitiveNull() {
+    FieldAccessor(Primitives::class.java.getDeclaredField("longValue")).set(Primitives(), null)
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun wrongType() {
+    val accessor = service.cache().fieldDescriptor(Person::class.java, "field")!!.accessor()
+    accessor.set(Person(), 5L)
+  }
+}
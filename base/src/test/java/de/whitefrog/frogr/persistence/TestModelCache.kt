@@ -43,6 +43,36 @@ class TestModelCache {
     assertThat(descriptor!!.field()).isEqualTo(field)
   }
   @Test
+  fun fieldDescriptorByPath() {
+    val cache = service.persistence().cache()
+    val descriptor = cache.fieldDescriptor(Person::class.java, "likes.field")
+    assertThat(descriptor).isSameAs(cache.fieldDescriptor(Person::class.java, "field"))
+    assertThat(cache.fieldDescriptor(Person::class.java, "likes.field")).isSameAs(descriptor)
+    assertNull(cache.fieldDescriptor(Person::class.java, "likes.unknownField"))
+    assertNull(cache.fieldDescriptor(Person::class.java, "field.length"))
+  }
+  @Test
+  fun fieldPathsBounded() {
+    val cache = service.persistence().cache()
+    for (i in 0 until ModelCache.MaxPaths * 2) {
+      assertNull(cache.fieldDescriptor(Person::class.java, "likes.unknown$i"))
+    }
+    // valid paths can be nested endlessly, they are still resolved when the cache is full
+    val likes = cache.fieldDescriptor(Person::class.java, "likes")
+    val path = StringBuilder("likes")
+    for (i in 0 until ModelCache.MaxPaths + 10) {
+      path.append(".likes")
+      assertThat(cache.fieldDescriptor(Person::class.java, path.toString())).isSameAs(likes)
+    }
+  }
+  @Test
+  fun modelNames() {
+    val cache = service.persistence().cache()
+    assertThat(cache.getModelName(Person::class.java)).isEqualTo("Person")
+    assertThat(cache.getModel("Person")).isEqualTo(Person::class.java)
+    assertThat(cache.indexedFields(Person::class.java)).contains("field", "uniqueField")
+  }
+  @Test
   fun subtypesOf() {
     val subtypes = service.persistence().cache().subTypesOf(Model::class.java)
     assertThat(subtypes).isNotEmpty
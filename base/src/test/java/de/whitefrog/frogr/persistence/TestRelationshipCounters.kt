@@ -0,0 +1,159 @@
+package de.whitefrog.frogr.persistence
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.repository.Repository
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Clothing
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+import org.neo4j.graphdb.Direction
+import org.neo4j.graphdb.RelationshipType
+
+class TestRelationshipCounters {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var persons: PersonRepository
+    private lateinit var clothings: Repository<Clothing>
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      persons = service.repository(Person::class.java)
+      clothings = service.repository(Clothing::class.java)
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  private fun create(name: String, vararg wears: String): Person {
+    val person = Person(name)
+    wears.forEach { person.wears.add(Clothing(it)) }
+    service.beginTx().use { tx ->
+      person.wears.forEach { clothings.save(it) }
+      persons.save(person)
+      tx.success()
+    }
+    return person
+  }
+
+  private fun stored(person: Person): Any? {
+    return service.beginTx().use { persons.getNode(person).getProperty("wearsCount", null) }
+  }
+
+  private fun fetched(person: Person): Long? {
+    return service.beginTx().use { persons.find(person.id, "wearsCount").wearsCount }
+  }
+
+  @Test
+  fun maintainedOnCreateAndDelete() {
+    val person = create("counterPerson", "counterHat", "counterShoe")
+    assertThat(stored(person)).isEqualTo(2L)
+    assertThat(fetched(person)).isEqualTo(2)
+
+    service.beginTx().use { tx ->
+      clothings.remove(person.wears[0])
+      tx.success()
+    }
+    assertThat(stored(person)).isEqualTo(1L)
+
+    service.beginTx().use { tx ->
+      val update = Person()
+      update.id = person.id
+      update.wears = arrayListOf(person.wears[1], Clothing("counterBelt"), Clothing("counterTie"))
+      update.wears.forEach { clothings.save(it) }
+      persons.save(update)
+      tx.success()
+    }
+    assertThat(stored(person)).isEqualTo(3L)
+    assertThat(fetched(person)).isEqualTo(3)
+  }
+
+  @Test
+  fun missingPropertyIsInitialized() {
+    val person = create("counterInit", "counterScarf")
+    service.beginTx().use { tx ->
+      persons.getNode(person).removeProperty("wearsCount")
+      tx.success()
+    }
+    // falls back to counting
+    assertThat(fetched(person)).isEqualTo(1)
+
+    service.beginTx().use { tx ->
+      val update = Person()
+      update.id = person.id
+      update.wears = arrayListOf(person.wears[0], Clothing("counterGloves"))
+      update.wears.forEach { clothings.save(it) }
+      persons.save(update)
+      tx.success()
+    }
+    assertThat(stored(person)).isEqualTo(2L)
+  }
+
+  @Test
+  fun notWrittenFromModel() {
+    val person = create("counterWrite", "counterCoat")
+    service.beginTx().use { tx ->
+      val update = Person()
+      update.id = person.id
+      update.wears = person.wears
+      update.wearsCount = 10
+      update.likesCount = 10
+      persons.save(update)
+      tx.success()
+    }
+    assertThat(stored(person)).isEqualTo(1L)
+    service.beginTx().use { assertThat(persons.getNode(person).hasProperty("likesCount")).isFalse() }
+  }
+
+  @Test
+  fun cachedIncomingCount() {
+    val person = create("counterCached", "counterCachedHat")
+    val hat = person.wears[0]
+    val wornBy = { service.beginTx().use { clothings.find(hat.id, "wornByCount").wornByCount } }
+    assertThat(wornBy()).isEqualTo(1)
+    // read again from the entity cache
+    assertThat(wornBy()).isEqualTo(1)
+
+    val other = Person("counterCachedOther")
+    other.wears.add(hat)
+    service.beginTx().use { tx ->
+      persons.save(other)
+      tx.success()
+    }
+    assertThat(wornBy()).isEqualTo(2)
+  }
+
+  @Test
+  fun projection() {
+    create("counterProjection", "counterCap", "counterBoot")
+    service.beginTx().use {
+      val result = persons.search()
+        .filter(Filter.Equals("field", "counterProjection"))
+        .fields("wearsCount")
+        .project()
+        .single<Person>()
+      assertThat(result.wearsCount).isEqualTo(2)
+    }
+  }
+
+  @Test
+  fun countRestrictedToLabel() {
+    val person = create("counterLabel", "counterJacket")
+    service.beginTx().use {
+      val node = persons.getNode(person)
+      val wears = RelationshipType.withName("Wears")
+      assertThat(RelationshipCounters.count(node, wears, Direction.OUTGOING, null)).isEqualTo(1)
+      assertThat(RelationshipCounters.count(node, wears, Direction.OUTGOING, "Clothing")).isEqualTo(1)
+      assertThat(RelationshipCounters.count(node, wears, Direction.OUTGOING, "Person")).isEqualTo(0)
+    }
+  }
+}
@@ -242,4 +242,55 @@ class TestRelationships {
       assertThat(person.wears).hasSize(1)
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  fun collectionDiff() {
+    service.beginTx().use {
+      val clothings = service.repository(Clothing::class.java)
+      val items = (1..50).map { Clothing("item$it") }
+      clothings.save(*items.toTypedArray())
+      val person = Person("collectionDiff")
+      person.wears.addAll(items.subList(0, 30))
+      // duplicates only create a single relationship
+      person.wears.add(items[0])
+      persons.save(person)
+      val node = persistence.getNode(person)
+      val wears = RelationshipType.withName("Wears")
+      val first = node.getRelationships(Direction.OUTGOING, wears).map { it.id }.toSet()
+      assertThat(first).hasSize(30)
+
+      val update = Person("collectionDiff")
+      update.id = person.id
+      update.wears.addAll(items.subList(20, 50))
+      persons.save(update)
+      val second = node.getRelationships(Direction.OUTGOING, wears).associate { it.endNodeId to it.id }
+      assertThat(second.keys).containsOnlyElementsOf(items.subList(20, 50).map { it.id })
+      assertThat(second).hasSize(30)
+      // relationships to models contained in both collections are kept
+      assertThat(first).containsAll(items.subList(20, 30).map { second[it.id] })
+    }
+  }
+
+  @Test
+  fun relationshipBetweenSupernode() {
+    service.beginTx().use {
+      val celebrity = Person("celebrity")
+      val fans = (1..20).map { Person("fan$it") }
+      persons.save(celebrity)
+      persons.save(*fans.toTypedArray())
+      val likes = RelationshipType.withName("Likes")
+      val celebrityNode = persistence.getNode(celebrity)
+      fans.forEach { persistence.getNode(it).createRelationshipTo(celebrityNode, likes) }
+      val fanNode = persistence.getNode(fans[10])
+      val relationships = persistence.relationships()
+
+      assertTrue(relationships.hasRelationshipTo(fanNode, celebrityNode, likes, Direction.OUTGOING))
+      assertTrue(relationships.hasRelationshipTo(celebrityNode, fanNode, likes, Direction.INCOMING))
+      assertTrue(relationships.hasRelationshipTo(celebrityNode, fanNode, likes, Direction.BOTH))
+      assertFalse(relationships.hasRelationshipTo(celebrityNode, fanNode, likes, Direction.OUTGOING))
+      assertFalse(relationships.hasRelationshipTo(fanNode, persistence.getNode(fans[0]), likes, Direction.BOTH))
+      assertThat(relationships.getRelationshipBetween(celebrityNode, fanNode, likes, Direction.INCOMING)!!.startNode)
+        .isEqualTo(fanNode)
+    }
+  }
+}
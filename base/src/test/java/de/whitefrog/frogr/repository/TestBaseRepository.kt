@@ -18,6 +18,7 @@ import org.junit.AfterClass
 import org.junit.Assert.*
 import org.junit.BeforeClass
 import org.junit.Test
+import java.util.*
 
 class TestBaseRepository {
   companion object {
@@ -93,6 +94,32 @@ class TestBaseRepository {
       assertThat(found).isEqualTo(person)
     }
   }
+
+  @Test
+  fun findAll() {
+    service.beginTx().use {
+      val list = (1..3).map { Person("findAll$it") }
+      list.forEach { persons.save(it) }
+      val found = persons.findAll(Arrays.asList(list[2].id, list[0].id, -5L, list[1].id), "field")
+      assertThat(found.keys).containsExactly(list[2].id, list[0].id, list[1].id)
+      assertThat(found[list[0].id]!!.field).isEqualTo("findAll1")
+      assertThat(persons.findAll(emptyList())).isEmpty()
+    }
+  }
+
+  @Test
+  fun findAllByUuid() {
+    service.beginTx().use {
+      val list = (1..12).map { Person("findAllByUuid$it") }
+      list.forEach { persons.save(it) }
+      val uuids = list.map { it.uuid!! }.reversed() + "missing"
+      val found = persons.findAllByUuid(uuids, "field")
+      // more results than the default search limit
+      assertThat(found).hasSize(12)
+      assertThat(found.keys).containsExactlyElementsOf(uuids.dropLast(1))
+      assertThat(found[list[0].uuid]!!.field).isEqualTo("findAllByUuid1")
+    }
+  }
   
   @Test
   fun findLightweightModel() {
@@ -0,0 +1,74 @@
+package de.whitefrog.frogr.repository
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.exception.RepositoryNotFoundException
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Likes
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class TestRepositoryFactory {
+  companion object {
+    private lateinit var service: Service
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  @Test
+  fun warmUp() {
+    val types = service.repositoryFactory().cache().map { it.type }
+    assertThat(types).contains("Person", "Likes", "Clothing")
+    assertThat(service.repositoryFactory().cache().first { it.type == "Person" })
+      .isInstanceOf(PersonRepository::class.java)
+  }
+
+  @Test
+  fun sameInstance() {
+    val executor = Executors.newFixedThreadPool(8)
+    try {
+      val results = executor.invokeAll((1..32).map {
+        Callable { service.repositoryFactory().get(if(it % 2 == 0) "Person" else "Likes") }
+      }).map { it.get() }
+      assertThat(results.filter { it.type == "Person" }.distinct()).hasSize(1)
+      assertThat(results.filter { it.type == "Likes" }.distinct()).hasSize(1)
+      assertThat(service.repository(Person::class.java)).isSameAs(service.repository("Person"))
+      assertThat(service.repository(Likes::class.java)).isSameAs(service.repository("Likes"))
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  @Test
+  fun relationshipRepository() {
+    val repository = service.repositoryFactory().relationshipRepository("UnknownType")
+    assertThat(repository).isInstanceOf(DefaultRelationshipRepository::class.java)
+    assertThat(service.repositoryFactory().relationshipRepository("UnknownType")).isSameAs(repository)
+    assertThat(service.repositoryFactory().relationshipRepository("Likes"))
+      .isSameAs(service.repository(Likes::class.java))
+  }
+
+  @Test(expected = RepositoryNotFoundException::class)
+  fun notFound() {
+    service.repositoryFactory().get("NotExisting")
+  }
+
+  @Test(expected = RepositoryNotFoundException::class)
+  fun unknownClass() {
+    service.repositoryFactory().get(TestRepositoryFactory::class.java)
+  }
+}
@@ -2,6 +2,7 @@ package de.whitefrog.frogr.rest.service
 
 import de.whitefrog.frogr.model.SearchParameter
 import de.whitefrog.frogr.rest.response.FrogrResponse
+import de.whitefrog.frogr.rest.response.SearchStream
 import de.whitefrog.frogr.test.TestApplication
 import de.whitefrog.frogr.test.model.Person
 import de.whitefrog.frogr.test.repository.PersonRepository
@@ -86,6 +87,26 @@ class TestCRUDService {
     assertEquals(person.field, response.data[0].field)
   }
 
+  @Test
+  fun readByUuids() {
+    val list = (1..3).map { Person("readByUuids$it") }
+    app.service().beginTx().use { tx ->
+      list.forEach { repository.save(it) }
+      tx.success()
+    }
+
+    val response = webTarget.path("person")
+      .queryParam("uuids", "${list[2].uuid},${list[0].uuid},${list[1].uuid}")
+      .queryParam("fields", "field")
+      .queryParam("count", true)
+      .request(MediaType.APPLICATION_JSON)
+      .get(response())
+
+    assertThat(response.data.map { it.uuid }).containsExactly(list[2].uuid, list[0].uuid, list[1].uuid)
+    assertThat(response.data[0].field).isEqualTo("readByUuids3")
+    assertEquals(3L, response.total)
+  }
+
   @Test
   fun read() {
     val user = Person()
@@ -134,6 +155,62 @@ class TestCRUDService {
     assertEquals(person.field, responseData.data[0].field)
   }
 
+  @Test
+  fun stream() {
+    app.service().beginTx().use { tx ->
+      for(i in 0 until 15) {
+        val person = Person("stream$i", i.toLong())
+        person.secureField = "secure"
+        repository.save(person)
+      }
+      tx.success()
+    }
+
+    val envelope = webTarget.path("person/stream")
+      .queryParam("fields", "field,secureField")
+      .queryParam("filter", "field:stream*")
+      .queryParam("order", "number")
+      .queryParam("limit", 10)
+      .queryParam("count", true)
+      .request(MediaType.APPLICATION_JSON)
+      .get(response())
+    assertThat(envelope.isSuccess).isTrue()
+    assertThat(envelope.total).isEqualTo(15)
+    assertThat(envelope.next).isNotNull()
+    assertThat(envelope.data.map { it.field }).isEqualTo((0 until 10).map { "stream$it" })
+    assertThat(envelope.data.map { it.secureField }).containsOnlyNulls()
+
+    val ndjson = webTarget.path("person/stream")
+      .queryParam("fields", "field")
+      .queryParam("filter", "field:stream*")
+      .queryParam("order", "number")
+      .queryParam("limit", 10)
+      .queryParam("cursor", envelope.next)
+      .request(SearchStream.NDJSON)
+      .get()
+    assertEquals(Status.OK.statusCode, ndjson.status)
+    assertThat(ndjson.mediaType.toString()).isEqualTo(SearchStream.NDJSON)
+    val lines = ndjson.readEntity(String::class.java).lines().filter { it.isNotEmpty() }
+    assertThat(lines).hasSize(5)
+    assertThat(lines[0]).contains("\"field\":\"stream10\"")
+
+    // services have to enable streaming
+    val disabled = webTarget.path("clothing/stream").request(MediaType.APPLICATION_JSON).get()
+    assertEquals(Status.NOT_FOUND.statusCode, disabled.status)
+  }
+
+  @Test
+  fun queryStats() {
+    webTarget.path("person").queryParam("filter", "field:queryStats").request(MediaType.APPLICATION_JSON).get(response())
+    val shapes = client.target("http://localhost:8286/queries")
+      .queryParam("top", 5)
+      .request(MediaType.APPLICATION_JSON)
+      .get(object : GenericType<List<Map<String, Any>>>() {})
+    assertThat(shapes).isNotEmpty
+    assertThat(shapes.size).isLessThanOrEqualTo(5)
+    assertThat(shapes[0]).containsKeys("query", "count", "totalTime", "p95", "rows", "dbHits")
+  }
+
   @Test
   fun update() {
     val person = Person()
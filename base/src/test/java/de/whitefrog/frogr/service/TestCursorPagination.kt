@@ -0,0 +1,122 @@
+package de.whitefrog.frogr.service
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.model.SearchParameter
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+
+class TestCursorPagination {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var persons: PersonRepository
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      persons = service.repository(Person::class.java)
+      service.beginTx().use { tx ->
+        // duplicate numbers, so the pages have to be split between equal values
+        for(i in 0 until 25) persons.save(Person("cursor$i", (i / 3).toLong()))
+        // values missing on some of the results
+        for(i in 0 until 10) persons.save(Person("nullcursor$i", if(i % 2 == 0) (i / 4).toLong() else null))
+        tx.success()
+      }
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  private fun search(dir: SearchParameter.SortOrder): Search {
+    return persons.search()
+      .filter(Filter.StartsWith("field", "cursor"))
+      .orderBy("number", dir)
+      .fields("field", "number")
+      .limit(4)
+  }
+
+  private fun pages(dir: SearchParameter.SortOrder): List<Person> {
+    val results = ArrayList<Person>()
+    service.beginTx().use {
+      var cursor: String? = null
+      do {
+        val search = search(dir)
+        if(cursor != null) search.cursor(cursor)
+        val page = search.list<Person>()
+        results.addAll(page)
+        cursor = search.nextCursor(page)
+      } while(cursor != null)
+    }
+    return results
+  }
+
+  @Test
+  fun pagesInOrder() {
+    for(dir in SearchParameter.SortOrder.values()) {
+      val expected = service.beginTx().use { search(dir).limit(100).list<Person>() }
+      val results = pages(dir)
+      assertThat(results).hasSize(25)
+      assertThat(results.map { it.field }).doesNotHaveDuplicates()
+      assertThat(results.map { it.number }).isEqualTo(expected.map { it.number })
+      assertThat(results.map { it.field }).isEqualTo(expected.map { it.field })
+    }
+  }
+
+  @Test
+  fun nullValues() {
+    for(dir in SearchParameter.SortOrder.values()) {
+      val search = { persons.search().filter(Filter.StartsWith("field", "nullcursor"))
+        .orderBy("number", dir).fields("field", "number").limit(3) }
+      val expected = service.beginTx().use { search().limit(100).list<Person>() }
+      val results = ArrayList<Person>()
+      service.beginTx().use {
+        var cursor: String? = null
+        do {
+          val page = search()
+          if(cursor != null) page.cursor(cursor)
+          val list = page.list<Person>()
+          results.addAll(list)
+          cursor = page.nextCursor(list)
+        } while(cursor != null)
+      }
+      assertThat(results.map { it.field }).isEqualTo(expected.map { it.field })
+      assertThat(results).hasSize(10)
+      assertThat(results.count { it.number == null }).isEqualTo(5)
+    }
+  }
+
+  @Test
+  fun countIgnoresCursor() {
+    service.beginTx().use {
+      val first = search(SearchParameter.SortOrder.ASC)
+      val cursor = first.nextCursor(first.list<Person>())
+      assertThat(cursor).isNotNull()
+      assertThat(search(SearchParameter.SortOrder.ASC).cursor(cursor).count()).isEqualTo(25)
+      assertThat(search(SearchParameter.SortOrder.ASC).cursor(cursor).list<Person>()).hasSize(4)
+    }
+  }
+
+  @Test
+  fun invalidCursor() {
+    service.beginTx().use {
+      val first = search(SearchParameter.SortOrder.ASC)
+      val cursor = first.nextCursor(first.list<Person>())
+      assertThatThrownBy { search(SearchParameter.SortOrder.DESC).cursor(cursor).list<Person>() }
+        .isInstanceOf(IllegalArgumentException::class.java)
+      assertThatThrownBy { search(SearchParameter.SortOrder.ASC).cursor("invalid").list<Person>() }
+        .isInstanceOf(IllegalArgumentException::class.java)
+      assertThatThrownBy { persons.search().cursor(cursor).list<Person>() }
+        .isInstanceOf(IllegalArgumentException::class.java)
+    }
+  }
+}
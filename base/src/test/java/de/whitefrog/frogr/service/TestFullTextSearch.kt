@@ -0,0 +1,116 @@
+package de.whitefrog.frogr.service
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.persistence.FullTextIndex
+import de.whitefrog.frogr.repository.ModelRepository
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Article
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+import java.util.*
+
+class TestFullTextSearch {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var articles: ModelRepository<Article>
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      articles = service.repository(Article::class.java)
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  private fun save(title: String, text: String, code: String? = null): Article {
+    return service.beginTx().use { tx ->
+      val article = Article(title, text)
+      article.code = code
+      articles.save(article)
+      tx.success()
+      article
+    }
+  }
+
+  private fun query(query: String, locale: Locale? = null): List<String?> {
+    return service.beginTx().use {
+      val search = articles.search().query(query).fields("title")
+      if (locale != null) search.locale(locale)
+      search.list<Article>().map { it.title }
+    }
+  }
+
+  @Test
+  fun stemmedAndRanked() {
+    save("Gartenarbeit", "Ein Haus mit Garten")
+    save("Die Häuser am Fluss", "Häuser am Wasser, jedes Haus mit Steg")
+    save("Bergtour", "Eine Hütte in den Bergen")
+
+    // german analyzer, "Häuser" and "Haus" share the stem
+    assertThat(query("häuser")).containsExactly("Die Häuser am Fluss", "Gartenarbeit")
+    assertThat(query("Haus Garten")).containsExactly("Gartenarbeit")
+    assertThat(query("flus*")).containsExactly("Die Häuser am Fluss")
+    assertThat(query("title:haus")).containsExactly("Die Häuser am Fluss")
+    assertThat(query("der")).isEmpty()
+    // no english index configured, the default one is used
+    assertThat(query("hütte", Locale.ENGLISH)).containsExactly("Bergtour")
+    service.beginTx().use {
+      assertThat(articles.search().query("haus").count()).isEqualTo(2)
+      assertThat(articles.search().query("haus").limit(1).list<Article>()).hasSize(1)
+    }
+  }
+
+  @Test
+  fun updateAndRemove() {
+    val article = save("Segeln", "Ein Boot auf dem Meer")
+    assertThat(query("boot")).containsExactly("Segeln")
+
+    service.beginTx().use { tx ->
+      article.text = "Ein Schiff auf dem Meer"
+      articles.save(article)
+      tx.success()
+    }
+    assertThat(query("boot")).isEmpty()
+    assertThat(query("schiff")).containsExactly("Segeln")
+
+    service.beginTx().use { tx ->
+      articles.remove(article)
+      tx.success()
+    }
+    assertThat(query("schiff")).isEmpty()
+  }
+
+  @Test
+  fun otherIndexedFields() {
+    save("Kochbuch", "Rezepte für Kuchen", "torte")
+    save("Backen", "Torte und Brot")
+    // the code matches exactly, ranked after the full-text hits
+    assertThat(query("torte")).containsExactly("Backen", "Kochbuch")
+    save("Inventar", "Liste", "INV-7")
+    assertThat(query("INV-7")).containsExactly("Inventar")
+  }
+
+  @Test
+  fun capped() {
+    save("Einzelstück", "Vitrine")
+    service.beginTx().use { tx ->
+      for(i in 0..FullTextIndex.MaxHits) articles.save(Article("Massenware $i", "Lager"))
+      tx.success()
+    }
+    service.beginTx().use {
+      val search = articles.search().query("massenware").limit(10)
+      assertThat(search.listWithTotal<Article>().total()).isEqualTo(FullTextIndex.MaxHits.toLong())
+      assertThat(search.isCapped).isTrue()
+      val few = articles.search().query("vitrine").limit(1)
+      few.count()
+      assertThat(few.isCapped).isFalse()
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package de.whitefrog.frogr.service
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.model.SearchParameter
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import org.junit.Test
+import java.util.*
+
+class TestListWithTotal {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var persons: PersonRepository
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      persons = service.repository(Person::class.java)
+      service.beginTx().use { tx ->
+        for(i in 0 until 25) persons.save(Person("total$i", i.toLong()))
+        tx.success()
+      }
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  private fun search(): Search {
+    return persons.search()
+      .filter(Filter.StartsWith("field", "total"))
+      .orderBy("number", SearchParameter.SortOrder.DESC)
+      .fields("field", "number")
+  }
+
+  @Test
+  fun pageAndTotal() {
+    service.beginTx().use {
+      for(project in listOf(false, true)) {
+        for(page in 1..4) {
+          val search = search().limit(10).page(page)
+          if(project) search.project()
+          val result = search.listWithTotal<Person>()
+          val expected = search().limit(10).page(page).list<Person>()
+          assertThat(result.total()).isEqualTo(25)
+          assertThat(result.isEstimated).isFalse()
+          assertThat(result.list().map { it.field }).isEqualTo(expected.map { it.field })
+          assertThat(result.list().map { it.number }).isEqualTo(expected.map { it.number })
+        }
+      }
+    }
+  }
+
+  @Test
+  fun emptyResults() {
+    service.beginTx().use {
+      val none = persons.search().filter(Filter.StartsWith("field", "none")).listWithTotal<Person>()
+      assertThat(none.list()).isEmpty()
+      assertThat(none.total()).isEqualTo(0)
+      val unlimited = search().limit(Int.MAX_VALUE).listWithTotal<Person>()
+      assertThat(unlimited.list()).hasSize(25)
+      assertThat(unlimited.total()).isEqualTo(25)
+      val limitZero = search().limit(0).listWithTotal<Person>()
+      assertThat(limitZero.list()).isEmpty()
+      assertThat(limitZero.total()).isEqualTo(25)
+    }
+  }
+
+  @Test
+  fun fallback() {
+    service.beginTx().use {
+      // ordering by relationship counts needs the separate count query
+      val search = { persons.search().orderBy("likesCount").limit(5) }
+      val result = search().listWithTotal<Person>()
+      assertThat(result.list()).isEqualTo(search().list<Person>())
+      assertThat(result.total()).isEqualTo(search().count())
+    }
+  }
+
+  @Test
+  fun estimate() {
+    service.beginTx().use {
+      assertThat(persons.search().estimatedCount()).isGreaterThanOrEqualTo(25)
+      // without filters the estimate is the label count
+      val result = persons.search().limit(10).estimate().listWithTotal<Person>()
+      assertThat(result.isEstimated).isTrue()
+      assertThat(result.list()).hasSize(10)
+      assertThat(result.total()).isEqualTo(persons.search().count())
+    }
+  }
+
+  @Test
+  fun uuidLookup() {
+    service.beginTx().use {
+      val uuids = search().limit(5).fields("uuid").list<Person>().map { it.uuid }.reversed()
+      service.queryStats().reset()
+      // the total is known from the lookup and the requested order is kept
+      val result = persons.search().uuids(uuids).limit(3).fields("field").listWithTotal<Person>()
+      assertThat(result.total()).isEqualTo(5)
+      assertThat(result.list().map { it.uuid }).isEqualTo(uuids.subList(0, 3))
+      assertThat(service.queryStats().top(10).none { it.query().contains("count(") }).isTrue()
+      assertThat(persons.search().uuids(uuids).list<Person>().map { it.uuid }).isEqualTo(uuids)
+    }
+  }
+
+  @Test
+  fun uuidLookupFullSearch() {
+    service.beginTx().use {
+      val uuids = search().limit(3).fields("uuid").list<Person>().map { it.uuid }
+      service.queryStats().reset()
+      // the plain lookup does not run a search query
+      persons.search().uuids(uuids).list<Person>()
+      assertThat(service.queryStats().top(10)).isEmpty()
+      // projected, cached and localized searches are not plain lookups
+      val searches = listOf<(Search) -> Search>({ it.project() }, { it.cached() }, { it.locale(Locale.GERMAN) })
+      for(search in searches) {
+        service.queryStats().reset()
+        assertThat(search(persons.search().uuids(uuids)).list<Person>()).hasSize(3)
+        assertThat(service.queryStats().top(10)).isNotEmpty
+      }
+    }
+  }
+}
@@ -1,11 +1,17 @@
 package de.whitefrog.frogr.service
 
 import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.cypher.Projection
+import de.whitefrog.frogr.model.FieldList
 import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.model.QueryField
 import de.whitefrog.frogr.model.SearchParameter
+import de.whitefrog.frogr.repository.ModelRepository
 import de.whitefrog.frogr.repository.RelationshipRepository
 import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Clothing
 import de.whitefrog.frogr.test.model.Likes
+import de.whitefrog.frogr.test.model.Outfit
 import de.whitefrog.frogr.test.model.Person
 import de.whitefrog.frogr.test.repository.PersonRepository
 import org.assertj.core.api.Assertions.assertThat
@@ -13,6 +19,7 @@ import org.junit.AfterClass
 import org.junit.BeforeClass
 import org.junit.Ignore
 import org.junit.Test
+import org.neo4j.graphdb.RelationshipType
 import java.util.*
 
 
@@ -372,4 +379,140 @@ class TestSearch {
       assertThat(results[0].likes).isNotEmpty
     }
   }
+  
+  @Test
+  fun fetchRelatedBatched() {
+    service.beginTx().use {
+      val list = prepareData()
+      val results = persons.search()
+        .ids(list[0].id, list[1].id)
+        .fields(FieldList.parseFields("likes.{field,likes}"))
+        .list<Person>()
+      assertThat(results).hasSize(2)
+      for(result in results) {
+        assertThat(result.likes).hasSize(1)
+        val liked = result.likes[0]
+        assertThat(liked.field).isNotNull()
+        assertThat(liked.likes).containsExactly(result)
+        assertThat(liked.likes[0].field).isNull()
+      }
+    }
+  }
+  
+  @Test
+  fun fetchRelatedHooks() {
+    service.beginTx().use {
+      val list = prepareData()
+      persons.created.set(0)
+      val results = persons.search()
+        .ids(list[0].id, list[1].id)
+        .fields(FieldList.parseFields("likes.field"))
+        .list<Person>()
+      assertThat(results.flatMap { it.likes }.map { it.field }).containsExactlyInAnyOrder("test1", "test2")
+      // the results and the related models are created through the repository
+      assertThat(persons.created.get()).isEqualTo(4)
+    }
+  }
+
+  @Test
+  fun fetchRelatedSingle() {
+    service.beginTx().use {
+      val list = prepareData()
+      val result = persons.search()
+        .ids(list[0].id)
+        .fields(FieldList.parseFields("likes.field"))
+        .single<Person>()
+      assertThat(result.likes).containsExactly(list[1])
+      assertThat(result.likes[0].field).isEqualTo(list[1].field)
+    }
+  }
+  
+  @Test
+  fun projection() {
+    service.beginTx().use {
+      val list = prepareData()
+      list[0].age = Person.Age.Mature
+      list[0].dateField = Date()
+      persons.save(list[0])
+      val fields = FieldList.parseFields("all,likesCount,likes.{field,likes.field}")
+      val expected = persons.search()
+        .ids(list[0].id)
+        .fields(fields)
+        .single<Person>()
+      val result = persons.search()
+        .ids(list[0].id)
+        .fields(fields)
+        .project()
+        .single<Person>()
+      assertThat(result).isEqualTo(expected)
+      assertThat(result.field).isEqualTo("test1")
+      assertThat(result.uuid).isEqualTo(list[0].uuid)
+      assertThat(result.age).isEqualTo(Person.Age.Mature)
+      assertThat(result.dateField).isEqualTo(list[0].dateField)
+      assertThat(result.likesCount).isEqualTo(1)
+      assertThat(result.likes).containsExactly(list[1])
+      assertThat(result.likes[0].field).isEqualTo("test2")
+      assertThat(result.likes[0].likes).containsExactly(list[0])
+      assertThat(result.likes[0].likes[0].field).isEqualTo("test1")
+      assertThat(result.fetchedFields).containsAll(expected.fetchedFields)
+    }
+  }
+  
+  @Test
+  fun projectionPaging() {
+    service.beginTx().use {
+      prepareData()
+      val expected = persons.search().orderBy("number").limit(1).page(2).fields("field").list<Person>()
+      val results = persons.search().orderBy("number").limit(1).page(2).fields("field").project().list<Person>()
+      assertThat(results).isEqualTo(expected)
+      assertThat(results[0].field).isEqualTo(expected[0].field)
+    }
+  }
+
+  @Test
+  fun projectionCreateHook() {
+    service.beginTx().use {
+      val list = prepareData()
+      val created = persons.created.get()
+      // persons are created by the overridden createModel, so they aren't projected
+      val result = persons.search().ids(list[0].id).fields("field", "likes.field").project().single<Person>()
+      assertThat(result.likes).containsExactly(list[1])
+      assertThat(persons.created.get() - created).isEqualTo(2)
+    }
+  }
+
+  @Test
+  fun projectionRelatedPaging() {
+    val outfits = service.repository<ModelRepository<Outfit>, Outfit>(Outfit::class.java)
+    val outfit = Outfit("pagedOutfit")
+    service.beginTx().use { tx ->
+      for(i in 0 until 5) outfit.items.add(Clothing("pagedItem$i"))
+      service.repository(Clothing::class.java).save(*outfit.items.toTypedArray())
+      outfits.save(outfit)
+      // related nodes of another type are left out before the page is taken
+      val intruder = Person("pagedIntruder")
+      persons.save(intruder)
+      service.graph().getNodeById(outfit.id)
+        .createRelationshipTo(persons.getNode(intruder), RelationshipType.withName("Contains"))
+      tx.success()
+    }
+
+    service.beginTx().use {
+      val all = outfits.search().ids(outfit.id).fields("items.name").single<Outfit>().items.map { it.name }
+      assertThat(all).hasSize(5)
+      val items = QueryField("items")
+      items.skip(1)
+      items.limit(2)
+      items.subFields(FieldList.parseFields("name"))
+      val fields = FieldList()
+      fields.add(items)
+
+      service.queryStats().reset()
+      val projected = outfits.search().ids(outfit.id).fields(fields).project().single<Outfit>()
+      val fetched = outfits.search().ids(outfit.id).fields(fields).single<Outfit>()
+      assertThat(service.queryStats().top(10).map { it.query() }).anyMatch { it.contains(Projection.Alias) }
+      assertThat(projected.items.map { it.name }).isEqualTo(all.subList(1, 3))
+      assertThat(fetched.items.map { it.name }).isEqualTo(all.subList(1, 3))
+    }
+  }
 }
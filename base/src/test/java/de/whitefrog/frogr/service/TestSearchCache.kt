@@ -0,0 +1,170 @@
+package de.whitefrog.frogr.service
+
+import de.whitefrog.frogr.Service
+import de.whitefrog.frogr.cypher.Query
+import de.whitefrog.frogr.model.Filter
+import de.whitefrog.frogr.model.SearchParameter
+import de.whitefrog.frogr.test.TemporaryService
+import de.whitefrog.frogr.test.model.Clothing
+import de.whitefrog.frogr.test.model.Person
+import de.whitefrog.frogr.test.repository.PersonRepository
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.AfterClass
+import org.junit.Before
+import org.junit.BeforeClass
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class TestSearchCache {
+  companion object {
+    private lateinit var service: Service
+    private lateinit var persons: PersonRepository
+    private lateinit var cache: SearchCache
+
+    @BeforeClass @JvmStatic
+    fun before() {
+      service = TemporaryService()
+      service.connect()
+      persons = service.repository(Person::class.java)
+      cache = service.searchCache()
+      cache.setTtl("Person", SearchCache.DefaultTtl, TimeUnit.MILLISECONDS)
+    }
+
+    @AfterClass @JvmStatic
+    fun after() {
+      service.shutdown()
+    }
+  }
+
+  @Before
+  fun clear() {
+    cache.clear()
+  }
+
+  private fun save(vararg models: Person) {
+    service.beginTx().use { tx ->
+      persons.save(*models)
+      tx.success()
+    }
+  }
+
+  private fun search(field: String): List<String?> {
+    return service.beginTx().use {
+      persons.search().cached()
+        .filter(Filter.StartsWith("field", field))
+        .orderBy("field")
+        .fields("field")
+        .list<Person>().map { it.field }
+    }
+  }
+
+  @Test
+  fun listAndCount() {
+    save(Person("cacheList1"), Person("cacheList2"))
+    val hits = cache.hits()
+    assertThat(search("cacheList")).containsExactly("cacheList1", "cacheList2")
+    assertThat(search("cacheList")).containsExactly("cacheList1", "cacheList2")
+    assertThat(cache.hits() - hits).isEqualTo(1)
+
+    service.beginTx().use {
+      val count = { persons.search().cached().filter(Filter.StartsWith("field", "cacheList")).count() }
+      assertThat(count()).isEqualTo(2)
+      assertThat(count()).isEqualTo(2)
+    }
+    assertThat(cache.hits() - hits).isEqualTo(2)
+  }
+
+  @Test
+  fun invalidatedByLabel() {
+    save(Person("cacheLabel1"))
+    assertThat(search("cacheLabel")).containsExactly("cacheLabel1")
+    save(Person("cacheLabel2"))
+    assertThat(search("cacheLabel")).containsExactly("cacheLabel1", "cacheLabel2")
+
+    // changes on other labels keep the entry
+    service.beginTx().use { tx ->
+      service.repository(Clothing::class.java).save(Clothing("cacheLabel"))
+      tx.success()
+    }
+    val hits = cache.hits()
+    assertThat(search("cacheLabel")).hasSize(2)
+    assertThat(cache.hits() - hits).isEqualTo(1)
+  }
+
+  @Test
+  fun invalidatedByDelete() {
+    val person = Person("cacheDelete1")
+    save(person, Person("cacheDelete2"))
+    assertThat(search("cacheDelete")).hasSize(2)
+    service.beginTx().use { tx ->
+      persons.remove(person)
+      tx.success()
+    }
+    assertThat(search("cacheDelete")).containsExactly("cacheDelete2")
+  }
+
+  @Test
+  fun uncommittedChanges() {
+    save(Person("cacheTx1"))
+    assertThat(search("cacheTx")).hasSize(1)
+    service.beginTx().use {
+      persons.save(Person("cacheTx2"))
+      val list = persons.search().cached().filter(Filter.StartsWith("field", "cacheTx")).list<Person>()
+      assertThat(list).hasSize(2)
+    }
+    assertThat(search("cacheTx")).hasSize(1)
+  }
+
+  @Test
+  fun ttl() {
+    save(Person("cacheTtl"))
+    cache.setTtl("Person", 0, TimeUnit.MILLISECONDS)
+    try {
+      assertThat(cache.isEnabled("Person")).isFalse()
+      search("cacheTtl")
+      assertThat(cache.size()).isEqualTo(0)
+    } finally {
+      cache.setTtl("Person", SearchCache.DefaultTtl, TimeUnit.MILLISECONDS)
+    }
+    assertThat(cache.isEnabled("Person")).isTrue()
+  }
+
+  @Test
+  fun maxResults() {
+    val small = SearchCache(10, 2)
+    small.setTtl("Person", SearchCache.DefaultTtl, TimeUnit.MILLISECONDS)
+    val query = persons.queryBuilder().build(SearchParameter())
+    small.put(query, "Person", longArrayOf(1, 2, 3), small.generation())
+    assertThat(small.size()).isEqualTo(0)
+    small.put(query, "Person", longArrayOf(1, 2), small.generation())
+    assertThat(small.get(query) as LongArray).containsExactly(1, 2)
+  }
+
+  @Test
+  fun notEnabled() {
+    val small = SearchCache(10, 10)
+    val query = persons.queryBuilder().build(SearchParameter())
+    small.put(query, "Person", longArrayOf(1), small.generation())
+    assertThat(small.size()).isEqualTo(0)
+    assertThat(small.ttl("Person")).isEqualTo(0)
+  }
+
+  @Test
+  fun queryNames() {
+    val query = persons.queryBuilder().build(SearchParameter().filter(Filter.StartsWith("wears.name", "cache")))
+    assertThat(query.names()).containsExactlyInAnyOrder("Person", "Wears", "Clothing", Query.Related)
+    val simple = persons.queryBuilder().buildSimple(SearchParameter().filter(Filter.StartsWith("field", "cache")))
+    assertThat(simple.names()).containsExactly("Person")
+  }
+
+  @Test
+  fun invalidatedByIndex() {
+    save(Person("cacheIndex1"))
+    assertThat(search("cacheIndex")).hasSize(1)
+    val size = cache.size()
+    save(Person("cacheIndex2"))
+    // the entry is removed along with its index
+    assertThat(cache.size()).isLessThan(size)
+    assertThat(search("cacheIndex")).hasSize(2)
+  }
+}
@@ -0,0 +1,11 @@
+package de.whitefrog.frogr.test.model
+
+import de.whitefrog.frogr.model.Entity
+import de.whitefrog.frogr.model.annotation.IndexType
+import de.whitefrog.frogr.model.annotation.Indexed
+
+class Article(
+  @Indexed(type = IndexType.FullText) var title: String? = null,
+  @Indexed(type = IndexType.FullText) var text: String? = null) : Entity() {
+  @Indexed var code: String? = null
+}
@@ -1,7 +1,13 @@
 package de.whitefrog.frogr.test.model
 
 import de.whitefrog.frogr.model.Entity
+import de.whitefrog.frogr.model.annotation.Cached
+import de.whitefrog.frogr.model.annotation.RelationshipCount
+import org.neo4j.graphdb.Direction
 
+@Cached
 class Clothing(var name: String? = null) : Entity(), InventoryItem {
   override var test: String? = null
-}
\ No newline at end of file
+  @RelationshipCount(direction = Direction.INCOMING, type = "Wears", maintained = true)
+  var wornByCount: Long? = null
+}
@@ -0,0 +1,11 @@
+package de.whitefrog.frogr.test.model
+
+import de.whitefrog.frogr.model.Entity
+import de.whitefrog.frogr.model.annotation.RelatedTo
+import org.neo4j.graphdb.Direction
+import java.util.*
+
+class Outfit(var name: String? = null) : Entity() {
+  @RelatedTo(direction = Direction.OUTGOING, type = "Contains", restrictType = true)
+  var items: ArrayList<Clothing> = ArrayList()
+}
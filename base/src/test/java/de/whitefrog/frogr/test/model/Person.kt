@@ -45,6 +45,8 @@ class Person(@Indexed var field: String? = null, @Indexed var number: Long? = nu
   var marriedWithRelationship: MarriedWith? = null
   @RelatedTo(direction = Direction.OUTGOING, type = "Wears")
   var wears: ArrayList<Clothing> = ArrayList()
+  @RelationshipCount(direction = Direction.OUTGOING, type = "Wears", otherModel = Clothing::class, maintained = true)
+  var wearsCount: Long? = null
   @RelatedTo(direction = Direction.OUTGOING, type = "HasInventory")
   var inventory: ArrayList<InventoryItem> = ArrayList()
 
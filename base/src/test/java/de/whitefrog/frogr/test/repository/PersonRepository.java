@@ -1,7 +1,19 @@
 package de.whitefrog.frogr.test.repository;
 
+import de.whitefrog.frogr.model.FieldList;
 import de.whitefrog.frogr.repository.BaseModelRepository;
 import de.whitefrog.frogr.test.model.Person;
+import org.neo4j.graphdb.PropertyContainer;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PersonRepository extends BaseModelRepository<Person> {
+  // models created from nodes, to test that searches use the createModel hook
+  public final AtomicInteger created = new AtomicInteger();
+
+  @Override
+  public Person createModel(PropertyContainer node, FieldList fields) {
+    created.incrementAndGet();
+    return super.createModel(node, fields);
+  }
 }
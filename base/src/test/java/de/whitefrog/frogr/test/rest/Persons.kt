@@ -9,4 +9,6 @@ import javax.ws.rs.GET
 import javax.ws.rs.Path
 
 @Path("person")
-class Persons: CRUDService<PersonRepository, Person>()
\ No newline at end of file
+class Persons: CRUDService<PersonRepository, Person>() {
+  override fun isStreamable() = true
+}
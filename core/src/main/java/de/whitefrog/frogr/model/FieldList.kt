@@ -4,18 +4,97 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect
 import de.whitefrog.frogr.exception.FrogrException
 import de.whitefrog.frogr.exception.QueryParseException
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 /**
- * Contains multiple QueryField instances.
+ * Contains multiple QueryField instances, stored by field name.
  */
 @JsonAutoDetect(
   fieldVisibility = JsonAutoDetect.Visibility.ANY, 
   getterVisibility = JsonAutoDetect.Visibility.NONE, 
   setterVisibility = JsonAutoDetect.Visibility.NONE
 )
-class FieldList() : HashSet<QueryField>() {
+class FieldList() : AbstractMutableSet<QueryField>() {
+  private val fields = LinkedHashMap<String, QueryField>()
+  // stamp of the last change of the list itself, see modified()
+  private var modified = nextStamp()
+  @Volatile private var derived: Derived? = null
+
   constructor(list: FieldList): this() {
-    addAll(HashSet(list))
+    addAll(list)
+  }
+
+  override val size: Int
+    get() = fields.size
+
+  override fun iterator(): MutableIterator<QueryField> {
+    val iterator = fields.values.iterator()
+    return object : MutableIterator<QueryField> {
+      override fun hasNext() = iterator.hasNext()
+      override fun next() = iterator.next()
+      override fun remove() {
+        iterator.remove()
+        modified = nextStamp()
+      }
+    }
+  }
+
+  /**
+   * Adds a field, if no field with the same name is in the list yet.
+   */
+  override fun add(element: QueryField): Boolean {
+    if(fields.containsKey(element.field)) return false
+    fields[element.field] = element
+    modified = nextStamp()
+    return true
+  }
+
+  override fun contains(element: QueryField): Boolean {
+    return fields.containsKey(element.field)
+  }
+
+  override fun remove(element: QueryField): Boolean {
+    if(fields.remove(element.field) == null) return false
+    modified = nextStamp()
+    return true
+  }
+
+  override fun clear() {
+    fields.clear()
+    modified = nextStamp()
+  }
+
+  /**
+   * Stamp of the last change of the list or one of its fields, including sub fields.
+   * Stamps increase with every change, so values derived from an older stamp are outdated.
+   */
+  fun modified(): Long {
+    var modified = this.modified
+    for(field in fields.values) modified = maxOf(modified, field.modified())
+    return modified
+  }
+
+  /**
+   * Get a value derived from the fields, like a compiled fetch plan. The value is computed once per key
+   * and kept with the list, until the list or one of its fields changes.
+   * @param key Key of the derived value
+   * @param compute Computes the value for the current fields
+   * @return The derived value
+   */
+  @Suppress("UNCHECKED_CAST")
+  fun <V : Any> derived(key: Any, compute: (FieldList) -> V): V {
+    val stamp = modified()
+    var current = derived
+    if(current == null || current.stamp < stamp) {
+      current = Derived(stamp)
+      derived = current
+    }
+    return current.values.computeIfAbsent(key) { compute(this) } as V
+  }
+
+  private class Derived(val stamp: Long) {
+    val values = ConcurrentHashMap<Any, Any>()
   }
 
   /**
@@ -24,7 +103,7 @@ class FieldList() : HashSet<QueryField>() {
    * @return <code>true</code> if the field is in the list, otherwise <code>false</code>
    */
   fun containsField(name: String): Boolean {
-    return this.any { it.field == name }
+    return fields.containsKey(name)
   }
 
   /**
@@ -33,7 +112,7 @@ class FieldList() : HashSet<QueryField>() {
    * @return QueryField instance if found, otherwise <code>null</code>
    */
   operator fun get(name: String): QueryField? {
-    return this.firstOrNull { it.field == name }
+    return fields[name]
   }
 
   /**
@@ -42,7 +121,7 @@ class FieldList() : HashSet<QueryField>() {
    * @return the found QueryField instance, or a newly created one with that name
    */
   fun getOrEmpty(name: String): QueryField {
-    return firstOrNull { it.field == name } ?: QueryField(name)
+    return fields[name] ?: QueryField(name)
   }
 
   override fun toString(): String {
@@ -55,9 +134,13 @@ class FieldList() : HashSet<QueryField>() {
   }
 
   companion object {
+    private val stamps = AtomicLong()
+
     @JvmField
     var All = parseFields(Base.AllFields)
 
+    internal fun nextStamp(): Long = stamps.incrementAndGet()
+
     @JvmStatic
     fun parseFields(vararg fields: String): FieldList {
       return parseFields(Arrays.asList(*fields))
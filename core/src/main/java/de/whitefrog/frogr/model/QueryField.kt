@@ -2,6 +2,7 @@ package de.whitefrog.frogr.model
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect
 import com.fasterxml.jackson.annotation.JsonCreator
+import com.fasterxml.jackson.annotation.JsonIgnore
 import com.fasterxml.jackson.annotation.JsonInclude
 import com.fasterxml.jackson.annotation.JsonProperty
 import org.apache.commons.lang3.builder.EqualsBuilder
@@ -19,6 +20,9 @@ class QueryField @JsonCreator constructor(@JsonProperty("field") var field: Stri
   private var limit = SearchParameter.DefaultLimit
   @JsonInclude(JsonInclude.Include.NON_EMPTY)
   private var subFields = FieldList()
+  // stamp of the last change of skip, limit or the sub field list, see FieldList.modified()
+  @JsonIgnore
+  private var modified = FieldList.nextStamp()
 
   init {
     parseField(field)
@@ -55,6 +59,7 @@ class QueryField @JsonCreator constructor(@JsonProperty("field") var field: Stri
 
   fun limit(limit: Int) {
     this.limit = limit
+    modified = FieldList.nextStamp()
   }
 
   fun skip(): Int {
@@ -63,6 +68,7 @@ class QueryField @JsonCreator constructor(@JsonProperty("field") var field: Stri
 
   fun skip(skip: Int) {
     this.skip = skip
+    modified = FieldList.nextStamp()
   }
 
   fun subFields(): FieldList {
@@ -71,12 +77,20 @@ class QueryField @JsonCreator constructor(@JsonProperty("field") var field: Stri
 
   fun subFields(fields: FieldList) {
     this.subFields = fields
+    modified = FieldList.nextStamp()
   }
 
   fun subFields(vararg fd: QueryField) {
     this.subFields.addAll(Arrays.asList(*fd))
   }
 
+  /**
+   * Stamp of the last change of the field or its sub fields, see {@link FieldList#modified}.
+   */
+  fun modified(): Long {
+    return maxOf(modified, subFields.modified())
+  }
+
   override fun hashCode(): Int {
     return HashCodeBuilder()
       .append(field)
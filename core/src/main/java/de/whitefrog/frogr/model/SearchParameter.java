@@ -26,11 +26,13 @@ public class SearchParameter implements Serializable {
   private Integer limit;
   private Integer page;
   private Integer start;
+  private String cursor;
   private Integer depth;
   private Boolean count;
+  private Boolean estimate;
   private Locale locale;
-  private Set<Long> ids = new HashSet<>();
-  private Set<String> uuids = new HashSet<>();
+  private Set<Long> ids = new LinkedHashSet<>();
+  private Set<String> uuids = new LinkedHashSet<>();
   private List<Filter> filters = new ArrayList<>();
   private List<OrderBy> orderBy = new ArrayList<>();
   private FieldList fields = new FieldList();
@@ -41,9 +43,11 @@ public class SearchParameter implements Serializable {
     clone.page = page;
     clone.limit = limit;
     clone.start = start;
+    clone.cursor = cursor;
     clone.query = query;
     clone.depth = depth;
     clone.count = count;
+    clone.estimate = estimate;
     clone.locale = locale;
     clone.ids = ids;
     clone.uuids = uuids;
@@ -78,6 +82,20 @@ public class SearchParameter implements Serializable {
     return this;
   }
 
+  /**
+   * Use an estimated total instead of counting all results, when a total is {@link #count() requested}.
+   * The estimate is based on the label counts and index selectivity of the database, 
+   * so it's returned in constant time but can differ from the real count.
+   */
+  public SearchParameter estimate(boolean estimate) {
+    this.estimate = estimate;
+    return this;
+  }
+
+  public boolean estimate() {
+    return estimate != null && estimate;
+  }
+
   public boolean containsFilter(String property) {
     for(Filter filter : filters()) {
       if(filter.getProperty().equals(property)) return true;
@@ -172,6 +190,20 @@ public class SearchParameter implements Serializable {
     return start != null? start: 0;
   }
 
+  /**
+   * Continue an ordered search after the position of a cursor returned with the previous page,
+   * instead of skipping the results of the previous pages.
+   * @param cursor The opaque cursor
+   */
+  public SearchParameter cursor(String cursor) {
+    this.cursor = cursor;
+    return this;
+  }
+
+  public String cursor() {
+    return cursor;
+  }
+
   @JsonIgnore
   public boolean isFiltered() {
     return !filters.isEmpty();
@@ -187,7 +219,7 @@ public class SearchParameter implements Serializable {
   }
 
   public SearchParameter ids(Collection<Long> ids) {
-    this.ids = new HashSet<>(ids);
+    this.ids = new LinkedHashSet<>(ids);
     return this;
   }
 
@@ -201,7 +233,7 @@ public class SearchParameter implements Serializable {
   }
 
   public SearchParameter uuids(Collection<String> uuids) {
-    this.uuids = new HashSet<>(uuids);
+    this.uuids = new LinkedHashSet<>(uuids);
     return this;
   }
 
@@ -247,6 +279,17 @@ public class SearchParameter implements Serializable {
   public boolean isOrdered() {
     return !orderBy.isEmpty();
   }
+
+  /**
+   * Indicates that the parameters only look up models by uuid,
+   * without any other filters, queries, ordering or paging.
+   */
+  @JsonIgnore
+  public boolean isUuidLookup() {
+    return !uuids.isEmpty() && ids.isEmpty() && query == null && filters.isEmpty() &&
+      orderBy.isEmpty() && returns.isEmpty() && page() == 1 && cursor == null &&
+      depth == null && locale == null;
+  }
   
   public SearchParameter returns(String... fields) {
     this.returns.addAll(Arrays.asList(fields));
@@ -0,0 +1,10 @@
+package de.whitefrog.frogr.model.annotation
+
+/**
+ * Keeps the properties of a model's nodes in the entity cache, so they don't have to be read from 
+ * the graph on every fetch. Suited for models that are read often and changed rarely.
+ */
+@MustBeDocumented
+@Target(AnnotationTarget.CLASS)
+@Retention(AnnotationRetention.RUNTIME)
+annotation class Cached
@@ -1,5 +1,9 @@
 package de.whitefrog.frogr.model.annotation
 
 enum class IndexType {
-  Default, LowerCase
-}
\ No newline at end of file
+  Default, LowerCase,
+  /**
+   * Analyzed full-text index, used for free-text queries ranked by relevance.
+   */
+  FullText
+}
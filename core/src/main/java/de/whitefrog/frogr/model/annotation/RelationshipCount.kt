@@ -6,9 +6,15 @@ import kotlin.reflect.KClass
 
 /**
  * Indicates that the field should contain the relationship count for a specified relationship type when fetched.
- * Will not be persisted.
+ * Will not be persisted, unless the count is maintained.
  */
 @MustBeDocumented
 @Target(AnnotationTarget.FIELD)
 @Retention(AnnotationRetention.RUNTIME)
-annotation class RelationshipCount(val type: String = "None", val direction: Direction = Direction.OUTGOING, val otherModel: KClass<out Model> = Model::class)
+annotation class RelationshipCount(val type: String = "None", val direction: Direction = Direction.OUTGOING, val otherModel: KClass<out Model> = Model::class,
+                                   /**
+                                    * Keep the count in a node property, which is updated whenever a matching 
+                                    * relationship is created or deleted. Reading the count doesn't touch
+                                    * the relationships then, which is useful for counts restricted by otherModel.
+                                    */
+                                   val maintained: Boolean = false)